@@ -3,10 +3,7 @@ package ibis.arnold;
 import ibis.ipl.IbisCreationFailedException;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.ObjectInputStream;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import java.util.Properties;
@@ -20,19 +17,11 @@ import java.util.Properties;
 class Arnold {
     private static JorrentInfo loadJorrentFile(final File f) {
         try {
-            final InputStream fis = new FileInputStream(f);
-            final ObjectInputStream in = new ObjectInputStream(fis);
-            final JorrentInfo res = (JorrentInfo) in.readObject();
-            in.close();
-            return res;
+            return JorrentFile.read(f);
         } catch (final IOException e) {
             Globals.log.reportError("Cannot load jorrent file " + f + ": "
                     + e.getLocalizedMessage());
             return null;
-        } catch (final ClassNotFoundException e) {
-            Globals.log.reportError("Cannot load jorrent file " + f + ": "
-                    + e.getLocalizedMessage());
-            return null;
         }
     }
 
@@ -43,6 +32,8 @@ class Arnold {
         System.err.println("Where <option> is:");
         System.err
                 .println(" --dummyfile\tShare a dummy file instead of a real one");
+        System.err
+                .println(" --memoryfile\tShare an in-memory dummy file, stored outside the heap");
         System.err
                 .println(" --proxymode\tRun proxy mode with the leecher hiding behind helpers");
         System.err.println(" --helper\tPeer is a helper in a proxy-mode setup");
@@ -68,6 +59,7 @@ class Arnold {
         File sharedFileName = null;
         File jorrentFileName = null;
         boolean dummyFile = false;
+        boolean memoryFile = false;
         boolean altruisticLeechers = false;
         boolean impatientLeechers = false;
         boolean helper = false;
@@ -80,6 +72,9 @@ class Arnold {
                 setPropertyOption(arg);
             } else if (arg.equalsIgnoreCase("--dummyfile")) {
                 dummyFile = true;
+            } else if (arg.equalsIgnoreCase("--memoryfile")) {
+                dummyFile = true;
+                memoryFile = true;
             } else if (arg.equalsIgnoreCase("--proxymode")) {
                 proxymode = true;
             } else if (arg.equalsIgnoreCase("--helper")) {
@@ -109,9 +104,15 @@ class Arnold {
         if (helper && !proxymode) {
             usage("A peer can only be a helper in proxy mode", args);
         }
-        final SharedFileInterface sharedFile;
+        SharedFileInterface sharedFile;
+        ChunkDigests chunkDigests = null;
         try {
-            if (dummyFile) {
+            if (memoryFile) {
+                final long arenaSize = Utils.getLongProperty(
+                        "arnold.memory-arena-size", Settings.MEMORY_ARENA_SIZE);
+                sharedFile = new MemorySharedFile(Settings.PIECE_SIZE,
+                        Settings.DUMMY_FILE_SIZE, null, arenaSize);
+            } else if (dummyFile) {
                 sharedFile = new DummySharedFile(Settings.PIECE_SIZE,
                         Settings.DUMMY_FILE_SIZE, null,
                         Settings.DUMMY_INNER_BLOCKSIZE);
@@ -125,6 +126,8 @@ class Arnold {
                         sharedFileName = File.createTempFile("arnold-",
                                 "-dummy-shared-file");
                         sharedFileName.deleteOnExit();
+                        PieceValidityFile.getValidityFile(sharedFileName)
+                                .deleteOnExit();
                     } catch (final IOException e) {
                         System.err.println("Cannot create temp file, Goodbye!");
                         e.printStackTrace();
@@ -143,8 +146,14 @@ class Arnold {
                     return;
                 }
                 System.out.println("Loaded jorrent file " + jorrentFileName);
-                sharedFile = new SharedFile(sharedFileName, info.pieceSize,
-                        info.length, info.digests);
+                chunkDigests = info.chunkDigests;
+                if (Utils.getExistenceProperty("arnold.mapped-file")) {
+                    sharedFile = new MappedSharedFile(sharedFileName,
+                            info.pieceSize, info.length, info.pieceDigests);
+                } else {
+                    sharedFile = new SharedFile(sharedFileName,
+                            info.pieceSize, info.length, info.pieceDigests);
+                }
             }
         } catch (final IOException e) {
             System.err.println("Failed to access shared file");
@@ -157,9 +166,17 @@ class Arnold {
             System.exit(2);
             return;
         }
+        final int readCacheSize = Utils.getIntProperty(
+                "arnold.read-cache-size", Settings.READ_CACHE_SIZE);
+        // A memory file is already in memory, and must not be copied to
+        // the heap of every peer.
+        if (!dummyFile && !memoryFile && readCacheSize > 0) {
+            sharedFile = new CachingSharedFile(sharedFile, readCacheSize);
+        }
         try {
-            final Engine e = new Engine(sharedFile, proxymode, helper,
-                    altruisticHelpers, altruisticLeechers, impatientLeechers);
+            final Engine e = new Engine(sharedFile, chunkDigests, proxymode,
+                    helper, altruisticHelpers, altruisticLeechers,
+                    impatientLeechers);
             e.start();
             e.join();
         } catch (final IOException e) {
@@ -9,4 +9,9 @@ package ibis.arnold;
  */
 class AskForHelpMessage extends SmallMessage {
     private static final long serialVersionUID = 1L;
+
+    @Override
+    int getType() {
+        return MessageType.ASK_FOR_HELP;
+    }
 }
@@ -0,0 +1,40 @@
+package ibis.arnold;
+
+/**
+ * A message containing the pieces that were added since an earlier catalog
+ * to the same destination. The destination adds them to its copy of that
+ * catalog, and handles the result as if it had received the full catalog.
+ * 
+ * @author Kees van Reeuwijk
+ * 
+ */
+class BitSetDeltaMessage extends Message {
+    private static final long serialVersionUID = 1L;
+
+    /** The pieces that were added. */
+    final PieceSet addedBits;
+
+    /** The serial number of the catalog this delta is relative to. */
+    final int baseSerial;
+
+    /** The serial number of the resulting catalog. */
+    final int serial;
+
+    BitSetDeltaMessage(final PieceSet addedBits, final int baseSerial,
+            final int serial) {
+        this.addedBits = addedBits;
+        this.baseSerial = baseSerial;
+        this.serial = serial;
+    }
+
+    @Override
+    public String toString() {
+        return "BitSetDeltaMessage[added=" + addedBits.cardinality()
+                + " serial=" + serial + "]";
+    }
+
+    @Override
+    int getType() {
+        return MessageType.BIT_SET_DELTA;
+    }
+}
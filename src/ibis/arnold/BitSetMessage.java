@@ -7,16 +7,25 @@ package ibis.arnold;
  * 
  */
 class BitSetMessage extends Message {
-    private static final long serialVersionUID = 1L;
+    private static final long serialVersionUID = 2L;
 
     final PieceSet bits;
 
-    BitSetMessage(final PieceSet bits) {
+    /** The number of this catalog among those sent to the destination. */
+    final int serial;
+
+    BitSetMessage(final PieceSet bits, final int serial) {
         this.bits = bits;
+        this.serial = serial;
     }
 
     @Override
     public String toString() {
-        return "BitsetMessage";
+        return "BitsetMessage[serial=" + serial + "]";
+    }
+
+    @Override
+    int getType() {
+        return MessageType.BIT_SET;
     }
 }
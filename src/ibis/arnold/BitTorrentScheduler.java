@@ -22,11 +22,12 @@ final class BitTorrentScheduler implements SchedulerInterface {
     private final PeerRanker peerPerformanceRankerForSeeder;
     private final PeerRanker peerPerformanceRankerForLeecher;
     private final PieceRanker pieceRanker;
+    private final boolean streaming;
 
     BitTorrentScheduler(final EngineInterface engine,
             final Transmitter transmitter, final PieceSet knownPieces,
             final PieceSet missingPieces, final RankingPolicy policy,
-            final int numberOfPieces) {
+            final int numberOfPieces, final StreamingWindow streamingWindow) {
         this.engine = engine;
         this.transmitter = transmitter;
         this.knownPieces = knownPieces.clone();
@@ -41,19 +42,25 @@ final class BitTorrentScheduler implements SchedulerInterface {
         neighbors = new PeerInfoList(numberOfPieces);
         neighbors.setRewardRanker(currentRanker);
         this.pieceRanker = new PieceRanker(knownPieces);
+        this.pieceRanker.setStreamingWindow(streamingWindow);
+        this.streaming = streamingWindow != null;
     }
 
     private void sendCatalogMessage(final IbisIdentifier peer) {
-        final BitSetMessage msg = new BitSetMessage(knownPieces);
         if (Settings.TraceScheduler) {
             Globals.log
                     .reportProgress("BitTorrentScheduler: send our bitset to neighbor "
                             + peer);
         }
-        transmitter.addToBookkeepingQueue(peer, msg);
+        transmitter.addCatalogToBookkeepingQueue(peer, knownPieces);
         neighbors.setSentCatalog(peer);
     }
 
+    @Override
+    public void sendFullCatalog(final IbisIdentifier peer) {
+        transmitter.addFullCatalogToBookkeepingQueue(peer, knownPieces);
+    }
+
     /**
      * Tries to select the given peer as a new neighbor.
      * 
@@ -256,11 +263,37 @@ final class BitTorrentScheduler implements SchedulerInterface {
         }
     }
 
+    /**
+     * Lets the fastest peers download the pieces that are needed soonest by
+     * a streaming download, even if they are already being downloaded from
+     * slower peers.
+     */
+    private void maintainStreamingPieces() {
+        final List<PeerInfo> rankedPeers = neighbors
+                .getDownloadSpeedRankedPeers();
+        final int n = Math.min(rankedPeers.size(),
+                Settings.STREAMING_FAST_PEERS);
+        for (int i = 0; i < n; i++) {
+            final PeerInfo p = rankedPeers.get(i);
+            while (p.weAreInterested() && p.hasRoomForRequest()) {
+                final int piece = p.getUrgentPieceToDownload(pieceRanker,
+                        outstandingPieces);
+                if (piece < 0) {
+                    break;
+                }
+                createPieceRequest(p, piece);
+            }
+        }
+    }
+
     private void maintainOutstandingPieces() {
         if (seeding) {
             // We're seeding, so we have no outstanding pieces.
             return;
         }
+        if (streaming) {
+            maintainStreamingPieces();
+        }
         if (unrequestedMissingPieces.isEmpty()) {
             maintainOutstandingPiecesInEndgame();
         } else {
@@ -549,7 +582,9 @@ final class BitTorrentScheduler implements SchedulerInterface {
                     Globals.log.reportProgress("Next granted chunk request is "
                             + r);
                 }
-                neighbors.waitingRequests--;
+                if (r.completesRequest) {
+                    neighbors.waitingRequests--;
+                }
                 rotateSlots(); // Next time another slot gets priority.
                 return r;
             }
@@ -575,6 +610,7 @@ final class BitTorrentScheduler implements SchedulerInterface {
     @Override
     public void printStatistics(final PrintStream s) {
         neighbors.printStatistics(s);
+        pieceRanker.printStatistics(s);
     }
 
     @Override
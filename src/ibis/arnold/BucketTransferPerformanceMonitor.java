@@ -0,0 +1,117 @@
+package ibis.arnold;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * A transfer performance monitor that counts the transferred units in a ring
+ * of fixed time buckets that together span the time window. Registering a
+ * transfer doesn't allocate anything, and the total of the buckets is kept as
+ * a running sum. The rate is the sum divided by the time that the buckets
+ * cover, which is one partial bucket and all other buckets; apart from the
+ * granularity of the buckets this equals the estimate of a
+ * {@link WindowTransferPerformanceMonitor} with the same window.
+ * 
+ * @author Kees van Reeuwijk
+ * 
+ */
+class BucketTransferPerformanceMonitor implements TransferPerformanceMonitor {
+    private final long windowTime;
+    private final long bucketTime;
+    private final long buckets[];
+
+    /** The index in <code>buckets</code> of the current bucket. */
+    private int currentBucket = 0;
+
+    /** The start time of the current bucket. */
+    private long currentStart = Long.MIN_VALUE;
+
+    /** The time of the first transfer. */
+    private long firstTime = Long.MIN_VALUE;
+
+    private long sum = 0;
+    private int sampleCount = 0;
+
+    /**
+     * @param windowTime
+     *            The time window in milliseconds of the performance monitor.
+     * @param bucketCount
+     *            The number of buckets in the time window.
+     */
+    BucketTransferPerformanceMonitor(final long windowTime,
+            final int bucketCount) {
+        this.windowTime = windowTime;
+        this.bucketTime = Math.max(1, windowTime / bucketCount);
+        this.buckets = new long[bucketCount];
+    }
+
+    BucketTransferPerformanceMonitor(final long windowTime) {
+        this(windowTime, Settings.TRANSFER_MONITOR_BUCKETS);
+    }
+
+    /**
+     * Clears the buckets that have dropped out of the window at the given
+     * time.
+     */
+    private void advance(final long now) {
+        if (now < currentStart + bucketTime) {
+            return;
+        }
+        final long steps = (now - currentStart) / bucketTime;
+        if (steps >= buckets.length) {
+            Arrays.fill(buckets, 0);
+            sum = 0;
+            currentBucket = 0;
+        } else {
+            for (int i = 0; i < steps; i++) {
+                currentBucket++;
+                if (currentBucket == buckets.length) {
+                    currentBucket = 0;
+                }
+                sum -= buckets[currentBucket];
+                buckets[currentBucket] = 0;
+            }
+        }
+        currentStart += steps * bucketTime;
+    }
+
+    void registerTransfer(final long size, final long now) {
+        if (firstTime == Long.MIN_VALUE) {
+            firstTime = now;
+            currentStart = now - now % bucketTime;
+        }
+        advance(now);
+        buckets[currentBucket] += size;
+        sum += size;
+        sampleCount++;
+    }
+
+    @Override
+    public void registerTransfer(final long size) {
+        registerTransfer(size, System.currentTimeMillis());
+    }
+
+    double estimatePerformance(final long now) {
+        if (sum == 0) {
+            return 0;
+        }
+        advance(now);
+        if (now - firstTime < windowTime) {
+            // All transfers are in the window.
+            return sum / (1e-3 * windowTime);
+        }
+        final long span = (buckets.length - 1) * bucketTime + now
+                - currentStart + 1;
+        return sum / (1e-3 * span);
+    }
+
+    @Override
+    public double estimatePerformance() {
+        return estimatePerformance(System.currentTimeMillis());
+    }
+
+    @Override
+    public void PrintStatistics(final String name, final PrintStream s) {
+        s.println(name + ": " + sampleCount + " samples");
+    }
+}
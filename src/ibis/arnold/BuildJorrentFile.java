@@ -2,77 +2,287 @@ package ibis.arnold;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * A small program to build a .jorrent file from a given input file. A .jorrent
  * file is similar in function to a .torrent file.
+ * <p>
+ * The input file is read by a single reader, that hands each piece to a pool
+ * of digest workers. Every worker stores its digests at the position of its
+ * piece in the digest tables, so the digests end up in order regardless of
+ * the order in which they are computed. The number of pieces in flight is
+ * bounded by a fixed pool of buffers.
  * 
  * @author Kees van Reeuwijk
  * 
  */
 class BuildJorrentFile {
-    private static final long MAXIMAL_FILE_SIZE = (long) Settings.PIECE_SIZE
-            * Integer.MAX_VALUE;
-
-    private static void writeJorrentFile(final File f, final JorrentInfo content)
-            throws FileNotFoundException, IOException {
-        final OutputStream fis = new FileOutputStream(f);
-        final ObjectOutputStream out = new ObjectOutputStream(fis);
-        out.writeObject(content);
-        out.close();
+    /**
+     * The number of piece buffers per digest worker. The reader blocks when
+     * all buffers are in use.
+     */
+    private static final int BUFFERS_PER_WORKER = 2;
+
+    /** The ideal maximal number of pieces when the piece size is automatic. */
+    private static final int AUTOMATIC_PIECE_COUNT = 2048;
+
+    /** The maximal piece size that is chosen automatically. */
+    private static final int MAXIMAL_AUTOMATIC_PIECE_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * Given a file size, returns a suitable piece size for it. This is the
+     * smallest power-of-two multiple of the default piece size that results
+     * in at most AUTOMATIC_PIECE_COUNT pieces, but no larger than
+     * MAXIMAL_AUTOMATIC_PIECE_SIZE.
+     * 
+     * @param sz
+     *            The size of the file.
+     * @return The piece size.
+     */
+    static int computeAutomaticPieceSize(final long sz) {
+        int pieceSize = Settings.PIECE_SIZE;
+        while (pieceSize < MAXIMAL_AUTOMATIC_PIECE_SIZE
+                && Utils.divideRoundUp(sz, pieceSize) > AUTOMATIC_PIECE_COUNT) {
+            pieceSize *= 2;
+        }
+        return pieceSize;
+    }
+
+    /**
+     * Reads a piece from the given stream into the given buffer.
+     * 
+     * @param s
+     *            The stream to read from.
+     * @param buf
+     *            The buffer to read into.
+     * @param len
+     *            The number of bytes to read.
+     * @return The number of bytes read; only smaller than <code>len</code> at
+     *         the end of the file.
+     * @throws IOException
+     *             Thrown if the stream cannot be read.
+     */
+    private static int readPiece(final FileInputStream s, final byte buf[],
+            final int len) throws IOException {
+        int off = 0;
+        while (off < len) {
+            final int n = s.read(buf, off, len - off);
+            if (n < 0) {
+                break;
+            }
+            off += n;
+        }
+        return off;
     }
 
-    private static JorrentInfo buildJorrentInfo(final File f,
-            final int pieceSize) throws IOException, NoSuchAlgorithmException {
+    private static class DigestTask implements Runnable {
+        private final byte digests[];
+        private final byte chunkDigests[];
+        private final int piece;
+        private final byte buf[];
+        private final int len;
+        private final BlockingQueue<byte[]> freeBuffers;
+        private final AtomicReference<Throwable> failure;
+
+        DigestTask(final byte[] digests, final byte[] chunkDigests,
+                final int piece, final byte[] buf, final int len,
+                final BlockingQueue<byte[]> freeBuffers,
+                final AtomicReference<Throwable> failure) {
+            this.digests = digests;
+            this.chunkDigests = chunkDigests;
+            this.piece = piece;
+            this.buf = buf;
+            this.len = len;
+            this.freeBuffers = freeBuffers;
+            this.failure = failure;
+        }
+
+        @Override
+        public void run() {
+            try {
+                computeDigests();
+            } catch (final RuntimeException e) {
+                failure.compareAndSet(null, e);
+            } catch (final Error e) {
+                failure.compareAndSet(null, e);
+            } finally {
+                // Always return the buffer, or the reader may wait forever.
+                freeBuffers.add(buf);
+            }
+        }
+
+        private void computeDigests() {
+            try {
+                final MessageDigest d = Utils.getSHA1Digest();
+                d.update(buf, 0, len);
+                System.arraycopy(d.digest(), 0, digests, piece
+                        * PieceDigests.DIGEST_SIZE, PieceDigests.DIGEST_SIZE);
+                final byte blocks[][] = ChunkDigests.computeBlockDigests(
+                        Settings.CHUNK_SIZE, buf, len);
+                final int blocksPerPiece = ChunkDigests.getBlockCount(
+                        Settings.CHUNK_SIZE, buf.length);
+                for (int b = 0; b < blocks.length; b++) {
+                    System.arraycopy(blocks[b], 0, chunkDigests,
+                            (piece * blocksPerPiece + b)
+                                    * PieceDigests.DIGEST_SIZE,
+                            PieceDigests.DIGEST_SIZE);
+                }
+            } catch (final NoSuchAlgorithmException e) {
+                throw new DownloadFailedError("Unknown digest algorithm", e);
+            }
+        }
+    }
+
+    /**
+     * Throws an exception if one of the digest workers failed.
+     */
+    private static void checkWorkers(final AtomicReference<Throwable> failure)
+            throws IOException {
+        final Throwable t = failure.get();
+        if (t != null) {
+            final IOException e = new IOException("Computing digests failed: "
+                    + t.getLocalizedMessage());
+            e.initCause(t);
+            throw e;
+        }
+    }
+
+    static JorrentInfo buildJorrentInfo(final File f, final int pieceSize,
+            final int threads) throws IOException, NoSuchAlgorithmException {
         final long sz = f.length();
+        final long maximalFileSize = (long) pieceSize * Integer.MAX_VALUE;
 
-        if (sz >= MAXIMAL_FILE_SIZE) {
+        if (sz >= maximalFileSize) {
             System.err.println("File too large");
             System.exit(1);
         }
+        // Fail early if the digest algorithm is not known.
+        Utils.getSHA1Digest();
         final int pieces = Utils.divideRoundUp(sz, pieceSize);
-        final byte digests[][] = new byte[pieces][];
-
+        final int blocksPerPiece = ChunkDigests.getBlockCount(
+                Settings.CHUNK_SIZE, pieceSize);
+        final long tableSize = (long) pieces * blocksPerPiece
+                * PieceDigests.DIGEST_SIZE;
+        if (tableSize > Integer.MAX_VALUE) {
+            System.err.println("Too many pieces; use a larger piece size");
+            System.exit(1);
+        }
+        final byte digests[] = new byte[pieces * PieceDigests.DIGEST_SIZE];
+        final byte chunkDigests[] = new byte[pieces * blocksPerPiece
+                * PieceDigests.DIGEST_SIZE];
+        final int bufferCount = BUFFERS_PER_WORKER * threads;
+        final BlockingQueue<byte[]> freeBuffers = new ArrayBlockingQueue<byte[]>(
+                bufferCount);
+        for (int i = 0; i < bufferCount; i++) {
+            freeBuffers.add(new byte[pieceSize]);
+        }
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final ExecutorService workers = Executors.newFixedThreadPool(threads);
         final FileInputStream s = new FileInputStream(f);
         try {
-            final byte buf[] = new byte[pieceSize];
-            int off = 0;
-
             for (int i = 0; i < pieces; i++) {
-                final int readsz = s.read(buf);
+                final byte buf[] = freeBuffers.take();
+                checkWorkers(failure);
+                final int readsz = readPiece(s, buf, pieceSize);
                 if (i < pieces - 1 && readsz != pieceSize) {
                     System.err.println("Short read");
                 }
-                off += pieceSize;
-                digests[i] = Utils.computeSHA1(buf, readsz);
+                workers.execute(new DigestTask(digests, chunkDigests, i, buf,
+                        readsz, freeBuffers, failure));
+            }
+            workers.shutdown();
+            while (!workers.awaitTermination(1, TimeUnit.SECONDS)) {
+                // Keep waiting.
             }
-            return new JorrentInfo(pieceSize, sz, digests);
+            checkWorkers(failure);
+            return new JorrentInfo(pieceSize, sz, new PieceDigests(ByteBuffer
+                    .wrap(digests), pieces), new ChunkDigests(
+                    Settings.CHUNK_SIZE, blocksPerPiece, ByteBuffer
+                            .wrap(chunkDigests)));
+        } catch (final InterruptedException e) {
+            throw new IOException("Interrupted while building digests");
         } finally {
+            workers.shutdownNow();
             s.close();
         }
     }
 
+    private static void usage(final String msg, final String args[]) {
+        System.err.println("Error: " + msg);
+        System.err
+                .println("Usage: BuildJorrentFile [<option> ... <option>] <jorrent-file> <file-to-share>");
+        System.err.println("Where <option> is:");
+        System.err
+                .println(" --piecesize=<n>\tUse pieces of <n> bytes, a multiple of "
+                        + Settings.CHUNK_SIZE);
+        System.err
+                .println(" --piecesize=auto\tChoose a piece size from the file size");
+        System.err
+                .println(" --threads=<n>\tUse <n> threads to compute digests");
+        System.err.println("Actual arguments: " + Arrays.deepToString(args));
+        System.exit(1);
+    }
+
     /**
      * @param args
      *            The command-line arguments.
      */
     public static void main(final String[] args) {
-        if (args.length != 2) {
-            System.err
-                    .println("Usage: BuildJorrentFile <jorrent-file> <file-to-share>");
-            System.err
-                    .println("Actual arguments: " + Arrays.deepToString(args));
-            System.exit(1);
+        File jorrentFile = null;
+        File sharedFile = null;
+        int pieceSize = Settings.PIECE_SIZE;
+        boolean automaticPieceSize = false;
+        int threads = Runtime.getRuntime().availableProcessors();
+
+        for (final String arg : args) {
+            if (arg.equalsIgnoreCase("--piecesize=auto")) {
+                automaticPieceSize = true;
+            } else if (arg.startsWith("--piecesize=")) {
+                try {
+                    pieceSize = Integer.parseInt(arg.substring(arg
+                            .indexOf('=') + 1));
+                } catch (final NumberFormatException e) {
+                    usage("Bad piece size in '" + arg + '\'', args);
+                }
+                if (pieceSize <= 0 || pieceSize % Settings.CHUNK_SIZE != 0) {
+                    usage("Piece size must be a positive multiple of "
+                            + Settings.CHUNK_SIZE, args);
+                }
+            } else if (arg.startsWith("--threads=")) {
+                try {
+                    threads = Integer.parseInt(arg
+                            .substring(arg.indexOf('=') + 1));
+                } catch (final NumberFormatException e) {
+                    usage("Bad thread count in '" + arg + '\'', args);
+                }
+                if (threads <= 0) {
+                    usage("Thread count must be positive", args);
+                }
+            } else if (arg.startsWith("--")) {
+                usage("Unknown option '" + arg + '\'', args);
+            } else if (jorrentFile == null) {
+                jorrentFile = new File(arg);
+            } else if (sharedFile == null) {
+                sharedFile = new File(arg);
+            } else {
+                usage("Too many arguments", args);
+            }
+        }
+        if (sharedFile == null) {
+            usage("Not enough arguments", args);
+            return;
         }
-        final File jorrentFile = new File(args[0]);
-        final File sharedFile = new File(args[1]);
 
         if (!sharedFile.exists()) {
             System.err.println("File '" + sharedFile + "' does not exist");
@@ -84,13 +294,16 @@ class BuildJorrentFile {
             System.out.println("Giving up");
             System.exit(1);
         }
+        if (automaticPieceSize) {
+            pieceSize = computeAutomaticPieceSize(sharedFile.length());
+        }
         JorrentInfo info = null;
         final long startTime = System.currentTimeMillis();
         try {
-            System.out.println("Constructing digests over " + sharedFile);
-            // FIXME: make piece size variable when making .jorrent file.
-            final int pieceSize = Settings.PIECE_SIZE;
-            info = buildJorrentInfo(sharedFile, pieceSize);
+            System.out.println("Constructing digests over " + sharedFile
+                    + " with piece size " + pieceSize + " using " + threads
+                    + " threads");
+            info = buildJorrentInfo(sharedFile, pieceSize, threads);
         } catch (final NoSuchAlgorithmException x) {
             System.err.println("Internal error: unknown digest algorithm: "
                     + x.getLocalizedMessage());
@@ -103,7 +316,7 @@ class BuildJorrentFile {
         }
         try {
             System.out.println("Writing jorrent file " + jorrentFile);
-            writeJorrentFile(jorrentFile, info);
+            JorrentFile.write(jorrentFile, info);
         } catch (final IOException e) {
             System.err.println("Cannot write file '" + jorrentFile + "':"
                     + e.getLocalizedMessage());
@@ -54,16 +54,20 @@ final class CacheScheduler implements SchedulerInterface {
     }
 
     private void sendCatalogMessage(final IbisIdentifier peer) {
-        final BitSetMessage msg = new BitSetMessage(knownPieces);
         if (Settings.TraceScheduler) {
             Globals.log
                     .reportProgress("CacheScheduler: send our bitset to neighbor "
                             + peer);
         }
-        transmitter.addToBookkeepingQueue(peer, msg);
+        transmitter.addCatalogToBookkeepingQueue(peer, knownPieces);
         neighbors.setSentCatalog(peer);
     }
 
+    @Override
+    public void sendFullCatalog(final IbisIdentifier peer) {
+        transmitter.addFullCatalogToBookkeepingQueue(peer, knownPieces);
+    }
+
     /**
      * Tries to select a new neighbor.
      * 
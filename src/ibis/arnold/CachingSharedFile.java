@@ -0,0 +1,254 @@
+package ibis.arnold;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A shared file that keeps recently read pieces in memory, so that a piece that
+ * is requested by many peers at about the same time is only read once. A read
+ * of a chunk that is not in the cache reads and caches the entire piece.
+ * <p>
+ * The cache is a segmented LRU cache: a newly read piece enters a probation
+ * segment, and only moves to a protected segment when it is requested again.
+ * Pieces are evicted from the probation segment first, so pieces that are
+ * requested only once don't push out the pieces that are popular in the swarm.
+ * A piece is read as a series of chunks, so only a read of the first chunk of
+ * a piece counts as a new request.
+ * 
+ * @author Kees van Reeuwijk
+ * 
+ */
+class CachingSharedFile implements SharedFileInterface {
+    private final SharedFileInterface file;
+    private final long capacity;
+    private final long protectedCapacity;
+    private final LinkedHashMap<Integer, byte[]> probationPieces = new LinkedHashMap<Integer, byte[]>(
+            16, 0.75f, true);
+    private final LinkedHashMap<Integer, byte[]> protectedPieces = new LinkedHashMap<Integer, byte[]>(
+            16, 0.75f, true);
+    private long probationBytes = 0;
+    private long protectedBytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * @param file
+     *            The shared file to cache.
+     * @param capacity
+     *            The maximal number of bytes in the cache.
+     */
+    CachingSharedFile(final SharedFileInterface file, final long capacity) {
+        this.file = file;
+        this.capacity = capacity;
+        this.protectedCapacity = (long) (capacity * Settings.READ_CACHE_PROTECTED_FRACTION);
+    }
+
+    private static int removeEldest(final LinkedHashMap<Integer, byte[]> m) {
+        final Iterator<Map.Entry<Integer, byte[]>> it = m.entrySet()
+                .iterator();
+        final int sz = it.next().getValue().length;
+        it.remove();
+        return sz;
+    }
+
+    private void evict() {
+        while (probationBytes + protectedBytes > capacity) {
+            if (!probationPieces.isEmpty()) {
+                probationBytes -= removeEldest(probationPieces);
+            } else {
+                protectedBytes -= removeEldest(protectedPieces);
+            }
+            evictions++;
+        }
+    }
+
+    /**
+     * Returns the cached data of the given piece, or <code>null</code> if it
+     * is not in the cache.
+     * 
+     * @param piece
+     *            The piece to look up.
+     * @param newRequest
+     *            If <code>true</code>, this is a new request of the piece, and
+     *            a piece in the probation segment is promoted.
+     * @return The data of the piece, or <code>null</code>.
+     */
+    private byte[] lookup(final int piece, final boolean newRequest) {
+        byte res[] = protectedPieces.get(piece);
+        if (res != null) {
+            return res;
+        }
+        if (!newRequest) {
+            // Another chunk of the same request; this is not a second use.
+            return probationPieces.get(piece);
+        }
+        res = probationPieces.remove(piece);
+        if (res == null) {
+            return null;
+        }
+        // This is the second use of this piece; promote it.
+        probationBytes -= res.length;
+        protectedPieces.put(piece, res);
+        protectedBytes += res.length;
+        while (protectedBytes > protectedCapacity) {
+            // Demote the least recently used protected pieces.
+            final Iterator<Map.Entry<Integer, byte[]>> it = protectedPieces
+                    .entrySet().iterator();
+            final Map.Entry<Integer, byte[]> e = it.next();
+            it.remove();
+            protectedBytes -= e.getValue().length;
+            probationPieces.put(e.getKey(), e.getValue());
+            probationBytes += e.getValue().length;
+        }
+        evict();
+        return res;
+    }
+
+    private void insert(final int piece, final byte data[]) {
+        if (data.length > capacity || probationPieces.containsKey(piece)
+                || protectedPieces.containsKey(piece)) {
+            // Too large, or another thread already read it.
+            return;
+        }
+        probationPieces.put(piece, data);
+        probationBytes += data.length;
+        evict();
+    }
+
+    /**
+     * Returns the data of the entire piece of the given chunk, from the cache
+     * if possible.
+     * 
+     * @param chunk
+     *            The chunk to get the piece data for.
+     * @return The data of the piece.
+     * @throws IOException
+     *             Thrown if the piece cannot be read.
+     */
+    private byte[] getPieceData(final Chunk chunk) throws IOException {
+        byte data[];
+        synchronized (this) {
+            data = lookup(chunk.piece, chunk.offset == 0);
+            if (data == null) {
+                misses++;
+            } else {
+                hits++;
+            }
+        }
+        if (data == null) {
+            data = file.readChunk(new Chunk(chunk.piece, 0, file
+                    .getPieceSize(chunk.piece)));
+            synchronized (this) {
+                insert(chunk.piece, data);
+            }
+        }
+        return data;
+    }
+
+    @Override
+    public byte[] readChunk(final Chunk chunk) throws IOException {
+        final byte data[] = getPieceData(chunk);
+        final int end = Math.min(chunk.offset + chunk.size, data.length);
+        return Arrays.copyOfRange(data, chunk.offset, end);
+    }
+
+    @Override
+    public void readChunk(final Chunk chunk, final ByteBuffer buf)
+            throws IOException {
+        final byte data[] = getPieceData(chunk);
+        final int end = Math.min(chunk.offset + chunk.size, data.length);
+        buf.put(data, chunk.offset, end - chunk.offset);
+        buf.flip();
+    }
+
+    @Override
+    public boolean storePiece(final int piece, final byte[] data)
+            throws IOException {
+        return file.storePiece(piece, data);
+    }
+
+    @Override
+    public boolean verifyPiece(final int piece, final byte[] data) {
+        return file.verifyPiece(piece, data);
+    }
+
+    @Override
+    public void storeVerifiedPiece(final int piece, final byte[] data)
+            throws IOException {
+        file.storeVerifiedPiece(piece, data);
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    @Override
+    public boolean isComplete() {
+        return file.isComplete();
+    }
+
+    @Override
+    public PieceSet getKnownPieces() {
+        return file.getKnownPieces();
+    }
+
+    @Override
+    public int getNumberOfPieces() {
+        return file.getNumberOfPieces();
+    }
+
+    @Override
+    public int getPieceSize(final int piece) {
+        return file.getPieceSize(piece);
+    }
+
+    @Override
+    public boolean isValidPiece(final int piece) {
+        return file.isValidPiece(piece);
+    }
+
+    @Override
+    public boolean canSetValid() {
+        return file.canSetValid();
+    }
+
+    @Override
+    public void setValid() {
+        file.setValid();
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    synchronized long getEvictions() {
+        return evictions;
+    }
+
+    synchronized long getCachedBytes() {
+        return probationBytes + protectedBytes;
+    }
+
+    @Override
+    public synchronized void printStatistics(final PrintStream s) {
+        final long reads = hits + misses;
+        final double hitRate = reads == 0 ? 0.0 : (100.0 * hits) / reads;
+        s.println("Read cache: hits=" + hits + " misses=" + misses
+                + " evictions=" + evictions + " hit rate="
+                + String.format("%.1f", hitRate) + "% cached="
+                + Utils.formatByteCount(probationBytes + protectedBytes)
+                + " capacity=" + Utils.formatByteCount(capacity));
+        file.printStatistics(s);
+    }
+}
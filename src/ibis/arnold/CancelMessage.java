@@ -13,4 +13,9 @@ class CancelMessage extends SmallMessage {
     public String toString() {
         return "CancelMessage[" + chunk + ']';
     }
+
+    @Override
+    int getType() {
+        return MessageType.CANCEL;
+    }
 }
@@ -0,0 +1,213 @@
+package ibis.arnold;
+
+import ibis.ipl.IbisIdentifier;
+
+import java.io.PrintStream;
+import java.util.HashMap;
+
+/**
+ * Keeps track of the catalog of pieces that is known at both ends of the
+ * connection with every peer: the last full or delta catalog, plus the pieces
+ * announced since then with have messages.
+ * <p>
+ * The transmitter uses one to decide whether a peer only needs the pieces
+ * that were added since the previous catalog, and the engine uses another one
+ * to reconstruct the full catalog from such a delta.
+ * <p>
+ * A message that could not be sent is retried later, so catalogs can arrive
+ * out of order. Since the catalog of a peer only grows, a catalog or delta
+ * that arrives late is simply added to what we know. A delta that is not
+ * relative to the catalog we have means that we may have missed pieces; in
+ * that case we ask the peer for a full catalog.
+ * 
+ * @author Kees van Reeuwijk
+ * 
+ */
+class CatalogTracker {
+    private static class Catalog {
+        final PieceSet pieces;
+        int serial;
+
+        /**
+         * If not -1, we asked for a full catalog, and are out of sync until
+         * we get one that is newer than this serial number.
+         */
+        int resyncSerial = -1;
+
+        /** Do we still have to send the request for a full catalog? */
+        boolean resyncPending = false;
+
+        Catalog(final PieceSet pieces, final int serial) {
+            this.pieces = pieces;
+            this.serial = serial;
+        }
+    }
+
+    private final HashMap<IbisIdentifier, Catalog> catalogs = new HashMap<IbisIdentifier, Catalog>();
+    private long fullCatalogs = 0;
+    private long deltaCatalogs = 0;
+    private long deltaPieces = 0;
+    private long unknownBases = 0;
+    private long resyncs = 0;
+
+    /**
+     * Returns a catalog message for the given peer: a full catalog if we
+     * never sent one before, or else a delta relative to the previous one.
+     * 
+     * @param peer
+     *            The peer to send the catalog to.
+     * @param knownPieces
+     *            The pieces we have.
+     * @return The message to send.
+     */
+    synchronized Message createCatalogMessage(final IbisIdentifier peer,
+            final PieceSet knownPieces) {
+        final Catalog c = catalogs.get(peer);
+        if (c == null) {
+            catalogs.put(peer, new Catalog(knownPieces.clone(), 0));
+            fullCatalogs++;
+            return new BitSetMessage(knownPieces.clone(), 0);
+        }
+        final PieceSet added = knownPieces.clone();
+        added.andNot(c.pieces);
+        c.pieces.or(added);
+        final int baseSerial = c.serial;
+        c.serial++;
+        deltaCatalogs++;
+        deltaPieces += added.cardinality();
+        return new BitSetDeltaMessage(added, baseSerial, c.serial);
+    }
+
+    /**
+     * Returns a full catalog message for the given peer, because it asked for
+     * one. Its serial number is higher than that of all earlier catalogs to
+     * that peer, so that the peer can recognize it.
+     * 
+     * @param peer
+     *            The peer to send the catalog to.
+     * @param knownPieces
+     *            The pieces we have.
+     * @return The message to send.
+     */
+    synchronized Message createFullCatalogMessage(final IbisIdentifier peer,
+            final PieceSet knownPieces) {
+        final Catalog c = catalogs.get(peer);
+        final int serial = c == null ? 0 : c.serial + 1;
+        catalogs.put(peer, new Catalog(knownPieces.clone(), serial));
+        fullCatalogs++;
+        return new BitSetMessage(knownPieces.clone(), serial);
+    }
+
+    /**
+     * Registers a full catalog from the given peer.
+     * 
+     * @param peer
+     *            The peer that sent the catalog.
+     * @param msg
+     *            The catalog.
+     * @return The pieces of the peer.
+     */
+    synchronized PieceSet registerCatalog(final IbisIdentifier peer,
+            final BitSetMessage msg) {
+        fullCatalogs++;
+        final Catalog c = catalogs.get(peer);
+        if (c == null) {
+            catalogs.put(peer, new Catalog(msg.bits.clone(), msg.serial));
+            return msg.bits;
+        }
+        // Never forget pieces; this catalog may have been overtaken by later
+        // deltas.
+        c.pieces.or(msg.bits);
+        if (c.resyncSerial >= 0 && msg.serial > c.resyncSerial) {
+            // This is the catalog we asked for.
+            c.resyncSerial = -1;
+            c.resyncPending = false;
+        }
+        if (msg.serial >= c.serial) {
+            c.serial = msg.serial;
+        }
+        return c.pieces.clone();
+    }
+
+    /**
+     * Registers a delta catalog from the given peer, and returns the full
+     * catalog it represents.
+     * 
+     * @param peer
+     *            The peer that sent the delta.
+     * @param msg
+     *            The delta.
+     * @return The pieces of the peer.
+     */
+    synchronized PieceSet registerDelta(final IbisIdentifier peer,
+            final BitSetDeltaMessage msg) {
+        Catalog c = catalogs.get(peer);
+        if (c == null) {
+            c = new Catalog(new PieceSet(msg.addedBits.size()), -1);
+            catalogs.put(peer, c);
+        }
+        if (c.serial != msg.baseSerial && msg.serial > c.serial) {
+            // We missed a catalog, for example because the delta overtook
+            // the catalog it is relative to. Keep what we know, and ask for
+            // a full catalog.
+            unknownBases++;
+            if (c.resyncSerial < 0) {
+                c.resyncSerial = msg.serial;
+                c.resyncPending = true;
+                resyncs++;
+            }
+        }
+        c.pieces.or(msg.addedBits);
+        if (msg.serial > c.serial) {
+            c.serial = msg.serial;
+        }
+        deltaCatalogs++;
+        deltaPieces += msg.addedBits.cardinality();
+        return c.pieces.clone();
+    }
+
+    /**
+     * Registers that the given piece has been announced to or by the given
+     * peer.
+     * 
+     * @param peer
+     *            The peer.
+     * @param piece
+     *            The announced piece.
+     */
+    synchronized void registerPiece(final IbisIdentifier peer, final int piece) {
+        final Catalog c = catalogs.get(peer);
+        if (c != null) {
+            c.pieces.set(piece);
+        }
+    }
+
+    /**
+     * Returns <code>true</code> once if we must ask the given peer for a full
+     * catalog.
+     * 
+     * @param peer
+     *            The peer.
+     * @return <code>true</code> iff a request for a full catalog must be sent.
+     */
+    synchronized boolean takeResyncRequest(final IbisIdentifier peer) {
+        final Catalog c = catalogs.get(peer);
+        if (c == null || !c.resyncPending) {
+            return false;
+        }
+        c.resyncPending = false;
+        return true;
+    }
+
+    synchronized void removePeer(final IbisIdentifier peer) {
+        catalogs.remove(peer);
+    }
+
+    synchronized void printStatistics(final PrintStream s, final String label) {
+        s.println(label + " catalogs: " + fullCatalogs + " full, "
+                + deltaCatalogs + " delta with " + deltaPieces + " pieces"
+                + (unknownBases == 0 ? "" : ", " + unknownBases
+                        + " deltas relative to an unknown catalog, "
+                        + resyncs + " full catalogs requested"));
+    }
+}
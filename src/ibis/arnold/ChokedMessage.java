@@ -10,4 +10,9 @@ class ChokedMessage extends SmallMessage {
         this.flag = flag;
         this.reason = reason;
     }
+
+    @Override
+    int getType() {
+        return MessageType.CHOKED;
+    }
 }
@@ -0,0 +1,91 @@
+package ibis.arnold;
+
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * A pool of buffers for the data of outgoing chunks. A buffer is taken from the
+ * pool when a chunk is read, and returned to it once the message with the chunk
+ * has been written to the network, so that sending chunks doesn't allocate a
+ * new array for every chunk.
+ * 
+ * @author Kees van Reeuwijk
+ * 
+ */
+class ChunkBufferPool {
+    private final int bufferSize;
+    private final int maximalFreeBuffers;
+    private final ArrayDeque<ByteBuffer> freeBuffers = new ArrayDeque<ByteBuffer>();
+    private long allocations = 0;
+    private long reuses = 0;
+    private long releases = 0;
+
+    /**
+     * @param bufferSize
+     *            The size of the buffers in the pool.
+     * @param maximalFreeBuffers
+     *            The maximal number of free buffers to keep.
+     */
+    ChunkBufferPool(final int bufferSize, final int maximalFreeBuffers) {
+        this.bufferSize = bufferSize;
+        this.maximalFreeBuffers = maximalFreeBuffers;
+    }
+
+    /**
+     * Returns an empty buffer that can hold at least the given number of
+     * bytes. The limit of the buffer is set to the given size.
+     * 
+     * @param size
+     *            The number of bytes the buffer must hold.
+     * @return The buffer.
+     */
+    synchronized ByteBuffer get(final int size) {
+        ByteBuffer res = null;
+        if (size <= bufferSize) {
+            res = freeBuffers.poll();
+        }
+        if (res == null) {
+            res = ByteBuffer.allocate(Math.max(size, bufferSize));
+            allocations++;
+        } else {
+            reuses++;
+        }
+        res.clear();
+        res.limit(size);
+        return res;
+    }
+
+    /**
+     * Returns the given buffer to the pool. The caller must not use the buffer
+     * after this call.
+     * 
+     * @param buf
+     *            The buffer to return.
+     */
+    synchronized void release(final ByteBuffer buf) {
+        releases++;
+        if (buf.capacity() == bufferSize
+                && freeBuffers.size() < maximalFreeBuffers) {
+            freeBuffers.add(buf);
+        }
+    }
+
+    synchronized long getAllocations() {
+        return allocations;
+    }
+
+    synchronized long getReuses() {
+        return reuses;
+    }
+
+    synchronized int getFreeBuffers() {
+        return freeBuffers.size();
+    }
+
+    synchronized void printStatistics(final PrintStream s) {
+        s.println("Chunk buffer pool: allocations=" + allocations + " reuses="
+                + reuses + " releases=" + releases + " free="
+                + freeBuffers.size());
+    }
+}
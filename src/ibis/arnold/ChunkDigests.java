@@ -0,0 +1,220 @@
+package ibis.arnold;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamException;
+import java.io.ObjectStreamField;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The SHA-1 digests of the blocks of every piece of a shared file. Together
+ * with the digests of the pieces themselves they form a two-level hash tree,
+ * which allows a downloader to verify every chunk as soon as it arrives,
+ * instead of only the complete piece.
+ * <p>
+ * Like {@link PieceDigests}, all digests are stored back to back in one table,
+ * with room for the same number of blocks for every piece.
+ * <p>
+ * Jorrent files in the old serialized format contain chunk digests as an
+ * array of digests per piece. That is still the serialized form of this
+ * class, so that these files can be read.
+ * 
+ * @author Kees van Reeuwijk
+ * 
+ */
+class ChunkDigests implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /** The serialized form, as written by older versions of this class. */
+    private static final ObjectStreamField serialPersistentFields[] = {
+            new ObjectStreamField("blockSize", int.class),
+            new ObjectStreamField("digests", byte[][][].class) };
+    /** The size of a block; the last block of a piece may be smaller. */
+    final int blockSize;
+
+    /** The number of blocks in a full piece. */
+    final int blocksPerPiece;
+
+    /**
+     * The digest table; the digest of block <code>b</code> of piece
+     * <code>p</code> is entry <code>p*blocksPerPiece+b</code>.
+     */
+    private final ByteBuffer table;
+
+    /** The serialized block size, until readResolve() replaces us. */
+    private transient int serializedBlockSize;
+
+    /** The serialized digests, until readResolve() replaces us. */
+    private transient byte serializedDigests[][][];
+
+    ChunkDigests(final int blockSize, final int blocksPerPiece,
+            final ByteBuffer table) {
+        this.blockSize = blockSize;
+        this.blocksPerPiece = blocksPerPiece;
+        this.table = table;
+    }
+
+    /**
+     * Builds a digest table from separate block digests for every piece.
+     * 
+     * @param blockSize
+     *            The size of a block.
+     * @param pieceSize
+     *            The size of a full piece.
+     * @param digests
+     *            The digests, indexed by piece and block in that piece.
+     */
+    ChunkDigests(final int blockSize, final int pieceSize,
+            final byte digests[][][]) {
+        this(blockSize, getBlockCount(blockSize, pieceSize), ByteBuffer
+                .allocate(digests.length * getBlockCount(blockSize, pieceSize)
+                        * PieceDigests.DIGEST_SIZE));
+        for (int piece = 0; piece < digests.length; piece++) {
+            for (int block = 0; block < digests[piece].length; block++) {
+                table.position(getIndex(piece, block));
+                table.put(digests[piece][block]);
+            }
+        }
+        table.clear();
+    }
+
+    private int getIndex(final int piece, final int block) {
+        return (piece * blocksPerPiece + block) * PieceDigests.DIGEST_SIZE;
+    }
+
+    /**
+     * Returns the number of blocks in a piece of the given size.
+     * 
+     * @param blockSize
+     *            The size of a block.
+     * @param pieceSize
+     *            The size of the piece.
+     * @return The number of blocks.
+     */
+    static int getBlockCount(final int blockSize, final int pieceSize) {
+        return Utils.divideRoundUp(pieceSize, blockSize);
+    }
+
+    /**
+     * Computes the block digests of the given piece.
+     * 
+     * @param blockSize
+     *            The size of a block.
+     * @param data
+     *            The data of the piece.
+     * @param length
+     *            The number of bytes in the piece.
+     * @return The digests of the blocks of the piece.
+     * @throws NoSuchAlgorithmException
+     *             Thrown if the SHA-1 digest algorithm is unknown.
+     */
+    static byte[][] computeBlockDigests(final int blockSize,
+            final byte data[], final int length)
+            throws NoSuchAlgorithmException {
+        final byte res[][] = new byte[getBlockCount(blockSize, length)][];
+        final MessageDigest digest = Utils.getSHA1Digest();
+        for (int block = 0; block < res.length; block++) {
+            final int offset = block * blockSize;
+            digest.update(data, offset, Math.min(blockSize, length - offset));
+            res[block] = digest.digest();
+        }
+        return res;
+    }
+
+    /**
+     * Returns true iff the given block of the given piece has the correct
+     * digest.
+     * 
+     * @param piece
+     *            The piece the block belongs to.
+     * @param block
+     *            The block in the piece.
+     * @param data
+     *            An array that holds the block.
+     * @param offset
+     *            The offset in <code>data</code> of the block.
+     * @param length
+     *            The length of the block.
+     * @return <code>true</code> iff the block is correct.
+     */
+    boolean isValidBlock(final int piece, final int block, final byte data[],
+            final int offset, final int length) {
+        try {
+            final MessageDigest digest = Utils.getSHA1Digest();
+            digest.update(data, offset, length);
+            final byte d[] = digest.digest();
+            final int start = getIndex(piece, block);
+            for (int i = 0; i < d.length; i++) {
+                if (table.get(start + i) != d[i]) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (final NoSuchAlgorithmException e) {
+            Globals.log.reportInternalError("Unknown digest algorithm: "
+                    + e.getLocalizedMessage());
+            throw new DownloadFailedError("Unknown digest algorithm", e);
+        }
+    }
+
+    private void writeObject(final ObjectOutputStream out) throws IOException {
+        final int pieces = table.capacity()
+                / (blocksPerPiece * PieceDigests.DIGEST_SIZE);
+        final byte digests[][][] = new byte[pieces][blocksPerPiece][];
+        final ByteBuffer t = getTable();
+        for (int piece = 0; piece < pieces; piece++) {
+            for (int block = 0; block < blocksPerPiece; block++) {
+                digests[piece][block] = new byte[PieceDigests.DIGEST_SIZE];
+                t.get(digests[piece][block]);
+            }
+        }
+        final ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("blockSize", blockSize);
+        fields.put("digests", digests);
+        out.writeFields();
+    }
+
+    private void readObject(final ObjectInputStream in) throws IOException,
+            ClassNotFoundException {
+        final ObjectInputStream.GetField fields = in.readFields();
+        serializedBlockSize = fields.get("blockSize", 0);
+        serializedDigests = (byte[][][]) fields.get("digests", null);
+    }
+
+    /**
+     * Replaces a deserialized instance by one with a digest table.
+     * 
+     * @return The replacement.
+     * @throws ObjectStreamException
+     *             Thrown if the serialized instance is not valid.
+     */
+    private Object readResolve() throws ObjectStreamException {
+        if (serializedDigests == null || serializedBlockSize <= 0) {
+            throw new InvalidObjectException("Chunk digests without digests");
+        }
+        int blocks = 1;
+        for (final byte d[][] : serializedDigests) {
+            if (d == null) {
+                throw new InvalidObjectException("Piece without chunk digests");
+            }
+            blocks = Math.max(blocks, d.length);
+        }
+        return new ChunkDigests(serializedBlockSize, blocks
+                * serializedBlockSize, serializedDigests);
+    }
+
+    /**
+     * @return A buffer with exactly the digest table; its position and limit
+     *         are independent of those of other users.
+     */
+    ByteBuffer getTable() {
+        final ByteBuffer res = table.duplicate();
+        res.clear();
+        return res;
+    }
+}
@@ -0,0 +1,150 @@
+package ibis.arnold;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * A small program that compares the allocation rate of the old way of sending
+ * a chunk, where every chunk is read into a new array, with reading chunks into
+ * buffers from a {@link ChunkBufferPool}. Each chunk is read from a dummy
+ * shared file, put in a piece message, and serialized to a stream that
+ * discards its output.
+ * 
+ * @author Kees van Reeuwijk
+ * 
+ */
+class ChunkReadBenchmark {
+    private static final int CHUNKS = 200000;
+
+    private static class NullOutputStream extends OutputStream {
+        @Override
+        public void write(final int b) {
+            // Discard.
+        }
+
+        @Override
+        public void write(final byte b[], final int off, final int len) {
+            // Discard.
+        }
+    }
+
+    private static long getAllocatedBytes() {
+        final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean)
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private static long getCollectionCount() {
+        long res = 0;
+        for (final GarbageCollectorMXBean bean : ManagementFactory
+                .getGarbageCollectorMXBeans()) {
+            res += Math.max(0, bean.getCollectionCount());
+        }
+        return res;
+    }
+
+    private static Chunk getChunk(final SharedFileInterface file, final int i) {
+        final int chunksPerPiece = Settings.PIECE_SIZE / Settings.CHUNK_SIZE;
+        // Stay away from the last piece, which may be short.
+        final int piece = (i / chunksPerPiece)
+                % (file.getNumberOfPieces() - 1);
+        final int offset = (i % chunksPerPiece) * Settings.CHUNK_SIZE;
+        return new Chunk(piece, offset, Settings.CHUNK_SIZE);
+    }
+
+    private static void sendArrays(final SharedFileInterface file,
+            final ObjectOutputStream out) throws IOException {
+        for (int i = 0; i < CHUNKS; i++) {
+            final Chunk chunk = getChunk(file, i);
+            final byte data[] = file.readChunk(chunk);
+            final PieceMessage msg = new PieceMessage(null, chunk.piece,
+                    chunk.offset, data);
+            out.writeObject(msg);
+            out.reset();
+            msg.messageSent();
+        }
+    }
+
+    private static void sendPooledBuffers(final SharedFileInterface file,
+            final ObjectOutputStream out) throws IOException {
+        final ChunkBufferPool pool = new ChunkBufferPool(Settings.CHUNK_SIZE,
+                Settings.CHUNK_BUFFER_POOL_SIZE);
+        for (int i = 0; i < CHUNKS; i++) {
+            final Chunk chunk = getChunk(file, i);
+            final ByteBuffer buf = pool.get(chunk.size);
+            file.readChunk(chunk, buf);
+            final PieceMessage msg = new PieceMessage(null, chunk.piece,
+                    chunk.offset, buf, pool);
+            out.writeObject(msg);
+            out.reset();
+            msg.messageSent();
+        }
+    }
+
+    private static void run(final String label,
+            final SharedFileInterface file, final boolean pooled)
+            throws IOException {
+        final ObjectOutputStream out = new ObjectOutputStream(
+                new NullOutputStream());
+        final long startBytes = getAllocatedBytes();
+        final long startCollections = getCollectionCount();
+        final long startTime = System.nanoTime();
+        if (pooled) {
+            sendPooledBuffers(file, out);
+        } else {
+            sendArrays(file, out);
+        }
+        final long t = System.nanoTime() - startTime;
+        final long collections = getCollectionCount() - startCollections;
+        final long bytes = getAllocatedBytes() - startBytes;
+        String allocated = "unknown";
+        if (startBytes >= 0) {
+            allocated = Utils.formatByteCount(bytes) + " ("
+                    + (bytes / CHUNKS) + " bytes/chunk, "
+                    + Utils.formatByteCount((long) (bytes / (1e-9 * t)))
+                    + "/s)";
+        }
+        System.out.println(label + ": time=" + Utils.formatSeconds(1e-9 * t)
+                + " allocated=" + allocated + " collections=" + collections);
+    }
+
+    /**
+     * @param args
+     *            The command-line arguments.
+     */
+    public static void main(final String[] args) {
+        if (args.length != 0) {
+            System.err.println("Usage: ChunkReadBenchmark");
+            System.err
+                    .println("Actual arguments: " + Arrays.deepToString(args));
+            System.exit(1);
+        }
+        try {
+            final SharedFileInterface file = new DummySharedFile(
+                    Settings.PIECE_SIZE, Settings.DUMMY_FILE_SIZE, null,
+                    Settings.DUMMY_INNER_BLOCKSIZE);
+            // Warm up the JIT.
+            run("warmup arrays", file, false);
+            run("warmup pooled", file, true);
+            run("arrays", file, false);
+            run("pooled", file, true);
+        } catch (final IOException e) {
+            System.err.println("Cannot send chunk: " + e.getLocalizedMessage());
+            System.exit(1);
+        } catch (final NoSuchAlgorithmException e) {
+            System.err.println("Internal error: unknown digest algorithm: "
+                    + e.getLocalizedMessage());
+            System.exit(2);
+        }
+    }
+}
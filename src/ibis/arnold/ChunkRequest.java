@@ -2,15 +2,58 @@ package ibis.arnold;
 
 import ibis.ipl.IbisIdentifier;
 
+/**
+ * A request of a peer for a range of bytes of a piece. The range is sent in
+ * one or more chunks.
+ */
 class ChunkRequest {
     final Chunk chunk;
     final IbisIdentifier peer;
     final long requestMoment;
 
-    protected ChunkRequest(final Chunk chunk, final IbisIdentifier peer) {
+    /** True iff this is the last chunk of the requested range. */
+    final boolean completesRequest;
+
+    private ChunkRequest(final Chunk chunk, final IbisIdentifier peer,
+            final long requestMoment, final boolean completesRequest) {
         this.chunk = chunk;
         this.peer = peer;
-        this.requestMoment = System.currentTimeMillis();
+        this.requestMoment = requestMoment;
+        this.completesRequest = completesRequest;
+    }
+
+    protected ChunkRequest(final Chunk chunk, final IbisIdentifier peer) {
+        this(chunk, peer, System.currentTimeMillis(), true);
+    }
+
+    /**
+     * @param size
+     *            The size of the first chunk.
+     * @return The first chunk of the requested range.
+     */
+    ChunkRequest head(final int size) {
+        return new ChunkRequest(new Chunk(chunk.piece, chunk.offset, size),
+                peer, requestMoment, false);
+    }
+
+    /**
+     * @param size
+     *            The size of the first chunk.
+     * @return The requested range without the first chunk.
+     */
+    ChunkRequest tail(final int size) {
+        return new ChunkRequest(new Chunk(chunk.piece, chunk.offset + size,
+                chunk.size - size), peer, requestMoment, true);
+    }
+
+    /**
+     * @param c
+     *            The chunk to compare to.
+     * @return True iff the range of this request lies within the given chunk.
+     */
+    boolean isWithin(final Chunk c) {
+        return chunk.piece == c.piece && chunk.offset >= c.offset
+                && chunk.offset + chunk.size <= c.offset + c.size;
     }
 
     @Override
@@ -0,0 +1,201 @@
+package ibis.arnold;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The upload side of a node. The engine thread decides which chunk request to
+ * serve next and puts it in a queue; the uploader threads read the chunk from
+ * the shared file, build the piece message, and put it on the data queue of
+ * the transmitter. Thus a burst of incoming messages on the download side
+ * doesn't delay the disk reads on the upload side, and the other way round.
+ * <p>
+ * The number of requests that have been handed to the uploader but not yet
+ * put on the data queue is limited, so that the engine still decides the
+ * order in which peers are served.
+ * 
+ * @author Kees van Reeuwijk
+ * 
+ */
+class ChunkUploader {
+    private final SharedFileInterface sharedFile;
+    private final ChunkBufferPool chunkBufferPool;
+    private final Credit credit;
+    private final DataQueueInterface dataQueue;
+    private final EngineInterface engine;
+    private final ConcurrentLinkedQueue<ChunkRequest> requests = new ConcurrentLinkedQueue<ChunkRequest>();
+    private final AtomicInteger pendingRequests = new AtomicInteger();
+    private final int maximalPendingRequests;
+    private final Thread workers[];
+    private final TimeStatistics uploadTimeStatistics = new TimeStatistics();
+    private long sentChunks = 0;
+    private long sentBytes = 0;
+    private boolean stopped = false;
+
+    private class Worker extends Thread {
+        Worker(final int n) {
+            super("Arnold uploader thread " + n);
+            setDaemon(true);
+        }
+
+        @SuppressWarnings("synthetic-access")
+        @Override
+        public void run() {
+            work();
+        }
+    }
+
+    /**
+     * @param sharedFile
+     *            The file to read the chunks from.
+     * @param chunkBufferPool
+     *            The pool to take chunk buffers from.
+     * @param credit
+     *            Our credit, which is increased for every chunk we send.
+     * @param dataQueue
+     *            The queue to put the piece messages on.
+     * @param engine
+     *            The engine to wake when a request has been handled.
+     * @param threadCount
+     *            The number of uploader threads.
+     * @param maximalPendingRequests
+     *            The maximal number of requests the uploader holds.
+     */
+    ChunkUploader(final SharedFileInterface sharedFile,
+            final ChunkBufferPool chunkBufferPool, final Credit credit,
+            final DataQueueInterface dataQueue, final EngineInterface engine,
+            final int threadCount, final int maximalPendingRequests) {
+        this.sharedFile = sharedFile;
+        this.chunkBufferPool = chunkBufferPool;
+        this.credit = credit;
+        this.dataQueue = dataQueue;
+        this.engine = engine;
+        this.maximalPendingRequests = maximalPendingRequests;
+        workers = new Thread[Math.max(1, threadCount)];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker(i);
+        }
+    }
+
+    /**
+     * Returns the number of uploader threads. This is 1, unless overridden by
+     * the property <code>arnold.upload-threads</code>. With more than one
+     * thread the chunks of a request may be sent out of order.
+     * 
+     * @return The number of uploader threads.
+     */
+    static int getThreadCount() {
+        return Math.max(1, Utils.getIntProperty("arnold.upload-threads", 1));
+    }
+
+    void start() {
+        for (final Thread t : workers) {
+            t.start();
+        }
+    }
+
+    /**
+     * @return True iff the uploader can accept another request.
+     */
+    boolean needsMoreRequests() {
+        return pendingRequests.get() < maximalPendingRequests;
+    }
+
+    /**
+     * Hands the given request to the uploader threads.
+     * 
+     * @param request
+     *            The request to serve.
+     */
+    void add(final ChunkRequest request) {
+        pendingRequests.incrementAndGet();
+        requests.add(request);
+        synchronized (this) {
+            this.notify();
+        }
+    }
+
+    private void upload(final ChunkRequest request) {
+        final Chunk chunk = request.chunk;
+        final long start = System.nanoTime();
+        final ByteBuffer buf = chunkBufferPool.get(chunk.size);
+        try {
+            sharedFile.readChunk(chunk, buf);
+        } catch (final IOException e) {
+            Globals.log.reportError("Cannot read chunk " + chunk
+                    + " from shared file");
+            e.printStackTrace();
+            chunkBufferPool.release(buf);
+            return;
+        }
+        credit.add(chunk.size, "sent chunk to " + request.peer);
+        final Message piece = new PieceMessage(credit.getValue(), chunk.piece,
+                chunk.offset, buf, chunkBufferPool);
+        dataQueue.addToDataQueue(request.peer, piece);
+        final long duration = System.nanoTime() - start;
+        synchronized (this) {
+            uploadTimeStatistics.registerSample(1e-9 * duration);
+            sentChunks++;
+            sentBytes += chunk.size;
+        }
+    }
+
+    private void work() {
+        while (true) {
+            final ChunkRequest request = requests.poll();
+            if (request != null) {
+                try {
+                    upload(request);
+                } finally {
+                    pendingRequests.decrementAndGet();
+                    engine.wakeEngineThread();
+                }
+                continue;
+            }
+            synchronized (this) {
+                if (requests.isEmpty()) {
+                    if (stopped) {
+                        break;
+                    }
+                    try {
+                        wait();
+                    } catch (final InterruptedException e) {
+                        // Ignore.
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Tells the uploader threads to stop once all queued requests have been
+     * served, and waits for them.
+     */
+    void setStopped() {
+        synchronized (this) {
+            stopped = true;
+            this.notifyAll();
+        }
+        for (final Thread t : workers) {
+            try {
+                t.join();
+            } catch (final InterruptedException e) {
+                // Ignore.
+            }
+        }
+    }
+
+    synchronized void dumpState() {
+        Globals.log.reportProgress("Uploader: " + pendingRequests.get()
+                + " pending requests");
+    }
+
+    synchronized void printStatistics(final PrintStream s) {
+        s.println("Uploader: " + workers.length + " threads, " + sentChunks
+                + " chunks, " + Utils.formatByteCount(sentBytes));
+        uploadTimeStatistics.printStatistics(s, "  chunk upload time");
+    }
+}
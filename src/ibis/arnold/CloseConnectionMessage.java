@@ -9,4 +9,9 @@ package ibis.arnold;
  */
 class CloseConnectionMessage extends SmallMessage {
     private static final long serialVersionUID = 1L;
+
+    @Override
+    int getType() {
+        return MessageType.CLOSE_CONNECTION;
+    }
 }
@@ -108,6 +108,9 @@ class ConnectionCache {
         } else {
             sz = uncachedSendMessage(ibis, message);
         }
+        if (sz >= 0) {
+            message.messageSent();
+        }
         return sz;
     }
 
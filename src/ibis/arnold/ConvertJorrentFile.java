@@ -0,0 +1,53 @@
+package ibis.arnold;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A small program to convert a jorrent file in the old serialized format to
+ * the binary format. Jorrent files that are already in the binary format are
+ * simply copied. Chunk digests in the old format are kept; a file that has
+ * none can be rebuilt with BuildJorrentFile to add them.
+ * 
+ * @author Kees van Reeuwijk
+ * 
+ */
+class ConvertJorrentFile {
+
+    /**
+     * @param args
+     *            The command-line arguments.
+     */
+    public static void main(final String[] args) {
+        if (args.length != 2) {
+            System.err
+                    .println("Usage: ConvertJorrentFile <old-jorrent-file> <new-jorrent-file>");
+            System.err
+                    .println("Actual arguments: " + Arrays.deepToString(args));
+            System.exit(1);
+        }
+        final File oldFile = new File(args[0]);
+        final File newFile = new File(args[1]);
+        JorrentInfo info = null;
+        try {
+            info = JorrentFile.read(oldFile);
+        } catch (final IOException e) {
+            System.err.println("Cannot read jorrent file '" + oldFile + "': "
+                    + e.getLocalizedMessage());
+            System.exit(1);
+            return;
+        }
+        try {
+            JorrentFile.write(newFile, info);
+        } catch (final IOException e) {
+            System.err.println("Cannot write jorrent file '" + newFile + "': "
+                    + e.getLocalizedMessage());
+            System.exit(1);
+        }
+        System.out.println("Wrote " + info.pieceDigests.size()
+                + " piece digests"
+                + (info.chunkDigests == null ? "" : " and chunk digests")
+                + " to " + newFile);
+    }
+}
@@ -0,0 +1,23 @@
+package ibis.arnold;
+
+import ibis.ipl.IbisIdentifier;
+
+/**
+ * The interface of a queue of data messages to send, as implemented by the
+ * transmitter.
+ * 
+ * @author Kees van Reeuwijk
+ * 
+ */
+interface DataQueueInterface {
+    /**
+     * Adds the given message to the data queue. This method may be called by
+     * any thread.
+     * 
+     * @param destination
+     *            The peer to send the message to.
+     * @param msg
+     *            The message to send.
+     */
+    void addToDataQueue(IbisIdentifier destination, Message msg);
+}
@@ -1,6 +1,8 @@
 package ibis.arnold;
 
 import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 
@@ -17,13 +19,13 @@ class DummySharedFile implements SharedFileInterface {
     private final long size;
     private final int numberOfPieces;
     private final PieceSet validPieces;
-    private final byte referenceHashes[][];
+    private final PieceDigests referenceHashes;
     private final int pieceSize;
     private final int innerBlockSize;
     private final static boolean useBuffer = true;
 
     DummySharedFile(final int pieceSize, final long desiredSize,
-            final byte refHashes[][], final int innerBlockSize)
+            final PieceDigests refHashes, final int innerBlockSize)
             throws NoSuchAlgorithmException {
         this.size = desiredSize;
         this.pieceSize = pieceSize;
@@ -38,16 +40,16 @@ class DummySharedFile implements SharedFileInterface {
         Globals.log.reportProgress("Created dummy shared file");
     }
 
-    private static void checkReferenceHashes(final byte[][] refHashes,
+    private static void checkReferenceHashes(final PieceDigests refHashes,
             final long desiredSize, final int pieceSize,
             final int innerBlockSize) throws NoSuchAlgorithmException {
         final int numberOfPieces = Utils.divideRoundUp(desiredSize, pieceSize);
-        if (refHashes.length != numberOfPieces) {
+        if (refHashes.size() != numberOfPieces) {
             Globals.log
                     .reportInternalError("Reference hash is of the wrong length: expected "
-                            + numberOfPieces + ", got " + refHashes.length);
+                            + numberOfPieces + ", got " + refHashes.size());
         }
-        for (int i = 0; i < refHashes.length; i++) {
+        for (int i = 0; i < refHashes.size(); i++) {
             final long start = (long) pieceSize * i;
             long end = (long) pieceSize * (i + 1);
             if (end > desiredSize) {
@@ -57,7 +59,7 @@ class DummySharedFile implements SharedFileInterface {
             final byte data[] = generateChunk(i, pieceSize, 0, innerBlockSize,
                     length);
             final byte[] digest = Utils.computeSHA1(data, length);
-            final boolean valid = Arrays.equals(digest, refHashes[i]);
+            final boolean valid = refHashes.matches(i, digest);
             if (!valid) {
                 Globals.log
                         .reportInternalError("Incorrect reference hash for piece "
@@ -79,16 +81,30 @@ class DummySharedFile implements SharedFileInterface {
     private static byte[] generateChunk(final int piece, final int pieceSize,
             final int offset, final int innerBlockSize, final int length) {
         final byte res[] = new byte[length];
+        generateChunk(piece, pieceSize, offset, innerBlockSize, length,
+                ByteBuffer.wrap(res));
+        return res;
+    }
 
+    private static void generateChunk(final int piece, final int pieceSize,
+            final int offset, final int innerBlockSize, final int length,
+            final ByteBuffer buf) {
         if (useBuffer) {
-            Arrays.fill(res, (byte) piece);
+            if (buf.hasArray()) {
+                final int start = buf.arrayOffset() + buf.position();
+                Arrays.fill(buf.array(), start, start + length, (byte) piece);
+                buf.position(buf.position() + length);
+            } else {
+                for (int i = 0; i < length; i++) {
+                    buf.put((byte) piece);
+                }
+            }
         } else {
             final long byteno = calculateByteno(piece, pieceSize, offset);
             for (int i = 0; i < length; i++) {
-                res[i] = calculateByte(innerBlockSize, byteno + i);
+                buf.put(calculateByte(innerBlockSize, byteno + i));
             }
         }
-        return res;
     }
 
     /**
@@ -113,24 +129,38 @@ class DummySharedFile implements SharedFileInterface {
         }
     }
 
+    @Override
+    public boolean verifyPiece(final int piece, final byte[] completedPiece) {
+        if (referenceHashes == null) {
+            return true;
+        }
+        byte hash[];
+        try {
+            hash = Utils.computeSHA1(completedPiece);
+        } catch (final NoSuchAlgorithmException e) {
+            Globals.log.reportInternalError("Unknown digest algorithm: "
+                    + e.getLocalizedMessage());
+            throw new DownloadFailedError("Unknown digest algorithm", e);
+        }
+        return referenceHashes.matches(piece, hash);
+    }
+
+    @Override
+    public void storeVerifiedPiece(final int piece,
+            final byte[] completedPiece) {
+        writeChunk(piece, 0, completedPiece);
+        synchronized (this) {
+            validPieces.set(piece);
+        }
+    }
+
     @Override
     public boolean storePiece(final int piece, final byte[] completedPiece)
             throws IOException {
-        if (referenceHashes != null) {
-            byte hash[];
-            try {
-                hash = Utils.computeSHA1(completedPiece);
-            } catch (final NoSuchAlgorithmException e) {
-                Globals.log.reportInternalError("Unknown digest algorithm: "
-                        + e.getLocalizedMessage());
-                throw new DownloadFailedError("Unknown digest algorithm", e);
-            }
-            if (!Arrays.equals(hash, referenceHashes[piece])) {
-                return false;
-            }
+        if (!verifyPiece(piece, completedPiece)) {
+            return false;
         }
-        writeChunk(piece, 0, completedPiece);
-        validPieces.set(piece);
+        storeVerifiedPiece(piece, completedPiece);
         return true;
     }
 
@@ -156,18 +186,26 @@ class DummySharedFile implements SharedFileInterface {
         return readChunk(chunk.piece, chunk.offset, chunk.size);
     }
 
+    @Override
+    public void readChunk(final Chunk chunk, final ByteBuffer buf)
+            throws IOException {
+        generateChunk(chunk.piece, pieceSize, chunk.offset, innerBlockSize,
+                chunk.size, buf);
+        buf.flip();
+    }
+
     @Override
     public void close() throws IOException {
         // Nothing to do.
     }
 
     @Override
-    public boolean isValidPiece(final int piece) {
+    public synchronized boolean isValidPiece(final int piece) {
         return validPieces.get(piece);
     }
 
     @Override
-    public PieceSet getKnownPieces() {
+    public synchronized PieceSet getKnownPieces() {
         return validPieces.clone();
     }
 
@@ -194,7 +232,7 @@ class DummySharedFile implements SharedFileInterface {
     }
 
     @Override
-    public boolean isComplete() {
+    public synchronized boolean isComplete() {
         return validPieces.isComplete();
     }
 
@@ -204,7 +242,12 @@ class DummySharedFile implements SharedFileInterface {
     }
 
     @Override
-    public void setValid() {
+    public synchronized void setValid() {
         validPieces.setComplete();
     }
+
+    @Override
+    public void printStatistics(final PrintStream s) {
+        // Nothing to report.
+    }
 }
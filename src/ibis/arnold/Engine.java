@@ -27,13 +27,18 @@ class Engine extends Thread implements PacketReceiveListener,
     private static final String SPECIAL_PEER_ELECTION_NAME = "special-peer-election";
     private static final String SEEDER_ELECTION_NAME = "seeder-election";
     private final SharedFileInterface sharedFile;
-    private final ReceivedMessageQueue receivedMessageQueue = new ReceivedMessageQueue(
-            Settings.MAXIMAL_RECEIVED_MESSAGE_QUEUE_LENGTH);
+    private final ReceivedMessageQueue receivedMessageQueue = new ReceivedMessageQueue();
     private final TimeStatistics receivedMessageQueueStatistics = new TimeStatistics();
-    private final IncompletePiecesList outstandingRequests = new IncompletePiecesList();
+    private final MessageStatistics messageStatistics = new MessageStatistics();
+    private final IncompletePiecesList outstandingRequests;
     private final Flag stopped = new Flag(false);
     private final Transmitter transmitter;
+    private final PieceWriter pieceWriter;
+    private final ChunkUploader uploader;
+    private final ChunkBufferPool chunkBufferPool = new ChunkBufferPool(
+            Settings.MAXIMAL_CHUNK_SIZE, Settings.CHUNK_BUFFER_POOL_SIZE);
     private final SchedulerInterface scheduler;
+    private final CatalogTracker receivedCatalogs = new CatalogTracker();
     private final ConcurrentLinkedQueue<IbisIdentifier> deletedPeers = new ConcurrentLinkedQueue<IbisIdentifier>();
     private final ConcurrentLinkedQueue<IbisIdentifier> newPeers = new ConcurrentLinkedQueue<IbisIdentifier>();
     private final PacketUpcallReceivePort receivePort;
@@ -47,14 +52,17 @@ class Engine extends Thread implements PacketReceiveListener,
     private long sendQueueHandlingTime;
     private final boolean isSpecialPeer;
     private final WatchdogTimer watchdog = new WatchdogTimer(10000);
+    private final WakeupSignal wakeup = new WakeupSignal(this);
 
-    Engine(final SharedFileInterface sharedFile, final boolean proxymode,
+    Engine(final SharedFileInterface sharedFile,
+            final ChunkDigests chunkDigests, final boolean proxymode,
             final boolean helper, final boolean altruisticHelpers,
             final boolean altruisticLeechers, final boolean impatientLeechers)
             throws IOException, IbisCreationFailedException {
         super("Arnold engine thread");
         boolean runForSpecialNode = true;
         this.sharedFile = sharedFile;
+        this.outstandingRequests = new IncompletePiecesList(chunkDigests);
         RankingPolicy rankingPolicy;
         boolean useSlots = false;
         if (Utils.getExistenceProperty("arnold.credit-based")) {
@@ -90,6 +98,12 @@ class Engine extends Thread implements PacketReceiveListener,
         }
         this.personality = thePersonality;
         this.transmitter = new Transmitter(this);
+        this.pieceWriter = new PieceWriter(sharedFile, this,
+                Settings.PIECE_WRITER_BUDGET, PieceVerificationService
+                        .getThreadCount());
+        this.uploader = new ChunkUploader(sharedFile, chunkBufferPool, credit,
+                transmitter, this, ChunkUploader.getThreadCount(),
+                Settings.UPLOAD_QUEUE_LENGTH);
         SchedulerInterface theScheduler = null;
         final Properties ibisProperties = new Properties();
         this.localIbis = IbisFactory.createIbis(ibisCapabilities,
@@ -140,21 +154,24 @@ class Engine extends Thread implements PacketReceiveListener,
             if (proxymode && !helper) {
                 final SchedulerInterface helpersScheduler = buildPlainScheduler(
                         knownPieces, numberOfPieces, notKnownPieces,
-                        rankingPolicy, useSlots);
+                        rankingPolicy, useSlots, null);
                 theScheduler = new ProxyCoordinatorScheduler(helpersScheduler,
                         transmitter, numberOfPieces, knownPieces);
             } else if (helper) {
                 final SchedulerInterface coordinatorsScheduler = buildPlainScheduler(
                         knownPieces, numberOfPieces, notKnownPieces,
-                        rankingPolicy, useSlots);
+                        rankingPolicy, useSlots, null);
                 final SchedulerInterface publicScheduler = buildPlainScheduler(
                         knownPieces, numberOfPieces, notKnownPieces,
-                        rankingPolicy, useSlots);
+                        rankingPolicy, useSlots, null);
                 theScheduler = new ProxyHelperScheduler(publicScheduler,
                         coordinatorsScheduler, transmitter);
             } else {
+                final StreamingWindow streamingWindow = StreamingWindow
+                        .create(knownPieces, sharedFile.getPieceSize(0));
                 theScheduler = buildPlainScheduler(knownPieces, numberOfPieces,
-                        notKnownPieces, rankingPolicy, useSlots);
+                        notKnownPieces, rankingPolicy, useSlots,
+                        streamingWindow);
             }
         }
         receivePort = new PacketUpcallReceivePort(localIbis,
@@ -162,6 +179,8 @@ class Engine extends Thread implements PacketReceiveListener,
         System.out.println("runForSpecialNode=" + runForSpecialNode);
         this.scheduler = theScheduler;
         transmitter.start();
+        pieceWriter.start();
+        uploader.start();
         registry.enableEvents();
         receivePort.enable();
         if (Settings.TraceNodeCreation) {
@@ -181,14 +200,16 @@ class Engine extends Thread implements PacketReceiveListener,
 
     private SchedulerInterface buildPlainScheduler(final PieceSet knownPieces,
             final int numberOfPieces, final PieceSet notKnownPieces,
-            final RankingPolicy rankingPolicy, final boolean useSlots) {
+            final RankingPolicy rankingPolicy, final boolean useSlots,
+            final StreamingWindow streamingWindow) {
         final SchedulerInterface res;
         if (useSlots) {
             res = new BitTorrentScheduler(this, transmitter, knownPieces,
-                    notKnownPieces, rankingPolicy, numberOfPieces);
+                    notKnownPieces, rankingPolicy, numberOfPieces,
+                    streamingWindow);
         } else {
             res = new GreedyScheduler(this, transmitter, knownPieces,
-                    notKnownPieces, numberOfPieces);
+                    notKnownPieces, numberOfPieces, streamingWindow);
         }
         return res;
     }
@@ -262,6 +283,7 @@ class Engine extends Thread implements PacketReceiveListener,
         outstandingRequests.removePeer(peer, scheduler);
         scheduler.removePeer(peer);
         personality.removePeer(peer);
+        receivedCatalogs.removePeer(peer);
     }
 
     private boolean registerNewAndDeletedPeers() {
@@ -360,9 +382,7 @@ class Engine extends Thread implements PacketReceiveListener,
     /** Tell the engine thread that something interesting has happened. */
     @Override
     public void wakeEngineThread() {
-        synchronized (this) {
-            this.notifyAll();
-        }
+        wakeup.signal();
     }
 
     /**
@@ -373,36 +393,63 @@ class Engine extends Thread implements PacketReceiveListener,
      *            The incoming message.
      */
     private void handleMessage(final Message msg) {
-        if (msg instanceof RequestMessage) {
+        switch (msg.getType()) {
+        case MessageType.REQUEST: {
             final RequestMessage r = (RequestMessage) msg;
             scheduler.addChunkRequest(r.source, r.chunk);
             scheduler.updateCredit(r.source, r.credit);
-        } else if (msg instanceof PieceMessage) {
+            break;
+        }
+        case MessageType.PIECE:
             handlePieceMessage((PieceMessage) msg);
-        } else if (msg instanceof RequestPiecesMessage) {
+            break;
+        case MessageType.REQUEST_PIECES:
             handleRequestPiecesMessage((RequestPiecesMessage) msg);
-        } else if (msg instanceof ChokedMessage) {
+            break;
+        case MessageType.CHOKED:
             handleChokeMessage((ChokedMessage) msg);
-        } else if (msg instanceof InterestedMessage) {
+            break;
+        case MessageType.INTERESTED:
             handleInterestedMessage((InterestedMessage) msg);
-        } else if (msg instanceof BitSetMessage) {
+            break;
+        case MessageType.BIT_SET:
             handleBitSetMessage((BitSetMessage) msg);
-        } else if (msg instanceof CancelMessage) {
+            break;
+        case MessageType.BIT_SET_DELTA:
+            handleBitSetDeltaMessage((BitSetDeltaMessage) msg);
+            break;
+        case MessageType.CANCEL: {
             final CancelMessage c = (CancelMessage) msg;
             scheduler.removeChunkRequest(c.source, c.chunk);
-        } else if (msg instanceof HaveMessage) {
+            break;
+        }
+        case MessageType.HAVE:
             handleHaveMessage((HaveMessage) msg);
-        } else if (msg instanceof AskForHelpMessage) {
+            break;
+        case MessageType.HAVE_BATCH:
+            handleHaveBatchMessage((HaveBatchMessage) msg);
+            break;
+        case MessageType.ASK_FOR_HELP:
             handleAskForHelpMessage((AskForHelpMessage) msg);
-        } else if (msg instanceof StopHelpingMessage) {
+            break;
+        case MessageType.STOP_HELPING:
             handleStopHelpingMessage((StopHelpingMessage) msg);
-        } else if (msg instanceof JoinHelpersMessage) {
+            break;
+        case MessageType.JOIN_HELPERS:
             handleJoinHelpersMessage((JoinHelpersMessage) msg);
-        } else if (msg instanceof ResignAsHelperMessage) {
+            break;
+        case MessageType.RESIGN_AS_HELPER:
             handleResignAsHelperMessage((ResignAsHelperMessage) msg);
-        } else if (msg instanceof CloseConnectionMessage) {
+            break;
+        case MessageType.CLOSE_CONNECTION:
             handleCloseConnectionMessage((CloseConnectionMessage) msg);
-        } else {
+            break;
+        case MessageType.REQUEST_CATALOG:
+            // The catalog must come from the scheduler, since the deltas
+            // we send are computed against its set of known pieces.
+            scheduler.sendFullCatalog(msg.source);
+            break;
+        default:
             Globals.log.reportInternalError("Don't know how to handle a "
                     + msg.getClass() + " message");
         }
@@ -446,12 +493,30 @@ class Engine extends Thread implements PacketReceiveListener,
     }
 
     private void handleHaveMessage(final HaveMessage packet) {
+        receivedCatalogs.registerPiece(packet.source, packet.piece);
         scheduler
                 .registerPeerHasPiece(packet.source, packet.piece, personality);
     }
 
+    private void handleHaveBatchMessage(final HaveBatchMessage msg) {
+        for (final int piece : msg.pieces) {
+            receivedCatalogs.registerPiece(msg.source, piece);
+            scheduler.registerPeerHasPiece(msg.source, piece, personality);
+        }
+    }
+
     private void handleBitSetMessage(final BitSetMessage msg) {
-        scheduler.setPeerHasPieces(msg.source, msg.bits, personality);
+        final PieceSet bits = receivedCatalogs.registerCatalog(msg.source, msg);
+        scheduler.setPeerHasPieces(msg.source, bits, personality);
+    }
+
+    private void handleBitSetDeltaMessage(final BitSetDeltaMessage msg) {
+        final PieceSet bits = receivedCatalogs.registerDelta(msg.source, msg);
+        if (receivedCatalogs.takeResyncRequest(msg.source)) {
+            transmitter.addToBookkeepingQueue(msg.source,
+                    new RequestCatalogMessage());
+        }
+        scheduler.setPeerHasPieces(msg.source, bits, personality);
     }
 
     private void handleRequestPiecesMessage(final RequestPiecesMessage msg) {
@@ -468,47 +533,75 @@ class Engine extends Thread implements PacketReceiveListener,
         scheduler.updateCredit(msg.source, msg.credit);
         scheduler.registerReceivedChunk(msg.source, msg.data.length);
         final byte completedPiece[] = outstandingRequests.updatePiece(
-                msg.source, piece, msg.offset, msg.data);
+                msg.source, piece, msg.offset, msg.data, scheduler,
+                transmitter);
         if (completedPiece != null) {
-            // That completed our piece.
-            boolean valid;
-            try {
-                valid = sharedFile.storePiece(piece, completedPiece);
-            } catch (final IOException e) {
-                Globals.log.reportError("Failed to write piece " + piece + ": "
-                        + e.getLocalizedMessage());
-                e.printStackTrace();
-                throw new DownloadFailedError("Failed to write piece " + piece,
-                        e);
+            // That completed our piece. Let the piece writer verify and
+            // store it.
+            pieceWriter.add(msg.source, piece, completedPiece);
+        }
+    }
+
+    /**
+     * Handles a piece that the piece writer has verified and stored.
+     * 
+     * @param p
+     *            The stored piece.
+     */
+    private void handleStoredPiece(final StoredPiece p) {
+        final int piece = p.piece;
+        if (p.error != null) {
+            Globals.log.reportError("Failed to store piece " + piece + ": "
+                    + p.error.getLocalizedMessage());
+            p.error.printStackTrace();
+            throw new DownloadFailedError("Failed to store piece " + piece,
+                    p.error);
+        }
+        if (p.duplicate) {
+            // Somebody sent us data for a piece we already have.
+            // Ignore it.
+            return;
+        }
+        if (p.valid) {
+            outstandingRequests.cancelPieceDownload(piece, transmitter);
+            // Deduct the bytes we got from this piece from our account.
+            credit.add(-sharedFile.getPieceSize(piece), "received piece from "
+                    + p.source);
+            scheduler.registerCompletedPiece(p.source, piece);
+            personality.addedPiece(piece);
+            if (sharedFile.isComplete()) {
+                personality.thisPeerIsSeeder();
             }
-            if (valid) {
-                outstandingRequests.cancelPieceDownload(piece, transmitter);
-                // Deduct the bytes we got from this piece from our account.
-                credit.add(-sharedFile.getPieceSize(piece),
-                        "received piece from " + msg.source);
-                scheduler.registerCompletedPiece(msg.source, piece);
-                personality.addedPiece(piece);
-                if (sharedFile.isComplete()) {
-                    personality.thisPeerIsSeeder();
-                }
-                if (Settings.TracePieceTraffic) {
-                    final PrintStream s = Globals.log.getPrintStream();
-                    s.println("COMPLETEDDOWNLOAD\t"
-                            + System.currentTimeMillis() + "\t" + piece + "\t"
-                            + msg.source + "\t" + localIbis.identifier());
-                }
-            } else {
-                scheduler.registerIncorrectPiece(msg.source, piece);
-                if (Settings.TracePieceTraffic) {
-                    final PrintStream s = Globals.log.getPrintStream();
-                    s.println("FAILEDDOWNLOAD\t" + System.currentTimeMillis()
-                            + "\t" + piece + "\t" + msg.source + "\t"
-                            + localIbis.identifier());
-                }
+            if (Settings.TracePieceTraffic) {
+                final PrintStream s = Globals.log.getPrintStream();
+                s.println("COMPLETEDDOWNLOAD\t" + System.currentTimeMillis()
+                        + "\t" + piece + "\t" + p.source + "\t"
+                        + localIbis.identifier());
+            }
+        } else {
+            scheduler.registerIncorrectPiece(p.source, piece);
+            if (Settings.TracePieceTraffic) {
+                final PrintStream s = Globals.log.getPrintStream();
+                s.println("FAILEDDOWNLOAD\t" + System.currentTimeMillis()
+                        + "\t" + piece + "\t" + p.source + "\t"
+                        + localIbis.identifier());
             }
         }
     }
 
+    private boolean handleStoredPieces() {
+        boolean progress = false;
+        while (true) {
+            final StoredPiece p = pieceWriter.getNextStoredPiece();
+            if (p == null) {
+                break;
+            }
+            handleStoredPiece(p);
+            progress = true;
+        }
+        return progress;
+    }
+
     private boolean handleIncomingMessages() {
         final long start = System.nanoTime();
         boolean progress = false;
@@ -520,7 +613,10 @@ class Engine extends Thread implements PacketReceiveListener,
             final long lingerTime = System.currentTimeMillis()
                     - msg.arrivalTime;
             receivedMessageQueueStatistics.registerSample(lingerTime * 1e-3);
+            final long messageStart = System.nanoTime();
             handleMessage(msg);
+            messageStatistics.registerMessage(msg.getType(), System.nanoTime()
+                    - messageStart);
             progress = true;
         }
         final long duration = System.nanoTime() - start;
@@ -529,9 +625,9 @@ class Engine extends Thread implements PacketReceiveListener,
     }
 
     /**
-     * Fulfil the request for one chunk.
+     * Selects the next chunk request to fulfil, and hands it to the uploader.
      * 
-     * @return <code>true</code> iff we actually fulfilled a chunk request.
+     * @return <code>true</code> iff there was a chunk request to fulfil.
      */
     private boolean fulfilChunkRequest() {
         final ChunkRequest request = scheduler.getNextChunkRequest();
@@ -540,33 +636,22 @@ class Engine extends Thread implements PacketReceiveListener,
             // No requests.
             return false;
         }
-        final Chunk chunk = request.chunk;
-        final byte data[];
-        try {
-            data = sharedFile.readChunk(chunk);
-        } catch (final IOException e) {
-            Globals.log.reportError("Cannot read chunk " + chunk
-                    + " from shared file");
-            e.printStackTrace();
-            return false;
-        }
-        credit.add(chunk.size, "sent chunk to " + request.peer);
-        final Message piece = new PieceMessage(credit.getValue(), chunk.piece,
-                chunk.offset, data);
-        transmitter.addToDataQueue(request.peer, piece);
+        uploader.add(request);
         return true;
     }
 
     private boolean thereAreRequestsToFulfill() {
-        return transmitter.needsMoreData()
+        return transmitter.needsMoreData() && uploader.needsMoreRequests()
                 && scheduler.haveIncomingChunkRequests();
     }
 
     private boolean keepSendQueueFilled() {
         final long start = System.nanoTime();
         boolean progress = false;
-        if (transmitter.needsMoreData()) {
-            progress = fulfilChunkRequest();
+        if (transmitter.needsMoreData() && uploader.needsMoreRequests()) {
+            while (uploader.needsMoreRequests() && fulfilChunkRequest()) {
+                progress = true;
+            }
             if (!progress) {
                 progress = scheduler.generateMoreTransmission();
             }
@@ -580,6 +665,11 @@ class Engine extends Thread implements PacketReceiveListener,
      * Make sure there are enough outstanding requests.
      */
     private boolean maintainOutstandingRequests() {
+        if (pieceWriter.isFull() || receivedMessageQueue.isCongested()) {
+            // Don't ask for more data until the piece writer or the receive
+            // queue has caught up.
+            return false;
+        }
         final long start = System.nanoTime();
         final boolean progress = outstandingRequests.maintainRequests(credit,
                 transmitter);
@@ -598,6 +688,11 @@ class Engine extends Thread implements PacketReceiveListener,
                 + Utils.formatSeconds(1e-3 * idleTime));
         receivedMessageQueueStatistics.printStatistics(s,
                 "receive queue linger time");
+        receivedMessageQueue.printStatistics(s);
+        messageStatistics.printStatistics(s);
+        s.println("Incorrect chunks: "
+                + outstandingRequests.getIncorrectChunks());
+        receivedCatalogs.printStatistics(s, "Received");
     }
 
     private synchronized void dumpEngineState() {
@@ -617,6 +712,8 @@ class Engine extends Thread implements PacketReceiveListener,
         Globals.log.reportProgress("Engine: " + activePeers + " active, "
                 + deletedPeers.size() + " deleted peers");
         outstandingRequests.dumpState();
+        pieceWriter.dumpState();
+        uploader.dumpState();
         transmitter.dumpState();
         scheduler.dumpState();
         personality.dumpState();
@@ -630,7 +727,8 @@ class Engine extends Thread implements PacketReceiveListener,
                 boolean sleptLong = false;
                 boolean progress;
                 do {
-                    final boolean progressIncoming = handleIncomingMessages();
+                    final boolean progressIncoming = handleIncomingMessages()
+                            | handleStoredPieces();
                     final boolean progressPeerChurn = registerNewAndDeletedPeers();
                     final boolean progressRequests = maintainOutstandingRequests();
                     final boolean progressSendQueue = keepSendQueueFilled();
@@ -645,7 +743,8 @@ class Engine extends Thread implements PacketReceiveListener,
                                     + progressRequests + " s="
                                     + progressSendQueue);
                             if (progressIncoming) {
-                                receivedMessageQueue.printCounts();
+                                messageStatistics.printStatistics(Globals.log
+                                        .getPrintStream());
                             }
                             if (progressRequests) {
                                 outstandingRequests.dumpState();
@@ -658,30 +757,31 @@ class Engine extends Thread implements PacketReceiveListener,
                     }
                 } while (progress);
                 watchdog.reset();
+                final boolean idle;
                 synchronized (this) {
                     final boolean messageQueueIsEmpty = receivedMessageQueue
                             .isEmpty();
                     final boolean noRequestsToFulfill = !thereAreRequestsToFulfill();
-                    final boolean noRequestsToSubmit = !outstandingRequests
-                            .requestsToSubmit();
-                    if (!stopped.isSet() && messageQueueIsEmpty
+                    final boolean noRequestsToSubmit = pieceWriter.isFull()
+                            || receivedMessageQueue.isCongested()
+                            || !outstandingRequests.requestsToSubmit();
+                    idle = !stopped.isSet() && messageQueueIsEmpty
+                            && !pieceWriter.hasStoredPieces()
                             && newPeers.isEmpty() && deletedPeers.isEmpty()
-                            && noRequestsToFulfill && noRequestsToSubmit) {
-                        try {
-                            final long sleepStartTime = System
-                                    .currentTimeMillis();
-                            if (Settings.TraceEngine) {
-                                Globals.log
-                                        .reportProgress("Main loop: waiting");
-                            }
-                            this.wait(sleepTime);
-                            final long sleepInterval = System
-                                    .currentTimeMillis() - sleepStartTime;
-                            idleTime += sleepInterval;
-                            sleptLong = sleepInterval > 9 * sleepTime / 10;
-                        } catch (final InterruptedException e) {
-                            // Ignored.
-                        }
+                            && noRequestsToFulfill && noRequestsToSubmit;
+                }
+                if (idle) {
+                    // Any event since the last wait is remembered by the
+                    // signal, so we can't miss a wakeup here.
+                    final long sleepStartTime = System.currentTimeMillis();
+                    if (Settings.TraceEngine) {
+                        Globals.log.reportProgress("Main loop: waiting");
+                    }
+                    sleptLong = !wakeup.await(sleepTime);
+                    final long sleepInterval = System.currentTimeMillis()
+                            - sleepStartTime;
+                    synchronized (this) {
+                        idleTime += sleepInterval;
                     }
                 }
                 if (sleptLong) {
@@ -700,6 +800,7 @@ class Engine extends Thread implements PacketReceiveListener,
                 }
             }
         } finally {
+            uploader.setStopped();
             transmitter.setShuttingDown();
             scheduler.shutdown();
             watchdog.setStopped();
@@ -709,6 +810,12 @@ class Engine extends Thread implements PacketReceiveListener,
                 // ignore.
             }
             transmitter.setStopped();
+            pieceWriter.setStopped();
+            try {
+                pieceWriter.join();
+            } catch (final InterruptedException e) {
+                // ignore.
+            }
             try {
                 sharedFile.close();
             } catch (final IOException e) {
@@ -724,9 +831,14 @@ class Engine extends Thread implements PacketReceiveListener,
             }
         }
         printStatistics(Globals.log.getPrintStream());
+        sharedFile.printStatistics(Globals.log.getPrintStream());
         scheduler.printStatistics(Globals.log.getPrintStream());
         personality.printStatistics(Globals.log.getPrintStream());
         transmitter.printStatistics(Globals.log.getPrintStream());
+        pieceWriter.printStatistics(Globals.log.getPrintStream());
+        uploader.printStatistics(Globals.log.getPrintStream());
+        wakeup.printStatistics(Globals.log.getPrintStream(), "Engine");
+        chunkBufferPool.printStatistics(Globals.log.getPrintStream());
         if (Settings.PrintFinalCredit) {
             System.out.println("FINALCREDIT " + credit.getValue());
         }
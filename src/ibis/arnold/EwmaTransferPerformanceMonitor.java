@@ -0,0 +1,61 @@
+package ibis.arnold;
+
+import java.io.PrintStream;
+
+/**
+ * A transfer performance monitor that keeps an exponentially weighted moving
+ * average of the transfer rate. Every transfer adds to the rate, and the rate
+ * decays with a time constant equal to the time window, so for a steady
+ * transfer rate the estimate is the same as that of a
+ * {@link WindowTransferPerformanceMonitor} with the same window. The state is
+ * just two numbers.
+ * 
+ * @author Kees van Reeuwijk
+ * 
+ */
+class EwmaTransferPerformanceMonitor implements TransferPerformanceMonitor {
+    private final double timeConstant;
+    private double rate = 0;
+    private long lastUpdate = Long.MIN_VALUE;
+    private int sampleCount = 0;
+
+    /**
+     * @param windowTime
+     *            The time constant in milliseconds of the average.
+     */
+    EwmaTransferPerformanceMonitor(final long windowTime) {
+        this.timeConstant = 1e-3 * windowTime;
+    }
+
+    private double decayedRate(final long now) {
+        if (lastUpdate == Long.MIN_VALUE || now <= lastUpdate) {
+            return rate;
+        }
+        return rate * Math.exp(-1e-3 * (now - lastUpdate) / timeConstant);
+    }
+
+    void registerTransfer(final long size, final long now) {
+        rate = decayedRate(now) + size / timeConstant;
+        lastUpdate = Math.max(lastUpdate, now);
+        sampleCount++;
+    }
+
+    @Override
+    public void registerTransfer(final long size) {
+        registerTransfer(size, System.currentTimeMillis());
+    }
+
+    double estimatePerformance(final long now) {
+        return decayedRate(now);
+    }
+
+    @Override
+    public double estimatePerformance() {
+        return estimatePerformance(System.currentTimeMillis());
+    }
+
+    @Override
+    public void PrintStatistics(final String name, final PrintStream s) {
+        s.println(name + ": " + sampleCount + " samples");
+    }
+}
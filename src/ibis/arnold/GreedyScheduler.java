@@ -15,17 +15,21 @@ final class GreedyScheduler implements SchedulerInterface {
     private final PeerInfoList neighbors;
     private final OutstandingDownloadingPieceList outstandingPieces = new OutstandingDownloadingPieceList();
     private final PieceRanker pieceRanker;
+    private final boolean streaming;
     private boolean seeding;
 
     GreedyScheduler(final EngineInterface engine,
             final Transmitter transmitter, final PieceSet knownPieces,
-            final PieceSet missingPieces, final int numberOfPieces) {
+            final PieceSet missingPieces, final int numberOfPieces,
+            final StreamingWindow streamingWindow) {
         this.engine = engine;
         this.transmitter = transmitter;
         this.knownPieces = knownPieces.clone();
         this.unrequestedMissingPieces = missingPieces;
         this.neighbors = new PeerInfoList(numberOfPieces);
         this.pieceRanker = new PieceRanker(knownPieces);
+        this.pieceRanker.setStreamingWindow(streamingWindow);
+        this.streaming = streamingWindow != null;
         this.seeding = knownPieces.isComplete();
     }
 
@@ -50,16 +54,20 @@ final class GreedyScheduler implements SchedulerInterface {
     }
 
     private void sendCatalogMessage(final IbisIdentifier peer) {
-        final BitSetMessage msg = new BitSetMessage(knownPieces);
         if (Settings.TraceScheduler) {
             Globals.log
                     .reportProgress("GreedyScheduler: send our bitset to neighbor "
                             + peer);
         }
-        transmitter.addToBookkeepingQueue(peer, msg);
+        transmitter.addCatalogToBookkeepingQueue(peer, knownPieces);
         neighbors.setSentCatalog(peer);
     }
 
+    @Override
+    public void sendFullCatalog(final IbisIdentifier peer) {
+        transmitter.addFullCatalogToBookkeepingQueue(peer, knownPieces);
+    }
+
     /**
      * Tries to select a new neighbor to get data from.
      * 
@@ -207,11 +215,37 @@ final class GreedyScheduler implements SchedulerInterface {
         }
     }
 
+    /**
+     * Lets the fastest peers download the pieces that are needed soonest by
+     * a streaming download, even if they are already being downloaded from
+     * slower peers.
+     */
+    private void maintainStreamingPieces() {
+        final List<PeerInfo> rankedPeers = neighbors
+                .getDownloadSpeedRankedPeers();
+        final int n = Math.min(rankedPeers.size(),
+                Settings.STREAMING_FAST_PEERS);
+        for (int i = 0; i < n; i++) {
+            final PeerInfo p = rankedPeers.get(i);
+            while (p.weAreInterested() && p.hasRoomForRequest()) {
+                final int piece = p.getUrgentPieceToDownload(pieceRanker,
+                        outstandingPieces);
+                if (piece < 0) {
+                    break;
+                }
+                createPieceRequest(p, piece);
+            }
+        }
+    }
+
     private void maintainOutstandingPieces() {
         if (seeding) {
             // We're seeding, so we have no outstanding pieces.
             return;
         }
+        if (streaming) {
+            maintainStreamingPieces();
+        }
         if (unrequestedMissingPieces.isEmpty()) {
             maintainOutstandingPiecesInEndgame();
         } else {
@@ -485,6 +519,7 @@ final class GreedyScheduler implements SchedulerInterface {
     @Override
     public void printStatistics(final PrintStream s) {
         neighbors.printStatistics(s);
+        pieceRanker.printStatistics(s);
     }
 
     @Override
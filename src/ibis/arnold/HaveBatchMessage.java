@@ -0,0 +1,23 @@
+package ibis.arnold;
+
+/**
+ * This message is sent to announce that a peer now has all of the given
+ * pieces.
+ * 
+ * @author Kees van Reeuwijk
+ * 
+ */
+class HaveBatchMessage extends SmallMessage {
+    private static final long serialVersionUID = 1L;
+
+    final int pieces[];
+
+    HaveBatchMessage(final int pieces[]) {
+        this.pieces = pieces;
+    }
+
+    @Override
+    int getType() {
+        return MessageType.HAVE_BATCH;
+    }
+}
@@ -0,0 +1,193 @@
+package ibis.arnold;
+
+import ibis.ipl.IbisIdentifier;
+
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Collects the pieces that must be announced to every neighbor, so that
+ * pieces that are completed shortly after each other are announced in one
+ * message. A batch is sent when it is full, or when its oldest piece has
+ * waited for the batch interval.
+ * 
+ * @author Kees van Reeuwijk
+ * 
+ */
+class HaveBatcher {
+    private static class Batch {
+        final int pieces[];
+        final long times[];
+        final long deadline;
+        int count = 0;
+
+        Batch(final int size, final long deadline) {
+            this.pieces = new int[size];
+            this.times = new long[size];
+            this.deadline = deadline;
+        }
+    }
+
+    private final HashMap<IbisIdentifier, Batch> batches = new HashMap<IbisIdentifier, Batch>();
+    private final int maximalBatchSize;
+    private final long interval;
+    private final TimeStatistics delayStatistics = new TimeStatistics();
+    private long announcedPieces = 0;
+    private long sentMessages = 0;
+
+    /**
+     * @param maximalBatchSize
+     *            The maximal number of pieces in one message.
+     * @param interval
+     *            The maximal time in ms a piece waits before it is announced.
+     */
+    HaveBatcher(final int maximalBatchSize, final long interval) {
+        this.maximalBatchSize = Math.max(1, maximalBatchSize);
+        this.interval = Math.max(0, interval);
+    }
+
+    HaveBatcher() {
+        this(Utils.getIntProperty("arnold.have-batch-size",
+                Settings.HAVE_BATCH_SIZE), Utils.getLongProperty(
+                "arnold.have-batch-interval", Settings.HAVE_BATCH_INTERVAL));
+    }
+
+    private Message buildMessage(final Batch b, final long now) {
+        for (int i = 0; i < b.count; i++) {
+            delayStatistics.registerSample((now - b.times[i]) * 1e-3);
+        }
+        announcedPieces += b.count;
+        sentMessages++;
+        if (b.count == 1) {
+            return new HaveMessage(b.pieces[0]);
+        }
+        final int pieces[] = new int[b.count];
+        System.arraycopy(b.pieces, 0, pieces, 0, b.count);
+        return new HaveBatchMessage(pieces);
+    }
+
+    /**
+     * Adds a piece to the batch of the given destination.
+     * 
+     * @param destination
+     *            The peer to announce the piece to.
+     * @param piece
+     *            The piece to announce.
+     * @param now
+     *            The current time in ms.
+     * @return The message to send if the batch is now full, or
+     *         <code>null</code> if the piece must wait.
+     */
+    synchronized Message add(final IbisIdentifier destination,
+            final int piece, final long now) {
+        if (maximalBatchSize == 1 || interval == 0) {
+            announcedPieces++;
+            sentMessages++;
+            delayStatistics.registerSample(0);
+            return new HaveMessage(piece);
+        }
+        Batch b = batches.get(destination);
+        if (b == null) {
+            b = new Batch(maximalBatchSize, now + interval);
+            batches.put(destination, b);
+        }
+        b.pieces[b.count] = piece;
+        b.times[b.count] = now;
+        b.count++;
+        if (b.count < maximalBatchSize) {
+            return null;
+        }
+        batches.remove(destination);
+        return buildMessage(b, now);
+    }
+
+    /**
+     * @param destination
+     *            The peer.
+     * @return The deadline of the batch of the given destination, or
+     *         <code>Long.MAX_VALUE</code> if there is no batch.
+     */
+    synchronized long getDeadline(final IbisIdentifier destination) {
+        final Batch b = batches.get(destination);
+        return b == null ? Long.MAX_VALUE : b.deadline;
+    }
+
+    /**
+     * Removes the batch of the given destination.
+     * 
+     * @param destination
+     *            The peer.
+     * @param now
+     *            The current time in ms.
+     * @return The message with the pieces in the batch, or <code>null</code>
+     *         if there is no batch.
+     */
+    synchronized Message flush(final IbisIdentifier destination,
+            final long now) {
+        final Batch b = batches.remove(destination);
+        if (b == null) {
+            return null;
+        }
+        return buildMessage(b, now);
+    }
+
+    /**
+     * Puts the messages of all batches that have reached their deadline on
+     * the given queue.
+     * 
+     * @param now
+     *            The current time in ms.
+     * @param queue
+     *            The queue to put the messages on.
+     */
+    synchronized void flushExpired(final long now, final SendQueue queue) {
+        final Iterator<Map.Entry<IbisIdentifier, Batch>> it = batches
+                .entrySet().iterator();
+        while (it.hasNext()) {
+            final Map.Entry<IbisIdentifier, Batch> e = it.next();
+            final Batch b = e.getValue();
+            if (b.deadline <= now) {
+                it.remove();
+                queue.add(e.getKey(), buildMessage(b, now));
+            }
+        }
+    }
+
+    /**
+     * @return The earliest deadline of all batches, or
+     *         <code>Long.MAX_VALUE</code> if there are no batches.
+     */
+    synchronized long getNextDeadline() {
+        long res = Long.MAX_VALUE;
+        for (final Batch b : batches.values()) {
+            if (b.deadline < res) {
+                res = b.deadline;
+            }
+        }
+        return res;
+    }
+
+    synchronized void removePeer(final IbisIdentifier peer) {
+        batches.remove(peer);
+    }
+
+    synchronized void clear() {
+        batches.clear();
+    }
+
+    synchronized void printStatistics(final PrintStream s) {
+        s.println("Have announcements: " + announcedPieces + " pieces in "
+                + sentMessages + " messages (batch size " + maximalBatchSize
+                + ", interval " + interval + " ms)");
+        if (sentMessages > 0) {
+            s.println("  pieces per message: "
+                    + String.format("%.2f", (double) announcedPieces
+                            / sentMessages)
+                    + " messages saved: "
+                    + (announcedPieces - sentMessages));
+        }
+        delayStatistics.printStatistics(s, "  announcement delay");
+    }
+}
@@ -14,4 +14,9 @@ class HaveMessage extends SmallMessage {
     HaveMessage(final int piece) {
         this.piece = piece;
     }
+
+    @Override
+    int getType() {
+        return MessageType.HAVE;
+    }
 }
@@ -6,9 +6,15 @@ import java.util.Arrays;
 import java.util.BitSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.ListIterator;
 
 /**
- * A piece that is under construction.
+ * A piece that is under construction. The piece is requested as one range of
+ * bytes, which the sending peer splits into chunks of its own choosing; every
+ * chunk that arrives shrinks the outstanding range. If the digests of the
+ * chunks are known, every block of the piece is verified as soon as all its
+ * bytes have arrived, and a block with the wrong digest is discarded and
+ * requested again.
  * 
  * @author Kees van Reeuwijk
  * 
@@ -19,6 +25,8 @@ class IncompletePiece {
     private final int pieceSize;
     private final List<Chunk> queuedChunks = new LinkedList<Chunk>();
     private final List<Chunk> outstandingChunks = new LinkedList<Chunk>();
+    private final ChunkDigests chunkDigests;
+    private int incorrectChunks = 0;
 
     /**
      * The data of the piece.
@@ -30,11 +38,26 @@ class IncompletePiece {
      */
     private final BitSet bits = new BitSet();
 
-    void addBytes(final int offset, final byte[] msgdata) {
+    /**
+     * A bit for every block that has been verified.
+     */
+    private final BitSet verifiedBlocks = new BitSet();
+
+    /**
+     * Adds the given bytes to the piece.
+     * 
+     * @param offset
+     *            The offset in the piece of the bytes.
+     * @param msgdata
+     *            The bytes.
+     * @return <code>false</code> iff the bytes completed a block that turned
+     *         out to be incorrect. The block is then requested again.
+     */
+    boolean addBytes(final int offset, final byte[] msgdata) {
         System.arraycopy(msgdata, 0, data, offset, msgdata.length);
         bits.set(offset, (offset + msgdata.length));
         final Chunk c = new Chunk(piece, offset, msgdata.length);
-        final boolean removed = outstandingChunks.remove(c);
+        final boolean removed = removeOutstanding(c);
         if (!removed) {
             Globals.log.reportInternalError("Received unrequested " + c
                     + "; outstanding are: "
@@ -42,6 +65,77 @@ class IncompletePiece {
                     + "; queued are: "
                     + Arrays.deepToString(queuedChunks.toArray()));
         }
+        if (chunkDigests == null || msgdata.length == 0) {
+            return true;
+        }
+        boolean ok = true;
+        final int blockSize = chunkDigests.blockSize;
+        final int lastBlock = (offset + msgdata.length - 1) / blockSize;
+        for (int block = offset / blockSize; block <= lastBlock; block++) {
+            ok &= verifyBlock(block);
+        }
+        return ok;
+    }
+
+    /**
+     * Removes the given chunk from the outstanding range it belongs to.
+     * 
+     * @param c
+     *            The chunk that has arrived.
+     * @return <code>false</code> iff the chunk is not part of an outstanding
+     *         range.
+     */
+    private boolean removeOutstanding(final Chunk c) {
+        final int end = c.offset + c.size;
+        final ListIterator<Chunk> it = outstandingChunks.listIterator();
+        while (it.hasNext()) {
+            final Chunk r = it.next();
+            final int rangeEnd = r.offset + r.size;
+            if (r.offset <= c.offset && end <= rangeEnd) {
+                it.remove();
+                if (r.offset < c.offset) {
+                    it.add(new Chunk(piece, r.offset, c.offset - r.offset));
+                }
+                if (end < rangeEnd) {
+                    it.add(new Chunk(piece, end, rangeEnd - end));
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Verifies the given block if all its bytes have arrived. An incorrect
+     * block is cleared and queued to be requested again.
+     * 
+     * @param block
+     *            The block to verify.
+     * @return <code>false</code> iff the block is incorrect.
+     */
+    private boolean verifyBlock(final int block) {
+        final int start = block * chunkDigests.blockSize;
+        final int end = Math.min(start + chunkDigests.blockSize, pieceSize);
+        if (verifiedBlocks.get(block) || bits.nextClearBit(start) < end) {
+            return true;
+        }
+        if (chunkDigests.isValidBlock(piece, block, data, start, end - start)) {
+            verifiedBlocks.set(block);
+            return true;
+        }
+        bits.clear(start, end);
+        queuedChunks.add(0, new Chunk(piece, start, end - start));
+        incorrectChunks++;
+        return false;
+    }
+
+    /**
+     * Returns the number of incorrect blocks we received for this piece.
+     * 
+     * @return The number of incorrect blocks.
+     */
+    int getIncorrectChunks() {
+        return incorrectChunks;
     }
 
     boolean isComplete() {
@@ -55,20 +149,18 @@ class IncompletePiece {
 
     IncompletePiece(final IbisIdentifier peer, final int piece,
             final int pieceSize) {
+        this(peer, piece, pieceSize, null);
+    }
+
+    IncompletePiece(final IbisIdentifier peer, final int piece,
+            final int pieceSize, final ChunkDigests chunkDigests) {
         this.peer = peer;
         this.piece = piece;
         this.pieceSize = pieceSize;
+        this.chunkDigests = chunkDigests;
         data = new byte[pieceSize];
-        int offset = 0;
-        while (offset < pieceSize) {
-            int end = offset + Settings.CHUNK_SIZE;
-            if (end > pieceSize) {
-                end = pieceSize;
-            }
-            final int size = end - offset;
-            final Chunk c = new Chunk(piece, offset, size);
-            queuedChunks.add(c);
-            offset = end;
+        if (pieceSize > 0) {
+            queuedChunks.add(new Chunk(piece, 0, pieceSize));
         }
     }
 
@@ -84,7 +176,7 @@ class IncompletePiece {
     boolean maintainRequests(final Credit credit, final Transmitter transmitter) {
         boolean progress = false;
 
-        while (outstandingChunks.size() < Settings.CHUNK_REQUESTS_PER_PEER) {
+        while (outstandingChunks.size() < Settings.RANGE_REQUESTS_PER_PIECE) {
             final Chunk c = getNextRequest();
             if (c == null) {
                 break;
@@ -98,7 +190,7 @@ class IncompletePiece {
     }
 
     boolean hasChunkRequestsReady() {
-        return outstandingChunks.size() < Settings.CHUNK_REQUESTS_PER_PEER
+        return outstandingChunks.size() < Settings.RANGE_REQUESTS_PER_PIECE
                 && !queuedChunks.isEmpty();
     }
 
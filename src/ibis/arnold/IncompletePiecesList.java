@@ -6,9 +6,42 @@ import java.util.ArrayList;
 
 class IncompletePiecesList {
     private final ArrayList<IncompletePiece> requests = new ArrayList<IncompletePiece>();
+    private final ChunkDigests chunkDigests;
+    private long incorrectChunks = 0;
 
+    /**
+     * @param chunkDigests
+     *            The digests of the chunks, or <code>null</code> if they are
+     *            not known.
+     */
+    IncompletePiecesList(final ChunkDigests chunkDigests) {
+        this.chunkDigests = chunkDigests;
+    }
+
+    /**
+     * Adds the given data to the given piece, and returns the data of the
+     * piece if it is now complete. If the data contains an incorrect chunk,
+     * that chunk is requested again, unless the peer has sent too many
+     * incorrect chunks for this piece; then the download is cancelled, and the
+     * peer is reported to the scheduler.
+     * 
+     * @param source
+     *            The peer that sent the data.
+     * @param piece
+     *            The piece the data belongs to.
+     * @param offset
+     *            The offset in the piece of the data.
+     * @param data
+     *            The data.
+     * @param scheduler
+     *            The scheduler of this node.
+     * @param transmitter
+     *            The transmitter to send cancels to.
+     * @return The data of the completed piece, or <code>null</code>.
+     */
     byte[] updatePiece(final IbisIdentifier source, final int piece,
-            final int offset, final byte data[]) {
+            final int offset, final byte data[],
+            final SchedulerInterface scheduler, final Transmitter transmitter) {
         boolean sawPiece = false;
         byte pieceData[] = null;
         int ix = requests.size();
@@ -20,8 +53,18 @@ class IncompletePiecesList {
                     Globals.log.reportInternalError("Duplicate pieces for pc="
                             + piece + ",off=" + offset);
                 }
-                r.addBytes(offset, data);
-                if (r.isComplete()) {
+                if (!r.addBytes(offset, data)) {
+                    incorrectChunks++;
+                    Globals.log.reportProgress("Peer " + source
+                            + " sent an incorrect chunk of piece " + piece
+                            + " at offset " + offset);
+                    final int incorrect = r.getIncorrectChunks();
+                    if (incorrect > Settings.MAXIMAL_INCORRECT_CHUNKS) {
+                        requests.remove(ix);
+                        r.sendCancels(transmitter);
+                        scheduler.registerIncorrectPiece(source, piece);
+                    }
+                } else if (r.isComplete()) {
                     pieceData = r.getPieceBytes();
                     requests.remove(ix);
                 }
@@ -105,7 +148,8 @@ class IncompletePiecesList {
     }
 
     void add(final IbisIdentifier peer, final int piece, final int pieceSize) {
-        final IncompletePiece r = new IncompletePiece(peer, piece, pieceSize);
+        final IncompletePiece r = new IncompletePiece(peer, piece, pieceSize,
+                chunkDigests);
         requests.add(r);
     }
 
@@ -127,6 +171,10 @@ class IncompletePiecesList {
         return false;
     }
 
+    long getIncorrectChunks() {
+        return incorrectChunks;
+    }
+
     void dumpState() {
         if (requests.isEmpty()) {
             Globals.log.reportProgress("(no incomplete pieces)");
@@ -7,4 +7,9 @@ class InterestedMessage extends SmallMessage {
     InterestedMessage(final boolean flag) {
         this.flag = flag;
     }
+
+    @Override
+    int getType() {
+        return MessageType.INTERESTED;
+    }
 }
@@ -0,0 +1,188 @@
+package ibis.arnold;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads and writes jorrent files. A jorrent file consists of a fixed-size
+ * header, followed by the digest table of the pieces, and optionally the
+ * digest table of the chunks of every piece. All numbers are big-endian. The
+ * tables are memory-mapped when the file is read, so that a digest is only
+ * read from disk when it is needed.
+ * <p>
+ * Jorrent files in the old format, a serialized {@link JorrentInfo}, can
+ * still be read.
+ * 
+ * @author Kees van Reeuwijk
+ * 
+ */
+class JorrentFile {
+    private static final int MAGIC = 0x4a4f5252;
+
+    private static final int VERSION = 1;
+
+    /** The size of the header; the digest tables start at this offset. */
+    private static final int HEADER_SIZE = 64;
+
+    /** The size of the buffer to write digest tables with. */
+    private static final int WRITE_BUFFER_SIZE = 65536;
+
+    /**
+     * Reads a jorrent file in either format.
+     * 
+     * @param f
+     *            The file to read.
+     * @return The information in the jorrent file.
+     * @throws IOException
+     *             Thrown if the file cannot be read, or is not a jorrent
+     *             file.
+     */
+    static JorrentInfo read(final File f) throws IOException {
+        final RandomAccessFile rafile = new RandomAccessFile(f, "r");
+        try {
+            if (rafile.length() >= HEADER_SIZE && rafile.readInt() == MAGIC) {
+                return readBinary(f, rafile);
+            }
+        } finally {
+            rafile.close();
+        }
+        return readSerialized(f);
+    }
+
+    private static JorrentInfo readBinary(final File f,
+            final RandomAccessFile rafile) throws IOException {
+        final int version = rafile.readInt();
+        if (version != VERSION) {
+            throw new IOException("Jorrent file " + f + " has version "
+                    + version + "; only version " + VERSION
+                    + " is supported");
+        }
+        final int pieceSize = rafile.readInt();
+        final long length = rafile.readLong();
+        final int pieces = rafile.readInt();
+        final int digestSize = rafile.readInt();
+        final int blockSize = rafile.readInt();
+        final int blocksPerPiece = rafile.readInt();
+        if (pieceSize <= 0 || length < 0
+                || pieces != Utils.divideRoundUp(length, pieceSize)
+                || digestSize != PieceDigests.DIGEST_SIZE || blockSize < 0
+                || blocksPerPiece < 0
+                || (blockSize > 0 && blocksPerPiece != ChunkDigests
+                        .getBlockCount(blockSize, pieceSize))) {
+            throw new IOException("Jorrent file " + f + " has a bad header");
+        }
+        final FileChannel channel = rafile.getChannel();
+        final long pieceTableSize = (long) pieces * digestSize;
+        final ByteBuffer pieceTable = map(f, channel, HEADER_SIZE,
+                pieceTableSize);
+        ChunkDigests chunkDigests = null;
+        if (blockSize > 0) {
+            final ByteBuffer chunkTable = map(f, channel, HEADER_SIZE
+                    + pieceTableSize, (long) pieces * blocksPerPiece
+                    * digestSize);
+            chunkDigests = new ChunkDigests(blockSize, blocksPerPiece,
+                    chunkTable);
+        }
+        return new JorrentInfo(pieceSize, length, new PieceDigests(
+                pieceTable, pieces), chunkDigests);
+    }
+
+    /**
+     * Maps the given part of a jorrent file. The mapping remains valid after
+     * the channel is closed.
+     */
+    private static ByteBuffer map(final File f, final FileChannel channel,
+            final long start, final long size) throws IOException {
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Digest table of jorrent file " + f
+                    + " is too large");
+        }
+        if (start + size > channel.size()) {
+            throw new IOException("Jorrent file " + f + " is truncated");
+        }
+        return channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+    }
+
+    private static JorrentInfo readSerialized(final File f)
+            throws IOException {
+        final ObjectInputStream in = new ObjectInputStream(
+                new FileInputStream(f));
+        try {
+            return (JorrentInfo) in.readObject();
+        } catch (final ClassNotFoundException e) {
+            throw new IOException("Jorrent file " + f
+                    + " is not a jorrent file: " + e.getLocalizedMessage());
+        } catch (final ClassCastException e) {
+            throw new IOException("Jorrent file " + f
+                    + " is not a jorrent file");
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void writeTable(final DataOutputStream out,
+            final ByteBuffer table) throws IOException {
+        final byte buf[] = new byte[WRITE_BUFFER_SIZE];
+        while (table.hasRemaining()) {
+            final int n = Math.min(buf.length, table.remaining());
+            table.get(buf, 0, n);
+            out.write(buf, 0, n);
+        }
+    }
+
+    /**
+     * Writes the given information to a jorrent file. The file is first
+     * written under a temporary name, so that an existing jorrent file, even
+     * one that is mapped, is only replaced by a complete new one.
+     * 
+     * @param f
+     *            The file to write.
+     * @param info
+     *            The information to write.
+     * @throws IOException
+     *             Thrown if the file cannot be written.
+     */
+    static void write(final File f, final JorrentInfo info) throws IOException {
+        final File tmpFile = new File(f.getPath() + ".tmp");
+        final DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmpFile)));
+        try {
+            final ChunkDigests chunkDigests = info.chunkDigests;
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(info.pieceSize);
+            out.writeLong(info.length);
+            out.writeInt(info.pieceDigests.size());
+            out.writeInt(PieceDigests.DIGEST_SIZE);
+            out.writeInt(chunkDigests == null ? 0 : chunkDigests.blockSize);
+            out.writeInt(chunkDigests == null ? 0
+                    : chunkDigests.blocksPerPiece);
+            while (out.size() < HEADER_SIZE) {
+                out.writeByte(0);
+            }
+            writeTable(out, info.pieceDigests.getTable());
+            if (chunkDigests != null) {
+                writeTable(out, chunkDigests.getTable());
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmpFile.renameTo(f)) {
+            // Some platforms don't allow renaming over an existing file.
+            f.delete();
+            if (!tmpFile.renameTo(f)) {
+                throw new FileNotFoundException("Cannot rename " + tmpFile
+                        + " to " + f);
+            }
+        }
+    }
+}
@@ -1,11 +1,13 @@
 package ibis.arnold;
 
+import java.io.InvalidObjectException;
+import java.io.ObjectStreamException;
 import java.io.Serializable;
 
 /**
- * A class that stores the equivalent of a .torrent file. Designed to be
- * serializable, so that the relevant info can be read and written from/to file
- * in one go.
+ * A class that stores the equivalent of a .torrent file. It is read and
+ * written by {@link JorrentFile}. The class is still serializable, so that
+ * jorrent files in the old serialized format can be read.
  * 
  * @author Kees van Reeuwijk
  * 
@@ -17,11 +19,43 @@ class JorrentInfo implements Serializable {
 
     final long length;
 
-    final byte[][] digests;
+    /**
+     * The digests of the pieces in the serialized format; <code>null</code>
+     * in all other cases.
+     */
+    private final byte[][] digests;
 
-    JorrentInfo(final int pieceSize, final long length, final byte[][] digests) {
+    /** The digests of the pieces. */
+    final transient PieceDigests pieceDigests;
+
+    /**
+     * The digests of the chunks of every piece, or <code>null</code> if the
+     * jorrent file was built without them. Jorrent files in the serialized
+     * format may also contain them.
+     */
+    final ChunkDigests chunkDigests;
+
+    JorrentInfo(final int pieceSize, final long length,
+            final PieceDigests pieceDigests, final ChunkDigests chunkDigests) {
         this.pieceSize = pieceSize;
         this.length = length;
-        this.digests = digests;
+        this.digests = null;
+        this.pieceDigests = pieceDigests;
+        this.chunkDigests = chunkDigests;
+    }
+
+    /**
+     * Replaces a deserialized instance by one with a digest table.
+     * 
+     * @return The replacement.
+     * @throws ObjectStreamException
+     *             Thrown if the serialized instance has no digests.
+     */
+    private Object readResolve() throws ObjectStreamException {
+        if (digests == null) {
+            throw new InvalidObjectException("Jorrent file has no digests");
+        }
+        return new JorrentInfo(pieceSize, length, new PieceDigests(digests),
+                chunkDigests);
     }
 }
@@ -0,0 +1,281 @@
+package ibis.arnold;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A file ready for up- and downloading that is accessed through memory
+ * mappings instead of explicit reads and writes. The file is mapped in windows
+ * of a whole number of pieces, so that a piece, and therefore a chunk, never
+ * straddles two windows. Windows are only mapped when they are first used.
+ * 
+ * @author Kees van Reeuwijk
+ * 
+ */
+class MappedSharedFile implements SharedFileInterface {
+    private final RandomAccessFile rafile;
+    private final FileChannel channel;
+    private final long size;
+    private final int numberOfPieces;
+    private final PieceSet validPieces;
+    private final PieceDigests referenceHashes;
+    private final int pieceSize;
+    private final long windowSize;
+    private final MappedByteBuffer windows[];
+    private final PieceValidityFile validityFile;
+
+    MappedSharedFile(final File file, final int pieceSize,
+            final long desiredSize, final PieceDigests refHashes)
+            throws IOException, NoSuchAlgorithmException {
+        this.rafile = new RandomAccessFile(file, "rw");
+        this.channel = rafile.getChannel();
+        this.size = desiredSize;
+        this.pieceSize = pieceSize;
+        this.numberOfPieces = Utils.divideRoundUp(desiredSize, pieceSize);
+        this.referenceHashes = refHashes;
+        this.windowSize = (long) pieceSize * Settings.MAPPED_WINDOW_PIECES;
+        this.windows = new MappedByteBuffer[Utils.divideRoundUp(desiredSize,
+                windowSize)];
+        this.validityFile = new PieceValidityFile(file, pieceSize,
+                desiredSize, refHashes);
+        // The file existed when we entered, go and check it.
+        this.validPieces = checkPieces(refHashes);
+        this.rafile.setLength(desiredSize);
+        saveValidityFile();
+    }
+
+    private PieceSet checkPieces(final PieceDigests references)
+            throws IOException, NoSuchAlgorithmException {
+        final PieceSet ourValidPieces = validityFile.getValidPieces(channel,
+                references);
+        final int validCount = ourValidPieces.cardinality();
+        final int invalidCount = numberOfPieces - validCount;
+        System.out.println("I have " + validCount + " valid and "
+                + invalidCount + " invalid pieces");
+        return ourValidPieces;
+    }
+
+    /**
+     * Returns the mapping of the given window, mapping it if necessary.
+     * 
+     * @param window
+     *            The window to map.
+     * @return The mapped window.
+     * @throws IOException
+     *             Thrown if the window cannot be mapped.
+     */
+    private synchronized MappedByteBuffer getWindow(final int window)
+            throws IOException {
+        MappedByteBuffer res = windows[window];
+        if (res == null) {
+            final long start = window * windowSize;
+            final long len = Math.min(windowSize, size - start);
+            res = channel.map(FileChannel.MapMode.READ_WRITE, start, len);
+            windows[window] = res;
+        }
+        return res;
+    }
+
+    /**
+     * Returns a buffer that covers the given range of the given piece. The
+     * buffer is a slice of the mapping of the file, so no data is copied, and
+     * writes into the buffer end up in the file.
+     * 
+     * @param piece
+     *            The piece to get the buffer for.
+     * @param offset
+     *            The offset in the piece of the buffer.
+     * @param length
+     *            The length of the buffer.
+     * @return The buffer.
+     * @throws IOException
+     *             Thrown if the file cannot be mapped.
+     */
+    ByteBuffer getChunkBuffer(final int piece, final int offset, int length)
+            throws IOException {
+        final long pos = (long) pieceSize * piece + offset;
+        if (pos + length > size) {
+            // Enforce the required file size: don't return non-existent bytes.
+            length = (int) (size - pos);
+        }
+        final int window = (int) (pos / windowSize);
+        final int windowOffset = (int) (pos - window * windowSize);
+        final ByteBuffer buf = getWindow(window).duplicate();
+        buf.limit(windowOffset + length);
+        buf.position(windowOffset);
+        return buf.slice();
+    }
+
+    /**
+     * Given a piece number and an offset in that piece, writes the given data
+     * to its proper place in the file. We assume that the chunk will never
+     * extend beyond the specified size of the file.
+     * 
+     * @param piece
+     *            The piece this data belongs to.
+     * @param offset
+     *            The offset in the piece of this data.
+     * @param data
+     *            The data to write.
+     * @throws IOException
+     *             Thrown if for some reason the data cannot be written.
+     */
+    void writeChunk(final int piece, final int offset, final byte data[])
+            throws IOException {
+        final ByteBuffer buf = getChunkBuffer(piece, offset, data.length);
+        buf.put(data);
+    }
+
+    @Override
+    public boolean verifyPiece(final int piece, final byte[] completedPiece) {
+        byte hash[];
+        try {
+            hash = Utils.computeSHA1(completedPiece);
+        } catch (final NoSuchAlgorithmException e) {
+            Globals.log.reportInternalError("Unknown digest algorithm: "
+                    + e.getLocalizedMessage());
+            throw new DownloadFailedError("Unknown digest algorithm", e);
+        }
+        return referenceHashes.matches(piece, hash);
+    }
+
+    @Override
+    public void storeVerifiedPiece(final int piece,
+            final byte[] completedPiece) throws IOException {
+        writeChunk(piece, 0, completedPiece);
+        synchronized (this) {
+            validPieces.set(piece);
+            if (validityFile.registerValidPiece()) {
+                saveValidityFile();
+            }
+        }
+    }
+
+    @Override
+    public boolean storePiece(final int piece, final byte[] completedPiece)
+            throws IOException {
+        if (!verifyPiece(piece, completedPiece)) {
+            return false;
+        }
+        storeVerifiedPiece(piece, completedPiece);
+        return true;
+    }
+
+    /**
+     * Makes sure all mapped windows have reached the disk, and then records
+     * the valid pieces in the validity file.
+     * 
+     * @throws IOException
+     *             Thrown if the validity file cannot be written.
+     */
+    private synchronized void saveValidityFile() throws IOException {
+        for (final MappedByteBuffer w : windows) {
+            if (w != null) {
+                w.force();
+            }
+        }
+        validityFile.save(validPieces);
+    }
+
+    /**
+     * Given a piece number and an offset in that piece, reads the given data
+     * from the file. You usually get all the bytes you ask for, but if the
+     * official size of the file is larger than specified, you will get a chunk
+     * that is truncated to the file size.
+     * 
+     * @param piece
+     *            The piece this data belongs to.
+     * @param offset
+     *            The offset in the piece of this data.
+     * @param length
+     *            The length of the data to read.
+     * @throws IOException
+     *             Thrown if for some reason the data cannot be read.
+     */
+    byte[] readChunk(final int piece, final int offset, final int length)
+            throws IOException {
+        final ByteBuffer buf = getChunkBuffer(piece, offset, length);
+        final byte res[] = new byte[buf.remaining()];
+        buf.get(res);
+        return res;
+    }
+
+    @Override
+    public byte[] readChunk(final Chunk chunk) throws IOException {
+        return readChunk(chunk.piece, chunk.offset, chunk.size);
+    }
+
+    @Override
+    public void readChunk(final Chunk chunk, final ByteBuffer buf)
+            throws IOException {
+        buf.put(getChunkBuffer(chunk.piece, chunk.offset, chunk.size));
+        buf.flip();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        saveValidityFile();
+        for (int i = 0; i < windows.length; i++) {
+            windows[i] = null;
+        }
+        rafile.close();
+    }
+
+    @Override
+    public synchronized boolean isValidPiece(final int piece) {
+        return validPieces.get(piece);
+    }
+
+    @Override
+    public synchronized PieceSet getKnownPieces() {
+        return validPieces.clone();
+    }
+
+    /**
+     * Returns the size of the given piece. For all but the last piece this is
+     * the constant PIECE_SIZE. The size of the last one is determined by the
+     * length of the shared file.
+     * 
+     * @param piece
+     *            The piece to compute the size for.
+     * @return The piece size.
+     */
+    @Override
+    public int getPieceSize(final int piece) {
+        if (piece < numberOfPieces - 1) {
+            return pieceSize;
+        }
+        return (int) (size - (long) pieceSize * (numberOfPieces - 1));
+    }
+
+    @Override
+    public int getNumberOfPieces() {
+        return numberOfPieces;
+    }
+
+    @Override
+    public synchronized boolean isComplete() {
+        return validPieces.isComplete();
+    }
+
+    @Override
+    public boolean canSetValid() {
+        return false;
+    }
+
+    @Override
+    public void setValid() {
+        Globals.log.reportInternalError("Cannot declare a real file valid");
+    }
+
+    @Override
+    public void printStatistics(final PrintStream s) {
+        // Nothing to report.
+    }
+}
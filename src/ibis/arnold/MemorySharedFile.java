@@ -0,0 +1,271 @@
+package ibis.arnold;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * An in-memory shared file for experiments with many peers on one machine. It
+ * has the same contents as a {@link DummySharedFile}, but all data lives
+ * outside the Java heap, so that it doesn't cause garbage collections.
+ * <p>
+ * The contents of the file only depend on the piece size, so all peers in the
+ * same JVM share one read-only copy of them. Every peer also has its own arena
+ * in which it keeps the pieces it has received, as long as there is room. A
+ * received piece is verified against the shared contents, and reads of a
+ * piece come from the arena if it has a copy, and from the shared contents
+ * otherwise.
+ * 
+ * @author Kees van Reeuwijk
+ * 
+ */
+class MemorySharedFile implements SharedFileInterface {
+    /** The number of pieces in an arena slab. */
+    private static final int SLAB_PIECES = 16;
+
+    /**
+     * The shared contents of all in-memory files in this JVM, indexed by piece
+     * size. Since piece <code>p</code> consists entirely of bytes with value
+     * <code>(byte) p</code>, the contents repeat after 256 pieces.
+     */
+    private static final HashMap<Integer, ByteBuffer> seedContents = new HashMap<Integer, ByteBuffer>();
+
+    private final long size;
+    private final int numberOfPieces;
+    private final PieceSet validPieces;
+    private final PieceDigests referenceHashes;
+    private final int pieceSize;
+    private final ByteBuffer seedContent;
+
+    /** For every piece its slot in the arena, or -1 if it has none. */
+    private final int arenaSlots[];
+    private final ByteBuffer slabs[];
+    private int usedSlots = 0;
+    private long arenaMisses = 0;
+
+    /**
+     * @param pieceSize
+     *            The size of a piece.
+     * @param desiredSize
+     *            The size of the file.
+     * @param refHashes
+     *            The reference hashes of the pieces, or <code>null</code> if
+     *            received pieces should be compared with the contents instead.
+     * @param arenaSize
+     *            The maximal number of bytes in received pieces to keep.
+     */
+    MemorySharedFile(final int pieceSize, final long desiredSize,
+            final PieceDigests refHashes, final long arenaSize) {
+        this.size = desiredSize;
+        this.pieceSize = pieceSize;
+        this.numberOfPieces = Utils.divideRoundUp(desiredSize, pieceSize);
+        this.referenceHashes = refHashes;
+        this.seedContent = getSeedContent(pieceSize);
+        this.validPieces = new PieceSet(numberOfPieces);
+        this.arenaSlots = new int[numberOfPieces];
+        Arrays.fill(arenaSlots, -1);
+        final int slots = (int) Math.min(numberOfPieces, arenaSize / pieceSize);
+        this.slabs = new ByteBuffer[Utils.divideRoundUp(slots, SLAB_PIECES)];
+        Globals.log.reportProgress("Created in-memory shared file with room for "
+                + slots + " pieces");
+    }
+
+    /**
+     * Returns the shared contents for the given piece size, creating them if
+     * necessary.
+     * 
+     * @param pieceSize
+     *            The piece size.
+     * @return The shared contents.
+     */
+    private static synchronized ByteBuffer getSeedContent(final int pieceSize) {
+        ByteBuffer res = seedContents.get(pieceSize);
+        if (res == null) {
+            res = ByteBuffer.allocateDirect(256 * pieceSize);
+            for (int v = 0; v < 256; v++) {
+                for (int i = 0; i < pieceSize; i++) {
+                    res.put((byte) v);
+                }
+            }
+            res.clear();
+            res = res.asReadOnlyBuffer();
+            seedContents.put(pieceSize, res);
+        }
+        return res;
+    }
+
+    /**
+     * Returns a buffer with the shared contents of the given range.
+     */
+    private ByteBuffer getSeedBuffer(final int piece, final int offset,
+            final int length) {
+        final ByteBuffer buf = seedContent.duplicate();
+        final int start = (piece & 0xff) * pieceSize + offset;
+        buf.limit(start + length);
+        buf.position(start);
+        return buf;
+    }
+
+    /**
+     * Returns a buffer with the given range of the arena slot of the given
+     * piece, or with the shared contents if the piece has no slot.
+     */
+    private ByteBuffer getPieceBuffer(final int piece, final int offset,
+            int length) {
+        final long pos = (long) pieceSize * piece + offset;
+        if (pos + length > size) {
+            // Enforce the required file size: don't return non-existent bytes.
+            length = (int) (size - pos);
+        }
+        final int slot;
+        synchronized (this) {
+            slot = arenaSlots[piece];
+        }
+        if (slot < 0) {
+            return getSeedBuffer(piece, offset, length);
+        }
+        final ByteBuffer buf = slabs[slot / SLAB_PIECES].duplicate();
+        final int start = (slot % SLAB_PIECES) * pieceSize + offset;
+        buf.limit(start + length);
+        buf.position(start);
+        return buf;
+    }
+
+    /**
+     * Returns a new arena slot for the given piece, or -1 if the arena is full.
+     */
+    private synchronized int allocateSlot() {
+        if (usedSlots >= slabs.length * SLAB_PIECES) {
+            arenaMisses++;
+            return -1;
+        }
+        final int slot = usedSlots++;
+        final int slab = slot / SLAB_PIECES;
+        if (slabs[slab] == null) {
+            slabs[slab] = ByteBuffer.allocateDirect(SLAB_PIECES * pieceSize);
+        }
+        return slot;
+    }
+
+    @Override
+    public boolean verifyPiece(final int piece, final byte[] completedPiece) {
+        if (referenceHashes == null) {
+            final ByteBuffer ref = getSeedBuffer(piece, 0,
+                    getPieceSize(piece));
+            return ref.equals(ByteBuffer.wrap(completedPiece));
+        }
+        byte hash[];
+        try {
+            hash = Utils.computeSHA1(completedPiece);
+        } catch (final NoSuchAlgorithmException e) {
+            Globals.log.reportInternalError("Unknown digest algorithm: "
+                    + e.getLocalizedMessage());
+            throw new DownloadFailedError("Unknown digest algorithm", e);
+        }
+        return referenceHashes.matches(piece, hash);
+    }
+
+    @Override
+    public void storeVerifiedPiece(final int piece,
+            final byte[] completedPiece) {
+        final int slot = allocateSlot();
+        if (slot >= 0) {
+            final ByteBuffer buf = slabs[slot / SLAB_PIECES].duplicate();
+            buf.position((slot % SLAB_PIECES) * pieceSize);
+            buf.put(completedPiece);
+        }
+        synchronized (this) {
+            if (slot >= 0) {
+                arenaSlots[piece] = slot;
+            }
+            validPieces.set(piece);
+        }
+    }
+
+    @Override
+    public boolean storePiece(final int piece, final byte[] completedPiece)
+            throws IOException {
+        if (!verifyPiece(piece, completedPiece)) {
+            return false;
+        }
+        storeVerifiedPiece(piece, completedPiece);
+        return true;
+    }
+
+    @Override
+    public byte[] readChunk(final Chunk chunk) throws IOException {
+        final ByteBuffer buf = getPieceBuffer(chunk.piece, chunk.offset,
+                chunk.size);
+        final byte res[] = new byte[buf.remaining()];
+        buf.get(res);
+        return res;
+    }
+
+    @Override
+    public void readChunk(final Chunk chunk, final ByteBuffer buf)
+            throws IOException {
+        buf.put(getPieceBuffer(chunk.piece, chunk.offset, chunk.size));
+        buf.flip();
+    }
+
+    @Override
+    public void close() throws IOException {
+        // Nothing to do.
+    }
+
+    @Override
+    public synchronized boolean isValidPiece(final int piece) {
+        return validPieces.get(piece);
+    }
+
+    @Override
+    public synchronized PieceSet getKnownPieces() {
+        return validPieces.clone();
+    }
+
+    /**
+     * Returns the size of the given piece. For all but the last piece this is
+     * the constant PIECE_SIZE. The size of the last one is determined by the
+     * length of the shared file.
+     * 
+     * @param piece
+     *            The piece to compute the size for.
+     * @return The piece size.
+     */
+    @Override
+    public int getPieceSize(final int piece) {
+        if (piece < numberOfPieces - 1) {
+            return pieceSize;
+        }
+        return (int) (size - (long) pieceSize * (numberOfPieces - 1));
+    }
+
+    @Override
+    public int getNumberOfPieces() {
+        return numberOfPieces;
+    }
+
+    @Override
+    public synchronized boolean isComplete() {
+        return validPieces.isComplete();
+    }
+
+    @Override
+    public boolean canSetValid() {
+        return true;
+    }
+
+    @Override
+    public synchronized void setValid() {
+        validPieces.setComplete();
+    }
+
+    @Override
+    public synchronized void printStatistics(final PrintStream s) {
+        s.println("In-memory file: " + usedSlots + " pieces in arena, "
+                + arenaMisses + " pieces without room in arena");
+    }
+}
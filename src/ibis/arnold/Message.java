@@ -17,6 +17,21 @@ abstract class Message implements Serializable {
 
     transient long arrivalTime;
 
+    /**
+     * Called when this message has been written to the network, so that it
+     * can release any resources it holds. A message that failed to be sent
+     * may still be retried, so this is not called for it.
+     */
+    void messageSent() {
+        // Nothing to release by default.
+    }
+
+    /**
+     * @return The type identifier of this message, one of the constants in
+     *         {@link MessageType}.
+     */
+    abstract int getType();
+
     @Override
     public String toString() {
         return Utils.toStringClassScalars(this);
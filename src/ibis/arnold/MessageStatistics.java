@@ -0,0 +1,103 @@
+package ibis.arnold;
+
+import java.io.PrintStream;
+
+/**
+ * Per message type, the number of handled messages and a histogram of the
+ * time it took to handle them. The buckets of the histogram are powers of two
+ * of nanoseconds, so registering a message is just a few array updates. This
+ * class is not thread-safe; it is only used by the engine thread.
+ * 
+ * @author Kees van Reeuwijk
+ * 
+ */
+class MessageStatistics {
+    /** Bucket <code>b</code> holds durations below <code>2^b</code> ns. */
+    private static final int BUCKETS = 41;
+
+    private final long counts[] = new long[MessageType.COUNT];
+    private final long totalTimes[] = new long[MessageType.COUNT];
+    private final long maximalTimes[] = new long[MessageType.COUNT];
+    private final long histograms[][] = new long[MessageType.COUNT][BUCKETS];
+
+    /**
+     * Registers the handling of a message.
+     * 
+     * @param type
+     *            The type of the message.
+     * @param duration
+     *            The time in ns it took to handle the message.
+     */
+    void registerMessage(final int type, final long duration) {
+        final long d = Math.max(0, duration);
+        counts[type]++;
+        totalTimes[type] += d;
+        if (d > maximalTimes[type]) {
+            maximalTimes[type] = d;
+        }
+        final int bucket = Math.min(BUCKETS - 1,
+                64 - Long.numberOfLeadingZeros(d));
+        histograms[type][bucket]++;
+    }
+
+    long getCount(final int type) {
+        return counts[type];
+    }
+
+    long getTotalTime(final int type) {
+        return totalTimes[type];
+    }
+
+    /**
+     * Returns an upper bound of the given percentile of the handling times of
+     * the given message type.
+     * 
+     * @param type
+     *            The message type.
+     * @param fraction
+     *            The percentile as a fraction, for example 0.99.
+     * @return The upper bound in ns, or 0 if there are no messages of this
+     *         type.
+     */
+    long getPercentile(final int type, final double fraction) {
+        final long n = counts[type];
+        if (n == 0) {
+            return 0;
+        }
+        final long limit = (long) Math.ceil(fraction * n);
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += histograms[type][b];
+            if (seen >= limit) {
+                return Math.min(1L << b, maximalTimes[type]);
+            }
+        }
+        return maximalTimes[type];
+    }
+
+    void printStatistics(final PrintStream s) {
+        long total = 0;
+        for (final long t : totalTimes) {
+            total += t;
+        }
+        s.println("Message handling by type:");
+        for (int type = 0; type < MessageType.COUNT; type++) {
+            final long n = counts[type];
+            if (n == 0) {
+                continue;
+            }
+            final long t = totalTimes[type];
+            s.println(String.format("  %-16s %9d msgs %10s (%5.1f%%)",
+                    MessageType.getName(type), n,
+                    Utils.formatSeconds(1e-9 * t), 100.0 * t / total)
+                    + " mean "
+                    + Utils.formatSeconds(1e-9 * t / n)
+                    + " p50 "
+                    + Utils.formatSeconds(1e-9 * getPercentile(type, 0.5))
+                    + " p99 "
+                    + Utils.formatSeconds(1e-9 * getPercentile(type, 0.99))
+                    + " max "
+                    + Utils.formatSeconds(1e-9 * maximalTimes[type]));
+        }
+    }
+}
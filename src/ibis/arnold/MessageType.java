@@ -0,0 +1,45 @@
+package ibis.arnold;
+
+/**
+ * The type identifiers of the messages. Every message class returns its
+ * identifier from {@link Message#getType()}; the identifiers are small
+ * consecutive numbers so that they can be used to index tables.
+ * 
+ * @author Kees van Reeuwijk
+ * 
+ */
+final class MessageType {
+    static final int REQUEST = 0;
+    static final int PIECE = 1;
+    static final int REQUEST_PIECES = 2;
+    static final int CHOKED = 3;
+    static final int INTERESTED = 4;
+    static final int BIT_SET = 5;
+    static final int BIT_SET_DELTA = 6;
+    static final int CANCEL = 7;
+    static final int HAVE = 8;
+    static final int HAVE_BATCH = 9;
+    static final int ASK_FOR_HELP = 10;
+    static final int STOP_HELPING = 11;
+    static final int JOIN_HELPERS = 12;
+    static final int RESIGN_AS_HELPER = 13;
+    static final int CLOSE_CONNECTION = 14;
+    static final int REQUEST_CATALOG = 15;
+
+    /** The number of message types. */
+    static final int COUNT = 16;
+
+    private static final String names[] = { "Request", "Piece",
+            "RequestPieces", "Choked", "Interested", "BitSet", "BitSetDelta",
+            "Cancel", "Have", "HaveBatch", "AskForHelp", "StopHelping",
+            "JoinHelpers", "ResignAsHelper", "CloseConnection",
+            "RequestCatalog" };
+
+    private MessageType() {
+        // Only constants.
+    }
+
+    static String getName(final int type) {
+        return names[type];
+    }
+}
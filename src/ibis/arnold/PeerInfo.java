@@ -31,11 +31,9 @@ class PeerInfo {
     private PieceSet knownPieces;
 
     /** The upload performance monitor of this peer. */
-    private final TransferPerformanceMonitor receiveTransferMonitor = new WindowTransferPerformanceMonitor(
-            Settings.TRANSFER_MONITOR_WINDOW_TIME);
+    private final TransferPerformanceMonitor receiveTransferMonitor = createTransferMonitor();
 
-    private final TransferPerformanceMonitor sendTransferMonitor = new WindowTransferPerformanceMonitor(
-            Settings.TRANSFER_MONITOR_WINDOW_TIME);
+    private final TransferPerformanceMonitor sendTransferMonitor = createTransferMonitor();
 
     /** The Ibis identifier of this peer. */
     final IbisIdentifier peer;
@@ -61,6 +59,26 @@ class PeerInfo {
     private boolean peerWantsToTalkToUs = true;
     private final TimeStatistics fulfillmentStatistics = new TimeStatistics();
 
+    /**
+     * Returns a new transfer performance monitor. The kind of monitor is
+     * selected with the property <code>arnold.transfer-monitor</code>, which
+     * can be <code>window</code> (the default), <code>buckets</code>, or
+     * <code>ewma</code>.
+     * 
+     * @return The new monitor.
+     */
+    private static TransferPerformanceMonitor createTransferMonitor() {
+        final String kind = System.getProperty("arnold.transfer-monitor", "");
+        final long windowTime = Settings.TRANSFER_MONITOR_WINDOW_TIME;
+        if (kind.equalsIgnoreCase("buckets")) {
+            return new BucketTransferPerformanceMonitor(windowTime);
+        }
+        if (kind.equalsIgnoreCase("ewma")) {
+            return new EwmaTransferPerformanceMonitor(windowTime);
+        }
+        return new WindowTransferPerformanceMonitor(windowTime);
+    }
+
     /**
      * Constructs a new peer information class for the given peer.
      * 
@@ -155,14 +173,46 @@ class PeerInfo {
         }
     }
 
+    /**
+     * Returns the size of the chunks to send to this peer. Faster links get
+     * larger chunks, so that fewer messages are needed.
+     * 
+     * @return The chunk size in bytes.
+     */
+    int getChunkSize() {
+        final double bytes = sendTransferMonitor.estimatePerformance()
+                * Settings.CHUNK_TRANSMISSION_TIME * 1e-3;
+        int res = Settings.CHUNK_SIZE;
+        while (res < Settings.MAXIMAL_CHUNK_SIZE && 2 * res <= bytes) {
+            res *= 2;
+        }
+        return res;
+    }
+
+    /**
+     * Returns the next chunk to send to this peer. Requests for more than one
+     * chunk are split.
+     * 
+     * @return The chunk to send, or <code>null</code> if there are no
+     *         requests.
+     */
     ChunkRequest getChunkRequest() {
         if (deleted) {
             return null;
         }
-        final ChunkRequest c = chunkRequests.poll();
-        if (c == null) {
+        final ChunkRequest r = chunkRequests.peek();
+        if (r == null) {
             return null;
         }
+        final int size = getChunkSize();
+        final ChunkRequest c;
+        if (r.chunk.size <= size) {
+            chunkRequests.poll();
+            c = r;
+        } else {
+            c = r.head(size);
+            chunkRequests.set(0, r.tail(size));
+        }
         totalSentBytes += c.chunk.size;
         sendTransferMonitor.registerTransfer(c.chunk.size);
         final long duration = System.currentTimeMillis() - c.requestMoment;
@@ -173,13 +223,22 @@ class PeerInfo {
         return c;
     }
 
+    /**
+     * Removes all requests for a range within the given chunk. Since a range
+     * may have been sent partially, the cancelled range may be larger than
+     * what is left of the request.
+     * 
+     * @param chunk
+     *            The cancelled range.
+     * @return True iff any request was removed.
+     */
     boolean removeChunkRequest(final Chunk chunk) {
         int ix = chunkRequests.size();
         boolean progress = false;
         while (ix > 0) {
             ix--;
             final ChunkRequest e = chunkRequests.get(ix);
-            if (e.chunk.equals(chunk)) {
+            if (e.isWithin(chunk)) {
                 chunkRequests.remove(ix);
                 if (Settings.TraceChunkRequests) {
                     Globals.log.reportProgress("Removed ChunkRequest " + e);
@@ -421,6 +480,12 @@ class PeerInfo {
                 outstandingPieces, peer);
     }
 
+    int getUrgentPieceToDownload(final PieceRanker pieceRanker,
+            final OutstandingDownloadingPieceList outstandingPieces) {
+        return pieceRanker.getUrgentPieceToDownload(knownPieces,
+                outstandingPieces, peer);
+    }
+
     int getBestPieceToDownload(final PieceRanker pieceRanker,
             final int maximalReplication) {
         return pieceRanker.getBestPieceToDownload(knownPieces,
@@ -60,9 +60,9 @@ class PeerInfoList {
      * @return The <code>PeerInfo</code> of the removed peer.
      */
     PeerInfo extractPeer(final IbisIdentifier peer) {
-        final int ix = rewardRankedPeers.findPeer(peer, true);
-        if (ix >= 0) {
-            final PeerInfo p = rewardRankedPeers.remove(ix);
+        final PeerInfo p = rewardRankedPeers.getPeer(peer, true);
+        if (p != null) {
+            rewardRankedPeers.remove(p);
             if (Settings.TracePeers) {
                 Globals.log.reportProgress("Extracted peer " + peer);
             }
@@ -121,11 +121,10 @@ class PeerInfoList {
     boolean setBitSet(final IbisIdentifier peer, final PieceSet bits,
             final boolean weAreSeeder, final PersonalityInterface personality,
             final Transmitter transmitter) {
-        final int ix = rewardRankedPeers.findPeer(peer, true);
+        final PeerInfo p = rewardRankedPeers.getPeer(peer, true);
         boolean isSeeder = false;
 
-        if (ix >= 0) {
-            final PeerInfo p = rewardRankedPeers.get(ix);
+        if (p != null) {
             p.setKnownPieces(bits);
             isSeeder = p.isSeeder();
             if (isSeeder) {
@@ -137,7 +136,7 @@ class PeerInfoList {
             if (!weAreSeeder && !bits.isEmpty()) {
                 p.setWeAreInterested(transmitter, "learned about new pieces");
             }
-            rewardRankedPeers.updateRanking(ix);
+            rewardRankedPeers.updateRanking(p);
             downloadSpeedRankedPeers.updateRanking(p);
         } else {
             Globals.log.reportInternalError("Unknown peer " + peer
@@ -150,10 +149,9 @@ class PeerInfoList {
             final boolean weMayHavePiece, final boolean weAreSeeding,
             final PersonalityInterface personality,
             final Transmitter transmitter) {
-        final int ix = rewardRankedPeers.findPeer(peer, false);
+        final PeerInfo p = rewardRankedPeers.getPeer(peer, false);
 
-        if (ix >= 0) {
-            final PeerInfo p = rewardRankedPeers.get(ix);
+        if (p != null) {
             final boolean isNowSeed = p.registerHasPiece(piece);
             if (isNowSeed) {
                 personality.peerIsSeeder(peer);
@@ -165,13 +163,12 @@ class PeerInfoList {
                 p.setWeAreInterested(transmitter, "peer has interesting piece "
                         + piece);
             }
-            rewardRankedPeers.updateRanking(ix);
+            rewardRankedPeers.updateRanking(p);
             downloadSpeedRankedPeers.updateRanking(p);
             return isNowSeed;
         }
         // Now also search for deleted peers.
-        final int i = rewardRankedPeers.findPeer(peer, true);
-        if (i < 0) {
+        if (rewardRankedPeers.getPeer(peer, true) == null) {
             // Not even a deleted peer.
             Globals.log.reportInternalError("Unknown peer " + peer
                     + " reported it has piece " + piece);
@@ -180,59 +177,48 @@ class PeerInfoList {
     }
 
     void cancelPiece(final IbisIdentifier peer, final int piece) {
-        final int ix = rewardRankedPeers.findPeer(peer, true);
+        final PeerInfo p = rewardRankedPeers.getPeer(peer, true);
 
-        if (ix >= 0) {
-            final PeerInfo p = rewardRankedPeers.get(ix);
+        if (p != null) {
             p.registerCanceledPiece(piece);
-            rewardRankedPeers.updateRanking(ix);
+            rewardRankedPeers.updateRanking(p);
             downloadSpeedRankedPeers.updateRanking(p);
         }
     }
 
     void registerCompletedPiece(final IbisIdentifier peer,
             final Transmitter transmitter, final int piece) {
-        final int ix = rewardRankedPeers.findPeer(peer, true);
-
-        PeerInfo res = null;
-        if (ix >= 0) {
-            res = rewardRankedPeers.get(ix);
+        final PeerInfo res = rewardRankedPeers.getPeer(peer, true);
+        if (res != null) {
             res.registerCompletedPiece(piece);
-            rewardRankedPeers.updateRanking(ix);
+            rewardRankedPeers.updateRanking(res);
             downloadSpeedRankedPeers.updateRanking(res);
         }
 
         // Now tell all our neighbours we have this piece.
-        HaveMessage msg = null;
-        for (final PeerInfo p : rewardRankedPeers) {
+        for (final PeerInfo p : rewardRankedPeers.unordered()) {
             if (p.needsHaveMessage()) {
-                if (msg == null) {
-                    // We really need this message, make it.
-                    msg = new HaveMessage(piece);
-                }
-                transmitter.addToBookkeepingQueue(p.peer, msg);
+                transmitter.addHaveToBookkeepingQueue(p.peer, piece);
             }
         }
     }
 
     void updateCredit(final IbisIdentifier peer, final CreditValue credit) {
-        final int ix = rewardRankedPeers.findPeer(peer, false);
-        if (ix >= 0) {
-            final PeerInfo p = rewardRankedPeers.get(ix);
+        final PeerInfo p = rewardRankedPeers.getPeer(peer, false);
+        if (p != null) {
             if (p.updateCredit(credit)) {
-                rewardRankedPeers.updateRanking(ix);
+                rewardRankedPeers.updateRanking(p);
                 downloadSpeedRankedPeers.updateRanking(p);
             }
         }
     }
 
     void registerCanceledPiece(final IbisIdentifier peer, final int piece) {
-        final int ix = rewardRankedPeers.findPeer(peer, true);
+        final PeerInfo p = rewardRankedPeers.getPeer(peer, true);
 
-        if (ix >= 0) {
-            final PeerInfo p = rewardRankedPeers.get(ix);
+        if (p != null) {
             p.registerCanceledPiece(piece);
-            rewardRankedPeers.updateRanking(ix);
+            rewardRankedPeers.updateRanking(p);
             downloadSpeedRankedPeers.updateRanking(p);
         } else {
             Globals.log.reportInternalError("Unknown peer " + peer
@@ -248,17 +234,15 @@ class PeerInfoList {
      * @return True iff the peer is member of this list.
      */
     boolean contains(final IbisIdentifier peer) {
-        final int ix = rewardRankedPeers.findPeer(peer, false);
-        return ix >= 0;
+        return rewardRankedPeers.getPeer(peer, false) != null;
     }
 
     void registerReceivedChunk(final IbisIdentifier peer, final long length) {
-        final int ix = rewardRankedPeers.findPeer(peer, false);
+        final PeerInfo p = rewardRankedPeers.getPeer(peer, false);
 
-        if (ix >= 0) {
-            final PeerInfo p = rewardRankedPeers.get(ix);
+        if (p != null) {
             p.registerReceivedChunk(length);
-            rewardRankedPeers.updateRanking(ix);
+            rewardRankedPeers.updateRanking(p);
             downloadSpeedRankedPeers.updateRanking(p);
         }
     }
@@ -273,14 +257,10 @@ class PeerInfoList {
 
     void addChunkRequest(final IbisIdentifier peer, final Chunk chunk,
             final boolean weAreSeeding, final Transmitter transmitter) {
-        final int ix = rewardRankedPeers.findPeer(peer, false);
-        final PeerInfo p;
+        PeerInfo p = rewardRankedPeers.getPeer(peer, false);
 
-        if (ix >= 0) {
-            p = rewardRankedPeers.get(ix);
-        } else {
-            final int i = rewardRankedPeers.findPeer(peer, true);
-            if (i < 0) {
+        if (p == null) {
+            if (rewardRankedPeers.getPeer(peer, true) == null) {
                 p = addPeer(peer, weAreSeeding, transmitter);
                 if (Settings.TracePeers) {
                     Globals.log
@@ -303,15 +283,14 @@ class PeerInfoList {
     }
 
     void removeChunkRequest(final IbisIdentifier peer, final Chunk chunk) {
-        final int ix = rewardRankedPeers.findPeer(peer, true);
+        final PeerInfo p = rewardRankedPeers.getPeer(peer, true);
 
-        if (ix >= 0) {
-            final PeerInfo p = rewardRankedPeers.get(ix);
+        if (p != null) {
             final boolean found = p.removeChunkRequest(chunk);
             if (found) {
                 waitingRequests--;
             }
-            rewardRankedPeers.updateRanking(ix);
+            rewardRankedPeers.updateRanking(p);
             downloadSpeedRankedPeers.updateRanking(p);
         }
     }
@@ -340,7 +319,9 @@ class PeerInfoList {
                     Globals.log.reportProgress("Next granted chunk request is "
                             + r);
                 }
-                waitingRequests--;
+                if (r.completesRequest) {
+                    waitingRequests--;
+                }
                 return r;
             }
         }
@@ -370,37 +351,34 @@ class PeerInfoList {
      * @return <code>true</code> iff this peer is a neighbor.
      */
     boolean setPeerHasChokedUs(final IbisIdentifier peer, final boolean flag) {
-        final int ix = rewardRankedPeers.findPeer(peer, false);
-        if (ix < 0) {
+        final PeerInfo p = rewardRankedPeers.getPeer(peer, false);
+        if (p == null) {
             // Not a neighbor.
             return false;
         }
-        final PeerInfo p = rewardRankedPeers.get(ix);
         p.setPeerHasChokedUs(flag);
-        rewardRankedPeers.updateRanking(ix);
+        rewardRankedPeers.updateRanking(p);
         downloadSpeedRankedPeers.updateRanking(p);
         return true;
     }
 
     void setPeerIsInterested(final IbisIdentifier peer, final boolean flag) {
-        final int ix = rewardRankedPeers.findPeer(peer, false);
-        if (ix >= 0) {
-            final PeerInfo p = rewardRankedPeers.get(ix);
+        final PeerInfo p = rewardRankedPeers.getPeer(peer, false);
+        if (p != null) {
             p.setPeerIsInterestedInUs(flag);
-            rewardRankedPeers.updateRanking(ix);
+            rewardRankedPeers.updateRanking(p);
             downloadSpeedRankedPeers.updateRanking(p);
         }
     }
 
     void setPeerWantsToTalkToUs(final IbisIdentifier peer, final boolean flag) {
-        final int ix = rewardRankedPeers.findPeer(peer, false);
-        if (ix < 0) {
+        final PeerInfo p = rewardRankedPeers.getPeer(peer, false);
+        if (p == null) {
             // Not a neighbour.
             return;
         }
-        final PeerInfo p = rewardRankedPeers.get(ix);
         p.setPeerWantsToTalkToUs(flag);
-        rewardRankedPeers.updateRanking(ix);
+        rewardRankedPeers.updateRanking(p);
         downloadSpeedRankedPeers.updateRanking(p);
     }
 
@@ -437,7 +415,7 @@ class PeerInfoList {
                 } else {
                     p.setWeUnchokedPeer(transmitter, "tit-for-tat");
                 }
-                rewardRankedPeers.updateRanking(ix);
+                rewardRankedPeers.updateRanking(p);
                 downloadSpeedRankedPeers.updateRanking(p);
                 return true;
             }
@@ -458,7 +436,7 @@ class PeerInfoList {
      *            sent.
      */
     void stopOurDownloading(final Transmitter transmitter) {
-        for (final PeerInfo p : rewardRankedPeers) {
+        for (final PeerInfo p : rewardRankedPeers.unordered()) {
             if (!p.isDeleted()) {
                 p.setWeAreUninterested(transmitter, "we are seeder");
             }
@@ -474,25 +452,23 @@ class PeerInfoList {
      * @return True iff we have sent our pieces message to this peer.
      */
     boolean haveSentPiecesMessage(final IbisIdentifier peer) {
-        final int ix = rewardRankedPeers.findPeer(peer, false);
-        if (ix < 0) {
+        final PeerInfo p = rewardRankedPeers.getPeer(peer, false);
+        if (p == null) {
             Globals.log
                     .reportInternalError("Trying to get needsHaveMessage for unknown peer "
                             + peer);
             return false;
         }
-        final PeerInfo p = rewardRankedPeers.get(ix);
         return p.haveSentPiecesMessage();
     }
 
     void setSentCatalog(final IbisIdentifier peer) {
-        final int ix = rewardRankedPeers.findPeer(peer, false);
-        if (ix < 0) {
+        final PeerInfo p = rewardRankedPeers.getPeer(peer, false);
+        if (p == null) {
             Globals.log.reportInternalError("Sent catalog to unknown peer "
                     + peer + "??");
             return;
         }
-        final PeerInfo p = rewardRankedPeers.get(ix);
         p.setSentPiecesMessage();
     }
 
@@ -547,7 +523,7 @@ class PeerInfoList {
     }
 
     void shutdown(final Transmitter transmitter) {
-        for (final PeerInfo peer : rewardRankedPeers) {
+        for (final PeerInfo peer : rewardRankedPeers.unordered()) {
             if (peer.needsShutdownMessage()) {
                 final CloseConnectionMessage msg = new CloseConnectionMessage();
                 transmitter.addToBookkeepingQueue(peer.peer, msg);
@@ -0,0 +1,89 @@
+package ibis.arnold;
+
+import ibis.ipl.IbisIdentifier;
+import ibis.ipl.impl.Location;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A small program that measures the cost of handling a message from a
+ * neighbor in a {@link PeerInfoList}: finding the peer, updating its
+ * statistics, and re-ranking it in both ranked lists. Finding a peer should
+ * not depend on the number of neighbors, and re-ranking should only grow
+ * logarithmically with it. The ranked lists are read once every
+ * <code>MESSAGES_PER_PASS</code> messages, as the engine does once per
+ * iteration of its main loop.
+ * 
+ * @author Kees van Reeuwijk
+ * 
+ */
+class PeerListBenchmark {
+    private static final int MESSAGES = 500000;
+
+    private static final int PIECES = 1000;
+
+    private static final int MESSAGES_PER_PASS = 20;
+
+    private static IbisIdentifier[] buildPeers(final int n) {
+        final IbisIdentifier res[] = new IbisIdentifier[n];
+        for (int i = 0; i < n; i++) {
+            res[i] = new ibis.ipl.impl.IbisIdentifier("peer" + i, null, null,
+                    new Location("host" + i), "benchmark", null);
+        }
+        return res;
+    }
+
+    private static void run(final int n, final boolean report) {
+        final IbisIdentifier peers[] = buildPeers(n);
+        final PeerInfoList list = new PeerInfoList(PIECES);
+        for (final IbisIdentifier peer : peers) {
+            // New peers are already interested, so no message is sent.
+            list.addPeer(new PeerInfo(peer, PIECES), false, null);
+        }
+        final Random rng = new Random(12345);
+        int found = 0;
+        final long startTime = System.nanoTime();
+        for (int i = 0; i < MESSAGES; i++) {
+            if (list.contains(peers[rng.nextInt(n)])) {
+                found++;
+            }
+        }
+        final long lookupTime = System.nanoTime() - startTime;
+        for (int i = 0; i < MESSAGES; i++) {
+            final IbisIdentifier peer = peers[rng.nextInt(n)];
+            list.registerReceivedChunk(peer, Settings.CHUNK_SIZE);
+            if (i % MESSAGES_PER_PASS == 0) {
+                list.getRewardRankedPeers().get(0);
+                list.getDownloadSpeedRankedPeers().get(0);
+            }
+        }
+        final long t = System.nanoTime() - startTime - lookupTime;
+        if (report) {
+            System.out.println("neighbors=" + n + ": lookup="
+                    + (lookupTime / MESSAGES) + " ns, message="
+                    + (t / MESSAGES) + " ns"
+                    + (found == MESSAGES ? "" : " (peers missing!)"));
+        }
+    }
+
+    /**
+     * @param args
+     *            The command-line arguments.
+     */
+    public static void main(final String[] args) {
+        if (args.length != 0) {
+            System.err.println("Usage: PeerListBenchmark");
+            System.err
+                    .println("Actual arguments: " + Arrays.deepToString(args));
+            System.exit(1);
+        }
+        // Warm up the JIT.
+        run(1000, false);
+        run(10, false);
+        run(100, false);
+        for (final int n : new int[] { 10, 100, 1000 }) {
+            run(n, true);
+        }
+    }
+}
@@ -2,6 +2,11 @@ package ibis.arnold;
 
 import java.util.Comparator;
 
+/**
+ * A ranking of peers. Peers with a higher comparison value are ranked first;
+ * <code>compare()</code> must agree with that, but may break ties between
+ * peers with the same comparison value.
+ */
 interface PeerRanker extends Comparator<PeerInfo> {
     String getName();
 
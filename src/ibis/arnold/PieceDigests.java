@@ -0,0 +1,127 @@
+package ibis.arnold;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+
+/**
+ * The SHA-1 digests of the pieces of a shared file, stored back to back in one
+ * table. The table can be a memory-mapped part of a jorrent file, so that a
+ * digest is only read from disk when it is needed, and there is no separate
+ * array object for every piece.
+ * <p>
+ * Only absolute accesses are done on the table, so it can be used by multiple
+ * threads at the same time.
+ * 
+ * @author Kees van Reeuwijk
+ * 
+ */
+class PieceDigests {
+    /** The size of a SHA-1 digest. */
+    static final int DIGEST_SIZE = 20;
+
+    private final ByteBuffer table;
+
+    private final int count;
+
+    /**
+     * @param table
+     *            The digest table; the digest of piece <code>p</code> starts
+     *            at <code>p*DIGEST_SIZE</code>.
+     * @param count
+     *            The number of pieces.
+     */
+    PieceDigests(final ByteBuffer table, final int count) {
+        if (table.capacity() < (long) count * DIGEST_SIZE) {
+            throw new IllegalArgumentException("Digest table of "
+                    + table.capacity() + " bytes is too small for " + count
+                    + " pieces");
+        }
+        this.table = table;
+        this.count = count;
+    }
+
+    /**
+     * Builds a digest table from a separate digest per piece.
+     * 
+     * @param digests
+     *            The digests of the pieces.
+     */
+    PieceDigests(final byte digests[][]) {
+        this(ByteBuffer.allocate(digests.length * DIGEST_SIZE), digests.length);
+        for (int piece = 0; piece < digests.length; piece++) {
+            if (digests[piece].length != DIGEST_SIZE) {
+                throw new IllegalArgumentException("Digest of piece " + piece
+                        + " has " + digests[piece].length + " bytes");
+            }
+            for (int i = 0; i < DIGEST_SIZE; i++) {
+                table.put(piece * DIGEST_SIZE + i, digests[piece][i]);
+            }
+        }
+    }
+
+    /**
+     * @return The number of pieces.
+     */
+    int size() {
+        return count;
+    }
+
+    /**
+     * Returns a copy of the digest of the given piece.
+     * 
+     * @param piece
+     *            The piece.
+     * @return The digest.
+     */
+    byte[] get(final int piece) {
+        final byte res[] = new byte[DIGEST_SIZE];
+        final int start = piece * DIGEST_SIZE;
+        for (int i = 0; i < DIGEST_SIZE; i++) {
+            res[i] = table.get(start + i);
+        }
+        return res;
+    }
+
+    /**
+     * Returns true iff the given digest is the digest of the given piece.
+     * 
+     * @param piece
+     *            The piece.
+     * @param digest
+     *            The digest to compare.
+     * @return <code>true</code> iff the digests are equal.
+     */
+    boolean matches(final int piece, final byte digest[]) {
+        if (digest.length != DIGEST_SIZE) {
+            return false;
+        }
+        final int start = piece * DIGEST_SIZE;
+        for (int i = 0; i < DIGEST_SIZE; i++) {
+            if (table.get(start + i) != digest[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds all digests, in piece order, to the given message digest.
+     * 
+     * @param digest
+     *            The message digest to update.
+     */
+    void update(final MessageDigest digest) {
+        digest.update(getTable());
+    }
+
+    /**
+     * @return A buffer with exactly the digest table; its position and limit
+     *         are independent of those of other users.
+     */
+    ByteBuffer getTable() {
+        final ByteBuffer res = table.duplicate();
+        res.clear();
+        res.limit(count * DIGEST_SIZE);
+        return res;
+    }
+}
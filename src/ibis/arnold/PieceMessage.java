@@ -1,8 +1,17 @@
 package ibis.arnold;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+
 /**
  * The BitTorrent PIECE message. Contains a chunk of data of a particular piece.
  * (Don't look at me like that, I didn't invent this name.)
+ * <p>
+ * On the sending side the data is usually held in a buffer from a
+ * {@link ChunkBufferPool}, which is returned to the pool once the message has
+ * been sent. On the receiving side the data is always in a byte array.
  * 
  * @author Kees van Reeuwijk
  * 
@@ -16,7 +25,14 @@ class PieceMessage extends Message {
 
     final int offset;
 
-    final byte data[];
+    /** The data of the chunk, or <code>null</code> if it is in a buffer. */
+    transient byte data[];
+
+    private transient int dataLength;
+
+    private transient ByteBuffer buffer;
+
+    private transient ChunkBufferPool pool;
 
     PieceMessage(final CreditValue credit, final int piece, final int offset,
             final byte data[]) {
@@ -24,11 +40,81 @@ class PieceMessage extends Message {
         this.piece = piece;
         this.offset = offset;
         this.data = data;
+        this.dataLength = data.length;
+    }
+
+    /**
+     * Constructs a piece message with data in a pooled buffer. The buffer is
+     * returned to the given pool when the message has been sent.
+     * 
+     * @param credit
+     *            The credit of the sender.
+     * @param piece
+     *            The piece the data belongs to.
+     * @param offset
+     *            The offset in the piece of the data.
+     * @param buffer
+     *            The buffer with the data.
+     * @param pool
+     *            The pool the buffer belongs to.
+     */
+    PieceMessage(final CreditValue credit, final int piece, final int offset,
+            final ByteBuffer buffer, final ChunkBufferPool pool) {
+        this.credit = credit;
+        this.piece = piece;
+        this.offset = offset;
+        this.buffer = buffer;
+        this.pool = pool;
+        this.dataLength = buffer.remaining();
+    }
+
+    /**
+     * Returns the number of bytes of data in this message.
+     * 
+     * @return The data length.
+     */
+    int getDataLength() {
+        return dataLength;
+    }
+
+    @Override
+    synchronized void messageSent() {
+        if (buffer != null) {
+            pool.release(buffer);
+            buffer = null;
+            pool = null;
+        }
+    }
+
+    private synchronized void writeObject(final ObjectOutputStream out)
+            throws IOException {
+        out.defaultWriteObject();
+        if (buffer != null) {
+            out.writeInt(buffer.remaining());
+            out.write(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                    buffer.remaining());
+        } else {
+            out.writeInt(data.length);
+            out.write(data);
+        }
+    }
+
+    private void readObject(final ObjectInputStream in) throws IOException,
+            ClassNotFoundException {
+        in.defaultReadObject();
+        dataLength = in.readInt();
+        data = new byte[dataLength];
+        in.readFully(data);
     }
 
     @Override
     public String toString() {
         return "PieceMessage[pc=" + piece + ",off=" + offset + ",data.length="
-                + data.length + "]";
+                + getDataLength() + "]";
+    }
+
+    @Override
+    int getType() {
+        return MessageType.PIECE;
     }
 }
@@ -2,95 +2,94 @@ package ibis.arnold;
 
 import ibis.ipl.IbisIdentifier;
 
+import java.io.PrintStream;
 import java.util.Arrays;
 
 /**
  * Rank pieces based on their rarity. Pieces we have ourselves are considered
  * not rare at all, and are removed from the administration.
+ * <p>
+ * The pieces are kept in one array that is partitioned in buckets of pieces
+ * with the same number of occurrences, in order of increasing occurrences.
+ * Adding or removing an occurrence moves a piece to the border of its bucket
+ * and then moves that border, so it takes constant time. Removing a piece
+ * moves it to the end of the array in one step per higher bucket. The order of
+ * the pieces within a bucket is arbitrary.
+ * <p>
+ * For a streaming download the pieces in the deadline window of the
+ * streaming window are selected first, in playback order.
  * 
  * @author Kees van Reeuwijk
  * 
  */
 class PieceRanker {
-    private final int rank[]; // Piece number to index in 'pieces'
-    private final PieceInfo pieces[];
-    private int validPieces;
+    /**
+     * If a set of available pieces has fewer than one in this many of the
+     * ranked pieces, it is cheaper to look at the available pieces than to
+     * scan the buckets.
+     */
+    private static final int SPARSE_FACTOR = 8;
 
-    private static final class PieceInfo implements Comparable<PieceInfo> {
-        private int occurrences = 0;
-        private int downloads = 0;
-        private final int pieceNo;
+    /** The ranked pieces, ordered by occurrence count. */
+    private final int pieces[];
 
-        private PieceInfo(final int pieceNo) {
-            this.pieceNo = pieceNo;
-        }
+    /** Piece number to index in 'pieces', or -1 if the piece is not ranked. */
+    private final int rank[];
 
-        private void addOccurrence() {
-            occurrences++;
-        }
+    private final int occurrences[];
 
-        @Override
-        public int compareTo(final PieceInfo o) {
-            if (this.occurrences < o.occurrences) {
-                return -1;
-            }
-            if (this.occurrences > o.occurrences) {
-                return 1;
-            }
-            if (this.pieceNo < o.pieceNo) {
-                return -1;
-            }
-            if (this.pieceNo > o.pieceNo) {
-                return 1;
-            }
-            return 0;
-        }
+    private final int downloads[];
 
-        private void removeOccurrence() {
-            occurrences--;
-        }
+    /**
+     * For every occurrence count <code>k</code>, the index in
+     * <code>pieces</code> of the first piece with at least <code>k</code>
+     * occurrences. Entries beyond the highest occurrence count are equal to
+     * <code>validPieces</code>.
+     */
+    private int bucketStart[];
 
-        private void registerDownloadStart() {
-            downloads++;
-        }
+    /** The highest occurrence count that may be in use. */
+    private int maximalOccurrences = 0;
 
-        private void registerDownloadCancel() {
-            downloads--;
-        }
+    private int validPieces;
 
-        @Override
-        public String toString() {
-            return Utils.toStringClassScalars(this);
-        }
+    /** The candidates of a piece selection; reused to avoid allocation. */
+    private final int choices[] = new int[Settings.RANKER_MAXIMUM_CHOICES];
 
-    }
+    /** The streaming window, or <code>null</code> if we're not streaming. */
+    private StreamingWindow streamingWindow = null;
 
-    @SuppressWarnings("synthetic-access")
     PieceRanker(final PieceSet pieceSet) {
         final int numberOfPieces = pieceSet.size();
+        pieces = new int[numberOfPieces];
         rank = new int[numberOfPieces];
-        pieces = new PieceInfo[numberOfPieces];
+        occurrences = new int[numberOfPieces];
+        downloads = new int[numberOfPieces];
         Arrays.fill(rank, -1);
         int ix = 0;
         for (int i = 0; i < numberOfPieces; i++) {
             if (!pieceSet.get(i)) {
-                pieces[ix] = new PieceInfo(i);
+                pieces[ix] = i;
                 rank[i] = ix;
                 ix++;
             }
         }
         validPieces = ix;
+        bucketStart = new int[8];
+        Arrays.fill(bucketStart, 1, bucketStart.length, validPieces);
     }
 
-    /**
-     * Build the index array again, it was somehow corrupted.
-     */
-    @SuppressWarnings("synthetic-access")
-    private void buildIndex() {
-        Arrays.fill(rank, -1);
-        for (int i = 0; i < validPieces; i++) {
-            rank[pieces[i].pieceNo] = i;
-        }
+    void setStreamingWindow(final StreamingWindow streamingWindow) {
+        this.streamingWindow = streamingWindow;
+    }
+
+    private void swap(final int ix1, final int ix2) {
+        final int p1 = pieces[ix1];
+        final int p2 = pieces[ix2];
+        pieces[ix1] = p2;
+        pieces[ix2] = p1;
+        rank[p2] = ix1;
+        rank[p1] = ix2;
     }
 
     /**
@@ -99,35 +98,32 @@ class PieceRanker {
      * @param piece
      *            The piece.
      */
-    @SuppressWarnings("synthetic-access")
     void addOccurrenceCount(final int piece) {
-        int ix = rank[piece];
+        final int ix = rank[piece];
         if (ix >= 0) {
-            if (pieces[ix] == null || pieces[ix].pieceNo != piece) {
-                Globals.log.reportInternalError("Index corrupt; rebuilding");
-                buildIndex();
-                ix = rank[piece];
+            final int k = occurrences[piece];
+            if (k + 2 >= bucketStart.length) {
+                final int oldLength = bucketStart.length;
+                bucketStart = Arrays.copyOf(bucketStart, 2 * oldLength);
+                Arrays.fill(bucketStart, oldLength, bucketStart.length,
+                        validPieces);
             }
-            pieces[ix].addOccurrence();
-            while (ix + 1 < validPieces) {
-                if (pieces[ix].compareTo(pieces[ix + 1]) < 0) {
-                    // Piece is in place.
-                    break;
-                }
-                final PieceInfo tmp = pieces[ix + 1];
-                pieces[ix + 1] = pieces[ix];
-                pieces[ix] = tmp;
-                rank[tmp.pieceNo]--;
-                rank[piece]++;
-                ix++;
-
+            // Move the piece to the end of its bucket, and make it the first
+            // element of the next bucket.
+            final int last = bucketStart[k + 1] - 1;
+            swap(ix, last);
+            bucketStart[k + 1] = last;
+            occurrences[piece] = k + 1;
+            if (maximalOccurrences < k + 1) {
+                maximalOccurrences = k + 1;
             }
         }
     }
 
     void addOccurrenceCount(final PieceSet set) {
-        for (final int elm : set) {
-            addOccurrenceCount(elm);
+        for (int piece = set.nextSetBit(0); piece >= 0; piece = set
+                .nextSetBit(piece + 1)) {
+            addOccurrenceCount(piece);
         }
     }
 
@@ -137,138 +133,198 @@ class PieceRanker {
      * @param piece
      *            The piece.
      */
-    @SuppressWarnings("synthetic-access")
     void removeOccurrenceCount(final int piece) {
-        int ix = rank[piece];
+        final int ix = rank[piece];
         if (ix >= 0) {
-            if (pieces[ix] == null || pieces[ix].pieceNo != piece) {
-                Globals.log.reportInternalError("Index corrupt; rebuilding");
-                buildIndex();
-                ix = rank[piece];
-            }
-            pieces[ix].removeOccurrence();
-            while (ix > 0 && pieces[ix].compareTo(pieces[ix - 1]) < 0) {
-                final PieceInfo tmp = pieces[ix - 1];
-                pieces[ix - 1] = pieces[ix];
-                pieces[ix] = tmp;
-                rank[tmp.pieceNo]++;
-                rank[piece]--;
-                ix--;
+            final int k = occurrences[piece];
+            if (k == 0) {
+                Globals.log.reportInternalError("Removing occurrence of piece "
+                        + piece + " that has no occurrences");
+                return;
             }
+            // Move the piece to the start of its bucket, and make it the
+            // last element of the previous bucket.
+            final int first = bucketStart[k];
+            swap(ix, first);
+            bucketStart[k] = first + 1;
+            occurrences[piece] = k - 1;
         }
     }
 
     void removeOccurrenceCount(final PieceSet set) {
-        for (final int elm : set) {
-            removeOccurrenceCount(elm);
+        for (int piece = set.nextSetBit(0); piece >= 0; piece = set
+                .nextSetBit(piece + 1)) {
+            removeOccurrenceCount(piece);
         }
     }
 
     /** Completely remove the given piece from our ranking. */
-    @SuppressWarnings("synthetic-access")
     void removeRank(final int piece) {
-        final int ix = rank[piece];
+        int ix = rank[piece];
         if (ix >= 0) {
-            rank[piece] = -1;
-            System.arraycopy(pieces, ix + 1, pieces, ix, validPieces - ix - 1);
+            // Move the piece through all higher buckets to the end.
+            for (int k = occurrences[piece]; k <= maximalOccurrences; k++) {
+                final int last = bucketStart[k + 1] - 1;
+                swap(ix, last);
+                bucketStart[k + 1] = last;
+                ix = last;
+            }
             validPieces--;
-            for (int i = ix; i < validPieces; i++) {
-                final PieceInfo p = pieces[i];
-                rank[p.pieceNo] = i;
+            for (int k = maximalOccurrences + 1; k < bucketStart.length; k++) {
+                bucketStart[k] = validPieces;
             }
-            pieces[validPieces] = null;
+            rank[piece] = -1;
+            occurrences[piece] = 0;
+            downloads[piece] = 0;
         }
     }
 
-    @SuppressWarnings("synthetic-access")
+    /**
+     * @return The ranked pieces, ordered by occurrence count and then by piece
+     *         number.
+     */
     int[] getRanking() {
-        final int res[] = new int[validPieces];
-        for (int i = 0; i < validPieces; i++) {
-            final PieceInfo p = pieces[i];
-            res[i] = p.pieceNo;
+        final int res[] = Arrays.copyOf(pieces, validPieces);
+        for (int k = 0; k <= maximalOccurrences; k++) {
+            Arrays.sort(res, bucketStart[k], bucketStart[k + 1]);
         }
         return res;
     }
 
-    @SuppressWarnings("synthetic-access")
-    int getBestPieceToDownload(final PieceSetViewer availablePieces) {
-        final PieceInfo choices[] = new PieceInfo[Settings.RANKER_MAXIMUM_CHOICES];
-        int choiceIndex = 0;
+    /**
+     * Returns true iff the given piece may be chosen.
+     */
+    private boolean isCandidate(final int piece,
+            final PieceSetViewer availablePieces, final int maximalDownloads,
+            final OutstandingDownloadingPieceList outstandingPieces,
+            final IbisIdentifier peer) {
+        return downloads[piece] < maximalDownloads
+                && availablePieces.get(piece)
+                && (outstandingPieces == null || !outstandingPieces
+                        .containsPieceFromPeer(piece, peer));
+    }
 
-        for (int ix = 0; ix < validPieces; ix++) {
-            final PieceInfo p = pieces[ix];
-            if (choiceIndex > 0 && p.occurrences != choices[0].occurrences) {
-                break;
-            }
-            if (p.downloads < 1 && availablePieces.get(p.pieceNo)) {
-                choices[choiceIndex++] = p;
-                if (choiceIndex >= choices.length) {
-                    break;
-                }
-            }
-        }
-        if (choiceIndex < 1) {
+    /**
+     * Returns the first candidate piece in the deadline window of the
+     * streaming window, or -1 if there is none.
+     */
+    private int selectWindowPiece(final PieceSetViewer availablePieces,
+            final int maximalReplication, final int maximalDownloads,
+            final OutstandingDownloadingPieceList outstandingPieces,
+            final IbisIdentifier peer) {
+        if (streamingWindow == null) {
             return -1;
         }
-        return choices[Globals.rng.nextInt(choiceIndex)].pieceNo;
+        streamingWindow.update(System.currentTimeMillis());
+        final int end = streamingWindow.getWindowEnd();
+        for (int piece = streamingWindow.getWindowStart(); piece < end; piece++) {
+            if (rank[piece] >= 0
+                    && occurrences[piece] <= maximalReplication
+                    && isCandidate(piece, availablePieces, maximalDownloads,
+                            outstandingPieces, peer)) {
+                return piece;
+            }
+        }
+        return -1;
     }
 
-    @SuppressWarnings("synthetic-access")
-    int getBestPieceToDownload(final PieceSet availablePieces,
-            final int maximalReplication) {
-        final PieceInfo choices[] = new PieceInfo[Settings.RANKER_MAXIMUM_CHOICES];
+    /**
+     * Returns a random piece from the rarest candidate pieces, or -1 if there
+     * is no candidate. Candidates in the deadline window of a streaming
+     * download take precedence.
+     */
+    private int selectPiece(final PieceSetViewer availablePieces,
+            final int maximalReplication, final int maximalDownloads,
+            final OutstandingDownloadingPieceList outstandingPieces,
+            final IbisIdentifier peer) {
+        final int windowPiece = selectWindowPiece(availablePieces,
+                maximalReplication, maximalDownloads, outstandingPieces, peer);
+        if (windowPiece >= 0) {
+            return windowPiece;
+        }
         int choiceIndex = 0;
-
-        for (int ix = 0; ix < validPieces; ix++) {
-            final PieceInfo p = pieces[ix];
-            if (p.occurrences > maximalReplication) {
-                break;
-            }
-            if (choiceIndex > 0 && p.occurrences != choices[0].occurrences) {
-                break;
+        if (availablePieces instanceof PieceSet
+                && availablePieces.cardinality() * SPARSE_FACTOR < validPieces) {
+            // Only look at the pieces that are available.
+            final PieceSet s = (PieceSet) availablePieces;
+            int best = Integer.MAX_VALUE;
+            for (int piece = s.nextSetBit(0); piece >= 0; piece = s
+                    .nextSetBit(piece + 1)) {
+                if (rank[piece] < 0) {
+                    continue;
+                }
+                final int k = occurrences[piece];
+                if (k > best || k > maximalReplication
+                        || !isCandidate(piece, availablePieces,
+                                maximalDownloads, outstandingPieces, peer)) {
+                    continue;
+                }
+                if (k < best) {
+                    best = k;
+                    choiceIndex = 0;
+                }
+                if (choiceIndex < choices.length) {
+                    choices[choiceIndex++] = piece;
+                }
             }
-            if (p.downloads < 1 && availablePieces.get(p.pieceNo)) {
-                choices[choiceIndex++] = p;
-                if (choiceIndex >= choices.length) {
-                    break;
+        } else {
+            final int maxk = Math.min(maximalOccurrences, maximalReplication);
+            for (int k = 0; k <= maxk && choiceIndex == 0; k++) {
+                final int end = bucketStart[k + 1];
+                for (int ix = bucketStart[k]; ix < end; ix++) {
+                    final int piece = pieces[ix];
+                    if (isCandidate(piece, availablePieces, maximalDownloads,
+                            outstandingPieces, peer)) {
+                        choices[choiceIndex++] = piece;
+                        if (choiceIndex >= choices.length) {
+                            break;
+                        }
+                    }
                 }
             }
         }
         if (choiceIndex < 1) {
             return -1;
         }
-        return choices[Globals.rng.nextInt(choiceIndex)].pieceNo;
+        return choices[Globals.rng.nextInt(choiceIndex)];
+    }
+
+    int getBestPieceToDownload(final PieceSetViewer availablePieces) {
+        return selectPiece(availablePieces, Integer.MAX_VALUE, 1, null, null);
+    }
+
+    int getBestPieceToDownload(final PieceSet availablePieces,
+            final int maximalReplication) {
+        return selectPiece(availablePieces, maximalReplication, 1, null, null);
     }
 
-    @SuppressWarnings("synthetic-access")
     int getBestPieceToDownload(final PieceSet availablePieces,
             final OutstandingDownloadingPieceList outstandingPieces,
             final IbisIdentifier peer) {
-        final PieceInfo choices[] = new PieceInfo[Settings.RANKER_MAXIMUM_CHOICES];
-        int choiceIndex = 0;
+        return selectPiece(availablePieces, Integer.MAX_VALUE,
+                Settings.MAXIMAL_ENDGAME_REPLICATION, outstandingPieces, peer);
+    }
 
-        for (int ix = 0; ix < validPieces; ix++) {
-            final PieceInfo p = pieces[ix];
-            if (choiceIndex > 0 && p.occurrences != choices[0].occurrences) {
-                break;
-            }
-            if (p.downloads < Settings.MAXIMAL_ENDGAME_REPLICATION
-                    && availablePieces.get(p.pieceNo)
-                    && !outstandingPieces
-                            .containsPieceFromPeer(p.pieceNo, peer)) {
-                choices[choiceIndex++] = p;
-                if (choiceIndex >= choices.length) {
-                    break;
-                }
-            }
-        }
-        if (choiceIndex < 1) {
-            return -1;
-        }
-        return choices[Globals.rng.nextInt(choiceIndex)].pieceNo;
+    /**
+     * Returns the most urgent piece in the deadline window of a streaming
+     * download that the given peer has, even if it is already being
+     * downloaded from other peers.
+     * 
+     * @param availablePieces
+     *            The pieces of the peer.
+     * @param outstandingPieces
+     *            The pieces that are being downloaded.
+     * @param peer
+     *            The peer.
+     * @return The piece, or -1 if there is none, or if we're not streaming.
+     */
+    int getUrgentPieceToDownload(final PieceSet availablePieces,
+            final OutstandingDownloadingPieceList outstandingPieces,
+            final IbisIdentifier peer) {
+        return selectWindowPiece(availablePieces, Integer.MAX_VALUE,
+                Settings.STREAMING_REPLICATION, outstandingPieces, peer);
     }
 
-    @SuppressWarnings("synthetic-access")
     boolean rankingIsSane() {
         boolean sane = true;
         int elm = validPieces;
@@ -276,16 +332,23 @@ class PieceRanker {
             final int r = rank[i];
             if (r >= 0) {
                 elm--;
-                if (pieces[r] == null) {
+                if (r >= validPieces) {
                     Globals.log.reportInternalError("Piece rank for " + i
-                            + "(=" + r + ") points to null entry");
+                            + "(=" + r + ") points beyond the valid entries");
                     sane = false;
-                } else if (i != pieces[r].pieceNo) {
+                } else if (i != pieces[r]) {
                     Globals.log.reportInternalError("Piece rank for " + i
-                            + "(=" + r
-                            + ") points to piece info for wrong piece "
-                            + pieces[r].pieceNo);
+                            + "(=" + r + ") points to wrong piece "
+                            + pieces[r]);
                     sane = false;
+                } else {
+                    final int k = occurrences[i];
+                    if (r < bucketStart[k] || r >= bucketStart[k + 1]) {
+                        Globals.log.reportInternalError("Piece " + i
+                                + " with " + k
+                                + " occurrences is in the wrong bucket");
+                        sane = false;
+                    }
                 }
             }
         }
@@ -299,41 +362,47 @@ class PieceRanker {
         return sane;
     }
 
-    @SuppressWarnings("synthetic-access")
     void registerDownloadCancel(final int piece) {
-        final int ix = rank[piece];
-        if (ix >= 0) {
-            pieces[ix].registerDownloadCancel();
+        if (rank[piece] >= 0) {
+            downloads[piece]--;
         }
     }
 
-    @SuppressWarnings("synthetic-access")
     void registerDownloadStart(final int piece) {
-        final int ix = rank[piece];
-        if (ix >= 0) {
-            pieces[ix].registerDownloadStart();
+        if (rank[piece] >= 0) {
+            downloads[piece]++;
         }
     }
 
     void registerCompletedPiece(final int piece) {
         removeRank(piece);
+        if (streamingWindow != null) {
+            streamingWindow.registerCompletedPiece(piece, System
+                    .currentTimeMillis());
+        }
+    }
+
+    void printStatistics(final PrintStream s) {
+        if (streamingWindow != null) {
+            streamingWindow.printStatistics(s);
+        }
     }
 
-    @SuppressWarnings("synthetic-access")
     String buildRankingString() {
+        final int ranking[] = getRanking();
         final StringBuffer buf = new StringBuffer();
         int currentRank = -1;
         boolean first = true;
         boolean closeList = false;
-        for (int i = 0; i < validPieces; i++) {
-            final PieceInfo e = pieces[i];
-            if (e.occurrences != currentRank) {
-                currentRank = e.occurrences;
+        for (int i = 0; i < ranking.length; i++) {
+            final int piece = ranking[i];
+            if (occurrences[piece] != currentRank) {
+                currentRank = occurrences[piece];
                 if (closeList) {
                     buf.append(']');
                 }
                 first = true;
-                buf.append(" " + e.occurrences + ":[");
+                buf.append(" " + currentRank + ":[");
                 closeList = true;
             }
             if (first) {
@@ -341,14 +410,14 @@ class PieceRanker {
             } else {
                 buf.append(',');
             }
-            buf.append(e.pieceNo);
-            if (hasSuccessor(pieces, validPieces, i)) {
+            buf.append(piece);
+            if (hasSuccessor(ranking, i)) {
                 i++;
-                while (hasSuccessor(pieces, validPieces, i)) {
+                while (hasSuccessor(ranking, i)) {
                     i++;
                 }
                 buf.append('-');
-                buf.append(pieces[i].pieceNo);
+                buf.append(ranking[i]);
             }
         }
         if (closeList) {
@@ -357,11 +426,10 @@ class PieceRanker {
         return buf.toString();
     }
 
-    @SuppressWarnings("synthetic-access")
-    private boolean hasSuccessor(final PieceInfo[] l, final int n, final int i) {
+    private boolean hasSuccessor(final int l[], final int i) {
         final int i1 = i + 1;
-        return i1 < n && l[i].pieceNo + 1 == l[i1].pieceNo
-                && l[i].occurrences == l[i1].occurrences;
+        return i1 < l.length && l[i] + 1 == l[i1]
+                && occurrences[l[i]] == occurrences[l[i1]];
     }
 
     void dumpState() {
@@ -369,11 +437,7 @@ class PieceRanker {
         Globals.log.reportProgress("Piece ranking:" + ranking);
     }
 
-    @SuppressWarnings("synthetic-access")
     void removePendingDownload(final int piece) {
-        final int ix = rank[piece];
-        if (ix >= 0) {
-            pieces[ix].registerDownloadCancel();
-        }
+        registerDownloadCancel(piece);
     }
 }
@@ -1,40 +1,84 @@
 package ibis.arnold;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.Arrays;
 import java.util.Iterator;
 
 /**
- * A set of pieces.
- * 
+ * A set of pieces. The set is stored as a bit per piece, packed in words, so
+ * that set operations and counting handle 64 pieces at a time. The number of
+ * pieces in the set is maintained incrementally.
+ * <p>
+ * A set is serialized either as its words, or as a list of runs of pieces
+ * that are in the set, whichever is smaller. The list of runs is much smaller
+ * for sets with few pieces, sets with almost all pieces, and sets where the
+ * pieces are clustered.
+ *
  * @author Kees van Reeuwijk
- * 
+ *
  */
 class PieceSet implements Serializable, PieceSetViewer, Iterable<Integer> {
-    private static final long serialVersionUID = -4079186808549453173L;
-    private final boolean flags[];
+    private static final long serialVersionUID = 6190482651123702877L;
+
+    private static final int WORD_SHIFT = 6;
+
+    private static final int WORD_BITS = 1 << WORD_SHIFT;
+
+    /** Serialized as the words of the set. */
+    private static final byte ENCODING_WORDS = 0;
+
+    /** Serialized as a list of runs of pieces in the set. */
+    private static final byte ENCODING_RUNS = 1;
+
+    /** The largest set we accept from another peer. */
+    private static final int MAXIMAL_SERIALIZED_SIZE = 1 << 28;
+
+    /** The number of pieces. */
+    private transient int size;
+
+    /**
+     * The bits of the set; the bits beyond <code>size</code> in the last word
+     * are always zero.
+     */
+    private transient long words[];
+
+    /** The number of pieces in the set. */
+    private transient int count = 0;
 
     private PieceSet(final PieceSet s) {
-        this.flags = Arrays.copyOf(s.flags, s.flags.length);
+        this.size = s.size;
+        this.words = Arrays.copyOf(s.words, s.words.length);
+        this.count = s.count;
     }
 
     PieceSet(final int numberOfPieces) {
-        this.flags = new boolean[numberOfPieces];
+        this.size = numberOfPieces;
+        this.words = new long[(numberOfPieces + WORD_BITS - 1) >>> WORD_SHIFT];
     }
 
-    private PieceSet(final boolean[] flags) {
-        this.flags = flags;
+    /**
+     * Returns the mask of the valid bits in the last word.
+     */
+    private long getLastWordMask() {
+        final int rest = size & (WORD_BITS - 1);
+        return rest == 0 ? -1L : (1L << rest) - 1;
     }
 
-    @Override
-    public int cardinality() {
+    private void recount() {
         int res = 0;
-        for (final boolean b : flags) {
-            if (b) {
-                res++;
-            }
+        for (final long w : words) {
+            res += Long.bitCount(w);
         }
-        return res;
+        count = res;
+    }
+
+    @Override
+    public int cardinality() {
+        return count;
     }
 
     @Override
@@ -43,58 +87,104 @@ class PieceSet implements Serializable, PieceSetViewer, Iterable<Integer> {
     }
 
     void and(final PieceSetViewer s) {
-        for (int i = 0; i < flags.length; i++) {
-            flags[i] &= s.get(i);
+        if (s instanceof PieceSet) {
+            final long other[] = ((PieceSet) s).words;
+            final int len = Math.min(words.length, other.length);
+            for (int i = 0; i < len; i++) {
+                words[i] &= other[i];
+            }
+            Arrays.fill(words, len, words.length, 0L);
+        } else {
+            for (int i = 0; i < size; i++) {
+                if (!s.get(i)) {
+                    clearBit(i);
+                }
+            }
         }
+        recount();
     }
 
     void or(final PieceSetViewer s) {
-        for (int i = 0; i < flags.length; i++) {
-            flags[i] |= s.get(i);
+        if (s instanceof PieceSet) {
+            final long other[] = ((PieceSet) s).words;
+            final int len = Math.min(words.length, other.length);
+            for (int i = 0; i < len; i++) {
+                words[i] |= other[i];
+            }
+            if (len == words.length && len > 0) {
+                words[len - 1] &= getLastWordMask();
+            }
+        } else {
+            for (int i = 0; i < size; i++) {
+                if (s.get(i)) {
+                    words[i >>> WORD_SHIFT] |= 1L << i;
+                }
+            }
         }
+        recount();
+    }
+
+    /**
+     * Removes all pieces of the given set from this set.
+     *
+     * @param s
+     *            The pieces to remove.
+     */
+    void andNot(final PieceSet s) {
+        final int len = Math.min(words.length, s.words.length);
+        for (int i = 0; i < len; i++) {
+            words[i] &= ~s.words[i];
+        }
+        recount();
     }
 
     @Override
     public boolean isEmpty() {
-        for (final boolean b : flags) {
-            if (b) {
-                return false;
-            }
-        }
-        return true;
+        return count == 0;
     }
 
     boolean isComplete() {
-        for (final boolean b : flags) {
-            if (!b) {
-                return false;
-            }
-        }
-        return true;
+        return count == size;
+    }
+
+    private void clearBit(final int ix) {
+        words[ix >>> WORD_SHIFT] &= ~(1L << ix);
     }
 
-    void clear(final int i) {
-        flags[i] = false;
+    void clear(final int ix) {
+        set(ix, false);
     }
 
     @Override
     public boolean get(final int ix) {
-        return flags[ix];
+        if (ix < 0 || ix >= size) {
+            throw new ArrayIndexOutOfBoundsException(ix);
+        }
+        return (words[ix >>> WORD_SHIFT] & (1L << ix)) != 0;
     }
 
     void set(final int ix) {
-        flags[ix] = true;
+        set(ix, true);
     }
 
     void set(final int ix, final boolean val) {
-        flags[ix] = val;
+        if (ix < 0 || ix >= size) {
+            throw new ArrayIndexOutOfBoundsException(ix);
+        }
+        final int w = ix >>> WORD_SHIFT;
+        final long bit = 1L << ix;
+        final boolean old = (words[w] & bit) != 0;
+        if (old != val) {
+            words[w] ^= bit;
+            count += val ? 1 : -1;
+        }
     }
 
     @Override
     public boolean intersects(final PieceSet s) {
-        final int len = Math.min(flags.length, s.flags.length);
+        final int len = Math.min(words.length, s.words.length);
         for (int i = 0; i < len; i++) {
-            if (flags[i] && s.flags[i]) {
+            if ((words[i] & s.words[i]) != 0) {
                 return true;
             }
         }
@@ -102,15 +192,14 @@ class PieceSet implements Serializable, PieceSetViewer, Iterable<Integer> {
     }
 
     String compactBitSetToString() {
-        final StringBuffer buf = new StringBuffer();
+        final StringBuilder buf = new StringBuilder();
         buf.append('{');
         boolean first = true;
-        int i = 0;
-        while (i < flags.length) {
-            final int start = nextSetBit(i);
+        int start = nextSetBit(0);
+        while (start >= 0) {
             int end = nextClearBit(start + 1);
             if (end < 0) {
-                end = flags.length - 1;
+                end = size;
             }
             if (first) {
                 first = false;
@@ -122,42 +211,68 @@ class PieceSet implements Serializable, PieceSetViewer, Iterable<Integer> {
                 buf.append('-');
                 buf.append(end - 1);
             }
-            i = end;
+            start = end < size ? nextSetBit(end) : -1;
         }
         buf.append('}');
         return buf.toString();
     }
 
-    int nextSetBit(int i) {
-        while (i < flags.length) {
-            if (flags[i]) {
-                return i;
+    int nextSetBit(final int i) {
+        if (i >= size) {
+            return -1;
+        }
+        int w = i >>> WORD_SHIFT;
+        long word = words[w] & (-1L << i);
+        while (true) {
+            if (word != 0) {
+                return (w << WORD_SHIFT) + Long.numberOfTrailingZeros(word);
             }
-            i++;
+            w++;
+            if (w >= words.length) {
+                return -1;
+            }
+            word = words[w];
         }
-        return -1;
     }
 
-    private int nextClearBit(int i) {
-        while (i < flags.length) {
-            if (!flags[i]) {
-                return i;
+    private int nextClearBit(final int i) {
+        if (i >= size) {
+            return -1;
+        }
+        int w = i >>> WORD_SHIFT;
+        long word = ~words[w] & (-1L << i);
+        while (true) {
+            if (word != 0) {
+                final int res = (w << WORD_SHIFT)
+                        + Long.numberOfTrailingZeros(word);
+                return res < size ? res : -1;
+            }
+            w++;
+            if (w >= words.length) {
+                return -1;
             }
-            i++;
+            word = ~words[w];
         }
-        return -1;
     }
 
     PieceSet getInverse() {
-        final boolean l[] = new boolean[flags.length];
-        for (int i = 0; i < l.length; i++) {
-            l[i] = !flags[i];
+        final PieceSet res = new PieceSet(size);
+        for (int i = 0; i < words.length; i++) {
+            res.words[i] = ~words[i];
         }
-        return new PieceSet(l);
+        if (words.length > 0) {
+            res.words[words.length - 1] &= getLastWordMask();
+        }
+        res.count = size - count;
+        return res;
     }
 
     void setComplete() {
-        Arrays.fill(flags, true);
+        Arrays.fill(words, -1L);
+        if (words.length > 0) {
+            words[words.length - 1] &= getLastWordMask();
+        }
+        count = size;
     }
 
     private final static class PieceSetIterator implements Iterator<Integer> {
@@ -195,6 +310,123 @@ class PieceSet implements Serializable, PieceSetViewer, Iterable<Integer> {
     }
 
     int size() {
-        return flags.length;
+        return size;
+    }
+
+    private static void writeVarInt(final ByteArrayOutputStream out, int v) {
+        while ((v & ~0x7f) != 0) {
+            out.write((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        out.write(v);
+    }
+
+    private static int readVarInt(final byte buf[], final int pos[])
+            throws IOException {
+        long res = 0;
+        int shift = 0;
+        while (true) {
+            if (pos[0] >= buf.length) {
+                throw new IOException("Truncated piece set run");
+            }
+            final int b = buf[pos[0]++];
+            res |= (long) (b & 0x7f) << shift;
+            if (res > Integer.MAX_VALUE) {
+                throw new IOException("Piece set run value too large");
+            }
+            if ((b & 0x80) == 0) {
+                return (int) res;
+            }
+            shift += 7;
+            if (shift > 28) {
+                throw new IOException("Piece set run value too long");
+            }
+        }
+    }
+
+    /**
+     * Returns the run-length encoding of this set, or <code>null</code> if it
+     * would be larger than the given number of bytes. Every run is encoded as
+     * the distance from the end of the previous run, followed by the length
+     * of the run.
+     */
+    private byte[] encodeRuns(final int maximalLength) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int prevEnd = 0;
+        int start = nextSetBit(0);
+        while (start >= 0) {
+            int end = nextClearBit(start + 1);
+            if (end < 0) {
+                end = size;
+            }
+            writeVarInt(out, start - prevEnd);
+            writeVarInt(out, end - start);
+            if (out.size() > maximalLength) {
+                return null;
+            }
+            prevEnd = end;
+            start = end < size ? nextSetBit(end) : -1;
+        }
+        return out.toByteArray();
+    }
+
+    private void writeObject(final ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeInt(size);
+        final byte runs[] = encodeRuns(words.length * 8);
+        if (runs == null) {
+            out.writeByte(ENCODING_WORDS);
+            for (final long w : words) {
+                out.writeLong(w);
+            }
+        } else {
+            out.writeByte(ENCODING_RUNS);
+            out.writeInt(runs.length);
+            out.write(runs);
+        }
+    }
+
+    private void readObject(final ObjectInputStream in) throws IOException,
+            ClassNotFoundException {
+        in.defaultReadObject();
+        size = in.readInt();
+        if (size < 0 || size > MAXIMAL_SERIALIZED_SIZE) {
+            throw new IOException("Bad piece set size " + size);
+        }
+        words = new long[(size + WORD_BITS - 1) >>> WORD_SHIFT];
+        final byte encoding = in.readByte();
+        if (encoding == ENCODING_WORDS) {
+            for (int i = 0; i < words.length; i++) {
+                words[i] = in.readLong();
+            }
+            if (words.length > 0) {
+                words[words.length - 1] &= getLastWordMask();
+            }
+        } else if (encoding == ENCODING_RUNS) {
+            final int length = in.readInt();
+            // The writer never uses runs if they are larger than the words.
+            if (length < 0 || length > words.length * 8) {
+                throw new IOException("Bad piece set run length " + length);
+            }
+            final byte runs[] = new byte[length];
+            in.readFully(runs);
+            final int pos[] = new int[] { 0 };
+            int ix = 0;
+            while (pos[0] < runs.length) {
+                final long start = (long) ix + readVarInt(runs, pos);
+                final long end = start + readVarInt(runs, pos);
+                if (end > size) {
+                    throw new IOException("Piece set run beyond end of set");
+                }
+                ix = (int) start;
+                while (ix < end) {
+                    words[ix >>> WORD_SHIFT] |= 1L << ix;
+                    ix++;
+                }
+            }
+        } else {
+            throw new IOException("Unknown piece set encoding " + encoding);
+        }
+        recount();
     }
 }
@@ -0,0 +1,259 @@
+package ibis.arnold;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * A small file next to a shared file that records which pieces of the shared
+ * file are known to be valid, so that a restarted peer doesn't have to verify
+ * all pieces again. Together with the set of valid pieces it stores the size
+ * and modification time of the shared file and a digest of the jorrent
+ * information; if any of these doesn't match, the stored set is ignored.
+ * <p>
+ * The validity file is rewritten after a batch of pieces has been stored, by
+ * writing a temporary file and renaming it over the old one, so that a crash
+ * leaves either the old or the new version.
+ * 
+ * @author Kees van Reeuwijk
+ * 
+ */
+class PieceValidityFile {
+    private static final int MAGIC = 0x4a564c44;
+
+    private static final int VERSION = 1;
+
+    /** The suffix of a validity file. */
+    private static final String SUFFIX = ".valid";
+
+    private final File sharedFile;
+    private final File validityFile;
+    private final File tmpFile;
+    private final int pieceSize;
+    private final long size;
+    private final int numberOfPieces;
+    private final byte jorrentDigest[];
+    private int unsavedPieces = 0;
+    private long lastSaveTime = System.currentTimeMillis();
+
+    PieceValidityFile(final File sharedFile, final int pieceSize,
+            final long size, final PieceDigests refHashes)
+            throws NoSuchAlgorithmException {
+        this.sharedFile = sharedFile;
+        this.validityFile = getValidityFile(sharedFile);
+        this.tmpFile = new File(validityFile.getPath() + ".tmp");
+        this.pieceSize = pieceSize;
+        this.size = size;
+        this.numberOfPieces = refHashes.size();
+        this.jorrentDigest = computeJorrentDigest(pieceSize, size, refHashes);
+    }
+
+    /**
+     * Returns the validity file of the given shared file.
+     * 
+     * @param sharedFile
+     *            The shared file.
+     * @return The validity file.
+     */
+    static File getValidityFile(final File sharedFile) {
+        return new File(sharedFile.getPath() + SUFFIX);
+    }
+
+    private static byte[] computeJorrentDigest(final int pieceSize,
+            final long size, final PieceDigests refHashes)
+            throws NoSuchAlgorithmException {
+        final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        for (int i = 0; i < 4; i++) {
+            digest.update((byte) (pieceSize >>> (8 * i)));
+        }
+        for (int i = 0; i < 8; i++) {
+            digest.update((byte) (size >>> (8 * i)));
+        }
+        refHashes.update(digest);
+        return digest.digest();
+    }
+
+    /**
+     * Returns the set of valid pieces according to the validity file, or
+     * <code>null</code> if there is no validity file, or it doesn't match the
+     * shared file.
+     * 
+     * @return The set of valid pieces, or <code>null</code>.
+     */
+    private PieceSet load() {
+        if (!validityFile.exists()) {
+            return null;
+        }
+        try {
+            final DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(validityFile)));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    return null;
+                }
+                final long storedSize = in.readLong();
+                final long storedModificationTime = in.readLong();
+                final int storedPieceSize = in.readInt();
+                final int storedNumberOfPieces = in.readInt();
+                final byte storedDigest[] = new byte[jorrentDigest.length];
+                in.readFully(storedDigest);
+                if (storedSize != size || storedSize != sharedFile.length()
+                        || storedModificationTime != sharedFile.lastModified()
+                        || storedPieceSize != pieceSize
+                        || storedNumberOfPieces != numberOfPieces
+                        || !Arrays.equals(storedDigest, jorrentDigest)) {
+                    return null;
+                }
+                final byte bits[] = new byte[(numberOfPieces + 7) / 8];
+                in.readFully(bits);
+                final PieceSet res = new PieceSet(numberOfPieces);
+                for (int piece = 0; piece < numberOfPieces; piece++) {
+                    if ((bits[piece >> 3] & (1 << (piece & 7))) != 0) {
+                        res.set(piece);
+                    }
+                }
+                return res;
+            } finally {
+                in.close();
+            }
+        } catch (final IOException e) {
+            Globals.log.reportError("Cannot read validity file "
+                    + validityFile + ": " + e.getLocalizedMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Writes the given set of valid pieces to the validity file. The caller
+     * must make sure the contents of all these pieces have reached the disk.
+     * 
+     * @param validPieces
+     *            The set of valid pieces.
+     * @throws IOException
+     *             Thrown if the validity file cannot be written.
+     */
+    void save(final PieceSet validPieces) throws IOException {
+        final byte bits[] = new byte[(numberOfPieces + 7) / 8];
+        for (final int piece : validPieces) {
+            bits[piece >> 3] |= 1 << (piece & 7);
+        }
+        final FileOutputStream fos = new FileOutputStream(tmpFile);
+        final DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(fos));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(size);
+            out.writeLong(sharedFile.lastModified());
+            out.writeInt(pieceSize);
+            out.writeInt(numberOfPieces);
+            out.write(jorrentDigest);
+            out.write(bits);
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmpFile.renameTo(validityFile)) {
+            // Some platforms don't allow renaming over an existing file.
+            validityFile.delete();
+            if (!tmpFile.renameTo(validityFile)) {
+                throw new FileNotFoundException("Cannot rename " + tmpFile
+                        + " to " + validityFile);
+            }
+        }
+        unsavedPieces = 0;
+        lastSaveTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Registers that another piece has become valid, and returns true iff it
+     * is time to save the validity file.
+     * 
+     * @return <code>true</code> iff the validity file should be saved.
+     */
+    boolean registerValidPiece() {
+        unsavedPieces++;
+        return unsavedPieces >= Settings.VALIDITY_FILE_SAVE_PIECES
+                || System.currentTimeMillis() - lastSaveTime >= Settings.VALIDITY_FILE_SAVE_INTERVAL;
+    }
+
+    private static int[] getPieces(final PieceSet s) {
+        final int res[] = new int[s.cardinality()];
+        int ix = 0;
+        for (final int piece : s) {
+            res[ix++] = piece;
+        }
+        return res;
+    }
+
+    private static int[] getSample(final PieceSet s, final int n) {
+        final int pieces[] = getPieces(s);
+        // A partial Fisher-Yates shuffle.
+        final int sampleSize = Math.min(n, pieces.length);
+        for (int i = 0; i < sampleSize; i++) {
+            final int j = i + Globals.rng.nextInt(pieces.length - i);
+            final int tmp = pieces[i];
+            pieces[i] = pieces[j];
+            pieces[j] = tmp;
+        }
+        return Arrays.copyOf(pieces, sampleSize);
+    }
+
+    /**
+     * Returns the set of valid pieces of the shared file. If the validity file
+     * matches the shared file, it is used, else all pieces are verified. The
+     * property <code>arnold.verify</code> changes this: if it is
+     * <code>full</code>, the validity file is ignored, if it is
+     * <code>sampled</code>, a random sample of the pieces that are valid
+     * according to the validity file is verified, and if any of them is
+     * invalid, all pieces are verified.
+     * 
+     * @param channel
+     *            The channel of the shared file.
+     * @param references
+     *            The reference hashes of the pieces.
+     * @return The set of valid pieces.
+     * @throws IOException
+     *             Thrown if the shared file cannot be read.
+     * @throws NoSuchAlgorithmException
+     *             Thrown if the SHA-1 digest algorithm is unknown.
+     */
+    PieceSet getValidPieces(final FileChannel channel,
+            final PieceDigests references) throws IOException,
+            NoSuchAlgorithmException {
+        final String mode = System.getProperty("arnold.verify", "");
+        final long existingSize = channel.size();
+        final int threads = PieceVerifier.getThreadCount();
+        if (!mode.equalsIgnoreCase("full")) {
+            final PieceSet stored = load();
+            if (stored != null) {
+                if (!mode.equalsIgnoreCase("sampled")) {
+                    return stored;
+                }
+                final int sample[] = getSample(stored,
+                        Settings.VALIDITY_FILE_VERIFY_SAMPLE_SIZE);
+                final PieceSet verified = PieceVerifier.verifyPieces(channel,
+                        references, pieceSize, size, existingSize, threads,
+                        sample);
+                if (verified.cardinality() == sample.length) {
+                    return stored;
+                }
+                Globals.log.reportProgress("Validity file " + validityFile
+                        + " is wrong; verifying all pieces");
+            }
+        }
+        return PieceVerifier.verifyPieces(channel, references, pieceSize,
+                size, existingSize, threads);
+    }
+}
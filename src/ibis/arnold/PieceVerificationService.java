@@ -0,0 +1,127 @@
+package ibis.arnold;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A pool of worker threads that verify completed pieces against their
+ * reference hashes. Every worker hashes with its own digest, so that several
+ * pieces can be verified at the same time. The result of each verification is
+ * handed back to the piece writer, which stores the correct pieces and reports
+ * the others to the engine.
+ * 
+ * @author Kees van Reeuwijk
+ * 
+ */
+class PieceVerificationService {
+    private final SharedFileInterface sharedFile;
+    private final PieceWriter writer;
+    private final ExecutorService workers;
+    private final int threadCount;
+    private final TimeStatistics verifyTimeStatistics = new TimeStatistics();
+
+    private static class WorkerFactory implements ThreadFactory {
+        private int threadNumber = 0;
+
+        @Override
+        public synchronized Thread newThread(final Runnable r) {
+            final Thread t = new Thread(r, "Arnold piece verification thread "
+                    + threadNumber++);
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
+    private class VerifyTask implements Runnable {
+        private final StoredPiece p;
+
+        VerifyTask(final StoredPiece p) {
+            this.p = p;
+        }
+
+        @SuppressWarnings("synthetic-access")
+        @Override
+        public void run() {
+            final long start = System.nanoTime();
+            try {
+                if (sharedFile.isValidPiece(p.piece)) {
+                    // Another copy of this piece was stored before.
+                    p.duplicate = true;
+                } else {
+                    p.valid = sharedFile.verifyPiece(p.piece, p.data);
+                }
+            } catch (final DownloadFailedError e) {
+                // We cannot verify anything, which is not the fault of the
+                // peer that sent the piece.
+                final IOException x = new IOException("Cannot verify piece "
+                        + p.piece + ": " + e.getLocalizedMessage());
+                x.initCause(e);
+                p.error = x;
+            } finally {
+                registerVerifyTime(1e-9 * (System.nanoTime() - start));
+                writer.pieceVerified(p);
+            }
+        }
+    }
+
+    /**
+     * @param sharedFile
+     *            The shared file to verify pieces for.
+     * @param writer
+     *            The piece writer to hand the verified pieces to.
+     * @param threadCount
+     *            The number of verification threads.
+     */
+    @SuppressWarnings("synthetic-access")
+    PieceVerificationService(final SharedFileInterface sharedFile,
+            final PieceWriter writer, final int threadCount) {
+        this.sharedFile = sharedFile;
+        this.writer = writer;
+        this.threadCount = threadCount;
+        this.workers = Executors.newFixedThreadPool(threadCount,
+                new WorkerFactory());
+    }
+
+    /**
+     * Returns the number of threads to verify completed pieces with. This is
+     * the number of available processors, unless overridden by the property
+     * <code>arnold.hash-threads</code>.
+     * 
+     * @return The number of verification threads.
+     */
+    static int getThreadCount() {
+        final int n = Utils.getIntProperty("arnold.hash-threads", Runtime
+                .getRuntime().availableProcessors());
+        return Math.max(1, n);
+    }
+
+    /**
+     * Schedules the given piece for verification.
+     * 
+     * @param p
+     *            The piece to verify.
+     */
+    void verify(final StoredPiece p) {
+        workers.execute(new VerifyTask(p));
+    }
+
+    private synchronized void registerVerifyTime(final double t) {
+        verifyTimeStatistics.registerSample(t);
+    }
+
+    /**
+     * Stops the worker threads. Pieces that are already scheduled are still
+     * verified.
+     */
+    void shutdown() {
+        workers.shutdown();
+    }
+
+    synchronized void printStatistics(final PrintStream s) {
+        verifyTimeStatistics.printStatistics(s, "piece verify time");
+        s.println("Piece verification threads: " + threadCount);
+    }
+}
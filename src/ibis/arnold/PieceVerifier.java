@@ -0,0 +1,216 @@
+package ibis.arnold;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Verifies the pieces of an existing file against the reference hashes, using
+ * a number of worker threads. Every worker claims the next unverified piece,
+ * reads it with a positional read into its own buffer, and hashes it with its
+ * own digest, so the number of buffers in flight is bounded by the number of
+ * workers.
+ * 
+ * @author Kees van Reeuwijk
+ * 
+ */
+class PieceVerifier {
+    private final FileChannel channel;
+    private final PieceDigests references;
+    private final int pieceSize;
+    private final long size;
+    private final long existingSize;
+    private final int candidates[];
+    private final boolean valid[];
+    private final AtomicInteger nextPiece = new AtomicInteger(0);
+    private final AtomicInteger verifiedPieces = new AtomicInteger(0);
+    private volatile IOException failure = null;
+
+    private PieceVerifier(final FileChannel channel,
+            final PieceDigests references, final int pieceSize, final long size,
+            final long existingSize, final int candidates[]) {
+        this.channel = channel;
+        this.references = references;
+        this.pieceSize = pieceSize;
+        this.size = size;
+        this.existingSize = existingSize;
+        this.candidates = candidates;
+        this.valid = new boolean[references.size()];
+    }
+
+    private class Worker extends Thread {
+        private final ByteBuffer buf;
+
+        Worker(final int n) {
+            super("Arnold piece verifier thread " + n);
+            setDaemon(true);
+            this.buf = ByteBuffer.allocate(pieceSize);
+        }
+
+        private boolean verifyPiece(final int piece) throws IOException {
+            final long start = (long) piece * pieceSize;
+            final long end = Math.min(start + pieceSize, size);
+            if (end > existingSize) {
+                // The file doesn't have all bytes of this piece, so it
+                // cannot be valid.
+                return false;
+            }
+            buf.clear();
+            buf.limit((int) (end - start));
+            while (buf.hasRemaining()) {
+                final int n = channel.read(buf, start + buf.position());
+                if (n < 0) {
+                    throw new EOFException("Unexpected end of file in piece "
+                            + piece);
+                }
+            }
+            buf.flip();
+            try {
+                return references.matches(piece, Utils.computeSHA1(buf));
+            } catch (final NoSuchAlgorithmException e) {
+                // We checked for the algorithm before the workers started.
+                throw new DownloadFailedError("Unknown digest algorithm", e);
+            }
+        }
+
+        @SuppressWarnings("synthetic-access")
+        @Override
+        public void run() {
+            try {
+                while (failure == null) {
+                    final int ix = nextPiece.getAndIncrement();
+                    if (ix >= candidates.length) {
+                        break;
+                    }
+                    final int piece = candidates[ix];
+                    valid[piece] = verifyPiece(piece);
+                    verifiedPieces.incrementAndGet();
+                }
+            } catch (final IOException e) {
+                failure = e;
+            }
+        }
+    }
+
+    private PieceSet run(final int threadCount) throws IOException,
+            NoSuchAlgorithmException {
+        // Fail early if the digest algorithm is not known.
+        Utils.getSHA1Digest();
+        final Worker workers[] = new Worker[threadCount];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker(i);
+        }
+        for (final Worker w : workers) {
+            w.start();
+        }
+        for (final Worker w : workers) {
+            while (w.isAlive()) {
+                try {
+                    w.join(Settings.VERIFY_PROGRESS_INTERVAL);
+                } catch (final InterruptedException e) {
+                    // Ignore.
+                }
+                if (w.isAlive()) {
+                    Globals.log.reportProgress("Verified "
+                            + verifiedPieces.get() + " of "
+                            + candidates.length + " pieces");
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        final PieceSet res = new PieceSet(references.size());
+        for (int piece = 0; piece < valid.length; piece++) {
+            res.set(piece, valid[piece]);
+        }
+        return res;
+    }
+
+    /**
+     * Returns the number of threads to verify pieces with. This is the number
+     * of available processors, unless overridden by the property
+     * <code>arnold.verify-threads</code>.
+     * 
+     * @return The number of verification threads.
+     */
+    static int getThreadCount() {
+        final int n = Utils.getIntProperty("arnold.verify-threads", Runtime
+                .getRuntime().availableProcessors());
+        return Math.max(1, n);
+    }
+
+    /**
+     * Given a file channel and the reference hashes of the pieces, returns the
+     * set of valid pieces in the file.
+     * 
+     * @param channel
+     *            The file to verify.
+     * @param references
+     *            The reference hashes of the pieces.
+     * @param pieceSize
+     *            The size of a piece.
+     * @param size
+     *            The size of the shared file.
+     * @param existingSize
+     *            The number of bytes in the file that already existed.
+     * @param threadCount
+     *            The number of threads to verify with.
+     * @return The set of valid pieces.
+     * @throws IOException
+     *             Thrown if the file cannot be read.
+     * @throws NoSuchAlgorithmException
+     *             Thrown if the SHA-1 digest algorithm is unknown.
+     */
+    static PieceSet verifyPieces(final FileChannel channel,
+            final PieceDigests references, final int pieceSize, final long size,
+            final long existingSize, final int threadCount)
+            throws IOException, NoSuchAlgorithmException {
+        final int candidates[] = new int[references.size()];
+        for (int i = 0; i < candidates.length; i++) {
+            candidates[i] = i;
+        }
+        return verifyPieces(channel, references, pieceSize, size,
+                existingSize, threadCount, candidates);
+    }
+
+    /**
+     * Given a file channel, the reference hashes of the pieces, and a list of
+     * candidate pieces, returns the set of candidate pieces that are valid.
+     * Pieces that are not a candidate are never in the returned set.
+     * 
+     * @param channel
+     *            The file to verify.
+     * @param references
+     *            The reference hashes of the pieces.
+     * @param pieceSize
+     *            The size of a piece.
+     * @param size
+     *            The size of the shared file.
+     * @param existingSize
+     *            The number of bytes in the file that already existed.
+     * @param threadCount
+     *            The number of threads to verify with.
+     * @param candidates
+     *            The pieces to verify.
+     * @return The set of valid candidate pieces.
+     * @throws IOException
+     *             Thrown if the file cannot be read.
+     * @throws NoSuchAlgorithmException
+     *             Thrown if the SHA-1 digest algorithm is unknown.
+     */
+    @SuppressWarnings("synthetic-access")
+    static PieceSet verifyPieces(final FileChannel channel,
+            final PieceDigests references, final int pieceSize, final long size,
+            final long existingSize, final int threadCount,
+            final int candidates[]) throws IOException,
+            NoSuchAlgorithmException {
+        final PieceVerifier v = new PieceVerifier(channel, references,
+                pieceSize, size, existingSize, candidates);
+        final int n = Math.max(1, Math.min(threadCount, candidates.length));
+        return v.run(n);
+    }
+}
@@ -0,0 +1,72 @@
+package ibis.arnold;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * A small program to measure how long it takes to verify the pieces of a file
+ * at startup, for an increasing number of verification threads. Since the
+ * reference hashes are not known, all pieces are reported as invalid, but the
+ * amount of work is the same as for a real verification. Note that the first
+ * run may be dominated by disk reads, and later ones by the file system cache.
+ * 
+ * @author Kees van Reeuwijk
+ * 
+ */
+class PieceVerifierBenchmark {
+
+    private static long verify(final File f, final int pieceSize,
+            final int threads) throws IOException, NoSuchAlgorithmException {
+        final long size = f.length();
+        final int pieces = Utils.divideRoundUp(size, pieceSize);
+        final PieceDigests references = new PieceDigests(ByteBuffer
+                .allocate(pieces * PieceDigests.DIGEST_SIZE), pieces);
+        final RandomAccessFile rafile = new RandomAccessFile(f, "r");
+        try {
+            final long startTime = System.nanoTime();
+            PieceVerifier.verifyPieces(rafile.getChannel(), references,
+                    pieceSize, size, size, threads);
+            return System.nanoTime() - startTime;
+        } finally {
+            rafile.close();
+        }
+    }
+
+    /**
+     * @param args
+     *            The command-line arguments.
+     */
+    public static void main(final String[] args) {
+        if (args.length != 1) {
+            System.err.println("Usage: PieceVerifierBenchmark <file>");
+            System.err
+                    .println("Actual arguments: " + Arrays.deepToString(args));
+            System.exit(1);
+        }
+        final File f = new File(args[0]);
+        final int maxThreads = Runtime.getRuntime().availableProcessors();
+        try {
+            // Warm up the file system cache and the JIT.
+            verify(f, Settings.PIECE_SIZE, maxThreads);
+            for (int threads = 1; threads <= maxThreads; threads *= 2) {
+                final long t = verify(f, Settings.PIECE_SIZE, threads);
+                final double mbs = f.length() / (1e-9 * t) * 1e-6;
+                System.out.println("threads=" + threads + " time="
+                        + Utils.formatSeconds(1e-9 * t) + " throughput="
+                        + String.format("%.1f", mbs) + "MB/s");
+            }
+        } catch (final IOException e) {
+            System.err.println("Cannot read file '" + f + "': "
+                    + e.getLocalizedMessage());
+            System.exit(1);
+        } catch (final NoSuchAlgorithmException e) {
+            System.err.println("Internal error: unknown digest algorithm: "
+                    + e.getLocalizedMessage());
+            System.exit(2);
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package ibis.arnold;
+
+import ibis.ipl.IbisIdentifier;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A thread that stores completed pieces, so that the engine thread doesn't
+ * have to wait for the digest computation and the disk write. Pieces are first
+ * verified by a {@link PieceVerificationService}, and only the correct ones are
+ * written. The results are put in a queue that the engine drains.
+ * <p>
+ * The total size of the pieces that wait to be stored is limited by a budget.
+ * The budget is not enforced by the writer itself, but the engine should not
+ * request more chunks while the writer is full.
+ * 
+ * @author Kees van Reeuwijk
+ * 
+ */
+class PieceWriter extends Thread {
+    private final SharedFileInterface sharedFile;
+    private final EngineInterface engine;
+    private final ConcurrentLinkedQueue<StoredPiece> writeQueue = new ConcurrentLinkedQueue<StoredPiece>();
+    private final ConcurrentLinkedQueue<StoredPiece> storedQueue = new ConcurrentLinkedQueue<StoredPiece>();
+    private final long budget;
+    private final TimeStatistics storeTimeStatistics = new TimeStatistics();
+    private final PieceVerificationService verifier;
+    private long pendingBytes = 0;
+    private int verifyingPieces = 0;
+    private long maximalPendingBytes = 0;
+    private boolean stopped = false;
+
+    PieceWriter(final SharedFileInterface sharedFile,
+            final EngineInterface engine, final long budget,
+            final int verifyThreads) {
+        super("Arnold piece writer thread");
+        setDaemon(true);
+        this.sharedFile = sharedFile;
+        this.engine = engine;
+        this.budget = budget;
+        this.verifier = new PieceVerificationService(sharedFile, this,
+                verifyThreads);
+    }
+
+    /**
+     * Adds a completed piece to the pieces to verify and store.
+     * 
+     * @param source
+     *            The peer that sent the last chunk of the piece.
+     * @param piece
+     *            The piece number.
+     * @param data
+     *            The data of the piece.
+     */
+    void add(final IbisIdentifier source, final int piece, final byte data[]) {
+        synchronized (this) {
+            pendingBytes += data.length;
+            if (maximalPendingBytes < pendingBytes) {
+                maximalPendingBytes = pendingBytes;
+            }
+            verifyingPieces++;
+        }
+        verifier.verify(new StoredPiece(source, piece, data));
+    }
+
+    /**
+     * Called by the verification service when the given piece has been
+     * verified. A correct piece is queued for storing, any other piece is
+     * handed back to the engine.
+     * 
+     * @param p
+     *            The verified piece.
+     */
+    void pieceVerified(final StoredPiece p) {
+        if (p.valid) {
+            writeQueue.add(p);
+        } else {
+            finish(p);
+        }
+        synchronized (this) {
+            verifyingPieces--;
+            this.notifyAll();
+        }
+    }
+
+    /**
+     * Returns the next piece that has been stored, or <code>null</code> if
+     * there is none.
+     * 
+     * @return The stored piece.
+     */
+    StoredPiece getNextStoredPiece() {
+        return storedQueue.poll();
+    }
+
+    boolean hasStoredPieces() {
+        return !storedQueue.isEmpty();
+    }
+
+    /**
+     * Returns true iff the pieces that wait to be stored have used up the
+     * budget.
+     * 
+     * @return <code>true</code> iff the writer is full.
+     */
+    synchronized boolean isFull() {
+        return pendingBytes >= budget;
+    }
+
+    private void store(final StoredPiece p) {
+        final long start = System.nanoTime();
+        try {
+            if (sharedFile.isValidPiece(p.piece)) {
+                // Another copy of this piece was stored after it was
+                // verified.
+                p.valid = false;
+                p.duplicate = true;
+            } else {
+                sharedFile.storeVerifiedPiece(p.piece, p.data);
+            }
+        } catch (final IOException e) {
+            p.error = e;
+        }
+        storeTimeStatistics.registerSample(1e-9 * (System.nanoTime() - start));
+        finish(p);
+    }
+
+    /**
+     * Hands the given piece back to the engine.
+     * 
+     * @param p
+     *            The piece.
+     */
+    private void finish(final StoredPiece p) {
+        p.data = null;
+        storedQueue.add(p);
+        synchronized (this) {
+            pendingBytes -= p.size;
+        }
+        engine.wakeEngineThread();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            final StoredPiece p = writeQueue.poll();
+            if (p != null) {
+                store(p);
+                continue;
+            }
+            synchronized (this) {
+                if (writeQueue.isEmpty()) {
+                    if (stopped && verifyingPieces == 0) {
+                        break;
+                    }
+                    try {
+                        wait();
+                    } catch (final InterruptedException e) {
+                        // Ignore.
+                    }
+                }
+            }
+        }
+        verifier.shutdown();
+    }
+
+    /**
+     * Tells the writer to stop once all queued pieces have been verified and
+     * stored.
+     */
+    synchronized void setStopped() {
+        stopped = true;
+        this.notifyAll();
+    }
+
+    synchronized void dumpState() {
+        Globals.log.reportProgress("Piece writer: " + verifyingPieces
+                + " pieces to verify, " + writeQueue.size()
+                + " pieces to store, " + storedQueue.size()
+                + " stored pieces to handle, "
+                + Utils.formatByteCount(pendingBytes) + " pending");
+    }
+
+    synchronized void printStatistics(final PrintStream s) {
+        storeTimeStatistics.printStatistics(s, "piece store time");
+        s.println("Maximal pending piece bytes: "
+                + Utils.formatByteCount(maximalPendingBytes) + " budget: "
+                + Utils.formatByteCount(budget));
+        verifier.printStatistics(s);
+    }
+}
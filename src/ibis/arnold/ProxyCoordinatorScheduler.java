@@ -297,6 +297,14 @@ final class ProxyCoordinatorScheduler implements SchedulerInterface {
         }
     }
 
+    @Override
+    public void sendFullCatalog(final IbisIdentifier peer) {
+        // Only the helpers get catalogs from us.
+        if (helpers.contains(peer)) {
+            helpersScheduler.sendFullCatalog(peer);
+        }
+    }
+
     @Override
     public void updateCredit(final IbisIdentifier peer, final CreditValue credit) {
         if (helpers.contains(peer)) {
@@ -195,6 +195,15 @@ class ProxyHelperScheduler implements SchedulerInterface {
         }
     }
 
+    @Override
+    public void sendFullCatalog(final IbisIdentifier peer) {
+        if (coordinatorsScheduler.contains(peer)) {
+            coordinatorsScheduler.sendFullCatalog(peer);
+        } else {
+            outwardsScheduler.sendFullCatalog(peer);
+        }
+    }
+
     @Override
     public void setPeerIsInterested(final IbisIdentifier peer,
             final boolean flag) {
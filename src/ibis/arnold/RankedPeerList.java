@@ -2,88 +2,469 @@ package ibis.arnold;
 
 import ibis.ipl.IbisIdentifier;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
 
+/**
+ * A list of peers, ordered by a ranker. The peers are stored in a treap, a
+ * balanced search tree where every node also knows the size of its subtree,
+ * so that a peer can be moved to a new rank, and the peer at a given rank can
+ * be found, in logarithmic time. Next to the tree there is an index from peer
+ * identifier to tree node, so that a peer is found in constant time.
+ * <p>
+ * Re-ranking is lazy: <code>updateRanking()</code> only marks a peer as
+ * dirty, and the dirty peers are moved to their new rank the next time the
+ * ranking is read. The tree is ordered on the comparison value of each peer,
+ * computed once per re-ranking instead of in every comparison.
+ * 
+ * @author Kees van Reeuwijk
+ * 
+ */
 class RankedPeerList implements Iterable<PeerInfo> {
-    private final ArrayList<PeerInfo> list = new ArrayList<PeerInfo>();
+    private static final class Node {
+        final PeerInfo info;
+        final int priority;
+        double key;
+        boolean dirty = false;
+        Node left = null;
+        Node right = null;
+        Node parent = null;
+        int size = 1;
+
+        Node(final PeerInfo info, final int priority) {
+            this.info = info;
+            this.priority = priority;
+        }
+    }
+
+    private final HashMap<IbisIdentifier, Node> index = new HashMap<IbisIdentifier, Node>();
+    private final Random rng = new Random();
+    private final ArrayList<Node> dirtyNodes = new ArrayList<Node>();
+    private Node root = null;
     private PeerRanker ranker;
 
+    private final class PeerIterator implements Iterator<PeerInfo> {
+        private Node next;
+
+        PeerIterator() {
+            refresh();
+            next = first();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public PeerInfo next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            final PeerInfo res = next.info;
+            next = successor(next);
+            return res;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /** A read-only view of the ranked peers. */
+    private final List<PeerInfo> view = new AbstractList<PeerInfo>() {
+        @Override
+        public PeerInfo get(final int ix) {
+            return RankedPeerList.this.get(ix);
+        }
+
+        @Override
+        public int size() {
+            return RankedPeerList.this.size();
+        }
+
+        @SuppressWarnings("synthetic-access")
+        @Override
+        public Iterator<PeerInfo> iterator() {
+            return new PeerIterator();
+        }
+    };
+
     RankedPeerList(final PeerRanker ranker) {
         this.ranker = ranker;
     }
 
+    private static int size(final Node n) {
+        return n == null ? 0 : n.size;
+    }
+
     int size() {
-        return list.size();
+        return size(root);
     }
 
-    void add(final PeerInfo p) {
-        final int pos = Collections.binarySearch(list, p, ranker);
-        if (pos >= 0) {
-            list.add(pos, p);
+    private Node first() {
+        Node n = root;
+        if (n != null) {
+            while (n.left != null) {
+                n = n.left;
+            }
+        }
+        return n;
+    }
+
+    private static Node successor(Node n) {
+        if (n.right != null) {
+            n = n.right;
+            while (n.left != null) {
+                n = n.left;
+            }
+            return n;
+        }
+        while (n.parent != null && n.parent.right == n) {
+            n = n.parent;
+        }
+        return n.parent;
+    }
+
+    private static Node predecessor(Node n) {
+        if (n.left != null) {
+            n = n.left;
+            while (n.right != null) {
+                n = n.right;
+            }
+            return n;
+        }
+        while (n.parent != null && n.parent.left == n) {
+            n = n.parent;
+        }
+        return n.parent;
+    }
+
+    /**
+     * Rotates the given node one level up in the tree.
+     */
+    private void rotateUp(final Node x) {
+        final Node p = x.parent;
+        if (x == p.left) {
+            p.left = x.right;
+            if (x.right != null) {
+                x.right.parent = p;
+            }
+            x.right = p;
+        } else {
+            p.right = x.left;
+            if (x.left != null) {
+                x.left.parent = p;
+            }
+            x.left = p;
+        }
+        final Node g = p.parent;
+        x.parent = g;
+        if (g == null) {
+            root = x;
+        } else if (g.left == p) {
+            g.left = x;
+        } else {
+            g.right = x;
+        }
+        p.parent = x;
+        p.size = 1 + size(p.left) + size(p.right);
+        x.size = 1 + size(x.left) + size(x.right);
+    }
+
+    /**
+     * Compares two nodes on their key. Peers with a higher comparison value
+     * are ranked first; only for equal keys the ranker itself is used.
+     */
+    private int compare(final Node a, final Node b) {
+        if (a.key > b.key) {
+            return -1;
+        }
+        if (a.key < b.key) {
+            return 1;
+        }
+        return ranker.compare(a.info, b.info);
+    }
+
+    private void insert(final Node n) {
+        if (root == null) {
+            root = n;
+            return;
+        }
+        Node cur = root;
+        while (true) {
+            cur.size++;
+            if (compare(n, cur) < 0) {
+                if (cur.left == null) {
+                    cur.left = n;
+                    break;
+                }
+                cur = cur.left;
+            } else {
+                if (cur.right == null) {
+                    cur.right = n;
+                    break;
+                }
+                cur = cur.right;
+            }
+        }
+        n.parent = cur;
+        while (n.parent != null && n.priority > n.parent.priority) {
+            rotateUp(n);
+        }
+    }
+
+    private void delete(final Node n) {
+        // Rotate the node down until it is a leaf.
+        while (n.left != null || n.right != null) {
+            if (n.right == null
+                    || (n.left != null && n.left.priority > n.right.priority)) {
+                rotateUp(n.left);
+            } else {
+                rotateUp(n.right);
+            }
+        }
+        final Node p = n.parent;
+        if (p == null) {
+            root = null;
         } else {
-            list.add(-pos - 1, p);
+            if (p.left == n) {
+                p.left = null;
+            } else {
+                p.right = null;
+            }
+            for (Node a = p; a != null; a = a.parent) {
+                a.size--;
+            }
+        }
+        n.parent = null;
+        n.size = 1;
+    }
+
+    private static int position(final Node n) {
+        int res = size(n.left);
+        for (Node x = n; x.parent != null; x = x.parent) {
+            if (x == x.parent.right) {
+                res += size(x.parent.left) + 1;
+            }
+        }
+        return res;
+    }
+
+    private Node getNode(int ix) {
+        if (ix < 0 || ix >= size()) {
+            throw new IndexOutOfBoundsException("Index " + ix + " size "
+                    + size());
+        }
+        Node n = root;
+        while (true) {
+            final int l = size(n.left);
+            if (ix < l) {
+                n = n.left;
+            } else if (ix == l) {
+                return n;
+            } else {
+                ix -= l + 1;
+                n = n.right;
+            }
+        }
+    }
+
+    void add(final PeerInfo p) {
+        final Node n = new Node(p, rng.nextInt());
+        n.key = ranker.getComparisonValue(p);
+        insert(n);
+        index.put(p.peer, n);
+    }
+
+    private void markDirty(final Node n) {
+        if (!n.dirty) {
+            n.dirty = true;
+            dirtyNodes.add(n);
+        }
+    }
+
+    private void updateRanking(final Node n) {
+        n.dirty = false;
+        n.key = ranker.getComparisonValue(n.info);
+        final Node pred = predecessor(n);
+        final Node succ = successor(n);
+        if ((pred == null || compare(pred, n) <= 0)
+                && (succ == null || compare(n, succ) <= 0)) {
+            // Still in place.
+            return;
         }
+        delete(n);
+        insert(n);
+    }
+
+    /**
+     * Moves all dirty peers to their new rank. If many peers are dirty, the
+     * entire tree is rebuilt instead.
+     */
+    private void refresh() {
+        if (dirtyNodes.isEmpty()) {
+            return;
+        }
+        if (4 * dirtyNodes.size() > size()) {
+            dirtyNodes.clear();
+            resort();
+            return;
+        }
+        for (final Node n : dirtyNodes) {
+            if (n.dirty) {
+                updateRanking(n);
+            }
+        }
+        dirtyNodes.clear();
     }
 
     void updateRanking(final int ix) {
-        final PeerInfo p = list.remove(ix);
-        add(p);
+        refresh();
+        markDirty(getNode(ix));
     }
 
     void updateRanking(final PeerInfo p) {
-        final int ix = list.indexOf(p);
-        if (ix < 0) {
+        final Node n = index.get(p.peer);
+        if (n == null || n.info != p) {
             Globals.log.reportInternalError("PeerInfo " + p + " not found");
             return;
         }
-        updateRanking(ix);
+        markDirty(n);
+    }
+
+    private void remove(final Node n) {
+        n.dirty = false;
+        delete(n);
+        if (index.get(n.info.peer) == n) {
+            index.remove(n.info.peer);
+        }
     }
 
     PeerInfo remove(final int ix) {
-        return list.remove(ix);
+        refresh();
+        final Node n = getNode(ix);
+        remove(n);
+        return n.info;
     }
 
     boolean remove(final PeerInfo p) {
-        return list.remove(p);
+        final Node n = index.get(p.peer);
+        if (n == null || n.info != p) {
+            return false;
+        }
+        remove(n);
+        return true;
     }
 
     PeerInfo get(final int ix) {
-        return list.get(ix);
+        refresh();
+        return getNode(ix).info;
+    }
+
+    /**
+     * Returns the information of the given peer.
+     * 
+     * @param peer
+     *            The peer to search for.
+     * @param allowDeleted
+     *            If <code>true</code>, also return deleted peers.
+     * @return The information of the peer, or <code>null</code> if it isn't
+     *         in this list.
+     */
+    PeerInfo getPeer(final IbisIdentifier peer, final boolean allowDeleted) {
+        final Node n = index.get(peer);
+        if (n == null || (!allowDeleted && n.info.isDeleted())) {
+            return null;
+        }
+        return n.info;
     }
 
     boolean isEmpty() {
-        return list.isEmpty();
+        return root == null;
     }
 
     List<PeerInfo> getList() {
-        return list;
+        return view;
     }
 
+    /**
+     * Returns all peers in this list in no particular order. Unlike iteration
+     * over the list itself, this does not bring the ranking up to date.
+     * 
+     * @return The peers.
+     */
+    Iterable<PeerInfo> unordered() {
+        return new Iterable<PeerInfo>() {
+            @Override
+            public Iterator<PeerInfo> iterator() {
+                final Iterator<Node> it = index.values().iterator();
+                return new Iterator<PeerInfo>() {
+                    @Override
+                    public boolean hasNext() {
+                        return it.hasNext();
+                    }
+
+                    @Override
+                    public PeerInfo next() {
+                        return it.next().info;
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+
+    @SuppressWarnings("synthetic-access")
     @Override
     public Iterator<PeerInfo> iterator() {
-        return list.iterator();
+        return new PeerIterator();
     }
 
     private void resort() {
-        Collections.sort(list, ranker);
+        final ArrayList<Node> nodes = new ArrayList<Node>(size());
+        for (Node n = first(); n != null; n = successor(n)) {
+            nodes.add(n);
+        }
+        root = null;
+        for (final Node n : nodes) {
+            n.left = null;
+            n.right = null;
+            n.parent = null;
+            n.size = 1;
+            n.dirty = false;
+            n.key = ranker.getComparisonValue(n.info);
+        }
+        Collections.shuffle(nodes, rng);
+        for (final Node n : nodes) {
+            insert(n);
+        }
     }
 
     void setRanker(final PeerRanker r) {
         ranker = r;
+        dirtyNodes.clear();
         resort();
     }
 
     int findPeer(final IbisIdentifier peer, final boolean allowDeleted) {
-        for (int ix = 0; ix < list.size(); ix++) {
-            final PeerInfo p = list.get(ix);
-            if (peer.equals(p.peer) && (allowDeleted || !p.isDeleted())) {
-                return ix;
-            }
+        final Node n = index.get(peer);
+        if (n == null || (!allowDeleted && n.info.isDeleted())) {
+            return -1;
         }
-        return -1;
+        refresh();
+        return position(n);
     }
 
 }
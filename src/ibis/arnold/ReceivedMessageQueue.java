@@ -1,85 +1,210 @@
 package ibis.arnold;
 
-import java.util.HashMap;
-import java.util.Set;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.io.PrintStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /**
- * A queue of (non-trivial) incoming messages.
+ * A queue of (non-trivial) incoming messages. Messages are put in one of two
+ * lanes: piece messages go in the data lane, all other messages in the control
+ * lane. The control lane is always drained first, so that for example a choke
+ * or cancel message doesn't wait behind a batch of pieces.
+ * <p>
+ * Every lane is a lock-free ring. Adding a message never blocks the receiving
+ * thread indefinitely: if a ring is full, the message goes to an unbounded
+ * overflow list of that lane, either at once, or with the 'wait' policy
+ * (property <code>arnold.receive-backpressure</code>) after a short wait for
+ * room. Once a lane overflows, new messages for that lane also go to the
+ * overflow list until it is drained, so the messages of a lane stay in order.
+ * While the data lane is full the engine doesn't request more data, which
+ * slows down the peers that send it.
  * 
  * @author Kees van Reeuwijk
  * 
  */
 class ReceivedMessageQueue {
-    private final BlockingQueue<Message> q;
-    private int maximalQueueLength = 0;
-    private final HashMap<String, Integer> counts = new HashMap<String, Integer>();
+    private static final class Lane {
+        private final String name;
+        private final RingQueue<Message> ring;
+        private final ConcurrentLinkedQueue<Message> overflow = new ConcurrentLinkedQueue<Message>();
+        private final AtomicInteger overflowLength = new AtomicInteger(0);
+        private final AtomicLong addedMessages = new AtomicLong(0);
+        private final AtomicLong overflowedMessages = new AtomicLong(0);
+        private final AtomicLong waits = new AtomicLong(0);
+        private final AtomicLong depthSum = new AtomicLong(0);
+        private final AtomicInteger maximalDepth = new AtomicInteger(0);
 
-    ReceivedMessageQueue(final int capacity) {
-        this.q = new ArrayBlockingQueue<Message>(capacity, true);
+        Lane(final String name, final int capacity) {
+            this.name = name;
+            this.ring = new RingQueue<Message>(capacity);
+        }
+
+        private boolean offer(final Message msg, final boolean wait) {
+            if (ring.offer(msg)) {
+                return true;
+            }
+            if (!wait) {
+                return false;
+            }
+            waits.incrementAndGet();
+            final long deadline = System.nanoTime()
+                    + Settings.RECEIVE_QUEUE_MAXIMAL_WAIT * 1000000L;
+            long pause = 1000;
+            while (System.nanoTime() < deadline) {
+                LockSupport.parkNanos(pause);
+                if (ring.offer(msg)) {
+                    return true;
+                }
+                pause = Math.min(2 * pause, 1000000);
+            }
+            return false;
+        }
+
+        void add(final Message msg, final boolean wait) {
+            addedMessages.incrementAndGet();
+            if (overflowLength.get() > 0 || !offer(msg, wait)) {
+                overflowedMessages.incrementAndGet();
+                // Count it before it can be taken by the consumer.
+                overflowLength.incrementAndGet();
+                overflow.add(msg);
+            }
+            final int depth = getDepth();
+            depthSum.addAndGet(depth);
+            int max = maximalDepth.get();
+            while (depth > max && !maximalDepth.compareAndSet(max, depth)) {
+                max = maximalDepth.get();
+            }
+        }
+
+        Message poll() {
+            // Everything in the ring is older than everything in the
+            // overflow list.
+            Message msg = ring.poll();
+            if (msg == null) {
+                msg = overflow.poll();
+                if (msg != null) {
+                    overflowLength.decrementAndGet();
+                }
+            }
+            return msg;
+        }
+
+        int getDepth() {
+            return ring.size() + Math.max(0, overflowLength.get());
+        }
+
+        boolean isFull() {
+            return getDepth() >= ring.capacity();
+        }
+
+        int getMaximalDepth() {
+            return maximalDepth.get();
+        }
+
+        long getOverflowedMessages() {
+            return overflowedMessages.get();
+        }
+
+        void printStatistics(final PrintStream s) {
+            final long added = addedMessages.get();
+            s.println("Receive queue " + name + " lane: " + added
+                    + " messages, capacity " + ring.capacity() + ", depth "
+                    + getDepth() + ", maximal depth " + maximalDepth.get()
+                    + ", average depth "
+                    + String.format("%.2f", added == 0 ? 0.0 : (double) depthSum
+                            .get() / added) + ", overflowed "
+                    + overflowedMessages.get() + ", waits " + waits.get());
+        }
     }
 
+    private final Lane control;
+    private final Lane data;
+    private final boolean waitForRoom;
+
     /**
-     * Returns the next message in the queue, or <code>null</code> if the queue
-     * is empty.
-     * 
-     * @return The message.
+     * @param controlCapacity
+     *            The capacity of the control lane.
+     * @param dataCapacity
+     *            The capacity of the data lane.
+     * @param waitForRoom
+     *            If <code>true</code>, a receiving thread waits a short time
+     *            for room in a full lane before it uses the overflow list.
      */
-    Message getNext() {
-        return q.poll();
+    ReceivedMessageQueue(final int controlCapacity, final int dataCapacity,
+            final boolean waitForRoom) {
+        this.control = new Lane("control", controlCapacity);
+        this.data = new Lane("data", dataCapacity);
+        this.waitForRoom = waitForRoom;
     }
 
-    private void countMessage(final Message m) {
-        final Class<? extends Message> cl = m.getClass();
-        final String nm = cl.getSimpleName();
-        synchronized (counts) {
-            if (counts.containsKey(nm)) {
-                final Integer n = counts.get(nm);
-                counts.put(nm, n + 1);
-            } else {
-                counts.put(nm, 1);
-            }
-        }
+    ReceivedMessageQueue() {
+        this(Settings.MAXIMAL_RECEIVED_CONTROL_QUEUE_LENGTH, Utils
+                .getIntProperty("arnold.receive-queue-length",
+                        Settings.MAXIMAL_RECEIVED_MESSAGE_QUEUE_LENGTH),
+                "wait".equals(System.getProperty("arnold.receive-backpressure",
+                        "")));
     }
 
-    void printCounts() {
-        synchronized (counts) {
-            final Set<String> keys = counts.keySet();
-            System.out.print("Received messages:");
-            for (final String k : keys) {
-                final Integer n = counts.get(k);
-                System.out.print(" " + k + ":" + n);
-            }
+    private Lane getLane(final Message msg) {
+        return msg.getType() == MessageType.PIECE ? data : control;
+    }
+
+    /**
+     * Returns the next message in the queue, or <code>null</code> if the queue
+     * is empty. Control messages are returned before data messages. Must only
+     * be called by the engine thread.
+     * 
+     * @return The message.
+     */
+    Message getNext() {
+        final Message msg = control.poll();
+        if (msg != null) {
+            return msg;
         }
-        System.out.println();
+        return data.poll();
     }
 
+    /**
+     * Adds the given message to the queue. Can be called by any thread.
+     * 
+     * @param msg
+     *            The message to add.
+     */
     void add(final Message msg) {
-        try {
-            q.put(msg);
-            final int sz = q.size();
-            if (maximalQueueLength < sz) {
-                maximalQueueLength = sz;
-            }
-            countMessage(msg);
-        } catch (final InterruptedException e) {
-            Globals.log
-                    .reportInternalError("Got interrupt waiting for receive message queue  to drain");
-        }
+        getLane(msg).add(msg, waitForRoom);
     }
 
     boolean isEmpty() {
-        return q.isEmpty();
+        return control.getDepth() == 0 && data.getDepth() == 0;
+    }
+
+    /**
+     * @return <code>true</code> iff the data lane is full, and we shouldn't
+     *         ask for more data.
+     */
+    boolean isCongested() {
+        return data.isFull();
     }
 
     void dump() {
-        Globals.log.reportProgress("There are " + q.size()
-                + " messages in the receive queue");
+        Globals.log.reportProgress("There are " + control.getDepth()
+                + " control and " + data.getDepth()
+                + " data messages in the receive queue");
     }
 
     int getMaximalQueueLength() {
-        return maximalQueueLength;
+        return Math.max(control.getMaximalDepth(), data.getMaximalDepth());
+    }
+
+    long getOverflowedMessages() {
+        return control.getOverflowedMessages() + data.getOverflowedMessages();
+    }
+
+    void printStatistics(final PrintStream s) {
+        control.printStatistics(s);
+        data.printStatistics(s);
     }
 
 }
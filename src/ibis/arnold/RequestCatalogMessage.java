@@ -0,0 +1,17 @@
+package ibis.arnold;
+
+/**
+ * A message asking the destination to send a full catalog, because the
+ * source received a delta catalog it could not place.
+ * 
+ * @author Kees van Reeuwijk
+ * 
+ */
+class RequestCatalogMessage extends SmallMessage {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    int getType() {
+        return MessageType.REQUEST_CATALOG;
+    }
+}
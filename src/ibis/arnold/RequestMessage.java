@@ -30,4 +30,9 @@ class RequestMessage extends SmallMessage {
     public int hashCode() {
         return chunk.hashCode() ^ source.hashCode();
     }
+
+    @Override
+    int getType() {
+        return MessageType.REQUEST;
+    }
 }
@@ -19,4 +19,9 @@ class RequestPiecesMessage extends Message {
     public String toString() {
         return "BitsetMessage[" + bits.compactBitSetToString() + "]";
     }
+
+    @Override
+    int getType() {
+        return MessageType.REQUEST_PIECES;
+    }
 }
@@ -10,4 +10,8 @@ package ibis.arnold;
 class ResignAsHelperMessage extends SmallMessage {
     private static final long serialVersionUID = 1L;
 
+    @Override
+    int getType() {
+        return MessageType.RESIGN_AS_HELPER;
+    }
 }
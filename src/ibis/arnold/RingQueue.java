@@ -0,0 +1,112 @@
+package ibis.arnold;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded lock-free queue for any number of producers and a single
+ * consumer. The elements are stored in a ring; every slot has a sequence
+ * number that tells whether the slot is free for the producer of a given
+ * position, or filled for the consumer. Producers claim a position with a
+ * compare-and-set on the tail; the consumer owns the head.
+ * 
+ * @author Kees van Reeuwijk
+ * 
+ * @param <T>
+ *            The type of the elements.
+ */
+class RingQueue<T> {
+    private final AtomicReferenceArray<T> elements;
+    private final AtomicLongArray sequence;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong(0);
+
+    /** Only written by the consumer, but read by size(). */
+    private volatile long head = 0;
+
+    /**
+     * @param capacity
+     *            The minimal capacity of the queue. The actual capacity is
+     *            the next power of two.
+     */
+    RingQueue(final int capacity) {
+        int n = 1;
+        while (n < capacity) {
+            n <<= 1;
+        }
+        elements = new AtomicReferenceArray<T>(n);
+        sequence = new AtomicLongArray(n);
+        for (int i = 0; i < n; i++) {
+            sequence.set(i, i);
+        }
+        mask = n - 1;
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Adds the given element to the queue, unless the queue is full. Can be
+     * called by any thread.
+     * 
+     * @param e
+     *            The element to add.
+     * @return <code>true</code> iff the element was added.
+     */
+    boolean offer(final T e) {
+        long pos = tail.get();
+        int ix;
+        while (true) {
+            ix = (int) (pos & mask);
+            final long diff = sequence.get(ix) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+            } else if (diff < 0) {
+                // The consumer hasn't freed this slot yet.
+                return false;
+            }
+            pos = tail.get();
+        }
+        elements.lazySet(ix, e);
+        // Publishes the element to the consumer.
+        sequence.set(ix, pos + 1);
+        return true;
+    }
+
+    /**
+     * Returns the oldest element of the queue, or <code>null</code> if the
+     * queue is empty. Must only be called by the consumer.
+     * 
+     * @return The element, or <code>null</code>.
+     */
+    T poll() {
+        final long pos = head;
+        final int ix = (int) (pos & mask);
+        if (sequence.get(ix) != pos + 1) {
+            return null;
+        }
+        final T e = elements.get(ix);
+        elements.lazySet(ix, null);
+        // Hands the slot to the producer of the next round.
+        sequence.set(ix, pos + mask + 1);
+        head = pos + 1;
+        return e;
+    }
+
+    /**
+     * @return The number of elements in the queue. Because producers may be
+     *         busy, this is only an estimate.
+     */
+    int size() {
+        final long sz = tail.get() - head;
+        return (int) Math.max(0, Math.min(sz, mask + 1));
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+}
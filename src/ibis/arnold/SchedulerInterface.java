@@ -79,6 +79,15 @@ interface SchedulerInterface {
     void setPeerHasPieces(IbisIdentifier peer, PieceSet bits,
             PersonalityInterface personality);
 
+    /**
+     * The given peer has asked for a full catalog of our pieces, because it
+     * lost track of the catalog we sent it before.
+     * 
+     * @param peer
+     *            The peer that asked for the catalog.
+     */
+    void sendFullCatalog(IbisIdentifier peer);
+
     /**
      * The given peer has send us the given incorrect piece.
      * 
@@ -12,12 +12,30 @@ class Settings {
 
     protected static final int MAXIMAL_SEND_RETRIES = 5;
 
-    /** Maximal number of messages in the receive queue before it blocks. */
+    /**
+     * The capacity of the data lane of the receive queue. If it is full, the
+     * engine doesn't request more data.
+     */
     static final int MAXIMAL_RECEIVED_MESSAGE_QUEUE_LENGTH = 50;
 
+    /** The capacity of the control lane of the receive queue. */
+    static final int MAXIMAL_RECEIVED_CONTROL_QUEUE_LENGTH = 256;
+
+    /**
+     * With the 'wait' backpressure policy, the maximal time in ms a receiving
+     * thread waits for room in a full receive queue lane.
+     */
+    static final long RECEIVE_QUEUE_MAXIMAL_WAIT = 50;
+
     /** The ideal length of the data queue length of the transmitter. */
     static final int IDEAL_TRANSMITTER_QUEUE_LENGTH = 3;
 
+    /**
+     * The maximal number of chunk requests the engine hands to the uploader
+     * before they have been put on the data queue of the transmitter.
+     */
+    static final int UPLOAD_QUEUE_LENGTH = 4;
+
     /** Do we cache connections? */
     static final boolean CACHE_CONNECTIONS = true;
 
@@ -32,8 +50,102 @@ class Settings {
 
     static final int PIECE_SIZE = CHUNK_SIZE * (1 << 4);
 
-    /** The number of chunk requests we want to have outstanding on each peer. */
-    static final int CHUNK_REQUESTS_PER_PEER = 8;
+    /**
+     * The largest chunk an uploader sends in one message. Requests are for a
+     * range of bytes, and the uploader splits them into chunks between
+     * <code>CHUNK_SIZE</code> and this size, depending on the speed of the
+     * link to the requesting peer.
+     */
+    static final int MAXIMAL_CHUNK_SIZE = CHUNK_SIZE * 4;
+
+    /**
+     * The time in ms the transmission of one chunk should take. Used to
+     * adapt the chunk size to the speed of the link.
+     */
+    static final long CHUNK_TRANSMISSION_TIME = 20;
+
+    /**
+     * The number of pieces in each window of a memory-mapped shared file.
+     */
+    static final int MAPPED_WINDOW_PIECES = 256;
+
+    /**
+     * The interval in ms between progress reports while verifying the pieces
+     * of an existing file.
+     */
+    static final long VERIFY_PROGRESS_INTERVAL = 5000;
+
+    /**
+     * The number of newly stored pieces after which the piece validity file is
+     * saved.
+     */
+    static final int VALIDITY_FILE_SAVE_PIECES = 64;
+
+    /**
+     * The maximal time in ms between saves of the piece validity file, as long
+     * as new pieces are being stored.
+     */
+    static final long VALIDITY_FILE_SAVE_INTERVAL = 10000;
+
+    /**
+     * The number of pieces that are verified at startup if only a sample of
+     * the pieces in the piece validity file should be verified.
+     */
+    static final int VALIDITY_FILE_VERIFY_SAMPLE_SIZE = 16;
+
+    /**
+     * The maximal number of bytes in completed pieces that may wait to be
+     * stored before we stop requesting more chunks.
+     */
+    static final long PIECE_WRITER_BUDGET = 64 * PIECE_SIZE;
+
+    /**
+     * The default size in bytes of the cache of pieces that are read from the
+     * shared file. Can be overridden with the property
+     * <code>arnold.read-cache-size</code>; a size of 0 disables the cache.
+     */
+    static final int READ_CACHE_SIZE = 64 * PIECE_SIZE;
+
+    /**
+     * The fraction of the read cache that is reserved for pieces that have
+     * been read more than once.
+     */
+    static final double READ_CACHE_PROTECTED_FRACTION = 0.8;
+
+    /**
+     * The maximal number of free chunk buffers that are kept for reuse in
+     * chunk replies.
+     */
+    static final int CHUNK_BUFFER_POOL_SIZE = 64;
+
+    /**
+     * The default maximal time in ms that a completed piece waits before it
+     * is announced to a neighbor, so that it can be announced together with
+     * other pieces. Can be overridden with the property
+     * <code>arnold.have-batch-interval</code>. The default of 0 announces
+     * every piece immediately, so batching is only done on request.
+     */
+    static final long HAVE_BATCH_INTERVAL = 0;
+
+    /**
+     * The default maximal number of pieces that are announced in one
+     * message. Can be overridden with the property
+     * <code>arnold.have-batch-size</code>.
+     */
+    static final int HAVE_BATCH_SIZE = 32;
+
+    /**
+     * The number of incorrect chunks a peer may send for a piece before we
+     * give up on downloading that piece from it.
+     */
+    static final int MAXIMAL_INCORRECT_CHUNKS = 1;
+
+    /**
+     * The maximal number of outstanding range requests for an incomplete
+     * piece. Normally a piece is requested in one range, but blocks that
+     * turned out to be incorrect are requested again separately.
+     */
+    static final int RANGE_REQUESTS_PER_PIECE = 4;
 
     /** Minimal neighbor set size before we try to get new neighbors. */
     static final int NEIGHBOR_SET_SIZE = 20;
@@ -46,6 +158,9 @@ class Settings {
     /** The time in ms of the transfer monitor window. */
     static final long TRANSFER_MONITOR_WINDOW_TIME = 800;
 
+    /** The number of time buckets in the window of a transfer monitor. */
+    static final int TRANSFER_MONITOR_BUCKETS = 16;
+
     /**
      * Interval in ms between slot updates.
      */
@@ -54,6 +169,13 @@ class Settings {
     /** The inner block size of the dummy transfered file. */
     static final int DUMMY_INNER_BLOCKSIZE = 10;
 
+    /**
+     * The default maximal number of bytes in received pieces that an
+     * in-memory shared file keeps. Can be overridden with the property
+     * <code>arnold.memory-arena-size</code>.
+     */
+    static final long MEMORY_ARENA_SIZE = 64 * PIECE_SIZE;
+
     /** The size of a dummy file. */
     protected static final long DUMMY_FILE_SIZE = 1000000000;
 
@@ -67,10 +189,17 @@ class Settings {
     // Debugging flags.
 
     /**
-     * The maximal time in ms the engine can sleep.
+     * The maximal time in ms the engine can sleep. If it isn't woken up
+     * before that, its state is dumped.
      */
     static final int MAXIMAL_ENGINE_SLEEP_INTERVAL = 2500;
 
+    /** The time in ms before a message that could not be sent is retried. */
+    static final long SEND_RETRY_DELAY = 100;
+
+    /** The time in ms of one tick of the retry timer wheel. */
+    static final long RETRY_TIMER_TICK = 10;
+
     static final boolean TraceCredits = false;
 
     static final boolean TraceNodeCreation = true;
@@ -123,6 +252,31 @@ class Settings {
 
     static final int RANKER_MAXIMUM_CHOICES = 30;
 
+    /**
+     * The default playback rate in bytes per second of a streaming download.
+     * Can be overridden with the property <code>arnold.playback-rate</code>.
+     */
+    static final double STREAMING_PLAYBACK_RATE = 512 * 1024;
+
+    /**
+     * The default length in seconds of the deadline window of a streaming
+     * download. Can be overridden with the property
+     * <code>arnold.streaming-window</code>.
+     */
+    static final double STREAMING_WINDOW = 10;
+
+    /**
+     * The number of fastest peers that may download pieces in the deadline
+     * window of a streaming download that are already being downloaded.
+     */
+    static final int STREAMING_FAST_PEERS = 4;
+
+    /**
+     * The maximal number of simultaneous downloads of a piece in the deadline
+     * window of a streaming download.
+     */
+    static final int STREAMING_REPLICATION = 3;
+
     /**
      * The maximal fraction of peers that can have a piece so that it is still
      * profitable for a caching peer to download it.
@@ -3,70 +3,55 @@ package ibis.arnold;
 import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
 
 /**
- * A file ready for up- and downloading.
+ * A file ready for up- and downloading. All reads and writes are positional
+ * reads and writes on the channel of the file, so there is no shared file
+ * pointer, and any number of threads can read and write chunks at the same
+ * time without locking. Only the set of valid pieces is protected by a lock.
  * 
  * @author Kees van Reeuwijk
  * 
  */
 class SharedFile implements SharedFileInterface {
     private final RandomAccessFile rafile;
+    private final FileChannel channel;
     private final long size;
     private final int numberOfPieces;
     private final PieceSet validPieces;
-    private final byte referenceHashes[][];
+    private final PieceDigests referenceHashes;
     private final int pieceSize;
+    private final PieceValidityFile validityFile;
 
     SharedFile(final File file, final int pieceSize, final long desiredSize,
-            final byte refHashes[][]) throws IOException,
+            final PieceDigests refHashes) throws IOException,
             NoSuchAlgorithmException {
         this.rafile = new RandomAccessFile(file, "rw");
+        this.channel = rafile.getChannel();
         this.size = desiredSize;
         this.pieceSize = pieceSize;
         this.numberOfPieces = Utils.divideRoundUp(desiredSize, pieceSize);
         this.referenceHashes = refHashes;
+        this.validityFile = new PieceValidityFile(file, pieceSize,
+                desiredSize, refHashes);
         // The file existed when we entered, go and check it.
-        this.validPieces = checkPieces(rafile, refHashes, desiredSize,
-                pieceSize, numberOfPieces);
+        this.validPieces = checkPieces(refHashes, numberOfPieces);
         this.rafile.setLength(desiredSize);
+        saveValidityFile();
     }
 
-    private PieceSet checkPieces(final RandomAccessFile f,
-            final byte[][] references, final long desiredSize,
-            final int referencePieceSize, final int referenceNumberOfPieces)
-            throws IOException, NoSuchAlgorithmException {
-        final byte buf[] = new byte[referencePieceSize];
-
-        final PieceSet ourValidPieces = new PieceSet(referenceNumberOfPieces);
-        int off = 0;
-        int validCount = 0;
-        int invalidCount = 0;
-        try {
-            for (int piece = 0; piece < references.length; piece++) {
-                int end = off + referencePieceSize;
-                if (end > desiredSize) {
-                    end = (int) desiredSize;
-                }
-                final int len = end - off;
-                f.readFully(buf, 0, len);
-                off = end;
-                final byte[] digest = Utils.computeSHA1(buf, len);
-                final boolean valid = Arrays.equals(digest, references[piece]);
-                ourValidPieces.set(piece, valid);
-                if (valid) {
-                    validCount++;
-                } else {
-                    invalidCount++;
-                }
-            }
-        } catch (final EOFException x) {
-            invalidCount += Utils.divideRoundUp(desiredSize - off,
-                    referencePieceSize);
-        }
+    private PieceSet checkPieces(final PieceDigests references,
+            final int referenceNumberOfPieces) throws IOException,
+            NoSuchAlgorithmException {
+        final PieceSet ourValidPieces = validityFile.getValidPieces(channel,
+                references);
+        final int validCount = ourValidPieces.cardinality();
+        final int invalidCount = referenceNumberOfPieces - validCount;
         System.out.println("I have " + validCount + " valid and "
                 + invalidCount + " invalid pieces");
         return ourValidPieces;
@@ -88,14 +73,15 @@ class SharedFile implements SharedFileInterface {
      */
     void writeChunk(final int piece, final int offset, final byte data[])
             throws IOException {
-        final long pos = pieceSize * piece + offset;
-        rafile.seek(pos);
-        rafile.write(data);
+        final long pos = (long) pieceSize * piece + offset;
+        final ByteBuffer buf = ByteBuffer.wrap(data);
+        while (buf.hasRemaining()) {
+            channel.write(buf, pos + buf.position());
+        }
     }
 
     @Override
-    public boolean storePiece(final int piece, final byte[] completedPiece)
-            throws IOException {
+    public boolean verifyPiece(final int piece, final byte[] completedPiece) {
         byte hash[];
         try {
             hash = Utils.computeSHA1(completedPiece);
@@ -104,14 +90,44 @@ class SharedFile implements SharedFileInterface {
                     + e.getLocalizedMessage());
             throw new DownloadFailedError("Unknown digest algorithm", e);
         }
-        if (!Arrays.equals(hash, referenceHashes[piece])) {
+        return referenceHashes.matches(piece, hash);
+    }
+
+    @Override
+    public void storeVerifiedPiece(final int piece,
+            final byte[] completedPiece) throws IOException {
+        writeChunk(piece, 0, completedPiece);
+        synchronized (this) {
+            validPieces.set(piece);
+            if (validityFile.registerValidPiece()) {
+                saveValidityFile();
+            }
+        }
+    }
+
+    @Override
+    public boolean storePiece(final int piece, final byte[] completedPiece)
+            throws IOException {
+        if (!verifyPiece(piece, completedPiece)) {
             return false;
         }
-        writeChunk(piece, 0, completedPiece);
-        validPieces.set(piece);
+        storeVerifiedPiece(piece, completedPiece);
         return true;
     }
 
+    /**
+     * Makes sure all data has reached the disk, and then records the valid
+     * pieces in the validity file.
+     * 
+     * @throws IOException
+     *             Thrown if the file cannot be synchronized, or the validity
+     *             file cannot be written.
+     */
+    private synchronized void saveValidityFile() throws IOException {
+        channel.force(false);
+        validityFile.save(validPieces);
+    }
+
     /**
      * Given a piece number and an offset in that piece, reads the given data
      * from the file. You usually get all the bytes you ask for, but if the
@@ -129,15 +145,37 @@ class SharedFile implements SharedFileInterface {
      */
     byte[] readChunk(final int piece, final int offset, int length)
             throws IOException {
-        final long pos = pieceSize * piece + offset;
+        final long pos = (long) pieceSize * piece + offset;
         if (pos + length > size) {
             // Enforce the required file size: don't return non-existent bytes.
             length = (int) (size - pos);
         }
-        rafile.seek(pos);
-        final byte buf[] = new byte[length];
-        rafile.readFully(buf);
-        return buf;
+        final byte res[] = new byte[length];
+        readFully(ByteBuffer.wrap(res), pos);
+        return res;
+    }
+
+    /**
+     * Fills the remaining space in the given buffer with the bytes of the file
+     * at the given position.
+     * 
+     * @param buf
+     *            The buffer to fill.
+     * @param pos
+     *            The position in the file of the first byte to read.
+     * @throws IOException
+     *             Thrown if the file cannot be read.
+     */
+    private void readFully(final ByteBuffer buf, final long pos)
+            throws IOException {
+        final long start = pos - buf.position();
+        while (buf.hasRemaining()) {
+            final int n = channel.read(buf, start + buf.position());
+            if (n < 0) {
+                throw new EOFException("Unexpected end of file at position "
+                        + (start + buf.position()));
+            }
+        }
     }
 
     @Override
@@ -146,17 +184,32 @@ class SharedFile implements SharedFileInterface {
     }
 
     @Override
-    public void close() throws IOException {
+    public void readChunk(final Chunk chunk, final ByteBuffer buf)
+            throws IOException {
+        final long pos = (long) pieceSize * chunk.piece + chunk.offset;
+        int length = chunk.size;
+        if (pos + length > size) {
+            // Enforce the required file size: don't return non-existent bytes.
+            length = (int) (size - pos);
+        }
+        buf.limit(buf.position() + length);
+        readFully(buf, pos);
+        buf.flip();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        saveValidityFile();
         rafile.close();
     }
 
     @Override
-    public boolean isValidPiece(final int piece) {
+    public synchronized boolean isValidPiece(final int piece) {
         return validPieces.get(piece);
     }
 
     @Override
-    public PieceSet getKnownPieces() {
+    public synchronized PieceSet getKnownPieces() {
         return validPieces.clone();
     }
 
@@ -183,7 +236,7 @@ class SharedFile implements SharedFileInterface {
     }
 
     @Override
-    public boolean isComplete() {
+    public synchronized boolean isComplete() {
         return validPieces.isComplete();
     }
 
@@ -196,4 +249,9 @@ class SharedFile implements SharedFileInterface {
     public void setValid() {
         Globals.log.reportInternalError("Cannot declare a real file valid");
     }
+
+    @Override
+    public void printStatistics(final PrintStream s) {
+        // Nothing to report.
+    }
 }
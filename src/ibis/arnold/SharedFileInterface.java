@@ -1,6 +1,8 @@
 package ibis.arnold;
 
 import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
 
 interface SharedFileInterface {
 
@@ -59,6 +61,21 @@ interface SharedFileInterface {
      */
     byte[] readChunk(Chunk chunk) throws IOException;
 
+    /**
+     * Reads the data of the given chunk into the given buffer, starting at its
+     * current position. The buffer must have room for the entire chunk. On
+     * return the buffer is flipped, so that it contains exactly the data of the
+     * chunk.
+     * 
+     * @param chunk
+     *            The chunk to get data for.
+     * @param buf
+     *            The buffer to fill.
+     * @throws IOException
+     *             Thrown if for some reason the data cannot be read.
+     */
+    void readChunk(Chunk chunk, ByteBuffer buf) throws IOException;
+
     /**
      * Stores the given data for the given piece, and verify it against the
      * reference data.
@@ -74,8 +91,43 @@ interface SharedFileInterface {
      */
     boolean storePiece(int piece, byte[] data) throws IOException;
 
+    /**
+     * Returns true iff the given data of the given piece matches the
+     * reference data. This method may be called from several threads at the
+     * same time.
+     * 
+     * @param piece
+     *            The piece to verify the data of.
+     * @param data
+     *            The data in the piece.
+     * @return <code>true</code> if this data is correct according to the
+     *         reference data.
+     */
+    boolean verifyPiece(int piece, byte[] data);
+
+    /**
+     * Stores the given data for the given piece, without verifying it. The
+     * data must have been accepted by {@link #verifyPiece(int, byte[])}.
+     * 
+     * @param piece
+     *            The piece to store the data for.
+     * @param data
+     *            The data in the piece.
+     * @throws IOException
+     *             Thrown if for some reason the data cannot be stored.
+     */
+    void storeVerifiedPiece(int piece, byte[] data) throws IOException;
+
     boolean canSetValid();
 
     void setValid();
 
+    /**
+     * Prints statistics about the use of this shared file.
+     * 
+     * @param s
+     *            The stream to print to.
+     */
+    void printStatistics(PrintStream s);
+
 }
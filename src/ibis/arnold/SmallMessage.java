@@ -7,7 +7,7 @@ package ibis.arnold;
  * @author Kees van Reeuwijk
  * 
  */
-class SmallMessage extends Message {
+abstract class SmallMessage extends Message {
     private static final long serialVersionUID = -8279209032498571638L;
 
 }
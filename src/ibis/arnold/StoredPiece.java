@@ -0,0 +1,48 @@
+package ibis.arnold;
+
+import ibis.ipl.IbisIdentifier;
+
+import java.io.IOException;
+
+/**
+ * A completed piece that is handed to the piece writer, and, once it has been
+ * verified and stored, is handed back to the engine with the result.
+ * 
+ * @author Kees van Reeuwijk
+ * 
+ */
+class StoredPiece {
+    final IbisIdentifier source;
+
+    final int piece;
+
+    final int size;
+
+    /** The data of the piece. Cleared once the piece has been stored. */
+    byte data[];
+
+    /** Set iff the piece was correct, and has been stored. */
+    boolean valid = false;
+
+    /** Set iff we already had this piece, and therefore didn't store it. */
+    boolean duplicate = false;
+
+    /**
+     * The exception that occurred when we tried to verify or store the piece.
+     */
+    IOException error = null;
+
+    StoredPiece(final IbisIdentifier source, final int piece,
+            final byte data[]) {
+        this.source = source;
+        this.piece = piece;
+        this.size = data.length;
+        this.data = data;
+    }
+
+    @Override
+    public String toString() {
+        return "StoredPiece[pc=" + piece + ",source=" + source + ",valid="
+                + valid + ",duplicate=" + duplicate + "]";
+    }
+}
@@ -0,0 +1,201 @@
+package ibis.arnold;
+
+import java.io.PrintStream;
+
+/**
+ * The playback administration of a streaming download. Playback is assumed to
+ * start as soon as the first piece is available, and then to proceed at a
+ * constant rate. If the piece at the playback cursor is not available,
+ * playback stalls until it is; that is a rebuffering event.
+ * <p>
+ * The pieces from the cursor up to the end of the deadline window must be
+ * downloaded first, in playback order.
+ * 
+ * @author Kees van Reeuwijk
+ * 
+ */
+class StreamingWindow {
+    private final PieceSet availablePieces;
+    private final int pieceSize;
+
+    /** The playback rate in bytes per second. */
+    private final double playbackRate;
+
+    /** The number of pieces in the deadline window. */
+    private final int windowSize;
+
+    private final long startTime;
+
+    /** The piece that is played, or waited for. */
+    private int cursor = 0;
+
+    /** The number of bytes of the current piece that have been played. */
+    private double playedBytes = 0;
+
+    private boolean playing = false;
+    private boolean finished = false;
+    private long lastUpdate;
+    private long firstPlayableTime = -1;
+    private long stallStart;
+    private int rebufferEvents = 0;
+    private final TimeStatistics stallStatistics = new TimeStatistics();
+
+    /**
+     * @param availablePieces
+     *            The pieces we have.
+     * @param pieceSize
+     *            The size in bytes of a piece.
+     * @param playbackRate
+     *            The playback rate in bytes per second.
+     * @param window
+     *            The deadline window in seconds.
+     * @param now
+     *            The current time in ms.
+     */
+    StreamingWindow(final PieceSet availablePieces, final int pieceSize,
+            final double playbackRate, final double window, final long now) {
+        this.availablePieces = availablePieces.clone();
+        this.pieceSize = pieceSize;
+        this.playbackRate = playbackRate;
+        this.windowSize = Math.max(1,
+                (int) Math.ceil(window * playbackRate / pieceSize));
+        this.startTime = now;
+        this.lastUpdate = now;
+        update(now);
+    }
+
+    /**
+     * Returns a streaming window if streaming is enabled with the property
+     * <code>arnold.streaming</code>, or <code>null</code> otherwise.
+     * 
+     * @param availablePieces
+     *            The pieces we have.
+     * @param pieceSize
+     *            The size in bytes of a piece.
+     * @return The streaming window, or <code>null</code>.
+     */
+    static StreamingWindow create(final PieceSet availablePieces,
+            final int pieceSize) {
+        if (!Utils.getExistenceProperty("arnold.streaming")) {
+            return null;
+        }
+        final double rate = Utils.getDoubleProperty("arnold.playback-rate",
+                Settings.STREAMING_PLAYBACK_RATE);
+        final double window = Utils.getDoubleProperty(
+                "arnold.streaming-window", Settings.STREAMING_WINDOW);
+        return new StreamingWindow(availablePieces, pieceSize, rate, window,
+                System.currentTimeMillis());
+    }
+
+    /**
+     * Advances the playback cursor to the given time.
+     * 
+     * @param now
+     *            The current time in ms.
+     */
+    void update(final long now) {
+        if (finished) {
+            return;
+        }
+        if (playing) {
+            playedBytes += (now - lastUpdate) * playbackRate * 1e-3;
+            lastUpdate = now;
+            while (playedBytes >= pieceSize) {
+                playedBytes -= pieceSize;
+                cursor++;
+                if (cursor >= availablePieces.size()) {
+                    finished = true;
+                    return;
+                }
+                if (!availablePieces.get(cursor)) {
+                    playing = false;
+                    playedBytes = 0;
+                    rebufferEvents++;
+                    stallStart = now;
+                    break;
+                }
+            }
+        }
+        if (!playing && cursor < availablePieces.size()
+                && availablePieces.get(cursor)) {
+            if (firstPlayableTime < 0) {
+                firstPlayableTime = now;
+            } else {
+                stallStatistics.registerSample((now - stallStart) * 1e-3);
+            }
+            playing = true;
+            lastUpdate = now;
+        }
+    }
+
+    /**
+     * Moves the playback cursor to the given piece, for example because the
+     * viewer skips part of the file.
+     * 
+     * @param piece
+     *            The new position of the cursor.
+     * @param now
+     *            The current time in ms.
+     */
+    void seek(final int piece, final long now) {
+        cursor = piece;
+        playedBytes = 0;
+        finished = cursor >= availablePieces.size();
+        if (playing && !finished && !availablePieces.get(cursor)) {
+            playing = false;
+            rebufferEvents++;
+            stallStart = now;
+        }
+        update(now);
+    }
+
+    void registerCompletedPiece(final int piece, final long now) {
+        availablePieces.set(piece);
+        update(now);
+    }
+
+    /**
+     * @return The first piece of the deadline window.
+     */
+    int getWindowStart() {
+        return cursor;
+    }
+
+    /**
+     * @return The first piece after the deadline window.
+     */
+    int getWindowEnd() {
+        if (finished) {
+            return cursor;
+        }
+        return (int) Math.min(availablePieces.size(), (long) cursor
+                + windowSize);
+    }
+
+    /**
+     * @return The number of times playback stalled because a piece was not
+     *         available in time.
+     */
+    int getRebufferEvents() {
+        return rebufferEvents;
+    }
+
+    /**
+     * @return The time in ms until the first piece was available, or -1 if it
+     *         isn't yet.
+     */
+    long getTimeToFirstPlayableByte() {
+        return firstPlayableTime < 0 ? -1 : firstPlayableTime - startTime;
+    }
+
+    void printStatistics(final PrintStream s) {
+        s.println("Streaming: cursor at piece " + cursor + " window "
+                + windowSize + " pieces, "
+                + (finished ? "finished" : playing ? "playing" : "stalled"));
+        final long ttfb = getTimeToFirstPlayableByte();
+        s.println("  time to first playable byte: "
+                + (ttfb < 0 ? "not yet" : Utils.formatSeconds(ttfb * 1e-3))
+                + " rebuffering events: " + rebufferEvents);
+        stallStatistics.printStatistics(s, "  rebuffering time");
+    }
+}
@@ -0,0 +1,179 @@
+package ibis.arnold;
+
+import java.util.Collection;
+
+/**
+ * A hashed timer wheel. Items are scheduled with a deadline, and are put in
+ * the slot of the tick of that deadline. Expiring the items that are due only
+ * visits the slots of the ticks that have passed, so scheduling and expiring
+ * an item take constant time. Items whose deadline is more than one rotation
+ * away stay in their slot until their round comes.
+ * <p>
+ * This class is not thread-safe.
+ * 
+ * @param <T>
+ *            The type of the scheduled items.
+ * 
+ * @author Kees van Reeuwijk
+ * 
+ */
+class TimerWheel<T> {
+    private static final class Entry<T> {
+        final T item;
+        final long deadline;
+        Entry<T> next;
+
+        Entry(final T item, final long deadline, final Entry<T> next) {
+            this.item = item;
+            this.deadline = deadline;
+            this.next = next;
+        }
+    }
+
+    private final long tickTime;
+    private final Entry<T> slots[];
+
+    /**
+     * All ticks before this one have been expired, or
+     * <code>Long.MIN_VALUE</code> if nothing has been expired yet.
+     */
+    private long firstTick = Long.MIN_VALUE;
+
+    private int size = 0;
+
+    /** The earliest deadline, or -1 if it must be recomputed. */
+    private long nextDeadline = Long.MAX_VALUE;
+
+    /**
+     * @param tickTime
+     *            The time in ms of one tick.
+     * @param slotCount
+     *            The number of slots in the wheel.
+     */
+    TimerWheel(final long tickTime, final int slotCount) {
+        this.tickTime = Math.max(1, tickTime);
+        this.slots = newSlots(slotCount);
+    }
+
+    @SuppressWarnings( { "unchecked", "rawtypes" })
+    private static <T> Entry<T>[] newSlots(final int n) {
+        return new Entry[n];
+    }
+
+    private int getSlot(final long tick) {
+        return (int) (tick % slots.length);
+    }
+
+    /**
+     * Schedules the given item.
+     * 
+     * @param item
+     *            The item to schedule.
+     * @param deadline
+     *            The time in ms at which the item is due.
+     */
+    void schedule(final T item, final long deadline) {
+        long tick = deadline / tickTime;
+        if (tick < firstTick) {
+            // Already due; put it in the first slot that will be visited.
+            tick = firstTick;
+        }
+        final int slot = getSlot(tick);
+        slots[slot] = new Entry<T>(item, deadline, slots[slot]);
+        size++;
+        if (nextDeadline != -1 && deadline < nextDeadline) {
+            nextDeadline = deadline;
+        }
+    }
+
+    /**
+     * Removes all items whose deadline has passed, and adds them to the given
+     * collection.
+     * 
+     * @param now
+     *            The current time in ms.
+     * @param out
+     *            The collection to add the expired items to.
+     * @return The number of expired items.
+     */
+    int expire(final long now, final Collection<? super T> out) {
+        final long tick = now / tickTime;
+        if (tick < firstTick) {
+            return 0;
+        }
+        if (size == 0) {
+            firstTick = tick;
+            return 0;
+        }
+        long ticks = slots.length;
+        if (firstTick != Long.MIN_VALUE) {
+            ticks = Math.min(tick - firstTick + 1, slots.length);
+        }
+        int n = 0;
+        for (long t = tick - ticks + 1; t <= tick; t++) {
+            final int slot = getSlot(t);
+            Entry<T> prev = null;
+            Entry<T> e = slots[slot];
+            while (e != null) {
+                if (e.deadline <= now) {
+                    out.add(e.item);
+                    n++;
+                    if (prev == null) {
+                        slots[slot] = e.next;
+                    } else {
+                        prev.next = e.next;
+                    }
+                } else {
+                    prev = e;
+                }
+                e = e.next;
+            }
+        }
+        // The current tick may still hold items that are due later in it.
+        firstTick = tick;
+        if (n > 0) {
+            size -= n;
+            nextDeadline = -1;
+        }
+        return n;
+    }
+
+    /**
+     * @return The earliest deadline of all items, or
+     *         <code>Long.MAX_VALUE</code> if there are no items.
+     */
+    long getNextDeadline() {
+        if (size == 0) {
+            return Long.MAX_VALUE;
+        }
+        if (nextDeadline == -1) {
+            long res = Long.MAX_VALUE;
+            for (final Entry<T> slot : slots) {
+                for (Entry<T> e = slot; e != null; e = e.next) {
+                    if (e.deadline < res) {
+                        res = e.deadline;
+                    }
+                }
+            }
+            nextDeadline = res;
+        }
+        return nextDeadline;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    void clear() {
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = null;
+        }
+        size = 0;
+        firstTick = Long.MIN_VALUE;
+        nextDeadline = Long.MAX_VALUE;
+    }
+}
@@ -0,0 +1,160 @@
+package ibis.arnold;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+
+/**
+ * A small program that compares the cost of the transfer performance
+ * monitors. Every monitor is fed the same stream of transfers on a simulated
+ * clock, and after every transfer the rate is estimated a few times, as the
+ * peer rankers do. The time and, if the JVM can measure it, the allocated
+ * bytes per transfer are reported.
+ * 
+ * @author Kees van Reeuwijk
+ * 
+ */
+class TransferMonitorBenchmark {
+    private static final int TRANSFERS = 2000000;
+
+    /** The number of transfers per simulated millisecond. */
+    private static final int TRANSFERS_PER_MS = 4;
+
+    /** The number of estimates after every transfer. */
+    private static final int ESTIMATES = 4;
+
+    /**
+     * Feeds one kind of monitor with transfers on the simulated clock. The
+     * monitors only accept an explicit time through their own classes, not
+     * through the common interface.
+     */
+    private static final class Probe {
+        private final WindowTransferPerformanceMonitor window;
+        private final BucketTransferPerformanceMonitor buckets;
+        private final EwmaTransferPerformanceMonitor ewma;
+
+        Probe(final String kind) {
+            final long windowTime = Settings.TRANSFER_MONITOR_WINDOW_TIME;
+            WindowTransferPerformanceMonitor w = null;
+            BucketTransferPerformanceMonitor b = null;
+            EwmaTransferPerformanceMonitor e = null;
+            if (kind.equals("window")) {
+                w = new WindowTransferPerformanceMonitor(windowTime);
+            } else if (kind.equals("buckets")) {
+                b = new BucketTransferPerformanceMonitor(windowTime);
+            } else {
+                e = new EwmaTransferPerformanceMonitor(windowTime);
+            }
+            window = w;
+            buckets = b;
+            ewma = e;
+        }
+
+        void registerTransfer(final long size, final long now) {
+            if (window != null) {
+                window.registerTransfer(size, now);
+            } else if (buckets != null) {
+                buckets.registerTransfer(size, now);
+            } else {
+                ewma.registerTransfer(size, now);
+            }
+        }
+
+        double estimatePerformance(final long now) {
+            if (window != null) {
+                return window.estimatePerformance(now);
+            }
+            if (buckets != null) {
+                return buckets.estimatePerformance(now);
+            }
+            return ewma.estimatePerformance(now);
+        }
+    }
+
+    /**
+     * The method that returns the number of bytes a thread has allocated, or
+     * <code>null</code> if this JVM doesn't provide one. It is only offered
+     * by some JVMs, so it is looked up at run time.
+     */
+    private static final Method allocatedBytesMethod = findAllocatedBytesMethod();
+
+    private static Method findAllocatedBytesMethod() {
+        try {
+            final Class<?> c = Class
+                    .forName("com.sun.management.ThreadMXBean");
+            if (!c.isInstance(ManagementFactory.getThreadMXBean())) {
+                return null;
+            }
+            return c.getMethod("getThreadAllocatedBytes", long.class);
+        } catch (final ClassNotFoundException e) {
+            return null;
+        } catch (final NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return The number of bytes the current thread has allocated, or -1 if
+     *         that is not known.
+     */
+    private static long getAllocatedBytes() {
+        if (allocatedBytesMethod == null) {
+            return -1;
+        }
+        try {
+            final Object res = allocatedBytesMethod.invoke(ManagementFactory
+                    .getThreadMXBean(), Thread.currentThread().getId());
+            return ((Long) res).longValue();
+        } catch (final IllegalAccessException e) {
+            return -1;
+        } catch (final InvocationTargetException e) {
+            return -1;
+        }
+    }
+
+    private static void run(final String kind, final boolean report) {
+        final Probe probe = new Probe(kind);
+        double sum = 0;
+        final long startBytes = getAllocatedBytes();
+        final long startTime = System.nanoTime();
+        for (int i = 0; i < TRANSFERS; i++) {
+            final long now = i / TRANSFERS_PER_MS;
+            probe.registerTransfer(Settings.CHUNK_SIZE, now);
+            for (int j = 0; j < ESTIMATES; j++) {
+                sum += probe.estimatePerformance(now);
+            }
+        }
+        final long t = System.nanoTime() - startTime;
+        final long bytes = getAllocatedBytes() - startBytes;
+        if (report) {
+            System.out.println(kind + ": " + (t / TRANSFERS)
+                    + " ns/transfer, "
+                    + (startBytes < 0 ? "unknown" : "" + (bytes / TRANSFERS))
+                    + " bytes/transfer, average estimate "
+                    + Utils.formatByteCount((long) (sum / (ESTIMATES * TRANSFERS)))
+                    + "/s");
+        }
+    }
+
+    /**
+     * @param args
+     *            The command-line arguments.
+     */
+    public static void main(final String[] args) {
+        if (args.length != 0) {
+            System.err.println("Usage: TransferMonitorBenchmark");
+            System.err
+                    .println("Actual arguments: " + Arrays.deepToString(args));
+            System.exit(1);
+        }
+        final String kinds[] = { "window", "buckets", "ewma" };
+        // Warm up the JIT.
+        for (final String kind : kinds) {
+            run(kind, false);
+        }
+        for (final String kind : kinds) {
+            run(kind, true);
+        }
+    }
+}
@@ -3,8 +3,9 @@ package ibis.arnold;
 import ibis.ipl.IbisIdentifier;
 
 import java.io.PrintStream;
+import java.util.ArrayList;
 
-class Transmitter extends Thread {
+class Transmitter extends Thread implements DataQueueInterface {
     private final SendQueue requestQueue = new SendQueue();
     private final SendQueue bookkeepingQueue = new SendQueue();
     private final SendQueue dataQueue = new SendQueue();
@@ -12,6 +13,16 @@ class Transmitter extends Thread {
     private final PacketSendPort sendPort;
     private final EngineInterface engine;
     private final PeerSet deadPeers = new PeerSet();
+    private final CatalogTracker sentCatalogs = new CatalogTracker();
+    private final HaveBatcher haveBatcher = new HaveBatcher();
+    private final WakeupSignal wakeup = new WakeupSignal(this);
+
+    /** Messages that could not be sent, until it is time to retry them. */
+    private final TimerWheel<QueuedMessage> retryTimers = new TimerWheel<QueuedMessage>(
+            Settings.RETRY_TIMER_TICK, 64);
+    private final ArrayList<QueuedMessage> expiredRetries = new ArrayList<QueuedMessage>();
+    /** The deadline the transmitter sleeps until, if it sleeps. */
+    private long waitDeadline = Long.MAX_VALUE;
     private long idleTime = 0L;
     private boolean sentMessages = false;
     private boolean stopped;
@@ -35,7 +46,9 @@ class Transmitter extends Thread {
         wakeTransmitter();
     }
 
-    void addToDataQueue(final IbisIdentifier destination, final Message msg) {
+    @Override
+    public void addToDataQueue(final IbisIdentifier destination,
+            final Message msg) {
         if (Settings.TraceTransmitter) {
             Globals.log
                     .reportProgress("Transmitter: put on data queue: " + msg);
@@ -56,29 +69,96 @@ class Transmitter extends Thread {
     }
 
     /**
-     * The interval between wakes in ms, if the transmitter isn't woken up for
-     * work.
+     * Puts a catalog of our pieces on the bookkeeping queue. If the
+     * destination already has an earlier catalog, only the pieces that were
+     * added since then are sent.
+     * 
+     * @param destination
+     *            The peer to send the catalog to.
+     * @param knownPieces
+     *            The pieces we have.
      */
-    private static final long TRANSMITTER_WAKE_INTERVAL = 5000;
+    void addCatalogToBookkeepingQueue(final IbisIdentifier destination,
+            final PieceSet knownPieces) {
+        // Pending announcements must arrive before the catalog, since the
+        // catalog assumes the destination knows about them.
+        final Message pending = haveBatcher.flush(destination, System
+                .currentTimeMillis());
+        if (pending != null) {
+            addToBookkeepingQueue(destination, pending);
+        }
+        addToBookkeepingQueue(destination, sentCatalogs.createCatalogMessage(
+                destination, knownPieces));
+    }
 
     /**
-     * The sleep interval if there are retry entries in the queue.
+     * Puts a full catalog of our pieces on the bookkeeping queue, because the
+     * destination asked for one.
+     * 
+     * @param destination
+     *            The peer to send the catalog to.
+     * @param knownPieces
+     *            The pieces we have.
      */
-    private static final long RETRY_WAKE_INTERVAL = 100;
+    void addFullCatalogToBookkeepingQueue(final IbisIdentifier destination,
+            final PieceSet knownPieces) {
+        final Message pending = haveBatcher.flush(destination, System
+                .currentTimeMillis());
+        if (pending != null) {
+            addToBookkeepingQueue(destination, pending);
+        }
+        addToBookkeepingQueue(destination, sentCatalogs
+                .createFullCatalogMessage(destination, knownPieces));
+    }
 
     /**
-     * Sends the given queued message.
+     * Announces the given piece to the given destination, and registers that
+     * the destination knows about the piece. The piece is batched with other
+     * pieces for the same destination, and is put on the bookkeeping queue
+     * when the batch is full or has waited long enough.
+     * 
+     * @param destination
+     *            The peer to announce the piece to.
+     * @param piece
+     *            The piece to announce.
+     */
+    void addHaveToBookkeepingQueue(final IbisIdentifier destination,
+            final int piece) {
+        sentCatalogs.registerPiece(destination, piece);
+        final Message msg = haveBatcher.add(destination, piece, System
+                .currentTimeMillis());
+        if (msg != null) {
+            addToBookkeepingQueue(destination, msg);
+            return;
+        }
+        // Only wake the transmitter if it would otherwise sleep past the
+        // deadline of this batch.
+        final long deadline = haveBatcher.getDeadline(destination);
+        final boolean wake;
+        synchronized (this) {
+            wake = deadline < waitDeadline;
+            if (wake) {
+                waitDeadline = deadline;
+            }
+        }
+        if (wake) {
+            wakeTransmitter();
+        }
+    }
+
+    /**
+     * Sends the given queued message. If that fails, the message is scheduled
+     * to be retried.
      * 
      * @param qm
      *            The queued message to send.
-     * @return <code>true</code> iff we added to the retry queue.
      */
-    private boolean sendMessage(final QueuedMessage qm) {
+    private void sendMessage(final QueuedMessage qm) {
         if (deadPeers.contains(qm.destination)) {
             Globals.log
                     .reportProgress("Transmitter dropped message to dead peer: "
                             + qm);
-            return false;
+            return;
         }
         if (Settings.TraceTransmitter) {
             Globals.log.reportProgress("Transmitter: sending: " + qm);
@@ -92,18 +172,48 @@ class Transmitter extends Thread {
                         + Settings.MAXIMAL_SEND_RETRIES + " retries");
                 engine.setSuspect(qm.destination);
             }
+            synchronized (this) {
+                retryTimers.schedule(qm, System.currentTimeMillis()
+                        + Settings.SEND_RETRY_DELAY);
+            }
+        }
+    }
+
+    /**
+     * Moves the messages that are due to be retried to the retry queue.
+     * 
+     * @param now
+     *            The current time in ms.
+     */
+    private void expireRetries(final long now) {
+        synchronized (this) {
+            retryTimers.expire(now, expiredRetries);
+        }
+        for (final QueuedMessage qm : expiredRetries) {
             retryQueue.add(qm);
-            return true;
         }
-        return false;
+        expiredRetries.clear();
+    }
+
+    /**
+     * Returns the time the transmitter must wake up for the next batch of
+     * have messages or retry, and registers it as the time the transmitter
+     * sleeps until.
+     */
+    private synchronized long getNextDeadline() {
+        waitDeadline = Math.min(retryTimers.getNextDeadline(), haveBatcher
+                .getNextDeadline());
+        return waitDeadline;
     }
 
     void deletePeer(final IbisIdentifier peer) {
         deadPeers.add(peer);
+        sentCatalogs.removePeer(peer);
+        haveBatcher.removePeer(peer);
     }
 
-    private synchronized void wakeTransmitter() {
-        this.notifyAll();
+    private void wakeTransmitter() {
+        wakeup.signal();
     }
 
     private synchronized boolean isStopped() {
@@ -113,58 +223,65 @@ class Transmitter extends Thread {
     @Override
     public void run() {
         while (!isStopped()) {
-            boolean addedToRetriesQueue = false;
+            final long now = System.currentTimeMillis();
+            haveBatcher.flushExpired(now, bookkeepingQueue);
+            expireRetries(now);
+            boolean sentData = false;
             while (true) {
                 // Request messages have top priority.
                 if (!requestQueue.isEmpty()) {
                     final QueuedMessage msg = requestQueue.getNext();
-                    addedToRetriesQueue |= sendMessage(msg);
+                    sendMessage(msg);
                     sentMessages = true;
                 } else if (!bookkeepingQueue.isEmpty()) {
                     // Bookkeeping messages have priority over data
                     // messages.
                     final QueuedMessage msg = bookkeepingQueue.getNext();
-                    addedToRetriesQueue |= sendMessage(msg);
+                    sendMessage(msg);
                     sentMessages = true;
                 } else if (!dataQueue.isEmpty()) {
                     // Data messages have priority over retries.
                     final QueuedMessage msg = dataQueue.getNext();
-                    addedToRetriesQueue |= sendMessage(msg);
+                    sendMessage(msg);
                     sentMessages = true;
-                } else if (!addedToRetriesQueue && !retryQueue.isEmpty()) {
-                    // Retries have lowest priority.
-                    // To avoid being stuck in a retry loop, only
-                    // handle retry messages if no new ones have been
-                    // queued.
+                    sentData = true;
+                } else if (!retryQueue.isEmpty()) {
+                    // Retries have lowest priority. A retry that fails
+                    // again goes back to the timer wheel, so we can't get
+                    // stuck in a retry loop.
                     final QueuedMessage msg = retryQueue.getNext();
-                    addedToRetriesQueue |= sendMessage(msg);
+                    sendMessage(msg);
                     sentMessages = true;
                 } else {
                     break;
                 }
             }
-            engine.wakeEngineThread();
-            try {
-                if (Settings.TraceTransmitterLoop) {
-                    Globals.log.reportProgress("Transmitter: waiting");
+            if (sentData) {
+                // There is room in the data queue again.
+                engine.wakeEngineThread();
+            }
+            if (Settings.TraceTransmitterLoop) {
+                Globals.log.reportProgress("Transmitter: waiting");
+            }
+            if (requestQueue.isEmpty() && bookkeepingQueue.isEmpty()
+                    && dataQueue.isEmpty()) {
+                final long startWaitTime = System.nanoTime();
+                final boolean stopping;
+                synchronized (this) {
+                    stopping = shuttingDown || stopped;
+                }
+                if (stopping) {
+                    wakeup.await(1);
+                } else {
+                    // Sleep until there is work, or until a batch of have
+                    // messages or a retry is due.
+                    wakeup.awaitUntil(getNextDeadline());
                 }
                 synchronized (this) {
-                    if (requestQueue.isEmpty() && bookkeepingQueue.isEmpty()
-                            && dataQueue.isEmpty()) {
-                        final long startWaitTime = System.nanoTime();
-                        final long sleepTime = shuttingDown ? 1 : retryQueue
-                                .isEmpty() ? TRANSMITTER_WAKE_INTERVAL
-                                : RETRY_WAKE_INTERVAL;
-                        wait(sleepTime);
-                        if (sentMessages) {
-                            final long waitTime = System.nanoTime()
-                                    - startWaitTime;
-                            idleTime += waitTime;
-                        }
+                    if (sentMessages) {
+                        idleTime += System.nanoTime() - startWaitTime;
                     }
                 }
-            } catch (final InterruptedException e) {
-                // ignore.
             }
             if (Settings.TraceTransmitterLoop) {
                 Globals.log.reportProgress("Transmitter: looping");
@@ -199,11 +316,16 @@ class Transmitter extends Thread {
         s.println("Transmitter idle time: "
                 + Utils.formatSeconds(idleTime * 1e-9));
         printQueueStatistics(s);
+        sentCatalogs.printStatistics(s, "Sent");
+        haveBatcher.printStatistics(s);
+        wakeup.printStatistics(s, "Transmitter");
     }
 
-    synchronized void setStopped() {
-        stopped = true;
-        this.notifyAll();
+    void setStopped() {
+        synchronized (this) {
+            stopped = true;
+        }
+        wakeup.signal();
     }
 
     /**
@@ -215,9 +337,13 @@ class Transmitter extends Thread {
         synchronized (this) {
             shuttingDown = true;
         }
+        synchronized (this) {
+            retryTimers.clear();
+        }
         retryQueue.clear();
         dataQueue.clear();
         requestQueue.clear();
         bookkeepingQueue.clear();
+        haveBatcher.clear();
     }
 }
@@ -7,6 +7,7 @@ import java.lang.management.ThreadMXBean;
 import java.lang.reflect.Field;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Enumeration;
@@ -21,6 +22,8 @@ class Utils {
 
     private static final double SECOND = 1.0;
 
+    private static final ThreadLocal<MessageDigest> sha1Digest = new ThreadLocal<MessageDigest>();
+
     /**
      * Returns a string with the platform version that is used.
      * 
@@ -123,6 +126,25 @@ class Utils {
         return NANOSECOND * System.nanoTime();
     }
 
+    /**
+     * Returns a SHA-1 digest that is private to the calling thread, so that
+     * hashing a piece doesn't have to look up the digest algorithm.
+     * 
+     * @return The digest.
+     * @throws NoSuchAlgorithmException
+     *             Thrown if the SHA-1 digest algorithm is unknown.
+     */
+    static MessageDigest getSHA1Digest() throws NoSuchAlgorithmException {
+        MessageDigest res = sha1Digest.get();
+        if (res == null) {
+            res = MessageDigest.getInstance("SHA-1");
+            sha1Digest.set(res);
+        } else {
+            res.reset();
+        }
+        return res;
+    }
+
     /**
      * Given an array of bytes, compute its SHA-1 digest.
      * 
@@ -133,7 +155,7 @@ class Utils {
      */
     static byte[] computeSHA1(final byte data[], final int length)
             throws NoSuchAlgorithmException {
-        final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        final MessageDigest digest = getSHA1Digest();
         digest.update(data, 0, length);
         final byte res[] = digest.digest();
         return res;
@@ -144,6 +166,23 @@ class Utils {
         return computeSHA1(data, data.length);
     }
 
+    /**
+     * Given a buffer, compute the SHA-1 digest of its remaining bytes. The
+     * position of the buffer is advanced to its limit.
+     * 
+     * @param data
+     *            The data to compute the digest of.
+     * @return The SHA-1 digest: a 20-byte (160-bit) array.
+     * @throws NoSuchAlgorithmException
+     */
+    static byte[] computeSHA1(final ByteBuffer data)
+            throws NoSuchAlgorithmException {
+        final MessageDigest digest = getSHA1Digest();
+        digest.update(data);
+        final byte res[] = digest.digest();
+        return res;
+    }
+
     static String bytesToHexString(final byte[] input) {
         final StringBuffer buf = new StringBuffer();
         for (final byte b : input) {
@@ -258,4 +297,12 @@ class Utils {
         }
         return Integer.parseInt(b);
     }
+
+    static long getLongProperty(final String pnm, final long deflt) {
+        final String b = System.getProperty(pnm);
+        if (b == null) {
+            return deflt;
+        }
+        return Long.parseLong(b);
+    }
 }
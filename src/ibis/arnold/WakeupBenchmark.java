@@ -0,0 +1,222 @@
+package ibis.arnold;
+
+import java.util.Arrays;
+
+/**
+ * A small program that compares the wake latency of a monitor with
+ * <code>wait()</code> and <code>notifyAll()</code>, as the engine and the
+ * transmitter used to do, with that of a <code>WakeupSignal</code>. Two
+ * threads wake each other in turn; for every wakeup the time from the signal
+ * to the moment the woken thread runs is recorded. Then a busy consumer that
+ * holds its lock while it works, as the engine does, is woken by several
+ * producers, and the time a producer spends in the wakeup call is reported.
+ * 
+ * @author Kees van Reeuwijk
+ * 
+ */
+class WakeupBenchmark {
+    private static final int ROUNDS = 200000;
+    private static final int WARMUP_ROUNDS = 20000;
+
+    /** The work in ns a thread does after it is woken up. */
+    private static final long WORK = 2000;
+
+    private static abstract class Waker {
+        /** The time in ns of the last signal. */
+        volatile long signalTime;
+
+        abstract void signal(int side);
+
+        abstract void await(int side);
+    }
+
+    private static class MonitorWaker extends Waker {
+        private final boolean flags[] = new boolean[2];
+
+        @Override
+        synchronized void signal(final int side) {
+            signalTime = System.nanoTime();
+            flags[side] = true;
+            notifyAll();
+        }
+
+        @Override
+        synchronized void await(final int side) {
+            while (!flags[side]) {
+                try {
+                    wait(Settings.MAXIMAL_ENGINE_SLEEP_INTERVAL);
+                } catch (final InterruptedException e) {
+                    // Ignore.
+                }
+            }
+            flags[side] = false;
+        }
+    }
+
+    private static class SignalWaker extends Waker {
+        private final WakeupSignal signals[] = new WakeupSignal[2];
+
+        void setOwner(final int side, final Thread t) {
+            signals[side] = new WakeupSignal(t);
+        }
+
+        @Override
+        void signal(final int side) {
+            signalTime = System.nanoTime();
+            signals[side].signal();
+        }
+
+        @Override
+        void await(final int side) {
+            while (!signals[side].await(Settings.MAXIMAL_ENGINE_SLEEP_INTERVAL)) {
+                // Nothing.
+            }
+        }
+    }
+
+    private static void spin(final long ns) {
+        final long end = System.nanoTime() + ns;
+        while (System.nanoTime() < end) {
+            // Busy.
+        }
+    }
+
+    private static class Player extends Thread {
+        private final Waker waker;
+        private final int side;
+        final long latencies[] = new long[ROUNDS];
+
+        Player(final Waker waker, final int side) {
+            this.waker = waker;
+            this.side = side;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            for (int i = 0; i < ROUNDS; i++) {
+                if (side == 1 || i > 0) {
+                    waker.await(side);
+                    latencies[i] = System.nanoTime() - waker.signalTime;
+                }
+                spin(WORK);
+                waker.signal(1 - side);
+            }
+        }
+    }
+
+    private static void run(final String label, final Waker waker,
+            final Player a, final Player b) throws InterruptedException {
+        final long start = System.nanoTime();
+        a.start();
+        b.start();
+        a.join();
+        b.join();
+        final long time = System.nanoTime() - start;
+        final long l[] = Arrays.copyOfRange(b.latencies, WARMUP_ROUNDS,
+                ROUNDS);
+        Arrays.sort(l);
+        long sum = 0;
+        for (final long v : l) {
+            sum += v;
+        }
+        System.out.println(String.format(
+                "%-8s round trip %6.2f us  wake latency mean %6.2f us"
+                        + " median %6.2f us  99%% %7.2f us", label,
+                1e-3 * time / ROUNDS, 1e-3 * sum / l.length,
+                1e-3 * l[l.length / 2], 1e-3 * l[(99 * l.length) / 100]));
+    }
+
+    private static void runMonitor() throws InterruptedException {
+        final MonitorWaker w = new MonitorWaker();
+        run("monitor", w, new Player(w, 0), new Player(w, 1));
+    }
+
+    private static void runSignal() throws InterruptedException {
+        final SignalWaker w = new SignalWaker();
+        final Player a = new Player(w, 0);
+        final Player b = new Player(w, 1);
+        w.setOwner(0, a);
+        w.setOwner(1, b);
+        run("signal", w, a, b);
+    }
+
+    /**
+     * A consumer that, like the engine, does its work while it holds its own
+     * lock, and a number of producers that wake it up after every event.
+     * Returns the mean time in ns a producer spends in waking the consumer.
+     */
+    private static double runContended(final boolean useSignal)
+            throws InterruptedException {
+        final int producers = 3;
+        final int events = 100000;
+        final Object lock = new Object();
+        final boolean stop[] = new boolean[1];
+        final Thread consumer = new Thread() {
+            @Override
+            public void run() {
+                while (true) {
+                    synchronized (lock) {
+                        if (stop[0]) {
+                            return;
+                        }
+                        spin(WORK);
+                    }
+                    Thread.yield();
+                }
+            }
+        };
+        final WakeupSignal signal = new WakeupSignal(consumer);
+        final long wakeTimes[] = new long[producers];
+        final Thread threads[] = new Thread[producers];
+        for (int i = 0; i < producers; i++) {
+            final int ix = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    long t = 0;
+                    for (int e = 0; e < events; e++) {
+                        spin(WORK);
+                        final long start = System.nanoTime();
+                        if (useSignal) {
+                            signal.signal();
+                        } else {
+                            synchronized (lock) {
+                                lock.notifyAll();
+                            }
+                        }
+                        t += System.nanoTime() - start;
+                    }
+                    wakeTimes[ix] = t;
+                }
+            };
+        }
+        consumer.setDaemon(true);
+        consumer.start();
+        for (final Thread t : threads) {
+            t.start();
+        }
+        long total = 0;
+        for (int i = 0; i < producers; i++) {
+            threads[i].join();
+            total += wakeTimes[i];
+        }
+        synchronized (lock) {
+            stop[0] = true;
+        }
+        consumer.join();
+        return (double) total / (producers * events);
+    }
+
+    public static void main(final String args[]) throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            runMonitor();
+            runSignal();
+        }
+        for (int i = 0; i < 3; i++) {
+            System.out.println(String.format(
+                    "busy consumer: wakeup call monitor %7.2f us  signal %7.2f us",
+                    1e-3 * runContended(false), 1e-3 * runContended(true)));
+        }
+    }
+}
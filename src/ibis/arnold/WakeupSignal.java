@@ -0,0 +1,109 @@
+package ibis.arnold;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An event signal for one thread that waits for work. Any thread can signal
+ * the event; the owner thread parks until the event is signalled or a
+ * deadline passes. A signal is remembered until the owner consumes it, so a
+ * signal that arrives while the owner is still busy is not lost, and only the
+ * first signal after a wakeup unparks the owner.
+ * <p>
+ * The time between the first signal and the moment a parked owner continues
+ * is recorded as the wake latency.
+ * 
+ * @author Kees van Reeuwijk
+ * 
+ */
+class WakeupSignal {
+    private final Thread owner;
+    private final AtomicBoolean signalled = new AtomicBoolean(false);
+    private volatile long signalTime;
+
+    // The fields below are only accessed by the owner, or under the lock.
+    private final TimeStatistics latencyStatistics = new TimeStatistics();
+    private long parks = 0;
+    private long spuriousWakeups = 0;
+
+    /**
+     * @param owner
+     *            The thread that waits for this signal.
+     */
+    WakeupSignal(final Thread owner) {
+        this.owner = owner;
+    }
+
+    /**
+     * Signals the owner that there is work to do. This method doesn't block,
+     * and can be called by any thread.
+     */
+    void signal() {
+        if (!signalled.get()) {
+            signalTime = System.nanoTime();
+            if (signalled.compareAndSet(false, true)) {
+                LockSupport.unpark(owner);
+            }
+        }
+    }
+
+    /**
+     * Waits until the signal is given, or until the given deadline. Must only
+     * be called by the owner thread.
+     * 
+     * @param deadline
+     *            The deadline in ms since the epoch, or
+     *            <code>Long.MAX_VALUE</code> to wait without deadline.
+     * @return <code>true</code> iff the signal was given.
+     */
+    boolean awaitUntil(final long deadline) {
+        boolean parked = false;
+        while (!signalled.getAndSet(false)) {
+            parked = true;
+            if (deadline == Long.MAX_VALUE) {
+                LockSupport.park(this);
+            } else {
+                final long timeout = deadline - System.currentTimeMillis();
+                if (timeout <= 0) {
+                    return false;
+                }
+                LockSupport.parkNanos(this, timeout * 1000000L);
+            }
+            // Interrupts are not used to stop our threads; ignore them.
+            Thread.interrupted();
+            synchronized (this) {
+                parks++;
+                if (!signalled.get() && System.currentTimeMillis() < deadline) {
+                    spuriousWakeups++;
+                }
+            }
+        }
+        if (parked) {
+            // Only a signal that ended a park has a meaningful latency.
+            final long latency = System.nanoTime() - signalTime;
+            synchronized (this) {
+                latencyStatistics.registerSample(1e-9 * Math.max(0, latency));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Waits until the signal is given, or until the given time has passed.
+     * Must only be called by the owner thread.
+     * 
+     * @param timeout
+     *            The maximal time to wait in ms.
+     * @return <code>true</code> iff the signal was given.
+     */
+    boolean await(final long timeout) {
+        return awaitUntil(System.currentTimeMillis() + timeout);
+    }
+
+    synchronized void printStatistics(final PrintStream s, final String label) {
+        s.println(label + ": " + parks + " parks, " + spuriousWakeups
+                + " spurious wakeups");
+        latencyStatistics.printStatistics(s, "  " + label + " wake latency");
+    }
+}
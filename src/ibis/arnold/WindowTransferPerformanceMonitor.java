@@ -19,9 +19,9 @@ class WindowTransferPerformanceMonitor implements TransferPerformanceMonitor {
         private final long value;
         private final long moment;
 
-        private Sample(final long value) {
+        private Sample(final long value, final long moment) {
             this.value = value;
-            this.moment = System.currentTimeMillis();
+            this.moment = moment;
         }
     }
 
@@ -37,8 +37,8 @@ class WindowTransferPerformanceMonitor implements TransferPerformanceMonitor {
     }
 
     @SuppressWarnings("synthetic-access")
-    private void removeObsoleteSamples() {
-        final long cutoffTime = System.currentTimeMillis() - windowTime;
+    private void removeObsoleteSamples(final long now) {
+        final long cutoffTime = now - windowTime;
         while (!samples.isEmpty()) {
             final Sample s = samples.getFirst();
             if (s.moment > cutoffTime) {
@@ -50,20 +50,28 @@ class WindowTransferPerformanceMonitor implements TransferPerformanceMonitor {
     }
 
     @SuppressWarnings("synthetic-access")
-    @Override
-    public void registerTransfer(final long size) {
-        samples.add(new Sample(size));
+    void registerTransfer(final long size, final long now) {
+        samples.add(new Sample(size, now));
         sum += size;
-        removeObsoleteSamples();
+        removeObsoleteSamples(now);
         sampleCount++;
     }
 
     @Override
-    public double estimatePerformance() {
-        removeObsoleteSamples();
+    public void registerTransfer(final long size) {
+        registerTransfer(size, System.currentTimeMillis());
+    }
+
+    double estimatePerformance(final long now) {
+        removeObsoleteSamples(now);
         return sum / (1e-3 * windowTime);
     }
 
+    @Override
+    public double estimatePerformance() {
+        return estimatePerformance(System.currentTimeMillis());
+    }
+
     @Override
     public void PrintStatistics(final String name, final PrintStream s) {
         s.println(name + ": " + sampleCount + " samples");
@@ -20,12 +20,33 @@ public class AllTests {
         final TestSuite suite = new TestSuite("Tests for Arnold");
         // $JUnit-BEGIN$
         suite.addTestSuite(PieceRankerTest.class);
+        suite.addTestSuite(PieceSetTest.class);
+        suite.addTestSuite(RankedPeerListTest.class);
+        suite.addTestSuite(RangeRequestTest.class);
+        suite.addTestSuite(CatalogTrackerTest.class);
+        suite.addTestSuite(HaveBatcherTest.class);
+        suite.addTestSuite(MessageStatisticsTest.class);
+        suite.addTestSuite(ReceivedMessageQueueTest.class);
+        suite.addTestSuite(StreamingWindowTest.class);
         suite.addTestSuite(UtilsTest.class);
         suite.addTestSuite(InspectionTest.class);
         suite.addTestSuite(OutstandingRequestTest.class);
         suite.addTestSuite(SharedFileTest.class);
         suite.addTestSuite(SharedFileByteNumberingTest.class);
+        suite.addTestSuite(SharedFileStressTest.class);
+        suite.addTestSuite(MappedSharedFileTest.class);
+        suite.addTestSuite(MemorySharedFileTest.class);
+        suite.addTestSuite(BuildJorrentFileTest.class);
+        suite.addTestSuite(JorrentFileTest.class);
+        suite.addTestSuite(PieceValidityFileTest.class);
+        suite.addTestSuite(CachingSharedFileTest.class);
+        suite.addTestSuite(ChunkBufferPoolTest.class);
+        suite.addTestSuite(ChunkUploaderTest.class);
+        suite.addTestSuite(TimerWheelTest.class);
+        suite.addTestSuite(WakeupSignalTest.class);
+        suite.addTestSuite(PieceWriterTest.class);
         suite.addTestSuite(IbisSerializationTests.class);
+        suite.addTestSuite(TransferPerformanceMonitorTest.class);
         suite.addTestSuite(WindowTransferPerformanceMonitorTest.class);
         // $JUnit-END$
         return suite;
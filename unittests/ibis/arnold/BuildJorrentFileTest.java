@@ -0,0 +1,81 @@
+package ibis.arnold;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * Tests for the construction of jorrent files.
+ * 
+ * @author Kees van Reeuwijk.
+ */
+public class BuildJorrentFileTest extends TestCase {
+
+    private static void assertDigests(final byte data[], final File f,
+            final int pieceSize, final int threads) throws IOException,
+            NoSuchAlgorithmException {
+        final JorrentInfo info = BuildJorrentFile.buildJorrentInfo(f,
+                pieceSize, threads);
+        assertEquals(pieceSize, info.pieceSize);
+        assertEquals(data.length, info.length);
+        final int pieces = Utils.divideRoundUp(data.length, pieceSize);
+        assertEquals(pieces, info.pieceDigests.size());
+        for (int i = 0; i < pieces; i++) {
+            final int start = i * pieceSize;
+            final int end = Math.min(start + pieceSize, data.length);
+            final byte ref[] = Utils.computeSHA1(Arrays.copyOfRange(data,
+                    start, end));
+            assertTrue("Digest of piece " + i, info.pieceDigests.matches(i,
+                    ref));
+            for (int off = start; off < end; off += Settings.CHUNK_SIZE) {
+                final int len = Math.min(Settings.CHUNK_SIZE, end - off);
+                assertTrue(info.chunkDigests.isValidBlock(i, (off - start)
+                        / Settings.CHUNK_SIZE, data, off, len));
+            }
+        }
+    }
+
+    /**
+     * @throws IOException
+     *             Thrown if File access fails.
+     * @throws NoSuchAlgorithmException
+     *             Thrown if the SHA-1 digest algorithm is unknown.
+     * 
+     */
+    @Test
+    public void testBuildJorrentInfo() throws NoSuchAlgorithmException,
+            IOException {
+        final File f = File.createTempFile("Arnold", "test");
+        final byte data[] = new byte[11 * Settings.CHUNK_SIZE + 123];
+        new Random(42).nextBytes(data);
+        final FileOutputStream s = new FileOutputStream(f);
+        s.write(data);
+        s.close();
+        assertDigests(data, f, Settings.CHUNK_SIZE, 1);
+        assertDigests(data, f, Settings.CHUNK_SIZE, 4);
+        assertDigests(data, f, 2 * Settings.CHUNK_SIZE, 3);
+        assertDigests(data, f, Settings.PIECE_SIZE, 2);
+        assertTrue(f.delete());
+    }
+
+    /**
+     * 
+     */
+    @Test
+    public void testAutomaticPieceSize() {
+        assertEquals(Settings.PIECE_SIZE, BuildJorrentFile
+                .computeAutomaticPieceSize(1000));
+        final long large = 50L * 1000 * 1000 * 1000;
+        final int pieceSize = BuildJorrentFile.computeAutomaticPieceSize(large);
+        assertEquals(0, pieceSize % Settings.PIECE_SIZE);
+        assertTrue(pieceSize > Settings.PIECE_SIZE);
+        assertTrue(Utils.divideRoundUp(large, pieceSize) <= 2 * 2048);
+    }
+}
@@ -0,0 +1,111 @@
+package ibis.arnold;
+
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * Tests for the read cache of a shared file.
+ * 
+ * @author Kees van Reeuwijk.
+ */
+public class CachingSharedFileTest extends TestCase {
+    private static final int PIECE_SIZE = 4 * Settings.CHUNK_SIZE;
+
+    private static void readChunk(final CachingSharedFile f,
+            final int piece, final int offset) throws IOException {
+        final Chunk c = new Chunk(piece, offset, Settings.CHUNK_SIZE);
+        final byte data[] = f.readChunk(c);
+        final byte ref[] = new byte[Settings.CHUNK_SIZE];
+        Arrays.fill(ref, (byte) piece);
+        assertTrue(Arrays.equals(ref, data));
+    }
+
+    private static void read(final CachingSharedFile f, final int piece)
+            throws IOException {
+        readChunk(f, piece, 0);
+    }
+
+    /** Reads an entire piece, chunk by chunk, as a peer does. */
+    private static void readPiece(final CachingSharedFile f, final int piece)
+            throws IOException {
+        for (int offset = 0; offset < PIECE_SIZE; offset += Settings.CHUNK_SIZE) {
+            readChunk(f, piece, offset);
+        }
+    }
+
+    /**
+     * @throws IOException
+     *             Thrown if the shared file cannot be read.
+     * @throws NoSuchAlgorithmException
+     *             Thrown if the SHA-1 digest algorithm is unknown.
+     */
+    @Test
+    public void testCache() throws IOException, NoSuchAlgorithmException {
+        final DummySharedFile file = new DummySharedFile(PIECE_SIZE,
+                20L * PIECE_SIZE, null, Settings.DUMMY_INNER_BLOCKSIZE);
+        // Room for five pieces, four of them protected.
+        final CachingSharedFile f = new CachingSharedFile(file,
+                5L * PIECE_SIZE);
+        read(f, 0);
+        read(f, 0);
+        read(f, 1);
+        read(f, 1);
+        assertEquals(2, f.getHits());
+        assertEquals(2, f.getMisses());
+
+        // A scan over many pieces that are only read once ...
+        for (int piece = 2; piece < 20; piece++) {
+            read(f, piece);
+        }
+        assertEquals(20, f.getMisses());
+        assertTrue(f.getEvictions() > 0);
+        assertTrue(f.getCachedBytes() <= 5L * PIECE_SIZE);
+
+        // ... doesn't evict the pieces that were read repeatedly.
+        read(f, 0);
+        read(f, 1);
+        assertEquals(4, f.getHits());
+        assertEquals(20, f.getMisses());
+        read(f, 2);
+        assertEquals(21, f.getMisses());
+    }
+
+    /**
+     * A sequential scan that reads every piece entirely doesn't promote the
+     * pieces it reads.
+     * 
+     * @throws IOException
+     *             Thrown if the shared file cannot be read.
+     * @throws NoSuchAlgorithmException
+     *             Thrown if the SHA-1 digest algorithm is unknown.
+     */
+    @Test
+    public void testScanOfWholePieces() throws IOException,
+            NoSuchAlgorithmException {
+        final DummySharedFile file = new DummySharedFile(PIECE_SIZE,
+                20L * PIECE_SIZE, null, Settings.DUMMY_INNER_BLOCKSIZE);
+        final CachingSharedFile f = new CachingSharedFile(file,
+                5L * PIECE_SIZE);
+        readPiece(f, 0);
+        readPiece(f, 0);
+        readPiece(f, 1);
+        readPiece(f, 1);
+        assertEquals(2, f.getMisses());
+        for (int piece = 2; piece < 20; piece++) {
+            readPiece(f, piece);
+        }
+        assertEquals(20, f.getMisses());
+
+        // The pieces that were requested twice are still cached.
+        final long hits = f.getHits();
+        readPiece(f, 0);
+        readPiece(f, 1);
+        assertEquals(20, f.getMisses());
+        assertEquals(hits + 8, f.getHits());
+    }
+}
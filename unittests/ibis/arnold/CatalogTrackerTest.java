@@ -0,0 +1,114 @@
+package ibis.arnold;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * Tests for full and delta catalogs.
+ * 
+ * @author Kees van Reeuwijk.
+ */
+public class CatalogTrackerTest extends TestCase {
+
+    /**
+     * 
+     */
+    @Test
+    public void testDeltaCatalog() {
+        final CatalogTracker sender = new CatalogTracker();
+        final CatalogTracker receiver = new CatalogTracker();
+        final PieceSet known = new PieceSet(1000);
+        known.set(3);
+        known.set(500);
+
+        final Message first = sender.createCatalogMessage(null, known);
+        assertTrue(first instanceof BitSetMessage);
+        PieceSet received = receiver.registerCatalog(null,
+                (BitSetMessage) first);
+        assertEquals(2, received.cardinality());
+
+        // Later changes to our pieces don't affect a queued catalog.
+        known.set(4);
+        assertEquals(2, ((BitSetMessage) first).bits.cardinality());
+
+        // A piece that was announced with a have message.
+        known.set(5);
+        sender.registerPiece(null, 5);
+        receiver.registerPiece(null, 5);
+
+        known.set(999);
+        final Message second = sender.createCatalogMessage(null, known);
+        assertTrue(second instanceof BitSetDeltaMessage);
+        final BitSetDeltaMessage delta = (BitSetDeltaMessage) second;
+        assertEquals(2, delta.addedBits.cardinality());
+        assertTrue(delta.addedBits.get(4));
+        assertTrue(delta.addedBits.get(999));
+        received = receiver.registerDelta(null, delta);
+        assertEquals(5, received.cardinality());
+        for (final int piece : known) {
+            assertTrue(received.get(piece));
+        }
+
+        final BitSetDeltaMessage empty = (BitSetDeltaMessage) sender
+                .createCatalogMessage(null, known);
+        assertTrue(empty.addedBits.isEmpty());
+        assertEquals(5, receiver.registerDelta(null, empty).cardinality());
+
+        // After the peer has left, it gets a full catalog again.
+        sender.removePeer(null);
+        final Message third = sender.createCatalogMessage(null, known);
+        assertTrue(third instanceof BitSetMessage);
+    }
+
+    /**
+     * A delta that overtakes the catalog it is relative to doesn't make the
+     * receiver forget pieces, and makes it ask for a full catalog.
+     */
+    @Test
+    public void testDeltaBeforeBase() {
+        final CatalogTracker sender = new CatalogTracker();
+        final CatalogTracker receiver = new CatalogTracker();
+        final PieceSet known = new PieceSet(100);
+        known.set(1);
+        final BitSetMessage first = (BitSetMessage) sender
+                .createCatalogMessage(null, known);
+        receiver.registerCatalog(null, first);
+
+        known.set(2);
+        final BitSetDeltaMessage base = (BitSetDeltaMessage) sender
+                .createCatalogMessage(null, known);
+        known.set(3);
+        final BitSetDeltaMessage delta = (BitSetDeltaMessage) sender
+                .createCatalogMessage(null, known);
+
+        // The second delta arrives first.
+        PieceSet received = receiver.registerDelta(null, delta);
+        assertTrue(received.get(1));
+        assertTrue(received.get(3));
+        assertTrue(receiver.takeResyncRequest(null));
+        assertFalse(receiver.takeResyncRequest(null));
+
+        // The delayed delta adds its pieces, and doesn't ask again.
+        received = receiver.registerDelta(null, base);
+        assertEquals(3, received.cardinality());
+        assertFalse(receiver.takeResyncRequest(null));
+
+        // A delayed old full catalog doesn't remove pieces either.
+        received = receiver.registerCatalog(null, first);
+        assertEquals(3, received.cardinality());
+
+        // The sender answers with a full catalog, and later deltas fit.
+        known.set(4);
+        final BitSetMessage full = (BitSetMessage) sender
+                .createFullCatalogMessage(null, known);
+        assertTrue(full.serial > delta.serial);
+        assertEquals(4, receiver.registerCatalog(null, full).cardinality());
+        known.set(5);
+        final BitSetDeltaMessage next = (BitSetDeltaMessage) sender
+                .createCatalogMessage(null, known);
+        assertEquals(1, next.addedBits.cardinality());
+        assertEquals(5, receiver.registerDelta(null, next).cardinality());
+        assertFalse(receiver.takeResyncRequest(null));
+    }
+}
@@ -0,0 +1,105 @@
+package ibis.arnold;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * Tests for the chunk buffer pool and pooled piece messages.
+ *
+ * @author Kees van Reeuwijk.
+ */
+public class ChunkBufferPoolTest extends TestCase {
+
+    /** */
+    @Test
+    public void testReuse() {
+        final ChunkBufferPool pool = new ChunkBufferPool(100, 1);
+        final ByteBuffer a = pool.get(50);
+        assertEquals(50, a.limit());
+        final ByteBuffer b = pool.get(100);
+        pool.release(a);
+        pool.release(b);
+        // Only one free buffer is kept.
+        assertEquals(1, pool.getFreeBuffers());
+        final ByteBuffer c = pool.get(80);
+        assertSame(a, c);
+        assertEquals(0, c.position());
+        assertEquals(80, c.limit());
+        // Oversized buffers are allocated, but not kept.
+        final ByteBuffer d = pool.get(200);
+        assertEquals(200, d.capacity());
+        pool.release(d);
+        assertEquals(0, pool.getFreeBuffers());
+        assertEquals(3, pool.getAllocations());
+        assertEquals(1, pool.getReuses());
+    }
+
+    /**
+     * @throws IOException
+     *             Thrown if serialization fails.
+     * @throws ClassNotFoundException
+     *             Thrown if deserialization fails.
+     */
+    @Test
+    public void testPooledPieceMessage() throws IOException,
+            ClassNotFoundException {
+        final ChunkBufferPool pool = new ChunkBufferPool(16, 4);
+        final ByteBuffer buf = pool.get(5);
+        buf.put(new byte[] { 1, 2, 3, 4, 5 });
+        buf.flip();
+        final PieceMessage msg = new PieceMessage(null, 7, 32, buf, pool);
+        assertEquals(5, msg.getDataLength());
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        final ObjectOutputStream out = new ObjectOutputStream(bos);
+        out.writeObject(msg);
+        out.close();
+        msg.messageSent();
+        assertEquals(1, pool.getFreeBuffers());
+        final ObjectInputStream in = new ObjectInputStream(
+                new ByteArrayInputStream(bos.toByteArray()));
+        final PieceMessage res = (PieceMessage) in.readObject();
+        assertEquals(7, res.piece);
+        assertEquals(32, res.offset);
+        assertTrue(Arrays.equals(new byte[] { 1, 2, 3, 4, 5 }, res.data));
+    }
+
+    /**
+     * @throws IOException
+     *             Thrown if File access fails.
+     * @throws NoSuchAlgorithmException
+     *             Thrown if the SHA-1 digest algorithm is unknown.
+     */
+    @Test
+    public void testBufferRead() throws IOException, NoSuchAlgorithmException {
+        final File f = File.createTempFile("Arnold", "test");
+        final long size = Settings.PIECE_SIZE + 100;
+        final SharedFile sf = new SharedFile(f, Settings.PIECE_SIZE, size,
+                new PieceDigests(new byte[2][20]));
+        sf.writeChunk(1, 0, "last piece".getBytes());
+        final ChunkBufferPool pool = new ChunkBufferPool(
+                Settings.CHUNK_SIZE, 4);
+        // The chunk is truncated to the end of the file.
+        final Chunk chunk = new Chunk(1, 5, Settings.CHUNK_SIZE);
+        final ByteBuffer buf = pool.get(chunk.size);
+        sf.readChunk(chunk, buf);
+        assertEquals(95, buf.remaining());
+        final byte data[] = new byte[buf.remaining()];
+        buf.get(data);
+        assertTrue(Arrays.equals(sf.readChunk(chunk), data));
+        assertEquals("piece", new String(data, 0, 5));
+        sf.close();
+        assertTrue(PieceValidityFile.getValidityFile(f).delete());
+        assertTrue(f.delete());
+    }
+}
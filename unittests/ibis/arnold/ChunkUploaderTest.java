@@ -0,0 +1,88 @@
+package ibis.arnold;
+
+import ibis.ipl.IbisIdentifier;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * Tests for the uploader threads.
+ * 
+ * @author Kees van Reeuwijk.
+ */
+public class ChunkUploaderTest extends TestCase {
+    private static class DummyEngine implements EngineInterface {
+        int wakeups = 0;
+
+        @Override
+        public void cancelPieceDownload(final IbisIdentifier peer,
+                final int piece) {
+            // Nothing to do.
+        }
+
+        @Override
+        public void setSuspect(final IbisIdentifier destination) {
+            // Nothing to do.
+        }
+
+        @Override
+        public void startPieceDownload(final IbisIdentifier peer,
+                final int piece) {
+            // Nothing to do.
+        }
+
+        @Override
+        public synchronized void wakeEngineThread() {
+            wakeups++;
+        }
+    }
+
+    private static class CollectingQueue implements DataQueueInterface {
+        final ArrayList<PieceMessage> messages = new ArrayList<PieceMessage>();
+
+        @Override
+        public synchronized void addToDataQueue(
+                final IbisIdentifier destination, final Message msg) {
+            messages.add((PieceMessage) msg);
+        }
+    }
+
+    /**
+     * @throws NoSuchAlgorithmException
+     *             Thrown if the digest algorithm of the dummy file is unknown.
+     */
+    @Test
+    public void testConcurrentUpload() throws NoSuchAlgorithmException {
+        final int requests = 200;
+        final SharedFileInterface file = new DummySharedFile(
+                Settings.PIECE_SIZE, 100L * Settings.PIECE_SIZE, null,
+                Settings.DUMMY_INNER_BLOCKSIZE);
+        final ChunkBufferPool pool = new ChunkBufferPool(Settings.CHUNK_SIZE,
+                8);
+        final CollectingQueue queue = new CollectingQueue();
+        final DummyEngine engine = new DummyEngine();
+        final ChunkUploader uploader = new ChunkUploader(file, pool,
+                new Credit(), queue, engine, 4, 2);
+        uploader.start();
+        for (int i = 0; i < requests; i++) {
+            uploader.add(new ChunkRequest(new Chunk(i % 100, (i / 100)
+                    * Settings.CHUNK_SIZE, Settings.CHUNK_SIZE), null));
+        }
+        uploader.setStopped();
+        assertTrue(uploader.needsMoreRequests());
+        assertEquals(requests, queue.messages.size());
+        assertEquals(requests, engine.wakeups);
+        final HashSet<Integer> seen = new HashSet<Integer>();
+        for (final PieceMessage m : queue.messages) {
+            assertEquals(Settings.CHUNK_SIZE, m.getDataLength());
+            final int i = m.piece + 100 * (m.offset / Settings.CHUNK_SIZE);
+            assertTrue(seen.add(i));
+            m.messageSent();
+        }
+    }
+}
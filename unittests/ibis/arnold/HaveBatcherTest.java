@@ -0,0 +1,60 @@
+package ibis.arnold;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * Tests for batched have announcements.
+ * 
+ * @author Kees van Reeuwijk.
+ */
+public class HaveBatcherTest extends TestCase {
+
+    /**
+     * 
+     */
+    @Test
+    public void testFullBatch() {
+        final HaveBatcher batcher = new HaveBatcher(3, 1000);
+        assertNull(batcher.add(null, 7, 0));
+        assertNull(batcher.add(null, 8, 10));
+        assertEquals(1000, batcher.getNextDeadline());
+        final Message msg = batcher.add(null, 9, 20);
+        assertTrue(msg instanceof HaveBatchMessage);
+        final int pieces[] = ((HaveBatchMessage) msg).pieces;
+        assertEquals(3, pieces.length);
+        assertEquals(7, pieces[0]);
+        assertEquals(9, pieces[2]);
+        assertEquals(Long.MAX_VALUE, batcher.getNextDeadline());
+    }
+
+    /**
+     * 
+     */
+    @Test
+    public void testExpiredBatch() {
+        final HaveBatcher batcher = new HaveBatcher(10, 50);
+        final SendQueue queue = new SendQueue();
+        assertNull(batcher.add(null, 42, 100));
+        batcher.flushExpired(149, queue);
+        assertTrue(queue.isEmpty());
+        batcher.flushExpired(150, queue);
+        assertEquals(1, queue.size());
+        final Message msg = queue.getNext().msg;
+        assertTrue(msg instanceof HaveMessage);
+        assertEquals(42, ((HaveMessage) msg).piece);
+        assertNull(batcher.flush(null, 200));
+    }
+
+    /**
+     * 
+     */
+    @Test
+    public void testImmediate() {
+        final HaveBatcher batcher = new HaveBatcher(10, 0);
+        final Message msg = batcher.add(null, 3, 0);
+        assertTrue(msg instanceof HaveMessage);
+        assertEquals(Long.MAX_VALUE, batcher.getNextDeadline());
+    }
+}
@@ -0,0 +1,194 @@
+package ibis.arnold;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * Tests for reading and writing jorrent files.
+ * 
+ * @author Kees van Reeuwijk.
+ */
+public class JorrentFileTest extends TestCase {
+    private static final int PIECE_SIZE = 2 * Settings.CHUNK_SIZE;
+
+    private static byte[][] buildDigests(final int n) {
+        final Random rng = new Random(n);
+        final byte res[][] = new byte[n][PieceDigests.DIGEST_SIZE];
+        for (final byte d[] : res) {
+            rng.nextBytes(d);
+        }
+        return res;
+    }
+
+    /**
+     * @throws IOException
+     *             Thrown if File access fails.
+     * @throws NoSuchAlgorithmException
+     *             Thrown if the SHA-1 digest algorithm is unknown.
+     */
+    @Test
+    public void testBinaryFormat() throws IOException,
+            NoSuchAlgorithmException {
+        final File data = File.createTempFile("Arnold", "test");
+        final byte contents[] = new byte[5 * PIECE_SIZE + 77];
+        new Random(12).nextBytes(contents);
+        final FileOutputStream s = new FileOutputStream(data);
+        s.write(contents);
+        s.close();
+        final JorrentInfo info = BuildJorrentFile.buildJorrentInfo(data,
+                PIECE_SIZE, 2);
+        final File f = File.createTempFile("Arnold", "jorrent");
+        JorrentFile.write(f, info);
+        final JorrentInfo res = JorrentFile.read(f);
+        assertEquals(PIECE_SIZE, res.pieceSize);
+        assertEquals(contents.length, res.length);
+        assertEquals(6, res.pieceDigests.size());
+        for (int piece = 0; piece < 6; piece++) {
+            assertTrue(res.pieceDigests.matches(piece, info.pieceDigests
+                    .get(piece)));
+        }
+        assertEquals(Settings.CHUNK_SIZE, res.chunkDigests.blockSize);
+        assertEquals(2, res.chunkDigests.blocksPerPiece);
+        assertTrue(res.chunkDigests.isValidBlock(2, 1, contents, 5
+                * Settings.CHUNK_SIZE, Settings.CHUNK_SIZE));
+        assertTrue(res.chunkDigests.isValidBlock(5, 0, contents,
+                5 * PIECE_SIZE, 77));
+        assertFalse(res.chunkDigests.isValidBlock(2, 0, contents, 5
+                * Settings.CHUNK_SIZE, Settings.CHUNK_SIZE));
+        assertTrue(f.delete());
+        assertTrue(data.delete());
+    }
+
+    /**
+     * A header with a block count that doesn't match the block size is
+     * rejected.
+     * 
+     * @throws IOException
+     *             Thrown if File access fails.
+     * @throws NoSuchAlgorithmException
+     *             Thrown if the SHA-1 digest algorithm is unknown.
+     */
+    @Test
+    public void testBadBlockCount() throws IOException,
+            NoSuchAlgorithmException {
+        final File data = File.createTempFile("Arnold", "test");
+        final FileOutputStream s = new FileOutputStream(data);
+        s.write(new byte[3 * PIECE_SIZE]);
+        s.close();
+        final File f = File.createTempFile("Arnold", "jorrent");
+        JorrentFile.write(f, BuildJorrentFile.buildJorrentInfo(data,
+                PIECE_SIZE, 2));
+        final RandomAccessFile rafile = new RandomAccessFile(f, "rw");
+        // The block count follows the magic number, version, piece size,
+        // length, piece count, digest size and block size.
+        rafile.seek(32);
+        rafile.writeInt(1);
+        rafile.close();
+        try {
+            JorrentFile.read(f);
+            fail("Bad block count not detected");
+        } catch (final IOException e) {
+            // Expected.
+        }
+        assertTrue(f.delete());
+        assertTrue(data.delete());
+    }
+
+    /**
+     * @throws IOException
+     *             Thrown if File access fails.
+     * @throws NoSuchFieldException
+     *             Thrown if the serialized digests field doesn't exist.
+     * @throws IllegalAccessException
+     *             Thrown if the serialized digests field cannot be set.
+     */
+    @Test
+    public void testSerializedFormat() throws IOException,
+            NoSuchFieldException, IllegalAccessException {
+        final byte digests[][] = buildDigests(3);
+        // Build an instance as it would have been serialized by older
+        // versions of BuildJorrentFile.
+        final JorrentInfo legacy = new JorrentInfo(PIECE_SIZE,
+                3L * PIECE_SIZE, null, null);
+        final Field field = JorrentInfo.class.getDeclaredField("digests");
+        field.setAccessible(true);
+        field.set(legacy, digests);
+        final File f = File.createTempFile("Arnold", "jorrent");
+        final ObjectOutputStream out = new ObjectOutputStream(
+                new FileOutputStream(f));
+        out.writeObject(legacy);
+        out.close();
+
+        final JorrentInfo res = JorrentFile.read(f);
+        assertEquals(PIECE_SIZE, res.pieceSize);
+        assertEquals(3L * PIECE_SIZE, res.length);
+        assertNull(res.chunkDigests);
+        assertEquals(3, res.pieceDigests.size());
+        for (int piece = 0; piece < 3; piece++) {
+            assertTrue(res.pieceDigests.matches(piece, digests[piece]));
+        }
+
+        // Convert it to the binary format, in place.
+        JorrentFile.write(f, res);
+        final JorrentInfo converted = JorrentFile.read(f);
+        assertEquals(3, converted.pieceDigests.size());
+        assertTrue(converted.pieceDigests.matches(2, digests[2]));
+        assertNull(converted.chunkDigests);
+        assertTrue(f.delete());
+    }
+
+    /**
+     * Jorrent files in the serialized format with chunk digests, as written
+     * by BuildJorrentFile before the binary format existed, can be read.
+     * 
+     * @throws IOException
+     *             Thrown if File access fails.
+     * @throws NoSuchFieldException
+     *             Thrown if the serialized digests field doesn't exist.
+     * @throws IllegalAccessException
+     *             Thrown if the serialized digests field cannot be set.
+     */
+    @Test
+    public void testSerializedChunkDigests() throws IOException,
+            NoSuchFieldException, IllegalAccessException {
+        final int blockSize = Settings.CHUNK_SIZE;
+        final long length = 2L * PIECE_SIZE + blockSize;
+        // The last piece has fewer blocks.
+        final byte chunks[][][] = { buildDigests(2), buildDigests(3),
+                buildDigests(1) };
+        chunks[1] = new byte[][] { chunks[1][0], chunks[1][1] };
+        final JorrentInfo legacy = new JorrentInfo(PIECE_SIZE, length, null,
+                new ChunkDigests(blockSize, PIECE_SIZE, chunks));
+        final Field field = JorrentInfo.class.getDeclaredField("digests");
+        field.setAccessible(true);
+        field.set(legacy, buildDigests(3));
+        final File f = File.createTempFile("Arnold", "jorrent");
+        final ObjectOutputStream out = new ObjectOutputStream(
+                new FileOutputStream(f));
+        out.writeObject(legacy);
+        out.close();
+
+        final JorrentInfo res = JorrentFile.read(f);
+        assertNotNull(res.chunkDigests);
+        assertEquals(blockSize, res.chunkDigests.blockSize);
+        assertEquals(2, res.chunkDigests.blocksPerPiece);
+        assertEquals(legacy.chunkDigests.getTable(), res.chunkDigests
+                .getTable());
+
+        JorrentFile.write(f, res);
+        final JorrentInfo converted = JorrentFile.read(f);
+        assertEquals(legacy.chunkDigests.getTable(), converted.chunkDigests
+                .getTable());
+        assertTrue(f.delete());
+    }
+}
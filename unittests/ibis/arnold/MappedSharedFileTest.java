@@ -0,0 +1,103 @@
+package ibis.arnold;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * Tests for the memory-mapped shared file.
+ * 
+ * @author Kees van Reeuwijk.
+ */
+public class MappedSharedFileTest extends TestCase {
+    private void writeString(final MappedSharedFile sf, final int piece,
+            final int offset, final String s) throws IOException {
+        final byte buf[] = s.getBytes();
+        sf.writeChunk(piece, offset, buf);
+    }
+
+    private void assertString(final MappedSharedFile sf, final int piece,
+            final int offset, final String ref) throws IOException {
+        final int reflen = ref.getBytes().length;
+        final byte buf[] = sf.readChunk(piece, offset, reflen);
+        final String s = new String(buf);
+        assertEquals(ref, s);
+    }
+
+    /**
+     * @throws IOException
+     *             Thrown if File access fails.
+     * @throws NoSuchAlgorithmException
+     *             Thrown if the SHA-1 digest algorithm is unknown.
+     * 
+     */
+    @Test
+    public void testMappedSharedFile() throws NoSuchAlgorithmException,
+            IOException {
+        final File f = File.createTempFile("Arnold", "test");
+        final long size = 2 * Settings.PIECE_SIZE + Settings.PIECE_SIZE / 2;
+        final byte hashes[][] = new byte[3][20];
+        final MappedSharedFile sf = new MappedSharedFile(f,
+                Settings.PIECE_SIZE, size, new PieceDigests(hashes));
+        assertEquals(size, f.length());
+        writeString(sf, 0, 0, "test string");
+        writeString(sf, 1, 0, "chunk 1 test string");
+        writeString(sf, 2, 0, "chunk 2 test string");
+        assertString(sf, 0, 0, "test string");
+        assertString(sf, 1, 0, "chunk 1 test string");
+        assertString(sf, 2, 0, "chunk 2 test string");
+        final byte tail[] = sf.readChunk(2, Settings.PIECE_SIZE / 2 - 4,
+                Settings.CHUNK_SIZE);
+        assertEquals("Chunk is truncated to the file size", 4, tail.length);
+        sf.close();
+        assertTrue(PieceValidityFile.getValidityFile(f).delete());
+        assertTrue(f.delete());
+    }
+
+    /**
+     * @throws IOException
+     *             Thrown if File access fails.
+     * @throws NoSuchAlgorithmException
+     *             Thrown if the SHA-1 digest algorithm is unknown.
+     * 
+     */
+    @Test
+    public void testStoreAndReopen() throws NoSuchAlgorithmException,
+            IOException {
+        final File f = File.createTempFile("Arnold", "test");
+        final int pieces = 3;
+        final long size = (pieces - 1) * Settings.PIECE_SIZE + 1000;
+        final byte hashes[][] = new byte[pieces][];
+        for (int i = 0; i < pieces; i++) {
+            final int sz = i < pieces - 1 ? Settings.PIECE_SIZE : 1000;
+            hashes[i] = Utils.computeSHA1(TestPieces.build(i, sz));
+        }
+        MappedSharedFile sf = new MappedSharedFile(f, Settings.PIECE_SIZE,
+                size, new PieceDigests(hashes));
+        assertFalse(sf.isValidPiece(0));
+        assertFalse(sf.storePiece(0, TestPieces
+                .build(1, Settings.PIECE_SIZE)));
+        assertTrue(sf.storePiece(0, TestPieces.build(0, Settings.PIECE_SIZE)));
+        assertTrue(sf.storePiece(2, TestPieces.build(2, 1000)));
+        assertTrue(sf.isValidPiece(0));
+        assertFalse(sf.isValidPiece(1));
+        sf.close();
+
+        // Opening the file again should find the stored pieces.
+        sf = new MappedSharedFile(f, Settings.PIECE_SIZE, size,
+                new PieceDigests(hashes));
+        assertTrue(sf.isValidPiece(0));
+        assertFalse(sf.isValidPiece(1));
+        assertTrue(sf.isValidPiece(2));
+        assertTrue(Arrays.equals(TestPieces.build(2, 1000),
+                sf.readChunk(new Chunk(2, 0, Settings.CHUNK_SIZE))));
+        sf.close();
+        assertTrue(PieceValidityFile.getValidityFile(f).delete());
+        assertTrue(f.delete());
+    }
+}
@@ -0,0 +1,66 @@
+package ibis.arnold;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * Tests for the in-memory shared file.
+ * 
+ * @author Kees van Reeuwijk.
+ */
+public class MemorySharedFileTest extends TestCase {
+    private static final int PIECE_SIZE = 2 * Settings.CHUNK_SIZE;
+
+    /**
+     * @throws IOException
+     *             Thrown if a piece cannot be stored or read.
+     */
+    @Test
+    public void testMemorySharedFile() throws IOException {
+        final long size = 300L * PIECE_SIZE + 100;
+        // Room for two received pieces.
+        final MemorySharedFile sf = new MemorySharedFile(PIECE_SIZE, size,
+                null, 2 * PIECE_SIZE);
+        assertEquals(301, sf.getNumberOfPieces());
+        assertEquals(100, sf.getPieceSize(300));
+        assertFalse(sf.storePiece(3, TestPieces.build(4, PIECE_SIZE)));
+        assertFalse(sf.isValidPiece(3));
+        assertTrue(sf.storePiece(3, TestPieces.build(3, PIECE_SIZE)));
+        assertTrue(sf.storePiece(259, TestPieces.build(259, PIECE_SIZE)));
+        // This one doesn't fit in the arena any more.
+        assertTrue(sf.storePiece(300, TestPieces.build(300, 100)));
+        assertEquals(3, sf.getKnownPieces().cardinality());
+        for (final int piece : new int[] { 3, 259, 300 }) {
+            final Chunk chunk = new Chunk(piece, Settings.CHUNK_SIZE,
+                    Settings.CHUNK_SIZE);
+            final int length = Math.min(Settings.CHUNK_SIZE, sf
+                    .getPieceSize(piece)
+                    - Settings.CHUNK_SIZE);
+            if (length <= 0) {
+                continue;
+            }
+            final byte data[] = sf.readChunk(chunk);
+            assertTrue(Arrays.equals(TestPieces.build(piece, length), data));
+            final ByteBuffer buf = ByteBuffer.allocate(Settings.CHUNK_SIZE);
+            sf.readChunk(chunk, buf);
+            assertEquals(ByteBuffer.wrap(data), buf);
+        }
+        final byte last[] = sf.readChunk(new Chunk(300, 0, Settings.CHUNK_SIZE));
+        assertTrue(Arrays.equals(TestPieces.build(300, 100), last));
+
+        // A seeder in the same JVM serves the shared contents.
+        final MemorySharedFile seeder = new MemorySharedFile(PIECE_SIZE, size,
+                null, 0);
+        seeder.setValid();
+        assertTrue(seeder.isComplete());
+        final byte data[] = seeder.readChunk(new Chunk(257, 0,
+                Settings.CHUNK_SIZE));
+        assertTrue(Arrays.equals(TestPieces.build(257, Settings.CHUNK_SIZE),
+                data));
+    }
+}
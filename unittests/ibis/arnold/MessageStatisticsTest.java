@@ -0,0 +1,57 @@
+package ibis.arnold;
+
+import java.util.HashSet;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * Tests for the per-type message statistics.
+ * 
+ * @author Kees van Reeuwijk.
+ */
+public class MessageStatisticsTest extends TestCase {
+
+    /**
+     * 
+     */
+    @Test
+    public void testTypes() {
+        final HashSet<String> names = new HashSet<String>();
+        for (int type = 0; type < MessageType.COUNT; type++) {
+            assertTrue(names.add(MessageType.getName(type)));
+        }
+        assertEquals(MessageType.HAVE, new HaveMessage(3).getType());
+        assertEquals(MessageType.HAVE_BATCH, new HaveBatchMessage(
+                new int[] { 3 }).getType());
+        assertEquals(MessageType.CLOSE_CONNECTION,
+                new CloseConnectionMessage().getType());
+    }
+
+    /**
+     * 
+     */
+    @Test
+    public void testHistogram() {
+        final MessageStatistics s = new MessageStatistics();
+        for (int i = 0; i < 98; i++) {
+            s.registerMessage(MessageType.HAVE, 1000);
+        }
+        s.registerMessage(MessageType.HAVE, 100000);
+        s.registerMessage(MessageType.HAVE, 5000000);
+        s.registerMessage(MessageType.PIECE, 20);
+        assertEquals(100, s.getCount(MessageType.HAVE));
+        assertEquals(98 * 1000 + 100000 + 5000000,
+                s.getTotalTime(MessageType.HAVE));
+        assertEquals(1, s.getCount(MessageType.PIECE));
+        assertEquals(0, s.getCount(MessageType.CANCEL));
+
+        // The percentiles are rounded up to the next power of two.
+        assertEquals(1024, s.getPercentile(MessageType.HAVE, 0.5));
+        assertEquals(131072, s.getPercentile(MessageType.HAVE, 0.99));
+        assertEquals(5000000, s.getPercentile(MessageType.HAVE, 1.0));
+        assertEquals(20, s.getPercentile(MessageType.PIECE, 0.5));
+        assertEquals(0, s.getPercentile(MessageType.CANCEL, 0.5));
+    }
+}
@@ -71,4 +71,49 @@ public class OutstandingRequestTest extends TestCase {
         testDownloadOrder(refData, refDigest);
         testDownloadOrder(refData, refDigest);
     }
+
+    /**
+     * @throws NoSuchAlgorithmException
+     *             Thrown if the SHA1 digest algorithm is not known by this Java
+     *             implementation.
+     */
+    @Test
+    public void testIncorrectChunk() throws NoSuchAlgorithmException {
+        final byte refData[] = buildReferencePiece();
+        final byte blockDigests[][] = ChunkDigests.computeBlockDigests(
+                Settings.CHUNK_SIZE, refData, refData.length);
+        final ChunkDigests chunkDigests = new ChunkDigests(Settings.CHUNK_SIZE,
+                refData.length, new byte[][][] { blockDigests });
+        final IncompletePiece p = new IncompletePiece(null, 0, refData.length,
+                chunkDigests);
+        boolean corrupted = false;
+        int requests = 0;
+        while (!p.isComplete()) {
+            final Chunk c = p.getNextRequest();
+            assertNotNull(c);
+            requests++;
+            // The sender splits the requested range into chunks.
+            final int rangeEnd = c.offset + c.size;
+            for (int offset = c.offset; offset < rangeEnd;) {
+                final int end = Math.min(offset + Settings.CHUNK_SIZE,
+                        rangeEnd);
+                final byte data[] = Arrays.copyOfRange(refData, offset, end);
+                if (!corrupted && offset == Settings.CHUNK_SIZE) {
+                    // Corrupt the second chunk once.
+                    data[10]++;
+                    corrupted = true;
+                    assertFalse(p.addBytes(offset, data));
+                    assertFalse(p.isComplete());
+                } else {
+                    assertTrue(p.addBytes(offset, data));
+                }
+                offset = end;
+            }
+        }
+        // The piece was requested as one range, and only the corrupted chunk
+        // was requested again.
+        assertEquals(2, requests);
+        assertEquals(1, p.getIncorrectChunks());
+        assertTrue(Arrays.equals(refData, p.getPieceBytes()));
+    }
 }
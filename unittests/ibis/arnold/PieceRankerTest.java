@@ -2,6 +2,9 @@ package ibis.arnold;
 
 import ibis.arnold.PieceRanker;
 import ibis.arnold.PieceSet;
+
+import java.util.Random;
+
 import junit.framework.TestCase;
 
 import org.junit.Test;
@@ -52,4 +55,70 @@ public class PieceRankerTest extends TestCase {
         r.removeRank(1);
         assertRank(r, " 0:[2] 1:[0,3]", 2, 0, 3);
     }
+
+    /** Random count updates keep the ranking sorted by rarity. */
+    @Test
+    public void testRandomUpdates() {
+        final int n = 1000;
+        final PieceSet have = new PieceSet(n);
+        final PieceRanker r = new PieceRanker(have);
+        final int counts[] = new int[n];
+        final Random rng = new Random(42);
+        for (int step = 0; step < 20000; step++) {
+            final int piece = rng.nextInt(n);
+            if (have.get(piece)) {
+                continue;
+            }
+            final int op = rng.nextInt(10);
+            if (op < 6) {
+                r.addOccurrenceCount(piece);
+                counts[piece]++;
+            } else if (op < 9) {
+                if (counts[piece] > 0) {
+                    r.removeOccurrenceCount(piece);
+                    counts[piece]--;
+                }
+            } else {
+                r.registerCompletedPiece(piece);
+                have.set(piece);
+            }
+        }
+        assertTrue("PieceRanker is sane", r.rankingIsSane());
+        final int ranking[] = r.getRanking();
+        assertEquals(n - have.cardinality(), ranking.length);
+        for (int i = 1; i < ranking.length; i++) {
+            final int a = ranking[i - 1];
+            final int b = ranking[i];
+            assertTrue(counts[a] < counts[b]
+                    || (counts[a] == counts[b] && a < b));
+        }
+
+        // The selected piece must be one of the rarest available pieces.
+        final PieceSet available = new PieceSet(n);
+        for (int i = 0; i < n; i += 3) {
+            available.set(i);
+        }
+        int rarest = Integer.MAX_VALUE;
+        for (final int piece : available) {
+            if (!have.get(piece)) {
+                rarest = Math.min(rarest, counts[piece]);
+            }
+        }
+        final int piece = r.getBestPieceToDownload(available);
+        assertTrue(available.get(piece));
+        assertFalse(have.get(piece));
+        assertEquals(rarest, counts[piece]);
+
+        // A sparse set of available pieces.
+        final PieceSet sparse = new PieceSet(n);
+        sparse.set(ranking[ranking.length - 1]);
+        sparse.set(ranking[ranking.length - 2]);
+        final int sparsePiece = r.getBestPieceToDownload(sparse);
+        assertEquals(Math.min(counts[ranking[ranking.length - 1]],
+                counts[ranking[ranking.length - 2]]), counts[sparsePiece]);
+        r.registerDownloadStart(sparsePiece);
+        final int other = r.getBestPieceToDownload(sparse);
+        assertTrue(other != sparsePiece);
+        assertEquals(-1, r.getBestPieceToDownload(sparse, 0));
+    }
 }
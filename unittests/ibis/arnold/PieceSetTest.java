@@ -0,0 +1,240 @@
+package ibis.arnold;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * Tests for piece sets, in particular around word boundaries.
+ * 
+ * @author Kees van Reeuwijk.
+ */
+public class PieceSetTest extends TestCase {
+
+    private static PieceSet buildSet(final boolean flags[]) {
+        final PieceSet res = new PieceSet(flags.length);
+        for (int i = 0; i < flags.length; i++) {
+            res.set(i, flags[i]);
+        }
+        return res;
+    }
+
+    private static void assertSet(final boolean flags[], final PieceSet s) {
+        int n = 0;
+        for (int i = 0; i < flags.length; i++) {
+            assertEquals("Piece " + i, flags[i], s.get(i));
+            if (flags[i]) {
+                n++;
+            }
+        }
+        assertEquals(n, s.cardinality());
+        assertEquals(n == 0, s.isEmpty());
+        assertEquals(n == flags.length, s.isComplete());
+        int count = 0;
+        int prev = -1;
+        for (final int piece : s) {
+            assertTrue(piece > prev);
+            assertTrue(flags[piece]);
+            prev = piece;
+            count++;
+        }
+        assertEquals(n, count);
+    }
+
+    /**
+     * 
+     */
+    @Test
+    public void testSetAlgebra() {
+        final Random rng = new Random(3);
+        for (final int size : new int[] { 0, 1, 63, 64, 65, 200 }) {
+            final boolean a[] = new boolean[size];
+            final boolean b[] = new boolean[size];
+            for (int i = 0; i < size; i++) {
+                a[i] = rng.nextBoolean();
+                b[i] = rng.nextInt(4) == 0;
+            }
+            final PieceSet sa = buildSet(a);
+            final PieceSet sb = buildSet(b);
+            assertSet(a, sa);
+
+            final boolean and[] = new boolean[size];
+            final boolean or[] = new boolean[size];
+            final boolean inverse[] = new boolean[size];
+            boolean intersects = false;
+            for (int i = 0; i < size; i++) {
+                and[i] = a[i] && b[i];
+                or[i] = a[i] || b[i];
+                inverse[i] = !a[i];
+                intersects |= and[i];
+            }
+            final PieceSet sand = sa.clone();
+            sand.and(sb);
+            assertSet(and, sand);
+            final PieceSet sor = sa.clone();
+            sor.or(sb);
+            assertSet(or, sor);
+            assertSet(inverse, sa.getInverse());
+            assertEquals(intersects, sa.intersects(sb));
+            assertSet(a, sa);
+
+            final PieceSet complete = new PieceSet(size);
+            complete.setComplete();
+            final boolean all[] = new boolean[size];
+            Arrays.fill(all, true);
+            assertSet(all, complete);
+            assertSet(new boolean[size], complete.getInverse());
+            complete.or(sa.getInverse());
+            assertSet(all, complete);
+        }
+    }
+
+    /**
+     * 
+     */
+    @Test
+    public void testCompactString() {
+        final PieceSet s = new PieceSet(130);
+        assertEquals("{}", s.compactBitSetToString());
+        s.set(0);
+        s.set(62);
+        s.set(63);
+        s.set(64);
+        s.set(129);
+        assertEquals("{0,62-64,129}", s.compactBitSetToString());
+        s.setComplete();
+        assertEquals("{0-129}", s.compactBitSetToString());
+        s.clear(129);
+        s.clear(129);
+        assertEquals(129, s.cardinality());
+        assertEquals(-1, s.nextSetBit(129));
+    }
+
+    private static byte[] serialize(final PieceSet s) throws IOException {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        final ObjectOutputStream out = new ObjectOutputStream(bos);
+        out.writeObject(s);
+        out.close();
+        return bos.toByteArray();
+    }
+
+    private static PieceSet deserialize(final byte data[]) throws IOException,
+            ClassNotFoundException {
+        final ObjectInputStream in = new ObjectInputStream(
+                new ByteArrayInputStream(data));
+        final PieceSet res = (PieceSet) in.readObject();
+        in.close();
+        return res;
+    }
+
+    /**
+     * @throws IOException
+     *             Thrown if serialization fails.
+     * @throws ClassNotFoundException
+     *             Thrown if deserialization fails.
+     */
+    @Test
+    public void testSerialization() throws IOException,
+            ClassNotFoundException {
+        final int size = 100000;
+        final Random rng = new Random(7);
+        final boolean sparse[] = new boolean[size];
+        final boolean random[] = new boolean[size];
+        final boolean full[] = new boolean[size];
+        Arrays.fill(full, true);
+        for (int i = 0; i < 20; i++) {
+            sparse[rng.nextInt(size)] = true;
+        }
+        for (int i = 0; i < size; i++) {
+            random[i] = rng.nextBoolean();
+        }
+        full[size - 1] = false;
+        final byte sparseData[] = serialize(buildSet(sparse));
+        final byte randomData[] = serialize(buildSet(random));
+        final byte fullData[] = serialize(buildSet(full));
+        assertSet(sparse, deserialize(sparseData));
+        assertSet(random, deserialize(randomData));
+        assertSet(full, deserialize(fullData));
+        assertSet(new boolean[0], deserialize(serialize(new PieceSet(0))));
+        // The sparse and full sets use runs, the random set uses words.
+        assertTrue(sparseData.length < 200);
+        assertTrue(fullData.length < 200);
+        assertTrue(randomData.length < size / 8 + 200);
+    }
+
+    /**
+     * Serializes a set of 100 pieces with the given pieces, and replaces the
+     * bytes at the given offset of its encoding by the given bytes. The
+     * encoding starts with the size, the encoding kind and the length of the
+     * runs; the runs themselves start at offset 9.
+     */
+    private static byte[] corrupt(final int pieces[], final int offset,
+            final int... replacement) throws IOException {
+        final PieceSet set = new PieceSet(100);
+        for (final int p : pieces) {
+            set.set(p);
+        }
+        final byte data[] = serialize(set);
+        final byte header[] = { 0, 0, 0, 100, 1 };
+        int start = -1;
+        for (int i = 0; i + header.length <= data.length && start < 0; i++) {
+            if (Arrays.equals(header, Arrays.copyOfRange(data, i, i
+                    + header.length))) {
+                start = i;
+            }
+        }
+        assertTrue(start >= 0);
+        for (int i = 0; i < replacement.length; i++) {
+            data[start + offset + i] = (byte) replacement[i];
+        }
+        return data;
+    }
+
+    private static void assertRejected(final byte data[])
+            throws ClassNotFoundException {
+        try {
+            deserialize(data);
+            fail("Corrupt piece set was accepted");
+        } catch (final IOException e) {
+            // Expected.
+        }
+    }
+
+    /**
+     * Corrupt encodings from other peers are rejected with an IOException.
+     * 
+     * @throws IOException
+     *             Thrown if serialization fails.
+     * @throws ClassNotFoundException
+     *             Thrown if deserialization fails.
+     */
+    @Test
+    public void testCorruptSerialization() throws IOException,
+            ClassNotFoundException {
+        final int runs[] = { 3, 4, 5, 10, 20, 30, 40 };
+        // The uncorrupted encoding is accepted.
+        assertEquals(7, deserialize(corrupt(runs, 0)).cardinality());
+        // A negative size.
+        assertRejected(corrupt(runs, 0, 0xff, 0xff, 0xff, 0xff));
+        // A negative or huge run length.
+        assertRejected(corrupt(runs, 5, 0xff, 0xff, 0xff, 0xff));
+        assertRejected(corrupt(runs, 5, 0x7f, 0xff, 0xff, 0xff));
+        // A run beyond the end of the set.
+        assertRejected(corrupt(runs, 10, 0x7f));
+        // A value that doesn't end in the runs.
+        assertRejected(corrupt(runs, 18, 0x81));
+        // Values that would overflow the piece number.
+        assertRejected(corrupt(runs, 9, 0xff, 0xff, 0xff, 0xff, 0x07, 0xff,
+                0xff, 0xff, 0xff, 0x07));
+        // A value with too many bytes.
+        assertRejected(corrupt(runs, 9, 0xff, 0xff, 0xff, 0xff, 0xff, 0x01));
+    }
+}
@@ -0,0 +1,109 @@
+package ibis.arnold;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * Tests for the piece validity file of a shared file.
+ * 
+ * @author Kees van Reeuwijk.
+ */
+public class PieceValidityFileTest extends TestCase {
+    private static final int PIECES = 3;
+
+    private static boolean[] getValidity(final File f, final byte hashes[][],
+            final String mode) throws IOException, NoSuchAlgorithmException {
+        if (mode == null) {
+            System.clearProperty("arnold.verify");
+        } else {
+            System.setProperty("arnold.verify", mode);
+        }
+        try {
+            final SharedFile sf = new SharedFile(f, Settings.PIECE_SIZE,
+                    (long) PIECES * Settings.PIECE_SIZE,
+                    new PieceDigests(hashes));
+            final boolean res[] = new boolean[PIECES];
+            for (int i = 0; i < PIECES; i++) {
+                res[i] = sf.isValidPiece(i);
+            }
+            sf.close();
+            return res;
+        } finally {
+            System.clearProperty("arnold.verify");
+        }
+    }
+
+    /**
+     * Overwrites a byte in the given piece without changing the modification
+     * time of the file, so that only verification can notice.
+     */
+    private static void corruptPiece(final File f, final int piece)
+            throws IOException {
+        final long modificationTime = f.lastModified();
+        final RandomAccessFile rafile = new RandomAccessFile(f, "rw");
+        rafile.seek((long) piece * Settings.PIECE_SIZE + 17);
+        rafile.write(0);
+        rafile.close();
+        assertTrue(f.setLastModified(modificationTime));
+    }
+
+    /**
+     * @throws IOException
+     *             Thrown if File access fails.
+     * @throws NoSuchAlgorithmException
+     *             Thrown if the SHA-1 digest algorithm is unknown.
+     * 
+     */
+    @Test
+    public void testValidityFile() throws NoSuchAlgorithmException,
+            IOException {
+        final File f = File.createTempFile("Arnold", "test");
+        final File validityFile = PieceValidityFile.getValidityFile(f);
+        final byte hashes[][] = new byte[PIECES][];
+        for (int i = 0; i < PIECES; i++) {
+            hashes[i] = Utils.computeSHA1(TestPieces.build(i + 1,
+                    Settings.PIECE_SIZE));
+        }
+        SharedFile sf = new SharedFile(f, Settings.PIECE_SIZE, (long) PIECES
+                * Settings.PIECE_SIZE, new PieceDigests(hashes));
+        assertTrue(validityFile.exists());
+        assertTrue(sf.storePiece(0, TestPieces.build(1, Settings.PIECE_SIZE)));
+        assertTrue(sf.storePiece(1, TestPieces.build(2, Settings.PIECE_SIZE)));
+        sf.close();
+
+        final boolean expected[] = { true, true, false };
+        assertTrue(Arrays.equals(expected, getValidity(f, hashes, null)));
+
+        // The validity file is trusted, so a corruption that doesn't
+        // change the size or modification time goes unnoticed ...
+        corruptPiece(f, 1);
+        assertTrue(Arrays.equals(expected, getValidity(f, hashes, null)));
+
+        // ... unless we ask for verification.
+        final boolean corrupted[] = { true, false, false };
+        assertTrue(Arrays.equals(corrupted, getValidity(f, hashes, "sampled")));
+        corruptPiece(f, 0);
+        final boolean none[] = { false, false, false };
+        assertTrue(Arrays.equals(none, getValidity(f, hashes, "full")));
+
+        // A validity file for other jorrent information is ignored.
+        sf = new SharedFile(f, Settings.PIECE_SIZE, (long) PIECES
+                * Settings.PIECE_SIZE, new PieceDigests(hashes));
+        assertTrue(sf.storePiece(2, TestPieces.build(3, Settings.PIECE_SIZE)));
+        sf.close();
+        final byte otherHashes[][] = hashes.clone();
+        otherHashes[2] = Utils.computeSHA1(TestPieces.build(2,
+                Settings.PIECE_SIZE));
+        assertTrue(Arrays.equals(none, getValidity(f, otherHashes, null)));
+
+        assertTrue(validityFile.delete());
+        assertTrue(f.delete());
+    }
+}
@@ -0,0 +1,97 @@
+package ibis.arnold;
+
+import ibis.ipl.IbisIdentifier;
+
+import java.security.NoSuchAlgorithmException;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * Tests for the piece writer and its verification service.
+ * 
+ * @author Kees van Reeuwijk.
+ */
+public class PieceWriterTest extends TestCase {
+    private static final int PIECE_SIZE = 1000;
+
+    private static class DummyEngine implements EngineInterface {
+        @Override
+        public void cancelPieceDownload(final IbisIdentifier peer,
+                final int piece) {
+            // Nothing to do.
+        }
+
+        @Override
+        public void setSuspect(final IbisIdentifier destination) {
+            // Nothing to do.
+        }
+
+        @Override
+        public void startPieceDownload(final IbisIdentifier peer,
+                final int piece) {
+            // Nothing to do.
+        }
+
+        @Override
+        public void wakeEngineThread() {
+            // Nothing to do.
+        }
+    }
+
+    /**
+     * @throws NoSuchAlgorithmException
+     *             Thrown if the SHA-1 digest algorithm is unknown.
+     * @throws InterruptedException
+     *             Thrown if the join is interrupted.
+     */
+    @Test
+    public void testConcurrentVerification() throws NoSuchAlgorithmException,
+            InterruptedException {
+        final int pieces = 40;
+        final byte hashes[][] = new byte[pieces][];
+        for (int i = 0; i < pieces; i++) {
+            hashes[i] = Utils.computeSHA1(TestPieces.build(i, PIECE_SIZE));
+        }
+        final DummySharedFile sf = new DummySharedFile(PIECE_SIZE,
+                (long) pieces * PIECE_SIZE, new PieceDigests(hashes), 1);
+        final PieceWriter writer = new PieceWriter(sf, new DummyEngine(),
+                Long.MAX_VALUE, 4);
+        writer.start();
+        for (int i = 0; i < pieces; i++) {
+            // Odd pieces get the data of another piece.
+            final int content = (i % 2) == 0 ? i : i - 1;
+            writer.add(null, i, TestPieces.build(content, PIECE_SIZE));
+        }
+        // A second copy of a piece.
+        writer.add(null, 0, TestPieces.build(0, PIECE_SIZE));
+        writer.setStopped();
+        writer.join();
+        int valid = 0;
+        int invalid = 0;
+        int duplicate = 0;
+        while (true) {
+            final StoredPiece p = writer.getNextStoredPiece();
+            if (p == null) {
+                break;
+            }
+            assertNull(p.error);
+            assertNull(p.data);
+            if (p.duplicate) {
+                duplicate++;
+            } else if (p.valid) {
+                assertEquals(0, p.piece % 2);
+                valid++;
+            } else {
+                assertEquals(1, p.piece % 2);
+                invalid++;
+            }
+        }
+        assertEquals(pieces / 2, valid);
+        assertEquals(pieces / 2, invalid);
+        assertEquals(1, duplicate);
+        assertEquals(pieces / 2, sf.getKnownPieces().cardinality());
+        assertFalse(writer.isFull());
+    }
+}
@@ -0,0 +1,82 @@
+package ibis.arnold;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * Tests for range requests: an incomplete piece requests a range of bytes,
+ * and the uploading peer splits it into chunks.
+ * 
+ * @author Kees van Reeuwijk.
+ */
+public class RangeRequestTest extends TestCase {
+    private static final int PIECE_SIZE = 5 * Settings.CHUNK_SIZE + 100;
+
+    /**
+     * 
+     */
+    @Test
+    public void testPieceIsOneRange() {
+        final IncompletePiece p = new IncompletePiece(null, 3, PIECE_SIZE);
+        final Chunk c = p.getNextRequest();
+        assertEquals(new Chunk(3, 0, PIECE_SIZE), c);
+        assertNull(p.getNextRequest());
+        assertFalse(p.hasChunkRequestsReady());
+
+        // The bytes may arrive in chunks of any size.
+        final int sizes[] = { 1000, Settings.CHUNK_SIZE,
+                2 * Settings.CHUNK_SIZE, 3 };
+        int offset = 0;
+        for (final int sz : sizes) {
+            assertTrue(p.addBytes(offset, new byte[sz]));
+            offset += sz;
+            assertFalse(p.isComplete());
+        }
+        assertTrue(p.addBytes(offset, new byte[PIECE_SIZE - offset]));
+        assertTrue(p.isComplete());
+    }
+
+    /**
+     * 
+     */
+    @Test
+    public void testSplitRequests() {
+        final PeerInfo peer = new PeerInfo(null, 10);
+        peer.addChunkRequest(new Chunk(3, 0, PIECE_SIZE));
+        peer.addChunkRequest(new Chunk(4, 0, 100));
+
+        // Without a measured transfer rate the smallest chunks are used.
+        assertEquals(Settings.CHUNK_SIZE, peer.getChunkSize());
+        int offset = 0;
+        ChunkRequest r;
+        do {
+            r = peer.getChunkRequest();
+            assertEquals(3, r.chunk.piece);
+            assertEquals(offset, r.chunk.offset);
+            assertTrue(r.chunk.size <= Settings.MAXIMAL_CHUNK_SIZE);
+            offset += r.chunk.size;
+        } while (!r.completesRequest);
+        assertEquals(PIECE_SIZE, offset);
+        r = peer.getChunkRequest();
+        assertEquals(new Chunk(4, 0, 100), r.chunk);
+        assertTrue(r.completesRequest);
+        assertNull(peer.getChunkRequest());
+    }
+
+    /**
+     * 
+     */
+    @Test
+    public void testCancelPartialRequest() {
+        final PeerInfo peer = new PeerInfo(null, 10);
+        peer.addChunkRequest(new Chunk(3, 0, PIECE_SIZE));
+        final ChunkRequest r = peer.getChunkRequest();
+        assertFalse(r.completesRequest);
+
+        // The downloader cancels what it hasn't received yet, which includes
+        // the chunk that is still under way.
+        assertTrue(peer.removeChunkRequest(new Chunk(3, 0, PIECE_SIZE)));
+        assertNull(peer.getChunkRequest());
+    }
+}
@@ -0,0 +1,132 @@
+package ibis.arnold;
+
+import ibis.ipl.IbisIdentifier;
+import ibis.ipl.impl.Location;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * Tests for the ranked peer list.
+ * 
+ * @author Kees van Reeuwijk.
+ */
+public class RankedPeerListTest extends TestCase {
+    private static class ValueRanker implements PeerRanker {
+        final HashMap<PeerInfo, Integer> values = new HashMap<PeerInfo, Integer>();
+
+        @Override
+        public int compare(final PeerInfo a, final PeerInfo b) {
+            return values.get(b).compareTo(values.get(a));
+        }
+
+        @Override
+        public String getName() {
+            return "value";
+        }
+
+        @Override
+        public double getComparisonValue(final PeerInfo i) {
+            return values.get(i);
+        }
+    }
+
+    private static void assertSane(final RankedPeerList l,
+            final ValueRanker ranker) {
+        final List<PeerInfo> list = l.getList();
+        assertEquals(l.size(), list.size());
+        int i = 0;
+        PeerInfo prev = null;
+        for (final PeerInfo p : list) {
+            assertSame(p, l.get(i));
+            assertEquals(i, l.findPeer(p.peer, true));
+            if (prev != null) {
+                assertTrue(ranker.compare(prev, p) <= 0);
+            }
+            prev = p;
+            i++;
+        }
+        assertEquals(l.size(), i);
+    }
+
+    /**
+     * 
+     */
+    @Test
+    public void testRandomRanking() {
+        final ValueRanker ranker = new ValueRanker();
+        final RankedPeerList l = new RankedPeerList(ranker);
+        final Random rng = new Random(1);
+        final PeerInfo peers[] = new PeerInfo[200];
+        for (int i = 0; i < peers.length; i++) {
+            final IbisIdentifier id = new ibis.ipl.impl.IbisIdentifier("peer"
+                    + i, null, null, new Location("host" + i), "test", null);
+            peers[i] = new PeerInfo(id, 10);
+            ranker.values.put(peers[i], rng.nextInt(50));
+            l.add(peers[i]);
+        }
+        assertSane(l, ranker);
+        for (int step = 0; step < 2000; step++) {
+            final PeerInfo p = peers[rng.nextInt(peers.length)];
+            if (l.getPeer(p.peer, true) == null) {
+                l.add(p);
+                continue;
+            }
+            ranker.values.put(p, rng.nextInt(50));
+            if (rng.nextInt(20) == 0) {
+                assertTrue(l.remove(p));
+                assertNull(l.getPeer(p.peer, true));
+                assertEquals(-1, l.findPeer(p.peer, true));
+            } else if (rng.nextBoolean()) {
+                l.updateRanking(p);
+            } else {
+                l.updateRanking(l.findPeer(p.peer, true));
+            }
+        }
+        assertSane(l, ranker);
+        l.setRanker(ranker);
+        assertSane(l, ranker);
+    }
+
+    /**
+     * 
+     */
+    @Test
+    public void testLazyRanking() {
+        final ValueRanker ranker = new ValueRanker();
+        final RankedPeerList l = new RankedPeerList(ranker);
+        final PeerInfo peers[] = new PeerInfo[50];
+        for (int i = 0; i < peers.length; i++) {
+            final IbisIdentifier id = new ibis.ipl.impl.IbisIdentifier("peer"
+                    + i, null, null, new Location("host" + i), "test", null);
+            peers[i] = new PeerInfo(id, 10);
+            ranker.values.put(peers[i], i);
+            l.add(peers[i]);
+        }
+        assertSame(peers[peers.length - 1], l.get(0));
+
+        // A few dirty peers are moved one by one.
+        ranker.values.put(peers[3], 100);
+        l.updateRanking(peers[3]);
+        assertSame(peers[3], l.get(0));
+
+        // Many dirty peers cause a rebuild of the entire ranking.
+        for (int i = 0; i < peers.length; i++) {
+            ranker.values.put(peers[i], -i);
+            l.updateRanking(peers[i]);
+        }
+        int n = 0;
+        for (final PeerInfo p : l.unordered()) {
+            assertNotNull(l.getPeer(p.peer, false));
+            n++;
+        }
+        assertEquals(peers.length, n);
+        assertSame(peers[0], l.get(0));
+        assertSane(l, ranker);
+    }
+}
@@ -0,0 +1,117 @@
+package ibis.arnold;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * Tests for the receive queue and its lock-free ring.
+ * 
+ * @author Kees van Reeuwijk.
+ */
+public class ReceivedMessageQueueTest extends TestCase {
+
+    private static PieceMessage piece(final int n) {
+        return new PieceMessage(null, n, 0, new byte[1]);
+    }
+
+    /** The ring holds a power of two elements, in order. */
+    @Test
+    public void testRing() {
+        final RingQueue<Integer> q = new RingQueue<Integer>(5);
+        assertEquals(8, q.capacity());
+        assertNull(q.poll());
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 8; i++) {
+                assertTrue(q.offer(i));
+            }
+            assertFalse(q.offer(8));
+            assertEquals(8, q.size());
+            for (int i = 0; i < 8; i++) {
+                assertEquals(i, q.poll().intValue());
+            }
+            assertTrue(q.isEmpty());
+        }
+    }
+
+    /** Control messages are handled before data messages. */
+    @Test
+    public void testControlFirst() {
+        final ReceivedMessageQueue q = new ReceivedMessageQueue(4, 4, false);
+        final PieceMessage p = piece(1);
+        final HaveMessage h = new HaveMessage(3);
+        q.add(p);
+        q.add(h);
+        assertFalse(q.isEmpty());
+        assertSame(h, q.getNext());
+        assertSame(p, q.getNext());
+        assertNull(q.getNext());
+        assertTrue(q.isEmpty());
+    }
+
+    /** A full lane overflows without loss, and stays in order. */
+    @Test
+    public void testOverflow() {
+        final ReceivedMessageQueue q = new ReceivedMessageQueue(2, 2, false);
+        final PieceMessage msgs[] = new PieceMessage[6];
+        for (int i = 0; i < msgs.length; i++) {
+            msgs[i] = piece(i);
+            q.add(msgs[i]);
+            if (i == 1) {
+                assertTrue(q.isCongested());
+            }
+        }
+        assertEquals(4, q.getOverflowedMessages());
+        assertEquals(6, q.getMaximalQueueLength());
+        // Room in the ring again, but the overflowed messages come first.
+        assertSame(msgs[0], q.getNext());
+        q.add(msgs[0]);
+        for (int i = 1; i < msgs.length; i++) {
+            assertSame(msgs[i], q.getNext());
+        }
+        assertSame(msgs[0], q.getNext());
+        assertFalse(q.isCongested());
+    }
+
+    /** Messages of concurrent producers all arrive, in order per producer. */
+    @Test
+    public void testConcurrentProducers() throws InterruptedException {
+        final ReceivedMessageQueue q = new ReceivedMessageQueue(16, 16, true);
+        final int producers = 4;
+        final int count = 20000;
+        final Thread threads[] = new Thread[producers];
+        for (int t = 0; t < producers; t++) {
+            final int base = t * count;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < count; i++) {
+                        q.add(piece(base + i));
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        final int last[] = new int[producers];
+        Arrays.fill(last, -1);
+        int received = 0;
+        while (received < producers * count) {
+            final PieceMessage m = (PieceMessage) q.getNext();
+            if (m == null) {
+                Thread.yield();
+                continue;
+            }
+            final int t = m.piece / count;
+            final int i = m.piece % count;
+            assertTrue(i > last[t]);
+            last[t] = i;
+            received++;
+        }
+        for (final Thread t : threads) {
+            t.join();
+        }
+        assertNull(q.getNext());
+    }
+}
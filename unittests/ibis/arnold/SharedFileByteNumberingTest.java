@@ -91,7 +91,7 @@ public class SharedFileByteNumberingTest extends TestCase {
         final File f = File.createTempFile("Arnold", "test");
         final byte hashes[][] = createTestFile(f);
         final SharedFile sf = new SharedFile(f, Settings.PIECE_SIZE, f.length(),
-                hashes);
+                new PieceDigests(hashes));
         assertTrue("The test file fits in one piece",
                 f.length() < Settings.PIECE_SIZE);
         assertTrue("Shared file with correct pieces", sf.isValidPiece(0));
@@ -105,6 +105,7 @@ public class SharedFileByteNumberingTest extends TestCase {
         assertBytes(sf, 0, 110, vals);
         assertBytes(sf, 0, 110 + 256 * INNER_REPEAT_COUNT, vals);
         sf.close();
+        assertTrue(PieceValidityFile.getValidityFile(f).delete());
         assertTrue(f.delete());
     }
 }
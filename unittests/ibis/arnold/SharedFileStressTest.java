@@ -0,0 +1,144 @@
+package ibis.arnold;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * Reads chunks of a shared file from a number of threads, while another
+ * thread stores the missing pieces, and checks that every read returns exactly
+ * the right bytes.
+ * 
+ * @author Kees van Reeuwijk.
+ */
+public class SharedFileStressTest extends TestCase {
+    private static final int PIECE_SIZE = 4 * Settings.CHUNK_SIZE;
+    private static final int PIECES = 48;
+    private static final long SIZE = (long) PIECES * PIECE_SIZE - 1000;
+    private static final int READERS = 4;
+    private static final int READS_PER_READER = 2000;
+
+    private static byte getByte(final long pos) {
+        return (byte) (pos ^ (pos >>> 8) ^ (pos >>> 16));
+    }
+
+    private static byte[] buildData(final long start, final int length) {
+        final byte res[] = new byte[length];
+        for (int i = 0; i < length; i++) {
+            res[i] = getByte(start + i);
+        }
+        return res;
+    }
+
+    private static int getPieceSize(final int piece) {
+        return (int) Math.min(PIECE_SIZE, SIZE - (long) piece * PIECE_SIZE);
+    }
+
+    private static class Reader extends Thread {
+        private final SharedFile sf;
+        private final Random rng;
+        volatile String failure = null;
+        volatile int reads = 0;
+
+        Reader(final SharedFile sf, final int n) {
+            this.sf = sf;
+            this.rng = new Random(n);
+        }
+
+        private void readChunk(final int piece) throws IOException {
+            final int chunks = Utils.divideRoundUp(getPieceSize(piece),
+                    Settings.CHUNK_SIZE);
+            final int offset = rng.nextInt(chunks) * Settings.CHUNK_SIZE;
+            final Chunk chunk = new Chunk(piece, offset, Settings.CHUNK_SIZE);
+            final long start = (long) piece * PIECE_SIZE + offset;
+            final int length = (int) Math.min(Settings.CHUNK_SIZE, SIZE
+                    - start);
+            final byte ref[] = buildData(start, length);
+            byte data[];
+            if (rng.nextBoolean()) {
+                data = sf.readChunk(chunk);
+            } else {
+                final ByteBuffer buf = ByteBuffer
+                        .allocate(Settings.CHUNK_SIZE);
+                sf.readChunk(chunk, buf);
+                data = new byte[buf.remaining()];
+                buf.get(data);
+            }
+            if (!Arrays.equals(ref, data)) {
+                failure = "Wrong data in " + chunk;
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (failure == null && reads < READS_PER_READER) {
+                    final int piece = rng.nextInt(PIECES);
+                    if (sf.isValidPiece(piece)) {
+                        readChunk(piece);
+                        reads++;
+                    }
+                }
+            } catch (final IOException e) {
+                failure = e.toString();
+            }
+        }
+    }
+
+    /**
+     * @throws IOException
+     *             Thrown if File access fails.
+     * @throws NoSuchAlgorithmException
+     *             Thrown if the SHA-1 digest algorithm is unknown.
+     * @throws InterruptedException
+     *             Thrown if a join is interrupted.
+     */
+    @Test
+    public void testConcurrentAccess() throws NoSuchAlgorithmException,
+            IOException, InterruptedException {
+        final File f = File.createTempFile("Arnold", "test");
+        final byte hashes[][] = new byte[PIECES][];
+        for (int piece = 0; piece < PIECES; piece++) {
+            hashes[piece] = Utils.computeSHA1(buildData((long) piece
+                    * PIECE_SIZE, getPieceSize(piece)));
+        }
+        final SharedFile sf = new SharedFile(f, PIECE_SIZE, SIZE,
+                new PieceDigests(hashes));
+        // Start with the even pieces.
+        for (int piece = 0; piece < PIECES; piece += 2) {
+            assertTrue(sf.storePiece(piece, buildData((long) piece
+                    * PIECE_SIZE, getPieceSize(piece))));
+        }
+        final Reader readers[] = new Reader[READERS];
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = new Reader(sf, i);
+            readers[i].start();
+        }
+        // Store the odd pieces while the readers are busy.
+        for (int piece = 1; piece < PIECES; piece += 2) {
+            assertTrue(sf.storePiece(piece, buildData((long) piece
+                    * PIECE_SIZE, getPieceSize(piece))));
+        }
+        for (final Reader r : readers) {
+            r.join();
+            assertNull(r.failure, r.failure);
+            assertEquals(READS_PER_READER, r.reads);
+        }
+        assertTrue(sf.isComplete());
+        for (int piece = 0; piece < PIECES; piece++) {
+            final byte data[] = sf.readChunk(piece, 0, getPieceSize(piece));
+            assertTrue("Contents of piece " + piece, Arrays.equals(buildData(
+                    (long) piece * PIECE_SIZE, getPieceSize(piece)), data));
+        }
+        sf.close();
+        assertTrue(PieceValidityFile.getValidityFile(f).delete());
+        assertTrue(f.delete());
+    }
+}
@@ -48,7 +48,7 @@ public class SharedFileTest extends TestCase {
         final long size = 2 * Settings.PIECE_SIZE + Settings.PIECE_SIZE / 2;
         final byte hashes[][] = buildFakeHashes(3);
         final SharedFile sf = new SharedFile(f, Settings.PIECE_SIZE, size,
-                hashes);
+                new PieceDigests(hashes));
         writeString(sf, 0, 0, "test string");
         writeString(sf, 1, 0, "chunk 1 test string");
         writeString(sf, 2, 0, "chunk 2 test string");
@@ -56,6 +56,7 @@ public class SharedFileTest extends TestCase {
         assertString(sf, 1, 0, "chunk 1 test string");
         assertString(sf, 2, 0, "chunk 2 test string");
         sf.close();
+        assertTrue(PieceValidityFile.getValidityFile(f).delete());
         assertTrue(f.delete());
     }
 }
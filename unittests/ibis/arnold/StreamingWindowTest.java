@@ -0,0 +1,78 @@
+package ibis.arnold;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * Tests for the playback administration of streaming downloads.
+ * 
+ * @author Kees van Reeuwijk.
+ */
+public class StreamingWindowTest extends TestCase {
+
+    /**
+     * 
+     */
+    @Test
+    public void testPlayback() {
+        // 10 pieces of 1000 bytes, played at 1000 bytes/s, window of 3 s.
+        final PieceSet have = new PieceSet(10);
+        final StreamingWindow w = new StreamingWindow(have, 1000, 1000, 3, 0);
+        assertEquals(0, w.getWindowStart());
+        assertEquals(3, w.getWindowEnd());
+        assertEquals(-1, w.getTimeToFirstPlayableByte());
+
+        w.registerCompletedPiece(1, 100);
+        w.registerCompletedPiece(0, 500);
+        assertEquals(500, w.getTimeToFirstPlayableByte());
+        w.update(2400);
+        assertEquals(1, w.getWindowStart());
+        assertEquals(0, w.getRebufferEvents());
+
+        // Piece 2 is not there when piece 1 has been played.
+        w.update(2600);
+        assertEquals(2, w.getWindowStart());
+        assertEquals(5, w.getWindowEnd());
+        assertEquals(1, w.getRebufferEvents());
+        w.update(5000);
+        assertEquals(2, w.getWindowStart());
+        w.registerCompletedPiece(2, 5000);
+        w.update(5500);
+        assertEquals(2, w.getWindowStart());
+        assertEquals(1, w.getRebufferEvents());
+    }
+
+    /**
+     * 
+     */
+    @Test
+    public void testWindowFirst() {
+        final PieceSet have = new PieceSet(100);
+        final PieceRanker r = new PieceRanker(have);
+        final PieceSet available = new PieceSet(100);
+        available.setComplete();
+        // Piece 50 is the rarest, but the window comes first.
+        for (int i = 0; i < 100; i++) {
+            if (i != 50) {
+                r.addOccurrenceCount(i);
+            }
+        }
+        assertEquals(50, r.getBestPieceToDownload(available));
+        r.setStreamingWindow(new StreamingWindow(have, 1000, 1000, 2, System
+                .currentTimeMillis()));
+        assertEquals(0, r.getBestPieceToDownload(available));
+        r.registerDownloadStart(0);
+        assertEquals(1, r.getBestPieceToDownload(available));
+        r.registerDownloadStart(1);
+        assertEquals(50, r.getBestPieceToDownload(available));
+
+        // Pieces in the window may be downloaded more than once.
+        final OutstandingDownloadingPieceList outstanding = new OutstandingDownloadingPieceList();
+        assertEquals(0, r.getUrgentPieceToDownload(available, outstanding,
+                null));
+        r.registerCompletedPiece(0);
+        assertEquals(1, r.getUrgentPieceToDownload(available, outstanding,
+                null));
+    }
+}
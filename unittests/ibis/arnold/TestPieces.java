@@ -0,0 +1,31 @@
+package ibis.arnold;
+
+import java.util.Arrays;
+
+/**
+ * Builds the piece contents that the shared file tests store and read back.
+ * 
+ * @author Kees van Reeuwijk.
+ */
+final class TestPieces {
+    private TestPieces() {
+        // Only static methods.
+    }
+
+    /**
+     * Returns a piece of the given size in which every byte has the given
+     * value. This is also the content of a piece in a dummy or memory shared
+     * file.
+     * 
+     * @param value
+     *            The value of every byte, usually the piece number.
+     * @param size
+     *            The size of the piece.
+     * @return The piece.
+     */
+    static byte[] build(final int value, final int size) {
+        final byte res[] = new byte[size];
+        Arrays.fill(res, (byte) value);
+        return res;
+    }
+}
@@ -0,0 +1,67 @@
+package ibis.arnold;
+
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * Tests for the timer wheel.
+ * 
+ * @author Kees van Reeuwijk.
+ */
+public class TimerWheelTest extends TestCase {
+
+    /** Items expire at their deadline, not before. */
+    @Test
+    public void testExpire() {
+        final TimerWheel<String> w = new TimerWheel<String>(10, 8);
+        assertEquals(Long.MAX_VALUE, w.getNextDeadline());
+        w.schedule("b", 1050);
+        w.schedule("a", 1020);
+        assertEquals(2, w.size());
+        assertEquals(1020, w.getNextDeadline());
+        final ArrayList<String> out = new ArrayList<String>();
+        assertEquals(0, w.expire(1010, out));
+        assertEquals(1, w.expire(1025, out));
+        assertEquals("a", out.get(0));
+        assertEquals(1050, w.getNextDeadline());
+        assertEquals(1, w.expire(1100, out));
+        assertEquals("b", out.get(1));
+        assertTrue(w.isEmpty());
+    }
+
+    /** Deadlines further away than one turn of the wheel are kept. */
+    @Test
+    public void testLongDeadline() {
+        final TimerWheel<Integer> w = new TimerWheel<Integer>(10, 4);
+        final ArrayList<Integer> out = new ArrayList<Integer>();
+        w.expire(0, out);
+        for (int i = 0; i < 20; i++) {
+            w.schedule(i, 100 * i);
+        }
+        for (long now = 0; now < 2000; now += 7) {
+            w.expire(now, out);
+            for (final int i : out) {
+                assertTrue(100 * i <= now);
+            }
+            assertEquals(out.size() + w.size(), 20);
+        }
+        assertEquals(20, out.size());
+    }
+
+    /** An item scheduled in the past expires at the next call. */
+    @Test
+    public void testPastDeadline() {
+        final TimerWheel<String> w = new TimerWheel<String>(10, 8);
+        final ArrayList<String> out = new ArrayList<String>();
+        w.expire(5000, out);
+        w.schedule("late", 1000);
+        assertEquals(1, w.expire(5001, out));
+        w.schedule("x", 6000);
+        w.clear();
+        assertTrue(w.isEmpty());
+        assertEquals(0, w.expire(7000, out));
+    }
+}
@@ -0,0 +1,90 @@
+package ibis.arnold;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * Tests that the bucket and EWMA transfer performance monitors give the same
+ * rate estimates as the window-based monitor.
+ * 
+ * @author Kees van Reeuwijk.
+ */
+public class TransferPerformanceMonitorTest extends TestCase {
+    private static final long WINDOW = 800;
+
+    private final WindowTransferPerformanceMonitor window = new WindowTransferPerformanceMonitor(
+            WINDOW);
+    private final BucketTransferPerformanceMonitor buckets = new BucketTransferPerformanceMonitor(
+            WINDOW);
+    private final EwmaTransferPerformanceMonitor ewma = new EwmaTransferPerformanceMonitor(
+            WINDOW);
+
+    /**
+     * Registers a transfer of the given size every <code>interval</code> ms
+     * from <code>start</code> up to <code>end</code>.
+     */
+    private void transfer(final long start, final long end,
+            final long interval, final long size) {
+        for (long t = start; t < end; t += interval) {
+            window.registerTransfer(size, t);
+            buckets.registerTransfer(size, t);
+            ewma.registerTransfer(size, t);
+        }
+    }
+
+    private void assertEquivalent(final long now, final double bucketError,
+            final double ewmaError) {
+        final double expected = window.estimatePerformance(now);
+        assertEquals(expected, buckets.estimatePerformance(now), bucketError
+                * expected);
+        assertEquals(expected, ewma.estimatePerformance(now), ewmaError
+                * expected);
+    }
+
+    /**
+     * 
+     */
+    @Test
+    public void testStartup() {
+        transfer(1000, 1400, 10, 1000);
+        final double expected = window.estimatePerformance(1400);
+        assertEquals(40 * 1000 / (1e-3 * WINDOW), expected, 1e-6);
+        assertEquals(expected, buckets.estimatePerformance(1400), 1e-6);
+    }
+
+    /**
+     * 
+     */
+    @Test
+    public void testSteadyRate() {
+        transfer(1000, 5000, 5, 1000);
+        for (long now = 5000; now < 5100; now += 7) {
+            assertEquivalent(now, 0.02, 0.05);
+        }
+        assertEquals(200000.0, buckets.estimatePerformance(5000), 2000.0);
+    }
+
+    /**
+     * 
+     */
+    @Test
+    public void testRateChange() {
+        transfer(1000, 5000, 5, 1000);
+        transfer(5000, 5000 + 4 * WINDOW, 10, 1000);
+        assertEquivalent(5000 + 4 * WINDOW, 0.02, 0.05);
+    }
+
+    /**
+     * 
+     */
+    @Test
+    public void testIdle() {
+        transfer(1000, 5000, 5, 1000);
+        final double rate = window.estimatePerformance(5000);
+        final long now = 5000 + 3 * WINDOW;
+        assertEquals(0.0, window.estimatePerformance(now), 1e-6);
+        assertEquals(0.0, buckets.estimatePerformance(now), 1e-6);
+        assertTrue(ewma.estimatePerformance(now) < 0.1 * rate);
+    }
+}
@@ -0,0 +1,45 @@
+package ibis.arnold;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * Tests for the wakeup signal.
+ * 
+ * @author Kees van Reeuwijk.
+ */
+public class WakeupSignalTest extends TestCase {
+
+    /** A signal given before the wait is not lost. */
+    @Test
+    public void testSignalBeforeWait() {
+        final WakeupSignal s = new WakeupSignal(Thread.currentThread());
+        s.signal();
+        s.signal();
+        assertTrue(s.await(1000));
+        assertFalse(s.await(10));
+    }
+
+    /** A signal from another thread ends the wait. */
+    @Test
+    public void testSignalFromOtherThread() throws InterruptedException {
+        final WakeupSignal s = new WakeupSignal(Thread.currentThread());
+        final Thread t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(20);
+                } catch (final InterruptedException e) {
+                    // Ignore.
+                }
+                s.signal();
+            }
+        };
+        t.start();
+        final long start = System.currentTimeMillis();
+        assertTrue(s.awaitUntil(Long.MAX_VALUE));
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        t.join();
+    }
+}